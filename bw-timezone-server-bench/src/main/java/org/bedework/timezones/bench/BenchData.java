@@ -0,0 +1,164 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.TzConfigImpl;
+import org.bedework.timezones.common.TzServerUtil;
+import org.bedework.timezones.common.leveldb.LdbCachedData;
+import org.bedework.util.config.ConfigurationStore;
+import org.bedework.util.jmx.ConfigHolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Data and configuration shared by the benchmarks.
+ *
+ * <p>The location of the data is given by system properties:</p>
+ * <ul>
+ *   <li>tzdata.zip - path of a tzdata.zip as served by the server</li>
+ *   <li>tzdata.root - directory containing the olson tzdata
+ *   directory, for the tzconvert benchmarks</li>
+ * </ul>
+ *
+ * @author douglm
+ */
+public class BenchData {
+  /** System property giving the zip file */
+  public static final String zipProperty = "tzdata.zip";
+
+  /** System property giving the tzconvert root directory */
+  public static final String rootProperty = "tzdata.root";
+
+  /** Small enough that cycling through zones and years misses */
+  public static final long expansionCacheMaxWeight = 20000;
+
+  private static boolean serverInitialised;
+
+  private static class Holder implements ConfigHolder<TzConfigImpl> {
+    private final TzConfigImpl cfg;
+
+    Holder(final TzConfigImpl cfg) {
+      this.cfg = cfg;
+    }
+
+    @Override
+    public String getConfigUri() {
+      return null;
+    }
+
+    @Override
+    public TzConfigImpl getConfig() {
+      return cfg;
+    }
+
+    @Override
+    public void putConfig() {
+    }
+
+    @Override
+    public ConfigurationStore getStore() {
+      return null;
+    }
+  }
+
+  /**
+   * @return path of the zip file
+   */
+  public static String getZipPath() {
+    return required(zipProperty);
+  }
+
+  /**
+   * @return tzconvert root directory
+   */
+  public static String getRootdir() {
+    return required(rootProperty);
+  }
+
+  /**
+   * @param prefix for the directory name
+   * @return absolute path of a new empty directory
+   * @throws Throwable on error
+   */
+  public static String tempDir(final String prefix) throws Throwable {
+    final File dir = Files.createTempDirectory(prefix).toFile();
+    dir.deleteOnExit();
+
+    return dir.getAbsolutePath();
+  }
+
+  /** A configuration for a primary server loading from the zip.
+   *
+   * @param leveldbPath absolute path for the db
+   * @return config
+   */
+  public static TzConfigImpl makeConfig(final String leveldbPath) {
+    final TzConfigImpl cfg = new TzConfigImpl();
+
+    cfg.setTzdataUrl(getZipPath());
+    cfg.setPrimaryServer(true);
+    cfg.setLeveldbPath(leveldbPath);
+    cfg.setExpansionCacheMaxWeight(expansionCacheMaxWeight);
+
+    return cfg;
+  }
+
+  /** Set up TzServerUtil with a populated db. Only done once per jvm.
+   *
+   * @throws Throwable on error
+   */
+  public static synchronized void initServer() throws Throwable {
+    if (serverInitialised) {
+      return;
+    }
+
+    final TzConfigImpl cfg = makeConfig(tempDir("bwtzbench"));
+
+    /* Populate the db - the server opens it without clearing */
+    new LdbCachedData(cfg, true).stop();
+
+    TzServerUtil.setTzConfigHolder(new Holder(cfg));
+    TzServerUtil.getInstance();
+
+    serverInitialised = true;
+  }
+
+  /**
+   * @return all tzids known to the server
+   * @throws Throwable on error
+   */
+  public static List<String> getNames() throws Throwable {
+    initServer();
+
+    return new ArrayList<>(TzServerUtil.getInstance().getNames());
+  }
+
+  private static String required(final String name) {
+    final String val = System.getProperty(name);
+
+    if (val == null) {
+      throw new IllegalStateException("System property " + name +
+                                              " must be set");
+    }
+
+    return val;
+  }
+}
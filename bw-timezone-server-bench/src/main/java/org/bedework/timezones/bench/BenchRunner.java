@@ -0,0 +1,47 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks as the JMH main does but always with the gc
+ * profiler so allocation rates are reported alongside the times.
+ *
+ * <p>Any JMH command line options may be given, e.g. a regexp to
+ * select benchmarks or -prof stack.</p>
+ *
+ * @author douglm
+ */
+public class BenchRunner {
+  /**
+   * @param args JMH command line
+   * @throws Throwable on error
+   */
+  public static void main(final String[] args) throws Throwable {
+    final CommandLineOptions cmd = new CommandLineOptions(args);
+
+    new Runner(new OptionsBuilder()
+                       .parent(cmd)
+                       .addProfiler(GCProfiler.class)
+                       .build()).run();
+  }
+}
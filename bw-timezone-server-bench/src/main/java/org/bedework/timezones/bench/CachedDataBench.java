@@ -0,0 +1,125 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.TzConfig;
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.TzServerUtil;
+import org.bedework.timezones.common.ZipCachedData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Building the in-memory data: one processSpec and a complete load of
+ * the zip file.
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class CachedDataBench {
+  /* Gives us access to processSpec */
+  private static class SpecLoader extends ZipCachedData {
+    SpecLoader(final TzConfig cfg) throws TzException {
+      super(cfg);
+    }
+
+    void process(final String id,
+                 final String caldef) throws TzException {
+      processSpec(newSnapshot(), id, caldef, null);
+    }
+  }
+
+  private TzConfig cfg;
+
+  private SpecLoader loader;
+
+  private final List<String> ids = new ArrayList<>();
+  private final List<String> caldefs = new ArrayList<>();
+
+  private int next;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    cfg = BenchData.makeConfig(BenchData.tempDir("bwtzbench"));
+    loader = new SpecLoader(cfg);
+
+    for (final String id: loader.getNameList()) {
+      ids.add(id);
+      caldefs.add(TzServerUtil.getCalHdr() +
+                          loader.getCachedVtz(id) +
+                          TzServerUtil.getCalTlr());
+    }
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  @TearDown
+  public void tearDown() throws Throwable {
+    loader.stop();
+  }
+
+  /** Parse, compile and encode a single zone
+   *
+   * @throws Throwable on error
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public void processSpec() throws Throwable {
+    final int i = next++ % ids.size();
+
+    loader.process(ids.get(i), caldefs.get(i));
+  }
+
+  /**
+   * @return the data
+   * @throws Throwable on error
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public CachedData zipLoad() throws Throwable {
+    final CachedData cd = new ZipCachedData(cfg);
+    cd.stop();
+
+    return cd;
+  }
+}
@@ -0,0 +1,165 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.TzServerUtil;
+import org.bedework.timezones.common.ZipCachedData;
+import org.bedework.timezones.common.db.TzDbSpec;
+import org.bedework.timezones.common.leveldb.LdbCodec;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** The leveldb record formats: json as originally stored against the
+ * binary codec, for every zone in the data.
+ *
+ * <p>decode* is what a startup pays, etags* what a sync pays looking
+ * at what it already has.</p>
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBench {
+  /* Configured as LdbCachedData configures it */
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final List<TzDbSpec> specs = new ArrayList<>();
+
+  private final List<byte[]> json = new ArrayList<>();
+
+  private final List<byte[]> binary = new ArrayList<>();
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    mapper.setDateFormat(
+            new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss'Z'"));
+    mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    final CachedData cd = new ZipCachedData(
+            BenchData.makeConfig(BenchData.tempDir("bwtzbench")));
+
+    for (final String id: cd.getNameList()) {
+      final TzDbSpec spec = new TzDbSpec();
+
+      spec.setName(id);
+      spec.setVtimezone(TzServerUtil.getCalHdr() +
+                                cd.getCachedVtz(id) +
+                                TzServerUtil.getCalTlr());
+      spec.setDtstamp(cd.getDtstamp());
+      spec.setEtag(cd.getDtstamp());
+      spec.setActive(true);
+
+      specs.add(spec);
+      json.add(mapper.writeValueAsBytes(spec));
+      binary.add(LdbCodec.encode(spec));
+    }
+
+    cd.stop();
+  }
+
+  /**
+   * @param bh sink
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public void encodeJson(final Blackhole bh) throws Throwable {
+    for (final TzDbSpec spec: specs) {
+      bh.consume(mapper.writeValueAsBytes(spec));
+    }
+  }
+
+  /**
+   * @param bh sink
+   */
+  @Benchmark
+  public void encodeBinary(final Blackhole bh) {
+    for (final TzDbSpec spec: specs) {
+      bh.consume(LdbCodec.encode(spec));
+    }
+  }
+
+  /**
+   * @param bh sink
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public void decodeJson(final Blackhole bh) throws Throwable {
+    for (final byte[] b: json) {
+      bh.consume(mapper.readValue(b, TzDbSpec.class).getVtimezone());
+    }
+  }
+
+  /**
+   * @param bh sink
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public void decodeBinary(final Blackhole bh) throws Throwable {
+    for (final byte[] b: binary) {
+      bh.consume(LdbCodec.decodeSpec(b).getVtimezone());
+    }
+  }
+
+  /**
+   * @param bh sink
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public void etagsJson(final Blackhole bh) throws Throwable {
+    for (final byte[] b: json) {
+      bh.consume(mapper.readValue(b, TzDbSpec.class).getEtag());
+    }
+  }
+
+  /**
+   * @param bh sink
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public void etagsBinary(final Blackhole bh) throws Throwable {
+    for (final byte[] b: binary) {
+      bh.consume(LdbCodec.decodeSpec(b).getEtag());
+    }
+  }
+}
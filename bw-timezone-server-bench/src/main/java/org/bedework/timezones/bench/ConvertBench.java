@@ -0,0 +1,87 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.TzServerUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Date-time conversion between zones and to UTC. Times past the
+ * compiled horizon fall back to the rules.
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertBench {
+  private TzServerUtil util;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    BenchData.initServer();
+
+    util = TzServerUtil.getInstance();
+  }
+
+  /**
+   * @return converted time
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public String convert() throws Throwable {
+    return util.convertDateTime("20200615T120000",
+                                "America/New_York", "Europe/London");
+  }
+
+  /**
+   * @return utc time
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public String utc() throws Throwable {
+    return util.getUtc("20200615T120000", "Australia/Sydney");
+  }
+
+  /**
+   * @return utc time
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public String utcPastHorizon() throws Throwable {
+    return util.getUtc("21200615T120000", "Australia/Sydney");
+  }
+}
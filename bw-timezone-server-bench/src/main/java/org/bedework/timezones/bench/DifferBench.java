@@ -0,0 +1,87 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.Differ;
+import org.bedework.timezones.common.Differ.DiffListEntry;
+import org.bedework.timezones.common.TzConfig;
+import org.bedework.timezones.common.ZipCachedData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Differ.compare of two copies of the same data - every zone is
+ * compared and nothing differs.
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DifferBench {
+  private CachedData current;
+
+  private CachedData updated;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    final TzConfig cfg =
+            BenchData.makeConfig(BenchData.tempDir("bwtzbench"));
+
+    current = new ZipCachedData(cfg);
+    updated = new ZipCachedData(cfg);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  @TearDown
+  public void tearDown() throws Throwable {
+    current.stop();
+    updated.stop();
+  }
+
+  /**
+   * @return differences
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public List<DiffListEntry> compare() throws Throwable {
+    return new Differ().compare(updated, current);
+  }
+}
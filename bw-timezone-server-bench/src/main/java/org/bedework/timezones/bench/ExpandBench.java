@@ -0,0 +1,98 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.ExpandedMapEntry;
+import org.bedework.timezones.common.TzServerUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** TzServerUtil.getExpanded when the expansion is cached and when it
+ * has to be computed.
+ *
+ * <p>Misses cycle through every zone and a spread of years. The
+ * expansion cache is configured small enough that those are evicted
+ * before they come round again.</p>
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpandBench {
+  private TzServerUtil util;
+
+  private List<String> names;
+
+  private int next;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    BenchData.initServer();
+
+    util = TzServerUtil.getInstance();
+    names = BenchData.getNames();
+  }
+
+  /**
+   * @return expansion
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public ExpandedMapEntry hit() throws Throwable {
+    return util.getExpanded("America/New_York",
+                            "2015-01-01T00:00:00Z",
+                            "2025-01-01T00:00:00Z",
+                            false);
+  }
+
+  /**
+   * @return expansion
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public ExpandedMapEntry miss() throws Throwable {
+    final int n = next++;
+    final String tzid = names.get(n % names.size());
+    final int year = 1950 + (n / names.size()) % 80;
+
+    return util.getExpanded(tzid,
+                            year + "-01-01T00:00:00Z",
+                            (year + 10) + "-01-01T00:00:00Z",
+                            false);
+  }
+}
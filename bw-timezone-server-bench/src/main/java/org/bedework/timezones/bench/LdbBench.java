@@ -0,0 +1,116 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.bench;
+
+import org.bedework.timezones.common.TzConfig;
+import org.bedework.timezones.common.leveldb.LdbCachedData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** LevelDB backed data: loading an empty db from the zip, reopening
+ * a populated db and searching it.
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class LdbBench {
+  @Param({"America", "london", "Zulu"})
+  private String pattern;
+
+  private TzConfig cfg;
+
+  private LdbCachedData ldb;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    cfg = BenchData.makeConfig(BenchData.tempDir("bwtzbench"));
+    ldb = new LdbCachedData(cfg, true);
+  }
+
+  /**
+   * @throws Throwable on error
+   */
+  @TearDown
+  public void tearDown() throws Throwable {
+    ldb.stop();
+  }
+
+  /** Clear the db and load everything from the zip
+   *
+   * @return the data
+   * @throws Throwable on error
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public LdbCachedData load() throws Throwable {
+    final LdbCachedData cd = new LdbCachedData(cfg, true);
+    cd.stop();
+
+    return cd;
+  }
+
+  /** Build the in-memory data from a populated db
+   *
+   * @return the data
+   * @throws Throwable on error
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public LdbCachedData reopen() throws Throwable {
+    final LdbCachedData cd = new LdbCachedData(cfg, false);
+    cd.stop();
+
+    return cd;
+  }
+
+  /**
+   * @return matching ids
+   * @throws Throwable on error
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public List<String> findIds() throws Throwable {
+    return ldb.findIds(pattern);
+  }
+}
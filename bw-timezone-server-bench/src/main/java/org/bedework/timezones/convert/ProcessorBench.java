@@ -0,0 +1,85 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.convert;
+
+import org.bedework.timezones.bench.BenchData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Parsing the olson data and building VTIMEZONEs from it.
+ *
+ * @author douglm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBench {
+  private TzConvertParams params;
+
+  private Processor parsed;
+
+  /**
+   */
+  @Setup
+  public void setup() {
+    params = new TzConvertParams();
+    params.setRootdir(BenchData.getRootdir());
+
+    parsed = new Processor(params);
+    parsed.parse();
+  }
+
+  /**
+   * @return the processor
+   */
+  @Benchmark
+  public Processor parse() {
+    final Processor proc = new Processor(params);
+    proc.parse();
+
+    return proc;
+  }
+
+  /** Build from already parsed data
+   *
+   * @return the processor
+   */
+  @Benchmark
+  public Processor buildVtzs() {
+    final Processor proc = new Processor(params);
+    proc.parse();
+    proc.buildVtzs();
+
+    return proc;
+  }
+}
@@ -0,0 +1,135 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.bench.BenchData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Response generation for get and list, including any content
+ * negotiation and compression, against mock servlet objects.
+ *
+ * @author douglm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBench {
+  /** Accept-Encoding - empty for none */
+  @Param({"", "gzip"})
+  private String acceptEncoding;
+
+  private TzidHandler tzids;
+
+  private ListHandler lists;
+
+  private final MockServlet.Output out = new MockServlet.Output();
+
+  private HttpServletResponse resp;
+
+  private HttpServletRequest getReq;
+
+  private HttpServletRequest listReq;
+
+  private HttpServletRequest changedReq;
+
+  /**
+   * @throws Throwable on error
+   */
+  @Setup
+  public void setup() throws Throwable {
+    BenchData.initServer();
+
+    tzids = new TzidHandler();
+    lists = new ListHandler();
+
+    final Map<String, String> headers = new HashMap<>();
+    if (acceptEncoding.length() > 0) {
+      headers.put("Accept-Encoding", acceptEncoding);
+    }
+
+    resp = MockServlet.response(out);
+
+    getReq = MockServlet.request("/zones/America/New_York",
+                                 new HashMap<>(), headers);
+    listReq = MockServlet.request("/zones", new HashMap<>(), headers);
+
+    final Map<String, String> params = new HashMap<>();
+    params.put("changedsince", "1970-01-01T00:00:00Z");
+    changedReq = MockServlet.request("/zones", params, headers);
+  }
+
+  /**
+   * @return bytes written
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public int get() throws Throwable {
+    out.reset();
+    tzids.doTzid(getReq, resp, "America/New_York");
+
+    return out.size();
+  }
+
+  /** The full list - a cached body
+   *
+   * @return bytes written
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public int list() throws Throwable {
+    out.reset();
+    lists.doMethod(listReq, resp);
+
+    return out.size();
+  }
+
+  /** A list built and serialised per request
+   *
+   * @return bytes written
+   * @throws Throwable on error
+   */
+  @Benchmark
+  public int listChanged() throws Throwable {
+    out.reset();
+    lists.doMethod(changedReq, resp);
+
+    return out.size();
+  }
+}
@@ -0,0 +1,171 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Minimal request and response objects for driving the handlers
+ * outside a container. Only what the handlers use is implemented -
+ * anything else returns null, 0 or false.
+ *
+ * @author douglm
+ */
+public class MockServlet {
+  /** Output is written here and discarded on reset */
+  public static class Output extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(64 * 1024);
+
+    @Override
+    public void write(final int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) {
+      bytes.write(b, off, len);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(final WriteListener writeListener) {
+    }
+
+    /**
+     * @return bytes written since the last reset
+     */
+    public int size() {
+      return bytes.size();
+    }
+
+    /** Discard the output
+     */
+    public void reset() {
+      bytes.reset();
+    }
+  }
+
+  /**
+   * @param pathInfo for the request
+   * @param params request parameters
+   * @param headers request headers
+   * @return a request
+   */
+  public static HttpServletRequest request(final String pathInfo,
+                                           final Map<String, String> params,
+                                           final Map<String, String> headers) {
+    return (HttpServletRequest)Proxy.newProxyInstance(
+            MockServlet.class.getClassLoader(),
+            new Class<?>[]{HttpServletRequest.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getPathInfo":
+                case "getRequestURI":
+                  return pathInfo;
+                case "getParameter":
+                  return params.get((String)args[0]);
+                case "getHeader":
+                  return headers.get((String)args[0]);
+                case "getDateHeader":
+                  return -1L;
+                default:
+                  return defaultValue(method.getReturnType());
+              }
+            });
+  }
+
+  /**
+   * @param out where the body goes
+   * @return a response
+   */
+  public static HttpServletResponse response(final Output out) {
+    final PrintWriter wtr = new PrintWriter(out);
+    final Map<String, String> headers = new HashMap<>();
+
+    return (HttpServletResponse)Proxy.newProxyInstance(
+            MockServlet.class.getClassLoader(),
+            new Class<?>[]{HttpServletResponse.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getOutputStream":
+                  return out;
+                case "getWriter":
+                  return wtr;
+                case "setHeader":
+                  headers.put((String)args[0], String.valueOf(args[1]));
+                  return null;
+                case "getHeader":
+                  return headers.get((String)args[0]);
+                default:
+                  return defaultValue(method.getReturnType());
+              }
+            });
+  }
+
+  private static Object defaultValue(final Class<?> cl) {
+    if (!cl.isPrimitive() || (cl == void.class)) {
+      return null;
+    }
+
+    if (cl == boolean.class) {
+      return false;
+    }
+
+    if (cl == long.class) {
+      return 0L;
+    }
+
+    if (cl == char.class) {
+      return (char)0;
+    }
+
+    if (cl == double.class) {
+      return 0.0;
+    }
+
+    if (cl == float.class) {
+      return 0.0f;
+    }
+
+    if (cl == short.class) {
+      return (short)0;
+    }
+
+    if (cl == byte.class) {
+      return (byte)0;
+    }
+
+    return 0;
+  }
+}
@@ -18,6 +18,7 @@
 */
 package org.bedework.timezones.common;
 
+import org.bedework.timezones.common.db.LocalizedString;
 import org.bedework.timezones.common.db.TzAlias;
 import org.bedework.util.caching.FlushMap;
 import org.bedework.util.calendar.IcalToXcal;
@@ -38,15 +39,28 @@ import net.fortuna.ical4j.model.property.TzId;
 import net.fortuna.ical4j.model.property.TzidAliasOf;
 
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /** Abstract class to help simplify implementation
  *
@@ -58,26 +72,6 @@ public abstract class AbstractCachedData implements Logged, CachedData {
   /** When we were created for debugging */
   protected Timestamp objTimestamp;
 
-  /** XML formatted UTC dtstamp (i.e. separators) for the data */
-  protected String dtstamp;
-
-  private Map<String, String> vtzs = new HashMap<>();
-
-  private Map<String, TimeZone> timeZones = new FlushMap<>();
-
-  private Map<String, IcalendarType> xtzs = new HashMap<>();
-
-  private Map<String, String> aliasedVtzs = new HashMap<>();
-
-//  private Map<String, TimeZone> aliasedTzs = new HashMap<String, TimeZone>();
-
-  private Map<String, IcalendarType> aliasedXtzs = new HashMap<>();
-
-  private SortedSet<String> nameList;
-
-  protected Map<ExpandedMapEntryKey, ExpandedMapEntry> expansions =
-    new HashMap<>();
-
   /** */
   public static class AliasMaps {
     /** */
@@ -92,13 +86,345 @@ public abstract class AbstractCachedData implements Logged, CachedData {
     public Map<String, TzAlias> byAlias;
   }
 
-  protected AliasMaps aliasMaps;
+  /** Supplies the definition of one timezone to the load pipeline.
+   * Called on a pool thread so must not touch shared mutable state.
+   */
+  protected interface CalendarLoader {
+    /**
+     * @return the timezone as a VCALENDAR
+     * @throws Throwable on error
+     */
+    Calendar load() throws Throwable;
+  }
+
+  /** One timezone to be loaded by {@link #processSpecs(Snapshot, List)}
+   */
+  protected static class SpecSource {
+    final String id;
+    final CalendarLoader loader;
+    final String storedDtstamp;
+
+    /**
+     * @param id of tz
+     * @param loader supplies the definition
+     * @param storedDtstamp to set last mod - may be null
+     */
+    public SpecSource(final String id,
+                      final CalendarLoader loader,
+                      final String storedDtstamp) {
+      this.id = id;
+      this.loader = loader;
+      this.storedDtstamp = storedDtstamp;
+    }
+  }
+
+  /* Everything derived from one timezone, built without touching the
+   * snapshot so many can be built at once.
+   */
+  private static class PreparedSpec {
+    String id;
+    String vtz;
+    CompiledTimezone compiled;
+    TimezoneType tz;
+    EncodedBody body;
+  }
+
+  /* An aliased vtimezone as the difference from its target - they
+   * only differ around the TZID and TZID-ALIAS-OF properties.
+   */
+  private static class AliasPatch {
+    final String target;
+
+    /* Chars taken from the start and end of the target */
+    final int prefix;
+    final int suffix;
+
+    /* The same in UTF-8 bytes */
+    final int prefixBytes;
+    final int suffixBytes;
+
+    final String middle;
+
+    AliasPatch(final String target,
+               final String vtz,
+               final String avtz) {
+      this.target = target;
+
+      final int max = Math.min(vtz.length(), avtz.length());
+
+      int p = 0;
+      while ((p < max) && (vtz.charAt(p) == avtz.charAt(p))) {
+        p++;
+      }
+
+      int sfx = 0;
+      while ((sfx < max - p) &&
+              (vtz.charAt(vtz.length() - 1 - sfx) ==
+                       avtz.charAt(avtz.length() - 1 - sfx))) {
+        sfx++;
+      }
+
+      /* Don't split a surrogate pair */
+      if ((p > 0) && Character.isHighSurrogate(vtz.charAt(p - 1))) {
+        p--;
+      }
+
+      if ((sfx > 0) &&
+              Character.isLowSurrogate(vtz.charAt(vtz.length() - sfx))) {
+        sfx--;
+      }
+
+      prefix = p;
+      suffix = sfx;
+      middle = avtz.substring(p, avtz.length() - sfx);
+
+      prefixBytes = utf8Length(vtz, 0, p);
+      suffixBytes = utf8Length(vtz, vtz.length() - sfx, vtz.length());
+    }
+
+    String apply(final String vtz) {
+      return vtz.substring(0, prefix) + middle +
+              vtz.substring(vtz.length() - suffix);
+    }
+
+    /* The body of the applied patch - the same bytes and etag as
+     * encoding it - made from the target body without building the
+     * whole of either. Null if the target body isn't the encoded
+     * vtz with the current header and trailer.
+     */
+    EncodedBody body(final EncodedBody base,
+                     final long lastModified) {
+      if ((base == null) || (base instanceof SplicedBody)) {
+        return null;
+      }
+
+      final byte[] hdr =
+              TzServerUtil.getCalHdr().getBytes(StandardCharsets.UTF_8);
+      final byte[] tlr =
+              TzServerUtil.getCalTlr().getBytes(StandardCharsets.UTF_8);
+      final byte[] b = base.content();
+
+      if ((b.length < hdr.length + prefixBytes + suffixBytes +
+              tlr.length) ||
+              !startsWith(b, 0, hdr) ||
+              !startsWith(b, b.length - tlr.length, tlr)) {
+        return null;
+      }
+
+      final byte[] mid = middle.getBytes(StandardCharsets.UTF_8);
+      final int sfxStart = b.length - tlr.length - suffixBytes;
+
+      final String etag = TzServerUtil.digestParts(
+              ByteBuffer.wrap(b, hdr.length, prefixBytes),
+              ByteBuffer.wrap(mid),
+              ByteBuffer.wrap(b, sfxStart, suffixBytes));
+
+      return SplicedBody.splice(base,
+                                hdr.length + prefixBytes,
+                                mid,
+                                suffixBytes + tlr.length,
+                                base.getContentType(),
+                                "\"" + etag + "\"",
+                                lastModified);
+    }
+
+    private static boolean startsWith(final byte[] b,
+                                      final int off,
+                                      final byte[] val) {
+      for (int i = 0; i < val.length; i++) {
+        if (b[off + i] != val[i]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    /* Length of the chars from start to end as UTF-8 */
+    private static int utf8Length(final String val,
+                                  final int start,
+                                  final int end) {
+      int len = 0;
+
+      for (int i = start; i < end; i++) {
+        final char ch = val.charAt(i);
+
+        if (ch < 0x80) {
+          len++;
+        } else if (ch < 0x800) {
+          len += 2;
+        } else if (Character.isHighSurrogate(ch) && (i + 1 < end) &&
+                Character.isLowSurrogate(val.charAt(i + 1))) {
+          len += 4;
+          i++;
+        } else if (Character.isSurrogate(ch)) {
+          // Unpaired - encoded as '?'
+          len++;
+        } else {
+          len += 3;
+        }
+      }
+
+      return len;
+    }
+  }
+
+  /** Builds a derived form of the data for a key.
+   *
+   * @param <V> type of the derived form
+   */
+  public interface Derivation<V> {
+    /**
+     * @param key tzid or alias
+     * @return the derived form or null if there is none
+     * @throws Throwable on error
+     */
+    V derive(String key) throws Throwable;
+  }
+
+  /* Carries a failure out of the parallel stage or a derivation */
+  private static class PrepareFailure extends RuntimeException {
+    final Throwable failure;
+
+    PrepareFailure(final String id,
+                   final Throwable failure) {
+      super("Failed to process " + id);
+      this.failure = failure;
+    }
+  }
+
+  /* Phases reported in the stats */
+  private static final String[] reloadPhases = {
+          "fetch", "parse", "merge", "build", "total", "incremental"
+  };
+
+  /** All the data derived from one load. A reload builds a new
+   * snapshot off to the side and publishes it with a single volatile
+   * write. Once published it is never modified, apart from the
+   * expansion cache and the lazily built TimeZone, xCal and alias
+   * forms, all of which are thread safe.
+   */
+  protected static class Snapshot {
+    /** Set when published */
+    private long generation;
+
+    /** XML formatted UTC dtstamp (i.e. separators) for the data */
+    public String dtstamp;
+
+    /** */
+    public AliasMaps aliasMaps;
+
+    private final Map<String, String> vtzs = new HashMap<>();
+
+    private final Map<String, TimeZone> timeZones =
+            Collections.synchronizedMap(new FlushMap<>());
+
+    private final Map<String, CompiledTimezone> compiledTzs =
+            new HashMap<>();
+
+    private final Map<String, EncodedBody> bodies = new HashMap<>();
+
+    /* Built on first use from vtzs - at most one per id */
+    private final Map<String, FutureTask<IcalendarType>> xtzs =
+            new ConcurrentHashMap<>();
+
+    /* Built on first use - keyed by alias, at most one each */
+    private final Map<String, FutureTask<AliasPatch>> aliasPatches =
+            new ConcurrentHashMap<>();
+
+    private final Map<String, FutureTask<EncodedBody>> aliasedBodies =
+            new ConcurrentHashMap<>();
+
+    private final Map<String, FutureTask<IcalendarType>> aliasedXtzs =
+            new ConcurrentHashMap<>();
+
+    /* The fixed windows built for every zone. Keyed by tzid or alias
+       then by window */
+    private final Map<String, Map<String, EncodedBody>> keptTruncations =
+            new ConcurrentHashMap<>();
+
+    private final SortedSet<String> nameList = new TreeSet<>();
+
+    private final List<TimezoneType> timezones = new ArrayList<>();
+
+    private final Map<String, TimezoneType> timezonesMap =
+            new HashMap<>();
+
+    private final Map<String, Collection<LocalizedString>> displayNames =
+            new HashMap<>();
+
+    /* Built on publish */
+    private TzSearchIndex index = TzSearchIndex.empty;
+
+    private LastModIndex lastMods = new LastModIndex(timezones);
+
+    private final ExpansionCache expansions;
+
+    /* Any other windows */
+    private final TruncationCache truncations;
+
+    /* Set for a snapshot copied from its predecessor - the ids to be
+     * reprocessed and the ids and aliases whose expansions are stale.
+     */
+    private Set<String> affected;
+    private Set<String> invalidated;
+
+    Snapshot(final ExpansionCache expansions,
+             final TruncationCache truncations) {
+      this.expansions = expansions;
+      this.truncations = truncations;
+
+      aliasMaps = new AliasMaps();
+      aliasMaps.aliasesStr = "";
+      aliasMaps.aliases = new Properties();
+      aliasMaps.byTzid = new HashMap<>();
+      aliasMaps.byAlias = new HashMap<>();
+    }
+
+    /**
+     * @return generation number - incremented on each publish
+     */
+    public long getGeneration() {
+      return generation;
+    }
+
+    /**
+     * @return ids to reprocess in a copied snapshot - empty for a new one
+     */
+    public Set<String> getAffected() {
+      if (affected == null) {
+        return Collections.emptySet();
+      }
+
+      return Collections.unmodifiableSet(affected);
+    }
+  }
+
+  /* Never null */
+  private volatile Snapshot snapshot;
+
+  /* Shared by all instances so generations never repeat when a new
+   * cache replaces an old one.
+   */
+  private static final AtomicLong generations = new AtomicLong();
 
   protected TzConfig cfg;
 
-  private List<TimezoneType> timezones;
+  /* Derived forms built on demand */
+  private final LongAdder xcalsBuilt = new LongAdder();
+  private final LongAdder aliasVtzsBuilt = new LongAdder();
+  private final LongAdder aliasXcalsBuilt = new LongAdder();
 
-  private Map<String, TimezoneType> timezonesMap;
+  private final LatencyHistogram expandTimer;
+
+  /** Also used by implementations not derived from this class so
+   * a generation is never repeated when one cache replaces another.
+   *
+   * @return a new generation number
+   */
+  public static long nextGeneration() {
+    return generations.incrementAndGet();
+  }
 
   /**
    * @param cfg
@@ -113,127 +439,294 @@ public abstract class AbstractCachedData implements Logged, CachedData {
 
     this.cfg = cfg;
     this.msgPrefix = msgPrefix;
+    expandTimer = TzServerUtil.expandTimer(msgPrefix);
+
+    snapshot = new Snapshot(
+            new ExpansionCache(cfg.getExpansionCacheMaxWeight(),
+                               cfg.getExpansionCacheTtl()),
+            new TruncationCache());
+  }
+
+  /**
+   * @param phase of the reload - fetch, parse, merge, build or total
+   * @return timer for that phase of reloading this backend
+   */
+  protected LatencyHistogram reloadTimer(final String phase) {
+    return TzMetrics.timer("reload_seconds",
+                           "Time taken by each phase of a data reload",
+                           "backend=\"" + msgPrefix +
+                                   "\",phase=\"" + phase + "\"");
   }
 
   @Override
   public List<Stat> getStats() throws TzException {
     final List<Stat> stats = new ArrayList<>();
+    final Snapshot snap = snapshot;
 
-    if (vtzs == null) {
-      stats.add(new Stat(msgPrefix, " #tzs  Unavailable"));
-    } else {
-      stats.add(new Stat(msgPrefix + " #tzs", String.valueOf(vtzs.size())));
+    stats.add(new Stat(msgPrefix + " #tzs", snap.vtzs.size()));
+    stats.add(new Stat(msgPrefix + " dtstamp", snap.dtstamp));
+    stats.add(new Stat(msgPrefix + " generation", snap.generation));
+    stats.addAll(snap.expansions.getStats(msgPrefix));
+    stats.addAll(snap.truncations.getStats(msgPrefix));
+
+    for (final String phase: reloadPhases) {
+      final LatencyHistogram h = reloadTimer(phase);
+      final long ct = h.getCount();
+
+      if (ct > 0) {
+        stats.add(new Stat(msgPrefix + " reload " + phase + " mean ms",
+                           h.getSum() / ct / 1000));
+      }
     }
 
-    stats.add(new Stat(msgPrefix + " dtstamp", dtstamp));
-    stats.add(new Stat(msgPrefix + " cached expansions",
-                       String.valueOf(expansions.size())));
+    stats.add(new Stat(msgPrefix + " xcal built", xcalsBuilt.sum()));
+    stats.add(new Stat(msgPrefix + " alias vtz built",
+                       aliasVtzsBuilt.sum()));
+    stats.add(new Stat(msgPrefix + " alias xcal built",
+                       aliasXcalsBuilt.sum()));
+    stats.add(new Stat(msgPrefix + " #xcal cached", snap.xtzs.size()));
+    stats.add(new Stat(msgPrefix + " #alias vtz cached",
+                       snap.aliasPatches.size()));
+
+    stats.add(new Stat(msgPrefix + " load parallelism",
+                       ForkJoinPool.getCommonPoolParallelism()));
 
     return stats;
   }
 
-  /** Find tz identifiers or alias names that (partially) match the given value
+  /** Find tz identifiers whose id, aliases or localized names
+   * (partially) match the given value.
+   *
    * @param val
-   * @return list of strings - never null
+   * @return list of tzids, best match first - never null
    * @throws TzException
    */
-  public abstract List<String> findIds(String val) throws TzException;
+  public List<String> findIds(final String val) throws TzException {
+    return snapshot.index.find(val, null);
+  }
 
   /* ====================================================================
    *                   CachedData methods
    * ==================================================================== */
 
+  @Override
+  public void pauseUpdates() throws TzException {
+    // No background updates by default
+  }
+
+  @Override
+  public void resumeUpdates() throws TzException {
+  }
+
+  @Override
+  public String getName() {
+    return msgPrefix;
+  }
+
+  @Override
+  public LatencyHistogram getExpandTimer() {
+    return expandTimer;
+  }
+
+  @Override
+  public ExpansionCache getExpansions() {
+    return snapshot.expansions;
+  }
+
+  @Override
+  public long getGeneration() {
+    return snapshot.generation;
+  }
+
   @Override
   public String getDtstamp() throws TzException {
-    return dtstamp;
+    return snapshot.dtstamp;
   }
 
   @Override
   public TzAlias fromAlias(final String val) throws TzException {
-    return aliasMaps.byAlias.get(val);
+    return snapshot.aliasMaps.byAlias.get(val);
   }
 
   @Override
   public String getAliasesStr() throws TzException {
-    return aliasMaps.aliasesStr;
+    return snapshot.aliasMaps.aliasesStr;
   }
 
   @Override
   public SortedSet<String> findAliases(final String tzid) throws TzException {
-    return aliasMaps.byTzid.get(tzid);
+    return snapshot.aliasMaps.byTzid.get(tzid);
   }
 
   @Override
   public SortedSet<String> getNameList() throws TzException {
-    return nameList;
+    return Collections.unmodifiableSortedSet(snapshot.nameList);
   }
 
   @Override
   public void setExpanded(final ExpandedMapEntryKey key,
                           final ExpandedMapEntry tzs) throws TzException {
-    expansions.put(key, tzs);
+    snapshot.expansions.put(key, tzs);
   }
 
   @Override
   public ExpandedMapEntry getExpanded(final ExpandedMapEntryKey key) throws TzException {
-    return expansions.get(key);
+    return snapshot.expansions.get(key);
   }
 
   @Override
   public String getCachedVtz(final String name) throws TzException {
-    return vtzs.get(name);
+    return snapshot.vtzs.get(name);
   }
 
   @Override
   public Collection<String> getAllCachedVtzs() throws TzException {
-    return vtzs.values();
+    return Collections.unmodifiableCollection(snapshot.vtzs.values());
   }
 
   @Override
   public TimeZone getTimeZone(final String tzid) throws TzException {
-    TimeZone tz = timeZones.get(tzid);
+    final Snapshot snap = snapshot;
+    TimeZone tz = snap.timeZones.get(tzid);
 
     if (tz != null) {
       return tz;
     }
 
-    Calendar cal = parseDef(TzServerUtil.getCalHdr() +
-                                    getCachedVtz(tzid) +
-                                    TzServerUtil.getCalTlr());
-
-    tz = new TimeZone(vtzFromCal(cal));
+    final String vtz = snap.vtzs.get(tzid);
+    if (vtz == null) {
+      return null;
+    }
 
+    tz = new TimeZone(vtzFromCal(parseVtz(vtz)));
 
-    timeZones.put(tzid, tz);
+    snap.timeZones.put(tzid, tz);
 
     return tz;
   }
 
-  /* (non-Javadoc)
-   * @see org.bedework.timezones.common.CachedData#getAliasedTimeZone(java.lang.String)
-   * /
   @Override
-  public TimeZone getAliasedTimeZone(final String tzid) throws TzException {
-    return aliasedTzs.get(tzid);
-  }*/
+  public EncodedBody getTzBody(final String tzid) throws TzException {
+    return snapshot.bodies.get(tzid);
+  }
+
+  @Override
+  public EncodedBody getAliasedTzBody(final String alias) throws TzException {
+    final Snapshot snap = snapshot;
+
+    return derive(snap.aliasedBodies, alias, a -> {
+      final AliasPatch patch = aliasPatch(snap, a);
+
+      if (patch == null) {
+        return null;
+      }
+
+      final TimezoneType tz = snap.timezonesMap.get(patch.target);
+      long lastModified = -1;
+
+      if ((tz != null) && (tz.getLastModified() != null)) {
+        lastModified = tz.getLastModified().getTime();
+      }
+
+      /* Shares all but a few bytes with the target body */
+      final EncodedBody base = snap.bodies.get(patch.target);
+      final EncodedBody body = patch.body(base, lastModified);
+
+      if (body != null) {
+        return body;
+      }
+
+      final String avtz = patch.apply(snap.vtzs.get(patch.target));
+
+      return SplicedBody.splice(base,
+                                encode(avtz, TzServerUtil.digest(avtz),
+                                       lastModified));
+    });
+  }
+
+  @Override
+  public EncodedBody getTruncatedTzBody(final String name,
+                                        final String start,
+                                        final String end) throws TzException {
+    final Snapshot snap = snapshot;
+    final Map<String, EncodedBody> bodies = snap.keptTruncations.get(name);
+
+    if (bodies != null) {
+      final EncodedBody body = bodies.get(start + "/" + end);
+
+      if (body != null) {
+        return body;
+      }
+    }
+
+    return snap.truncations.get(TruncationCache.key(name, start, end));
+  }
+
+  @Override
+  public void setTruncatedTzBody(final String name,
+                                 final String start,
+                                 final String end,
+                                 final EncodedBody body,
+                                 final boolean keep) throws TzException {
+    final Snapshot snap = snapshot;
+
+    if (keep) {
+      snap.keptTruncations.computeIfAbsent(
+              name, k -> new ConcurrentHashMap<>()).put(start + "/" + end,
+                                                        body);
+      return;
+    }
+
+    snap.truncations.put(TruncationCache.key(name, start, end), body);
+  }
+
+  @Override
+  public CompiledTimezone getCompiledTimezone(final String tzid) throws TzException {
+    return snapshot.compiledTzs.get(tzid);
+  }
 
   @Override
   public IcalendarType getXTimeZone(final String tzid) throws TzException {
-    return xtzs.get(tzid);
+    final Snapshot snap = snapshot;
+
+    return derive(snap.xtzs, tzid, id -> {
+      final String vtz = snap.vtzs.get(id);
+
+      if (vtz == null) {
+        return null;
+      }
+
+      xcalsBuilt.increment();
+
+      return toXcal(vtz);
+    });
   }
 
   @Override
-  public IcalendarType getAliasedXTimeZone(final String tzid) throws TzException {
-    return aliasedXtzs.get(tzid);
+  public IcalendarType getAliasedXTimeZone(final String alias) throws TzException {
+    final Snapshot snap = snapshot;
+
+    return derive(snap.aliasedXtzs, alias, a -> {
+      final String avtz = aliasedVtz(snap, a);
+
+      if (avtz == null) {
+        return null;
+      }
+
+      aliasXcalsBuilt.increment();
+
+      return toXcal(avtz);
+    });
   }
 
   @Override
   public String getAliasedCachedVtz(final String name) throws TzException {
-    return aliasedVtzs.get(name);
+    return aliasedVtz(snapshot, name);
   }
 
   @Override
   public List<TimezoneType> getTimezones(final String[] tzids) throws TzException {
+    final Map<String, TimezoneType> timezonesMap = snapshot.timezonesMap;
     List<TimezoneType> ss = new ArrayList<>();
 
     for (String tzid: tzids) {
@@ -249,91 +742,287 @@ public abstract class AbstractCachedData implements Logged, CachedData {
 
   @Override
   public List<TimezoneType> getTimezones(final String changedSince) throws TzException {
-    if (changedSince == null) {
-      return timezones;
+    return snapshot.lastMods.changedSince(changedSince);
+  }
+
+  @Override
+  public List<TimezoneType> findTimezones(final String name) throws TzException {
+    return findTimezones(name, null);
+  }
+
+  @Override
+  public List<TimezoneType> findTimezones(final String name,
+                                          final String lang) throws TzException {
+    final Snapshot snap = snapshot;
+    final List<TimezoneType> sums = new ArrayList<>();
+
+    for (final String id: snap.index.find(name, lang)) {
+      final TimezoneType tz = snap.timezonesMap.get(id);
+
+      if (tz != null) {
+        sums.add(tz);
+      }
     }
 
-    final List<TimezoneType> ss = new ArrayList<>();
+    return sums;
+  }
+
+  /* ====================================================================
+   *                   protected methods
+   * ==================================================================== */
 
-    for (final TimezoneType tz: timezones) {
-      if (tz.getLastModified() == null) {
-        ss.add(tz);
-        continue;
+  /** Start building a new set of data. Nothing is visible until the
+   * result is handed to {@link #publish(Snapshot)}.
+   *
+   * @return an empty snapshot
+   */
+  protected Snapshot newSnapshot() {
+    return new Snapshot(new ExpansionCache(snapshot.expansions),
+                        new TruncationCache(snapshot.truncations));
+  }
+
+  /** Start a new snapshot from the current one for a small set of
+   * changes. Everything derived from the changed timezones, or from
+   * timezones whose aliases changed, is left out. The caller sets the
+   * dtstamp, reprocesses the ids in {@link Snapshot#getAffected()} that
+   * still exist and publishes the result.
+   *
+   * <p>The expansion cache is carried over and only the entries for the
+   * affected ids and their aliases are dropped when it's published.</p>
+   *
+   * @param aliasMaps the new alias maps
+   * @param changed ids whose spec changed
+   * @return partly populated snapshot
+   */
+  protected Snapshot copySnapshot(final AliasMaps aliasMaps,
+                                  final Collection<String> changed) {
+    final Snapshot from = snapshot;
+    final Snapshot snap = new Snapshot(from.expansions,
+                                       from.truncations);
+
+    snap.aliasMaps = aliasMaps;
+
+    final Set<String> affected = new HashSet<>(changed);
+
+    /* Ids gaining or losing an alias */
+    final Set<String> ids = new HashSet<>(from.aliasMaps.byTzid.keySet());
+    ids.addAll(aliasMaps.byTzid.keySet());
+
+    for (final String id: ids) {
+      if (!Objects.equals(from.aliasMaps.byTzid.get(id),
+                          aliasMaps.byTzid.get(id))) {
+        affected.add(id);
       }
+    }
 
-      final String lm = DateTimeUtil.rfcDateTimeUTC(tz.getLastModified());
+    /* Aliases whose targets changed alter the aliased form of them all */
+    final Set<String> aliases = new HashSet<>(from.aliasMaps.byAlias.keySet());
+    aliases.addAll(aliasMaps.byAlias.keySet());
 
-      /*
-       * cs > lm +
-       * cs = lm 0
-       * cs < lm -
-       */
+    for (final String a: aliases) {
+      final List<String> was = targets(from.aliasMaps.byAlias.get(a));
+      final List<String> is = targets(aliasMaps.byAlias.get(a));
 
-      if (changedSince.compareTo(lm) < 0) {
-        ss.add(tz);
+      if (!was.equals(is)) {
+        affected.addAll(was);
+        affected.addAll(is);
       }
     }
 
-    return ss;
+    final Set<String> invalidated = new HashSet<>(affected);
+
+    for (final String id: affected) {
+      addAll(invalidated, from.aliasMaps.byTzid.get(id));
+      addAll(invalidated, aliasMaps.byTzid.get(id));
+    }
+
+    snap.affected = affected;
+    snap.invalidated = invalidated;
+
+    copyExcept(from.vtzs, snap.vtzs, affected);
+    synchronized (from.timeZones) {
+      copyExcept(from.timeZones, snap.timeZones, affected);
+    }
+    copyExcept(from.xtzs, snap.xtzs, affected);
+    copyExcept(from.compiledTzs, snap.compiledTzs, affected);
+    copyExcept(from.bodies, snap.bodies, affected);
+    copyExcept(from.timezonesMap, snap.timezonesMap, affected);
+    copyExcept(from.displayNames, snap.displayNames, affected);
+
+    /* Keyed by alias */
+    copyExcept(from.aliasPatches, snap.aliasPatches, invalidated);
+    copyExcept(from.aliasedBodies, snap.aliasedBodies, invalidated);
+    copyExcept(from.aliasedXtzs, snap.aliasedXtzs, invalidated);
+
+    /* Keyed by tzid or alias */
+    copyExcept(from.keptTruncations, snap.keptTruncations, invalidated);
+
+    snap.nameList.addAll(from.nameList);
+    snap.nameList.removeAll(affected);
+
+    return snap;
   }
 
-  @Override
-  public List<TimezoneType> findTimezones(final String name) throws TzException {
-    List<TimezoneType> sums = new ArrayList<>();
+  /** Make the snapshot the current data.
+   *
+   * @param snap fully built snapshot
+   */
+  protected void publish(final Snapshot snap) {
+    if (snap.affected != null) {
+      /* Reprocessed entries were appended - restore id order */
+      snap.timezones.clear();
 
-    List<String> ids = findIds(name);
+      for (final String id: snap.nameList) {
+        final TimezoneType tz = snap.timezonesMap.get(id);
 
-    for (TimezoneType tz: timezones) {
-      if (ids.contains(tz.getTzid())) {
-        sums.add(tz);
+        if (tz != null) {
+          snap.timezones.add(tz);
+        }
       }
     }
 
-    return sums;
+    snap.index = buildIndex(snap);
+    snap.lastMods = new LastModIndex(snap.timezones);
+    snap.generation = nextGeneration();
+    snapshot = snap;
+
+    GenerationMonitor.changed();
+
+    if (snap.invalidated != null) {
+      /* After the switch so an expansion built from the old data and
+         checked against the old generation is very unlikely to land.
+       */
+      final int ct = snap.expansions.invalidate(snap.invalidated);
+      snap.truncations.invalidate(snap.invalidated);
+
+      if (debug()) {
+        debug("Invalidated " + ct + " expansions for " +
+                      snap.affected.size() + " changed timezones");
+      }
+    }
+
+    if (debug()) {
+      debug("Published generation " + snap.generation +
+                    " with " + snap.vtzs.size() + " timezones");
+    }
   }
 
-  /* ====================================================================
-   *                   protected methods
-   * ==================================================================== */
+  /**
+   * @return the current snapshot
+   */
+  protected Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /** Localized names for a timezone, searched by find.
+   *
+   * @param snap being built
+   * @param id of tz
+   * @param names may be null
+   */
+  protected void addDisplayNames(final Snapshot snap,
+                                 final String id,
+                                 final Collection<LocalizedString> names) {
+    if ((names == null) || names.isEmpty()) {
+      return;
+    }
+
+    snap.displayNames.put(id, names);
+  }
 
   /**
+   * @param snap being built
    * @param id of tz
    * @param caldef a tz spec in the form of a String VCALENDAR representation
-   * @param etag for entry
    * @param storedDtstamp to set last mod
    * @throws TzException
    */
-  protected void processSpec(final String id,
+  protected void processSpec(final Snapshot snap,
+                             final String id,
                              final String caldef,
-                             final String etag,
                              final String storedDtstamp) throws TzException {
-    processSpec(id, parseDef(caldef), etag, storedDtstamp);
+    processSpec(snap, id, parseDef(caldef), storedDtstamp);
   }
 
 
   /**
+   * @param snap being built
    * @param id of tz
    * @param cal a tz spec in the form of a CALENDAR component
-   * @param etag for entry
    * @param storedDtstamp to set last mod
    * @throws TzException
    */
-  protected void processSpec(final String id,
+  protected void processSpec(final Snapshot snap,
+                             final String id,
                              final Calendar cal,
-                             final String etag,
                              final String storedDtstamp) throws TzException {
+    mergeSpec(snap, prepareSpec(snap, id, cal, storedDtstamp));
+  }
+
+  /** Process a set of timezones. The parsing and conversion of each
+   * is done in parallel, then the results are merged into the snapshot
+   * on this thread in the order given, so the snapshot is the same
+   * however the work was scheduled.
+   *
+   * @param snap being built - dtstamp and aliasMaps must be set
+   * @param sources the timezones
+   * @throws TzException on the first failure
+   */
+  protected void processSpecs(final Snapshot snap,
+                              final List<SpecSource> sources) throws TzException {
+    final long start = System.nanoTime();
+    final List<PreparedSpec> prepared;
+
     try {
-      nameList.add(id);
+      prepared = sources.parallelStream().map(src -> {
+        try {
+          return prepareSpec(snap, src.id, src.loader.load(),
+                             src.storedDtstamp);
+        } catch (final Throwable t) {
+          throw new PrepareFailure(src.id, t);
+        }
+      }).collect(Collectors.toList());
+    } catch (final PrepareFailure pf) {
+      error(pf.getMessage());
 
-      final VTimeZone vtz = vtzFromCal(cal);
+      if (pf.failure instanceof TzException) {
+        throw (TzException)pf.failure;
+      }
 
-      vtzs.put(id, vtz.toString());
+      throw new TzException(pf.failure);
+    }
 
-      /* Now build the XML version */
+    final long mergeStart = System.nanoTime();
+    reloadTimer("parse").recordNanos(mergeStart - start);
 
-      IcalendarType xcal = IcalToXcal.fromIcal(cal, null, true);
+    for (final PreparedSpec ps: prepared) {
+      mergeSpec(snap, ps);
+    }
 
-      xtzs.put(id, xcal);
+    reloadTimer("merge").recordSince(mergeStart);
+
+    if (debug()) {
+      debug("Processed " + prepared.size() + " timezones in " +
+                    ((System.nanoTime() - start) / 1000000) + " ms");
+    }
+  }
+
+  /* The expensive part - reads only the dtstamp and alias maps of the
+   * snapshot so may run on any thread.
+   */
+  private PreparedSpec prepareSpec(final Snapshot snap,
+                                   final String id,
+                                   final Calendar cal,
+                                   final String storedDtstamp) throws TzException {
+    try {
+      final PreparedSpec ps = new PreparedSpec();
+      ps.id = id;
+
+      final VTimeZone vtz = vtzFromCal(cal);
+
+      ps.vtz = vtz.toString();
+
+      ps.compiled = CompiledTimezone.compile(id, vtz);
 
       /* ================== Build summary info ======================== */
       final TimezoneType tz = new TimezoneType();
@@ -346,50 +1035,102 @@ public abstract class AbstractCachedData implements Logged, CachedData {
       } else if (storedDtstamp != null) {
         tz.setLastModified(DateTimeUtil.fromRfcDateTimeUTC(storedDtstamp));
       } else {
-        tz.setLastModified(DateTimeUtil.fromRfcDateTimeUTC(dtstamp));
+        tz.setLastModified(DateTimeUtil.fromRfcDateTimeUTC(snap.dtstamp));
       }
 
-      if (etag != null) {
-        tz.setEtag(etag);
-      } else if (storedDtstamp != null) {
-        tz.setEtag(storedDtstamp);
+      /* Derived from the content so it's the same on every server with
+         the same data and only changes when the timezone does.
+       */
+      tz.setEtag(TzServerUtil.digest(ps.vtz));
+
+      final long lastModified;
+      if (tz.getLastModified() == null) {
+        lastModified = -1;
       } else {
-        tz.setEtag(dtstamp);
+        lastModified = tz.getLastModified().getTime();
       }
 
-      final SortedSet<String> aliases = findAliases(id);
+      ps.body = encode(ps.vtz, tz.getEtag(), lastModified);
+
+      /* The aliased forms are built on demand */
+      final SortedSet<String> aliases = snap.aliasMaps.byTzid.get(id);
 
       // XXX Need to have list of local names per timezone
       //String ln = vtz.
       if (aliases != null) {
-        for (String a: aliases) {
-          if (tz.getAliases() == null) {
-            tz.setAliases(new ArrayList<String>());
-          }
-          tz.getAliases().add(a);
+        tz.setAliases(new ArrayList<>(aliases));
+      }
+
+      ps.tz = tz;
+
+      return ps;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
 
-          List<String> aliasedIds = null;
+  /* Single threaded - add the results to the snapshot */
+  private void mergeSpec(final Snapshot snap,
+                         final PreparedSpec ps) {
+    final String id = ps.id;
 
-          if (aliasMaps != null) {
-            final TzAlias alias = aliasMaps.byAlias.get(a);
-            if (alias != null) {
-              aliasedIds = alias.getTargetIds();
-            }
-          }
+    snap.nameList.add(id);
+    snap.vtzs.put(id, ps.vtz);
+    snap.compiledTzs.put(id, ps.compiled);
+    snap.bodies.put(id, ps.body);
 
-          final VTimeZone avtz = addAlias(a, vtz, aliasedIds);
+    snap.timezones.add(ps.tz);
+    snap.timezonesMap.put(id, ps.tz);
+  }
 
-          cal.getComponents().clear();
-          cal.getComponents().add(avtz);
+  /* The first target of the alias we have data for */
+  private static String aliasTarget(final Snapshot snap,
+                                    final String alias) {
+    for (final String id: targets(snap.aliasMaps.byAlias.get(alias))) {
+      if (snap.vtzs.containsKey(id)) {
+        return id;
+      }
+    }
 
-          xcal = IcalToXcal.fromIcal(cal, null, true);
+    return null;
+  }
 
-          aliasedXtzs.put(id, xcal);
-        }
+  private String aliasedVtz(final Snapshot snap,
+                            final String alias) throws TzException {
+    final AliasPatch patch = aliasPatch(snap, alias);
+
+    if (patch == null) {
+      return null;
+    }
+
+    return patch.apply(snap.vtzs.get(patch.target));
+  }
+
+  private AliasPatch aliasPatch(final Snapshot snap,
+                                final String alias) throws TzException {
+    return derive(snap.aliasPatches, alias, a -> {
+      final String target = aliasTarget(snap, a);
+
+      if (target == null) {
+        return null;
       }
 
-      timezones.add(tz);
-      timezonesMap.put(tz.getTzid(), tz);
+      final String vtz = snap.vtzs.get(target);
+      final String avtz = aliasVtz(a, vtzFromCal(parseVtz(vtz)),
+                                   targets(snap.aliasMaps.byAlias.get(a)))
+              .toString();
+
+      aliasVtzsBuilt.increment();
+
+      return new AliasPatch(target, vtz, avtz);
+    });
+  }
+
+  private IcalendarType toXcal(final String vtz) throws TzException {
+    try {
+      return IcalToXcal.fromIcal(parseVtz(vtz), null, true);
     } catch (final TzException te) {
       throw te;
     } catch (final Throwable t) {
@@ -397,6 +1138,114 @@ public abstract class AbstractCachedData implements Logged, CachedData {
     }
   }
 
+  /** Get or build a derived form in a per-snapshot map. Built at most
+   * once per key - concurrent requests for the same key wait for it.
+   * The map only holds the task; the build runs outside the map so it
+   * doesn't hold up other keys. A failed build is dropped so a later
+   * request tries again.
+   *
+   * @param <V> type of the derived form
+   * @param derived map of derived forms
+   * @param key tzid or alias
+   * @param d builds the form
+   * @return the form or null if there is none
+   * @throws TzException if the build failed
+   */
+  public static <V> V derive(final Map<String, FutureTask<V>> derived,
+                             final String key,
+                             final Derivation<V> d) throws TzException {
+    final FutureTask<V> task = derived.computeIfAbsent(
+            key, k -> new FutureTask<>(() -> {
+              try {
+                return d.derive(k);
+              } catch (final Throwable t) {
+                throw new PrepareFailure(k, t);
+              }
+            }));
+
+    /* Does nothing if another thread got there first */
+    task.run();
+
+    try {
+      return task.get();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TzException(ie);
+    } catch (final ExecutionException ee) {
+      derived.remove(key, task);
+
+      Throwable t = ee.getCause();
+
+      if (t instanceof PrepareFailure) {
+        t = ((PrepareFailure)t).failure;
+      }
+
+      if (t instanceof TzException) {
+        throw (TzException)t;
+      }
+
+      throw new TzException(t);
+    }
+  }
+
+  private static <V> void copyExcept(final Map<String, V> from,
+                                     final Map<String, V> to,
+                                     final Set<String> skip) {
+    for (final Map.Entry<String, V> me: from.entrySet()) {
+      if (!skip.contains(me.getKey())) {
+        to.put(me.getKey(), me.getValue());
+      }
+    }
+  }
+
+  private static List<String> targets(final TzAlias alias) {
+    if ((alias == null) || (alias.getTargetIds() == null)) {
+      return Collections.emptyList();
+    }
+
+    return alias.getTargetIds();
+  }
+
+  private static void addAll(final Set<String> to,
+                             final Collection<String> vals) {
+    if (vals != null) {
+      to.addAll(vals);
+    }
+  }
+
+  private TzSearchIndex buildIndex(final Snapshot snap) {
+    final TzSearchIndex.Builder b = new TzSearchIndex.Builder();
+
+    for (final String id: snap.nameList) {
+      b.addTzid(id);
+    }
+
+    for (final TzAlias alias: snap.aliasMaps.byAlias.values()) {
+      b.addAlias(alias.getAliasId(), alias.getTargetIds());
+    }
+
+    for (final Map.Entry<String, Collection<LocalizedString>> me:
+            snap.displayNames.entrySet()) {
+      for (final LocalizedString ls: me.getValue()) {
+        b.addName(me.getKey(), ls.getLang(), ls.getValue());
+      }
+    }
+
+    return b.build();
+  }
+
+  /* Render the complete response once for this generation */
+  private EncodedBody encode(final String vtz,
+                             final String etag,
+                             final long lastModified) {
+    return new EncodedBody(TzServerUtil.getCalHdr() +
+                                   vtz +
+                                   TzServerUtil.getCalTlr(),
+                           "text/calendar; charset=UTF-8",
+                           "\"" + etag + "\"",
+                           lastModified);
+  }
+
   protected Calendar parseDef(final String caldef) throws TzException {
     try {
       CalendarBuilder cb = new CalendarBuilder();
@@ -409,6 +1258,13 @@ public abstract class AbstractCachedData implements Logged, CachedData {
     }
   }
 
+  /* A cached vtimezone as a calendar */
+  private Calendar parseVtz(final String vtz) throws TzException {
+    return parseDef(TzServerUtil.getCalHdr() +
+                            vtz +
+                            TzServerUtil.getCalTlr());
+  }
+
   protected VTimeZone vtzFromCal(final Calendar cal) throws TzException {
     VTimeZone vtz = (VTimeZone)cal.getComponents().getComponent(Component.VTIMEZONE);
     if (vtz == null) {
@@ -418,16 +1274,8 @@ public abstract class AbstractCachedData implements Logged, CachedData {
     return vtz;
   }
 
-  protected void resetTzs() {
-    nameList = new TreeSet<>();
-    timezones = new ArrayList<>();
-    timezonesMap = new HashMap<>();
-  }
-
-  /* Construct a new vtimezone with the alias as id and then
-   * add it and the string version to the alias table.
-   */
-  protected VTimeZone addAlias(final String alias,
+  /* Construct a new vtimezone with the alias as id */
+  protected VTimeZone aliasVtz(final String alias,
                                final VTimeZone vtz,
                                final List<String> tzids) throws TzException {
     try {
@@ -442,9 +1290,6 @@ public abstract class AbstractCachedData implements Logged, CachedData {
         }
       }
 
-//      aliasedTzs.put(alias, new TimeZone(avtz));
-      aliasedVtzs.put(alias, avtz.toString());
-
       return avtz;
     } catch (Throwable t) {
       throw new TzException(t);
@@ -41,18 +41,47 @@ public interface CachedData extends Serializable {
    */
   void stop() throws TzException;
 
+  /** Stop any background updates and wait for one in progress to
+   * finish. The data is still served. Called before a replacement is
+   * built from the same store.
+   *
+   * @throws TzException
+   */
+  void pauseUpdates() throws TzException;
+
+  /** Restart background updates stopped by {@link #pauseUpdates()}.
+   *
+   * @throws TzException
+   */
+  void resumeUpdates() throws TzException;
+
   /**
    * @return String source information for data.
    * @throws TzException
    */
   String getSource() throws TzException;
 
+  /**
+   * @return short name of the backend for messages and metrics
+   */
+  String getName();
+
+  /**
+   * @return timer for expansions computed from this data
+   */
+  LatencyHistogram getExpandTimer();
+
   /**
    * @return stats for the module
    * @throws TzException
    */
   List<Stat> getStats() throws TzException;
 
+  /**
+   * @return the cache of expansions for the current data
+   */
+  ExpansionCache getExpansions();
+
   /** Update from primary source if any.
    *
    * @throws TzException
@@ -75,6 +104,13 @@ public interface CachedData extends Serializable {
    */
   String getDtstamp() throws TzException;
 
+  /** Changes each time a new set of data is made current. Values are
+   * increasing and unique across all instances.
+   *
+   * @return generation of the current data
+   */
+  long getGeneration();
+
   /** Given an alias return the tzid for that alias
    *
    * @param val alias
@@ -118,6 +154,53 @@ public interface CachedData extends Serializable {
    */
   ExpandedMapEntry getExpanded(ExpandedMapEntryKey key) throws TzException;
 
+  /**
+   * @param tzid of timezone
+   * @return compiled transition table or null
+   * @throws TzException
+   */
+  CompiledTimezone getCompiledTimezone(String tzid) throws TzException;
+
+  /**
+   * @param tzid of timezone
+   * @return complete VCALENDAR body with the timezone or null
+   * @throws TzException
+   */
+  EncodedBody getTzBody(String tzid) throws TzException;
+
+  /**
+   * @param alias of timezone
+   * @return complete VCALENDAR body with the aliased timezone or null
+   * @throws TzException
+   */
+  EncodedBody getAliasedTzBody(String alias) throws TzException;
+
+  /**
+   * @param name tzid or alias
+   * @param start normalized truncation start or null
+   * @param end normalized truncation end or null
+   * @return truncated body or null
+   * @throws TzException
+   */
+  EncodedBody getTruncatedTzBody(String name,
+                                 String start,
+                                 String end) throws TzException;
+
+  /**
+   * @param name tzid or alias
+   * @param start normalized truncation start or null
+   * @param end normalized truncation end or null
+   * @param body truncated body
+   * @param keep true for one of a small fixed set of windows - kept as
+   *             long as the data. Others go in a bounded cache.
+   * @throws TzException
+   */
+  void setTruncatedTzBody(String name,
+                          String start,
+                          String end,
+                          EncodedBody body,
+                          boolean keep) throws TzException;
+
   /** Get cached VTIMEZONE specifications
    *
    * @param name tzid
@@ -158,14 +241,14 @@ public interface CachedData extends Serializable {
    */
   IcalendarType getXTimeZone(final String tzid) throws TzException;
 
-  /** Get an aliased timezone object from the server given the id.
+  /** Get an aliased timezone object from the server given the alias.
    *
-   * @param tzid the id
-   * @return IcalendarType with id or null
+   * @param alias the alias
+   * @return IcalendarType with alias as id or null
    * @throws TzException
    */
   @SuppressWarnings("UnusedDeclaration")
-  IcalendarType getAliasedXTimeZone(final String tzid) throws TzException;
+  IcalendarType getAliasedXTimeZone(final String alias) throws TzException;
 
   /** Get an aliased cached VTIMEZONE specifications
    *
@@ -195,4 +278,14 @@ public interface CachedData extends Serializable {
    * @throws TzException
    */
   List<TimezoneType> findTimezones(String name) throws TzException;
+
+  /**
+   * @param name to be partially matched
+   * @param lang if non-null only localized names in this language
+   *             are matched
+   * @return list of matching summary info, best match first
+   * @throws TzException
+   */
+  List<TimezoneType> findTimezones(String name,
+                                   String lang) throws TzException;
 }
@@ -0,0 +1,1200 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.ObservanceType;
+
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A VTIMEZONE compiled into a sorted table of transitions.
+ *
+ * <p>Explicit transitions are computed once (by ical4j) up to the start
+ * of {@link #compiledToYear}. Later transitions are extrapolated from the
+ * open ended yearly rules of the timezone. An expansion is then a binary
+ * search and a slice of the table.</p>
+ *
+ * <p>If the timezone has rules we cannot extrapolate, or explicit data
+ * beyond the compiled range, the table only covers times before the
+ * horizon and callers must fall back to ical4j for later ranges.</p>
+ *
+ * @author douglm
+ */
+public class CompiledTimezone
+        implements TzConverter.OffsetSource, Serializable {
+  /** Explicit transitions are compiled up to the start of this year (UTC)
+   */
+  public static final int compiledToYear = 2038;
+
+  /** Epoch seconds for the start of compiledToYear */
+  public static final long horizon =
+          LocalDate.of(compiledToYear, 1, 1).toEpochDay() * 86400;
+
+  private static final long secsPerDay = 86400;
+
+  private final String tzid;
+
+  /* Onsets as utc epoch seconds - ascending */
+  private final long[] onsets;
+  private final int[] offsetFrom;
+  private final int[] offsetTo;
+
+  /* Indexes into names */
+  private final int[] nameIdx;
+  private final int[] tznameIdx;
+
+  private final String[] names;
+
+  private final Rule[] rules;
+
+  private final boolean extrapolatable;
+
+  /** An open ended yearly rule used to extrapolate past the horizon.
+   */
+  public static class Rule implements Serializable {
+    final int fromYear;
+
+    /* 1 - 12 */
+    final int month;
+
+    /* Fixed day or the first day of an on-or-after window. 0 if unused */
+    final int dayOfMonth;
+
+    /* 1 (Monday) - 7 or 0 for a fixed date */
+    final int dayOfWeek;
+
+    /* nth weekday in month, -1 for last. 0 if unused */
+    final int ordinal;
+
+    /* Local wall time (in offsetFrom) of the transition */
+    final int secondOfDay;
+
+    final int offsetFrom;
+    final int offsetTo;
+    final int nameIdx;
+    final int tznameIdx;
+
+    /* The RRULE value we were built from */
+    final String rrule;
+
+    Rule(final int fromYear,
+         final int month,
+         final int dayOfMonth,
+         final int dayOfWeek,
+         final int ordinal,
+         final int secondOfDay,
+         final int offsetFrom,
+         final int offsetTo,
+         final int nameIdx,
+         final int tznameIdx,
+         final String rrule) {
+      this.fromYear = fromYear;
+      this.month = month;
+      this.dayOfMonth = dayOfMonth;
+      this.dayOfWeek = dayOfWeek;
+      this.ordinal = ordinal;
+      this.secondOfDay = secondOfDay;
+      this.offsetFrom = offsetFrom;
+      this.offsetTo = offsetTo;
+      this.nameIdx = nameIdx;
+      this.tznameIdx = tznameIdx;
+      this.rrule = rrule;
+    }
+
+    /**
+     * @param year we want the onset for
+     * @return utc epoch seconds or Long.MIN_VALUE for no onset that year
+     */
+    long onset(final int year) {
+      if (year < fromYear) {
+        return Long.MIN_VALUE;
+      }
+
+      LocalDate d;
+
+      if (dayOfWeek == 0) {
+        if (dayOfMonth > LocalDate.of(year, month, 1).lengthOfMonth()) {
+          return Long.MIN_VALUE;
+        }
+
+        d = LocalDate.of(year, month, dayOfMonth);
+      } else if (ordinal != 0) {
+        d = LocalDate.of(year, month, 1)
+                     .with(TemporalAdjusters.dayOfWeekInMonth(
+                             ordinal, DayOfWeek.of(dayOfWeek)));
+        if (d.getMonthValue() != month) {
+          return Long.MIN_VALUE;
+        }
+      } else {
+        d = LocalDate.of(year, month, dayOfMonth)
+                     .with(TemporalAdjusters.nextOrSame(
+                             DayOfWeek.of(dayOfWeek)));
+      }
+
+      return d.toEpochDay() * secsPerDay + secondOfDay - offsetFrom;
+    }
+  }
+
+  private CompiledTimezone(final String tzid,
+                           final long[] onsets,
+                           final int[] offsetFrom,
+                           final int[] offsetTo,
+                           final int[] nameIdx,
+                           final int[] tznameIdx,
+                           final String[] names,
+                           final Rule[] rules,
+                           final boolean extrapolatable) {
+    this.tzid = tzid;
+    this.onsets = onsets;
+    this.offsetFrom = offsetFrom;
+    this.offsetTo = offsetTo;
+    this.nameIdx = nameIdx;
+    this.tznameIdx = tznameIdx;
+    this.names = names;
+    this.rules = rules;
+    this.extrapolatable = extrapolatable;
+  }
+
+  /**
+   * @return the tzid
+   */
+  public String getTzid() {
+    return tzid;
+  }
+
+  /**
+   * @return number of explicit transitions
+   */
+  public int size() {
+    return onsets.length;
+  }
+
+  /**
+   * @return true if we can answer for any time
+   */
+  public boolean getExtrapolatable() {
+    return extrapolatable;
+  }
+
+  /**
+   * @param toUtc exclusive end - epoch seconds
+   * @return true if the table can answer for ranges ending at toUtc
+   */
+  public boolean covers(final long toUtc) {
+    return extrapolatable || (toUtc <= horizon);
+  }
+
+  @Override
+  public int getOffset(final long utc) {
+    final int last = onsets.length - 1;
+
+    if ((utc >= horizon) && (rules.length > 0)) {
+      /* Latest rule onset at or before utc - it's within the last year */
+      final int y = yearOf(utc);
+      long best = (last < 0) ? Long.MIN_VALUE : onsets[last];
+      int off = (last < 0) ? 0 : offsetTo[last];
+
+      for (int yr = y - 1; yr <= y; yr++) {
+        for (final Rule r: rules) {
+          final long onset = r.onset(yr);
+
+          if ((onset != Long.MIN_VALUE) && (onset <= utc) &&
+                  (onset > best)) {
+            best = onset;
+            off = r.offsetTo;
+          }
+        }
+      }
+
+      return off;
+    }
+
+    if (last < 0) {
+      return 0;
+    }
+
+    int i = Arrays.binarySearch(onsets, utc);
+    if (i < 0) {
+      // Index of the last onset before utc
+      i = -(i + 1) - 1;
+    }
+
+    if (i < 0) {
+      return offsetFrom[0];
+    }
+
+    return offsetTo[i];
+  }
+
+  /** Expand the transitions in the range [fromUtc, toUtc)
+   *
+   * @param fromUtc inclusive start - epoch seconds
+   * @param toUtc exclusive end - epoch seconds
+   * @return observances in onset order - never null
+   */
+  public List<ObservanceType> expand(final long fromUtc,
+                                     final long toUtc) {
+    final List<long[]> trans = transitions(fromUtc, toUtc);
+    final List<ObservanceType> res = new ArrayList<>(trans.size());
+
+    for (final long[] t: trans) {
+      res.add(observance(t[0], (int)t[1], (int)t[2], names[(int)t[3]]));
+    }
+
+    return res;
+  }
+
+  /** Build a VTIMEZONE valid only in the range [fromUtc, toUtc) as
+   * described by RFC 7808. Transitions in the range are grouped into one
+   * observance per offset and name with RDATEs for all but the first. If
+   * nothing starts at fromUtc an observance at fromUtc carries the offset
+   * then in effect. A bounded range adds a TZUNTIL.
+   *
+   * <p>With no end, explicit transitions stop where the rules give
+   * every later one and the rules carry on from there as RRULEs.</p>
+   *
+   * @param name the TZID to give the result
+   * @param fromUtc inclusive start - epoch seconds or Long.MIN_VALUE
+   * @param toUtc exclusive end - epoch seconds or Long.MAX_VALUE
+   * @return VTIMEZONE text or null if the table doesn't cover the range
+   */
+  public String truncate(final String name,
+                         final long fromUtc,
+                         final long toUtc) {
+    return truncate(name, null, fromUtc, toUtc);
+  }
+
+  /** As {@link #truncate(String, long, long)} for an alias of this
+   * timezone.
+   *
+   * @param name the TZID to give the result
+   * @param aliasOf values for TZID-ALIAS-OF - null for none
+   * @param fromUtc inclusive start - epoch seconds or Long.MIN_VALUE
+   * @param toUtc exclusive end - epoch seconds or Long.MAX_VALUE
+   * @return VTIMEZONE text or null if the table doesn't cover the range
+   */
+  public String truncate(final String name,
+                         final List<String> aliasOf,
+                         final long fromUtc,
+                         final long toUtc) {
+    if (!covers(toUtc) || (fromUtc >= toUtc)) {
+      return null;
+    }
+
+    final boolean open = toUtc == Long.MAX_VALUE;
+
+    /* Explicit up to the first onset the rules give when open - the
+       rules do the rest */
+    long rulesFrom = horizon;
+
+    if (open) {
+      final int rs = ruleStart();
+
+      if (rs < onsets.length) {
+        rulesFrom = onsets[rs];
+      }
+    }
+
+    final List<long[]> trans = transitions(fromUtc,
+                                           open ? rulesFrom : toUtc);
+
+    final StringBuilder sb = new StringBuilder();
+
+    sb.append("BEGIN:VTIMEZONE\r\n");
+    sb.append("TZID:").append(name).append("\r\n");
+
+    if (aliasOf != null) {
+      for (final String id: aliasOf) {
+        sb.append("TZID-ALIAS-OF:").append(id).append("\r\n");
+      }
+    }
+
+    if (!open) {
+      sb.append("TZUNTIL:").append(icalLocal(toUtc)).append("Z\r\n");
+    }
+
+    /* First onset of each rule in the result */
+    final long[] ruleOnsets = new long[open ? rules.length : 0];
+    boolean ruleAtStart = false;
+
+    for (int i = 0; i < ruleOnsets.length; i++) {
+      ruleOnsets[i] = firstRuleOnset(rules[i],
+                                     Math.max(rulesFrom, fromUtc));
+      ruleAtStart |= ruleOnsets[i] == fromUtc;
+    }
+
+    if ((fromUtc != Long.MIN_VALUE) && !ruleAtStart &&
+            (trans.isEmpty() || (trans.get(0)[0] != fromUtc))) {
+      final long[] st = stateAt(fromUtc);
+
+      observance(sb, (int)st[3], (int)st[4], (int)st[2], (int)st[2],
+                 fromUtc, null, null);
+    }
+
+    /* Group by offsets and names keeping the order of first onset */
+    final Map<String, List<long[]>> groups = new LinkedHashMap<>();
+
+    for (final long[] t: trans) {
+      groups.computeIfAbsent(t[1] + "/" + t[2] + "/" + t[3] + "/" + t[4],
+                             k -> new ArrayList<>()).add(t);
+    }
+
+    for (final List<long[]> g: groups.values()) {
+      final long[] first = g.get(0);
+
+      observance(sb, (int)first[3], (int)first[4],
+                 (int)first[1], (int)first[2],
+                 first[0], g.subList(1, g.size()), null);
+    }
+
+    for (int i = 0; i < ruleOnsets.length; i++) {
+      final Rule r = rules[i];
+
+      if (ruleOnsets[i] == Long.MIN_VALUE) {
+        continue;
+      }
+
+      observance(sb, r.nameIdx, r.tznameIdx, r.offsetFrom, r.offsetTo,
+                 ruleOnsets[i], null, r.rrule);
+    }
+
+    sb.append("END:VTIMEZONE\r\n");
+
+    return sb.toString();
+  }
+
+  /* ====================================================================
+   *                   Transitions
+   * ==================================================================== */
+
+  /* Transitions in [fromUtc, toUtc) in onset order as
+   * {onset, offsetFrom, offsetTo, nameIdx, tznameIdx}
+   */
+  private List<long[]> transitions(final long fromUtc,
+                                   final long toUtc) {
+    final List<long[]> res = new ArrayList<>();
+
+    if (fromUtc >= toUtc) {
+      return res;
+    }
+
+    int i = Arrays.binarySearch(onsets, fromUtc);
+    if (i < 0) {
+      i = -(i + 1);
+    }
+
+    for (; (i < onsets.length) && (onsets[i] < toUtc); i++) {
+      res.add(new long[]{onsets[i], offsetFrom[i], offsetTo[i],
+                         nameIdx[i], tznameIdx[i]});
+    }
+
+    if ((toUtc <= horizon) || (rules.length == 0)) {
+      return res;
+    }
+
+    final int fromYear;
+    if (fromUtc < horizon) {
+      fromYear = compiledToYear - 1;
+    } else {
+      fromYear = yearOf(fromUtc) - 1;
+    }
+
+    final int toYear = yearOf(toUtc);
+    final List<long[]> yr = new ArrayList<>(rules.length);
+
+    for (int y = fromYear; y <= toYear; y++) {
+      yr.clear();
+
+      for (final Rule r: rules) {
+        final long onset = r.onset(y);
+
+        if ((onset == Long.MIN_VALUE) ||
+                (onset < horizon) ||
+                (onset < fromUtc) ||
+                (onset >= toUtc)) {
+          continue;
+        }
+
+        yr.add(new long[]{onset, r.offsetFrom, r.offsetTo,
+                          r.nameIdx, r.tznameIdx});
+      }
+
+      yr.sort((a, b) -> Long.compare(a[0], b[0]));
+      res.addAll(yr);
+    }
+
+    return res;
+  }
+
+  /* The latest transition at or before utc as
+   * {onset, offsetFrom, offsetTo, nameIdx, tznameIdx}. Before the first
+   * we have no name for the observance so tznameIdx is -1.
+   */
+  private long[] stateAt(final long utc) {
+    final int last = onsets.length - 1;
+    long[] res = null;
+
+    if (last >= 0) {
+      int i = Arrays.binarySearch(onsets, utc);
+      if (i < 0) {
+        // Index of the last onset before utc
+        i = -(i + 1) - 1;
+      }
+
+      if (i >= 0) {
+        res = new long[]{onsets[i], offsetFrom[i], offsetTo[i],
+                         nameIdx[i], tznameIdx[i]};
+      }
+    }
+
+    if ((utc >= horizon) && (rules.length > 0)) {
+      final int y = yearOf(utc);
+
+      for (int yr = y - 1; yr <= y; yr++) {
+        for (final Rule r: rules) {
+          final long onset = r.onset(yr);
+
+          if ((onset != Long.MIN_VALUE) && (onset <= utc) &&
+                  ((res == null) || (onset > res[0]))) {
+            res = new long[]{onset, r.offsetFrom, r.offsetTo,
+                             r.nameIdx, r.tznameIdx};
+          }
+        }
+      }
+    }
+
+    if (res != null) {
+      return res;
+    }
+
+    final int off = (last < 0) ? 0 : offsetFrom[0];
+
+    return new long[]{Long.MIN_VALUE, off, off,
+                      (last < 0) ? nameIndexOf("STANDARD") : nameIdx[0],
+                      -1};
+  }
+
+  /* Index of the first explicit transition from which the rules give
+   * exactly the transitions in the table and no others, or onsets.length
+   * if the rules take over only at the horizon.
+   */
+  private int ruleStart() {
+    if (!extrapolatable || (rules.length == 0)) {
+      return onsets.length;
+    }
+
+    int start = onsets.length;
+
+    while ((start > 0) && fromRule(start - 1)) {
+      start--;
+    }
+
+    /* Move past any onset the rules give which the table doesn't have */
+    check:
+    while (start < onsets.length) {
+      for (int y = yearOf(onsets[start]) - 1; y <= compiledToYear; y++) {
+        for (final Rule r: rules) {
+          final long onset = r.onset(y);
+
+          if ((onset == Long.MIN_VALUE) ||
+                  (onset < onsets[start]) || (onset >= horizon)) {
+            continue;
+          }
+
+          final int i = Arrays.binarySearch(onsets, start,
+                                            onsets.length, onset);
+
+          if (i < 0) {
+            start = -(i + 1);
+            continue check;
+          }
+        }
+      }
+
+      break;
+    }
+
+    return start;
+  }
+
+  /* True if a rule gives the explicit transition i */
+  private boolean fromRule(final int i) {
+    final int y = yearOf(onsets[i]);
+
+    for (final Rule r: rules) {
+      if ((r.offsetFrom != offsetFrom[i]) ||
+              (r.offsetTo != offsetTo[i]) ||
+              (r.nameIdx != nameIdx[i]) ||
+              (r.tznameIdx != tznameIdx[i])) {
+        continue;
+      }
+
+      /* The rule year is local so may not be the utc year */
+      for (int yr = y - 1; yr <= y + 1; yr++) {
+        if (r.onset(yr) == onsets[i]) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /* First onset of the rule at or after utc or Long.MIN_VALUE */
+  private static long firstRuleOnset(final Rule r,
+                                     final long utc) {
+    /* The rule year is local so may be the one before the utc year */
+    final int y = Math.max(r.fromYear, yearOf(utc) - 1);
+
+    /* Any yearly rule fires within a couple of years */
+    for (int yr = y; yr <= y + 3; yr++) {
+      final long onset = r.onset(yr);
+
+      if ((onset != Long.MIN_VALUE) && (onset >= utc)) {
+        return onset;
+      }
+    }
+
+    return Long.MIN_VALUE;
+  }
+
+  private int nameIndexOf(final String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /* Append an observance starting at onset with RDATEs for the others */
+  private void observance(final StringBuilder sb,
+                          final int ni,
+                          final int tzni,
+                          final int from,
+                          final int to,
+                          final long onset,
+                          final List<long[]> rdates,
+                          final String rrule) {
+    final String comp = (ni < 0) ? "STANDARD" : names[ni];
+
+    sb.append("BEGIN:").append(comp).append("\r\n");
+    sb.append("TZOFFSETFROM:").append(icalOffset(from)).append("\r\n");
+    sb.append("TZOFFSETTO:").append(icalOffset(to)).append("\r\n");
+
+    /* The compiler used the component name when there was no TZNAME */
+    if ((tzni >= 0) && (tzni != ni)) {
+      sb.append("TZNAME:").append(names[tzni]).append("\r\n");
+    }
+
+    sb.append("DTSTART:").append(icalLocal(onset + from)).append("\r\n");
+
+    if (rrule != null) {
+      sb.append("RRULE:").append(rrule).append("\r\n");
+    }
+
+    if (rdates != null) {
+      for (final long[] t: rdates) {
+        sb.append("RDATE:").append(icalLocal(t[0] + t[1])).append("\r\n");
+      }
+    }
+
+    sb.append("END:").append(comp).append("\r\n");
+  }
+
+  /* ====================================================================
+   *                   Binary form
+   * ==================================================================== */
+
+  /** Write the table in the form read by {@link #read(ByteBuffer)}.
+   * Used by the tzpack so tables need not be recompiled at startup.
+   *
+   * @param out to write to
+   * @throws IOException on error
+   */
+  public void write(final DataOutput out) throws IOException {
+    writeString(out, tzid);
+
+    out.writeInt(onsets.length);
+    for (int i = 0; i < onsets.length; i++) {
+      out.writeLong(onsets[i]);
+      out.writeInt(offsetFrom[i]);
+      out.writeInt(offsetTo[i]);
+      out.writeInt(nameIdx[i]);
+      out.writeInt(tznameIdx[i]);
+    }
+
+    out.writeInt(names.length);
+    for (final String n: names) {
+      writeString(out, n);
+    }
+
+    out.writeInt(rules.length);
+    for (final Rule r: rules) {
+      out.writeInt(r.fromYear);
+      out.writeInt(r.month);
+      out.writeInt(r.dayOfMonth);
+      out.writeInt(r.dayOfWeek);
+      out.writeInt(r.ordinal);
+      out.writeInt(r.secondOfDay);
+      out.writeInt(r.offsetFrom);
+      out.writeInt(r.offsetTo);
+      out.writeInt(r.nameIdx);
+      out.writeInt(r.tznameIdx);
+      writeString(out, r.rrule);
+    }
+
+    out.writeBoolean(extrapolatable);
+  }
+
+  /** Read a table written by {@link #write(DataOutput)}. Counts and
+   * lengths are checked against the bytes remaining, so a corrupt
+   * table fails with a BufferUnderflowException rather than large
+   * allocations.
+   *
+   * @param buf positioned at the start of the table - advanced past it
+   * @return the table
+   */
+  public static CompiledTimezone read(final ByteBuffer buf) {
+    final String tzid = readString(buf);
+
+    final int sz = readCount(buf, 24);
+    final long[] onsets = new long[sz];
+    final int[] offsetFrom = new int[sz];
+    final int[] offsetTo = new int[sz];
+    final int[] nameIdx = new int[sz];
+    final int[] tznameIdx = new int[sz];
+
+    for (int i = 0; i < sz; i++) {
+      onsets[i] = buf.getLong();
+      offsetFrom[i] = buf.getInt();
+      offsetTo[i] = buf.getInt();
+      nameIdx[i] = buf.getInt();
+      tznameIdx[i] = buf.getInt();
+    }
+
+    final String[] names = new String[readCount(buf, 4)];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = readString(buf);
+    }
+
+    final Rule[] rules = new Rule[readCount(buf, 44)];
+    for (int i = 0; i < rules.length; i++) {
+      rules[i] = new Rule(buf.getInt(), buf.getInt(), buf.getInt(),
+                          buf.getInt(), buf.getInt(), buf.getInt(),
+                          buf.getInt(), buf.getInt(), buf.getInt(),
+                          buf.getInt(), readString(buf));
+    }
+
+    return new CompiledTimezone(tzid, onsets, offsetFrom, offsetTo,
+                                nameIdx, tznameIdx, names, rules,
+                                buf.get() != 0);
+  }
+
+  private static void writeString(final DataOutput out,
+                                  final String val) throws IOException {
+    final byte[] b = val.getBytes(StandardCharsets.UTF_8);
+
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  /* A count of items of at least minSize bytes */
+  private static int readCount(final ByteBuffer buf,
+                               final int minSize) {
+    final int ct = buf.getInt();
+
+    if ((ct < 0) || (ct > buf.remaining() / minSize)) {
+      throw new BufferUnderflowException();
+    }
+
+    return ct;
+  }
+
+  private static String readString(final ByteBuffer buf) {
+    final byte[] b = new byte[readCount(buf, 1)];
+
+    buf.get(b);
+
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /* ====================================================================
+   *                   Compilation
+   * ==================================================================== */
+
+  /** Compile the given timezone.
+   *
+   * @param tzid of the timezone
+   * @param vtz the timezone
+   * @return compiled form
+   * @throws TzException on error
+   */
+  public static CompiledTimezone compile(final String tzid,
+                                         final VTimeZone vtz) throws TzException {
+    try {
+      final Map<String, Integer> nameMap = new HashMap<>();
+      final List<String> names = new ArrayList<>();
+
+      final List<long[]> trans = new ArrayList<>();
+      final List<Rule> rules = new ArrayList<>();
+      boolean extrapolatable = true;
+
+      /* Slop at the end so onsets close to the horizon are never lost */
+      final Period p = new Period(new DateTime("16000101T000000Z"),
+                                  new DateTime(compiledToYear +
+                                                       "0103T000000Z"));
+
+      for (final Object o: vtz.getObservances()) {
+        final Observance ob = (Observance)o;
+
+        final int from =
+                (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000);
+        final int to =
+                (int)(ob.getOffsetTo().getOffset().getOffset() / 1000);
+        final int ni = nameIndex(ob.getName(), nameMap, names);
+
+        final Property tzn = ob.getProperty(Property.TZNAME);
+        final int tzni;
+        if (tzn == null) {
+          tzni = nameIndex(ob.getName(), nameMap, names);
+        } else {
+          tzni = nameIndex(tzn.getValue(), nameMap, names);
+        }
+
+        final PeriodList pl = ob.calculateRecurrenceSet(p);
+
+        for (final Object po: pl) {
+          final long local = localSeconds(
+                  ((Period)po).getStart().toString());
+          final long onset = local - from;
+
+          if (onset >= horizon) {
+            continue;
+          }
+
+          trans.add(new long[]{onset, from, to, ni, tzni});
+        }
+
+        /* Anything explicit beyond the horizon stops extrapolation */
+        final String dtstart = ob.getStartDate().getValue();
+
+        if (yearOfIcal(dtstart) >= compiledToYear) {
+          extrapolatable = false;
+        }
+
+        final PropertyList rdates =
+                ob.getProperties().getProperties(Property.RDATE);
+        if (rdates != null) {
+          for (final Object rdo: rdates) {
+            for (final String rd: ((Property)rdo).getValue().split(",")) {
+              if (yearOfIcal(rd) >= compiledToYear) {
+                extrapolatable = false;
+              }
+            }
+          }
+        }
+
+        final PropertyList rrules =
+                ob.getProperties().getProperties(Property.RRULE);
+        if (rrules == null) {
+          continue;
+        }
+
+        for (final Object rro: rrules) {
+          final String rrule = ((Property)rro).getValue();
+          final Map<String, String> parts = recurParts(rrule);
+
+          if (parts.containsKey("UNTIL")) {
+            if (yearOfIcal(parts.get("UNTIL")) >= compiledToYear - 1) {
+              extrapolatable = false;
+            }
+            continue;
+          }
+
+          if (parts.containsKey("COUNT")) {
+            /* Bounded - assume exhausted before the horizon */
+            continue;
+          }
+
+          final Rule r = makeRule(rrule, parts, dtstart,
+                                  from, to, ni, tzni);
+
+          if (r == null) {
+            extrapolatable = false;
+            continue;
+          }
+
+          rules.add(r);
+        }
+      }
+
+      trans.sort((a, b) -> Long.compare(a[0], b[0]));
+
+      final int sz = trans.size();
+      final long[] onsets = new long[sz];
+      final int[] offsetFrom = new int[sz];
+      final int[] offsetTo = new int[sz];
+      final int[] nameIdx = new int[sz];
+      final int[] tznameIdx = new int[sz];
+
+      int ct = 0;
+      for (final long[] t: trans) {
+        if ((ct > 0) && (onsets[ct - 1] == t[0])) {
+          // Duplicated onset
+          continue;
+        }
+
+        onsets[ct] = t[0];
+        offsetFrom[ct] = (int)t[1];
+        offsetTo[ct] = (int)t[2];
+        nameIdx[ct] = (int)t[3];
+        tznameIdx[ct] = (int)t[4];
+        ct++;
+      }
+
+      return new CompiledTimezone(tzid,
+                                  Arrays.copyOf(onsets, ct),
+                                  Arrays.copyOf(offsetFrom, ct),
+                                  Arrays.copyOf(offsetTo, ct),
+                                  Arrays.copyOf(nameIdx, ct),
+                                  Arrays.copyOf(tznameIdx, ct),
+                                  names.toArray(new String[0]),
+                                  rules.toArray(new Rule[0]),
+                                  extrapolatable);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /** Parse an ical UTC date-time or date value.
+   *
+   * @param val of form yyyyMMddTHHmmssZ or yyyyMMdd
+   * @return epoch seconds or null if not UTC or not valid
+   */
+  public static Long icalUtcToEpoch(final String val) {
+    if (val == null) {
+      return null;
+    }
+
+    try {
+      if (val.length() == 8) {
+        return epochDay(val) * secsPerDay;
+      }
+
+      if ((val.length() != 16) || (val.charAt(8) != 'T') ||
+              (val.charAt(15) != 'Z')) {
+        return null;
+      }
+
+      return localSeconds(val.substring(0, 15));
+    } catch (final Throwable ignored) {
+      return null;
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static ObservanceType observance(final long onset,
+                                           final int from,
+                                           final int to,
+                                           final String name) {
+    final ObservanceType ot = new ObservanceType();
+
+    ot.setName(name);
+    ot.setOnset(xmlLocal(onset + from));
+    ot.setUtcOffsetFrom(from);
+    ot.setUtcOffsetTo(to);
+
+    return ot;
+  }
+
+  /* Format local seconds as yyyy-MM-ddTHH:mm:ss */
+  private static String xmlLocal(final long local) {
+    final long day = Math.floorDiv(local, secsPerDay);
+    final int sod = (int)Math.floorMod(local, secsPerDay);
+    final LocalDate d = LocalDate.ofEpochDay(day);
+
+    final StringBuilder sb = new StringBuilder(19);
+
+    pad(sb, d.getYear(), 4);
+    sb.append('-');
+    pad(sb, d.getMonthValue(), 2);
+    sb.append('-');
+    pad(sb, d.getDayOfMonth(), 2);
+    sb.append('T');
+    pad(sb, sod / 3600, 2);
+    sb.append(':');
+    pad(sb, (sod / 60) % 60, 2);
+    sb.append(':');
+    pad(sb, sod % 60, 2);
+
+    return sb.toString();
+  }
+
+  /* Format local seconds as yyyyMMddTHHmmss */
+  private static String icalLocal(final long local) {
+    final long day = Math.floorDiv(local, secsPerDay);
+    final int sod = (int)Math.floorMod(local, secsPerDay);
+    final LocalDate d = LocalDate.ofEpochDay(day);
+
+    final StringBuilder sb = new StringBuilder(15);
+
+    pad(sb, d.getYear(), 4);
+    pad(sb, d.getMonthValue(), 2);
+    pad(sb, d.getDayOfMonth(), 2);
+    sb.append('T');
+    pad(sb, sod / 3600, 2);
+    pad(sb, (sod / 60) % 60, 2);
+    pad(sb, sod % 60, 2);
+
+    return sb.toString();
+  }
+
+  /* Format an offset as [+-]hhmm[ss] */
+  private static String icalOffset(final int secs) {
+    final StringBuilder sb = new StringBuilder(7);
+    final int abs = Math.abs(secs);
+
+    sb.append((secs < 0) ? '-' : '+');
+    pad(sb, abs / 3600, 2);
+    pad(sb, (abs / 60) % 60, 2);
+
+    if ((abs % 60) != 0) {
+      pad(sb, abs % 60, 2);
+    }
+
+    return sb.toString();
+  }
+
+  private static void pad(final StringBuilder sb,
+                          final int val,
+                          final int width) {
+    final String s = String.valueOf(val);
+
+    for (int i = s.length(); i < width; i++) {
+      sb.append('0');
+    }
+
+    sb.append(s);
+  }
+
+  private static int yearOf(final long utc) {
+    return LocalDate.ofEpochDay(Math.floorDiv(utc, secsPerDay)).getYear();
+  }
+
+  private static int yearOfIcal(final String val) {
+    return Integer.parseInt(val.substring(0, 4));
+  }
+
+  private static long epochDay(final String val) {
+    return LocalDate.of(Integer.parseInt(val.substring(0, 4)),
+                        Integer.parseInt(val.substring(4, 6)),
+                        Integer.parseInt(val.substring(6, 8))).toEpochDay();
+  }
+
+  /* yyyyMMddTHHmmss as seconds treating the value as UTC */
+  private static long localSeconds(final String val) {
+    long secs = epochDay(val) * secsPerDay;
+
+    if (val.length() >= 15) {
+      secs += Integer.parseInt(val.substring(9, 11)) * 3600 +
+              Integer.parseInt(val.substring(11, 13)) * 60 +
+              Integer.parseInt(val.substring(13, 15));
+    }
+
+    return secs;
+  }
+
+  private static int nameIndex(final String name,
+                               final Map<String, Integer> nameMap,
+                               final List<String> names) {
+    final Integer i = nameMap.get(name);
+
+    if (i != null) {
+      return i;
+    }
+
+    names.add(name);
+    nameMap.put(name, names.size() - 1);
+
+    return names.size() - 1;
+  }
+
+  private static Map<String, String> recurParts(final String rrule) {
+    final Map<String, String> parts = new HashMap<>();
+
+    for (final String part: rrule.split(";")) {
+      final int pos = part.indexOf('=');
+
+      if (pos < 0) {
+        continue;
+      }
+
+      parts.put(part.substring(0, pos).toUpperCase(),
+                part.substring(pos + 1));
+    }
+
+    return parts;
+  }
+
+  private static final List<String> icalDays =
+          Collections.unmodifiableList(Arrays.asList(
+                  "MO", "TU", "WE", "TH", "FR", "SA", "SU"));
+
+  /* Handle the forms generated from tzdata:
+   *    BYMONTH=m;BYDAY=[+-]nDD
+   *    BYMONTH=m;BYMONTHDAY=d,d+1,...d+6;BYDAY=DD
+   *    BYMONTH=m;BYMONTHDAY=d
+   * Anything else returns null.
+   */
+  private static Rule makeRule(final String rrule,
+                               final Map<String, String> parts,
+                               final String dtstart,
+                               final int from,
+                               final int to,
+                               final int ni,
+                               final int tzni) {
+    try {
+      for (final String key: parts.keySet()) {
+        switch (key) {
+          case "FREQ":
+          case "INTERVAL":
+          case "BYMONTH":
+          case "BYDAY":
+          case "BYMONTHDAY":
+          case "WKST":
+            break;
+          default:
+            return null;
+        }
+      }
+
+      if (!"YEARLY".equals(parts.get("FREQ"))) {
+        return null;
+      }
+
+      final String interval = parts.get("INTERVAL");
+      if ((interval != null) && !"1".equals(interval)) {
+        return null;
+      }
+
+      final String bymonth = parts.get("BYMONTH");
+      if ((bymonth == null) || bymonth.contains(",")) {
+        return null;
+      }
+
+      final int month = Integer.parseInt(bymonth);
+      final int secondOfDay = (int)(localSeconds(dtstart) -
+              epochDay(dtstart) * secsPerDay);
+      final int fromYear = yearOfIcal(dtstart);
+
+      final String byday = parts.get("BYDAY");
+      final String bymonthday = parts.get("BYMONTHDAY");
+
+      if (byday == null) {
+        if ((bymonthday == null) || bymonthday.contains(",")) {
+          return null;
+        }
+
+        return new Rule(fromYear, month, Integer.parseInt(bymonthday),
+                        0, 0, secondOfDay, from, to, ni, tzni,
+                        rrule);
+      }
+
+      if (byday.contains(",") || (byday.length() < 2)) {
+        return null;
+      }
+
+      final int dow = icalDays.indexOf(
+              byday.substring(byday.length() - 2)) + 1;
+      if (dow == 0) {
+        return null;
+      }
+
+      final String ordStr = byday.substring(0, byday.length() - 2);
+
+      if (bymonthday == null) {
+        if (ordStr.length() == 0) {
+          return null;
+        }
+
+        final int ordinal = Integer.parseInt(
+                ordStr.startsWith("+") ? ordStr.substring(1) : ordStr);
+        if ((ordinal == 0) || (ordinal < -1) || (ordinal > 4)) {
+          return null;
+        }
+
+        return new Rule(fromYear, month, 0, dow, ordinal, secondOfDay,
+                        from, to, ni, tzni, rrule);
+      }
+
+      if (ordStr.length() != 0) {
+        return null;
+      }
+
+      /* Must be a window of 7 consecutive days */
+      final String[] days = bymonthday.split(",");
+      if (days.length != 7) {
+        return null;
+      }
+
+      final int first = Integer.parseInt(days[0]);
+      for (int i = 1; i < days.length; i++) {
+        if (Integer.parseInt(days[i]) != first + i) {
+          return null;
+        }
+      }
+
+      if ((first < 1) || (first > 22)) {
+        return null;
+      }
+
+      return new Rule(fromYear, month, first, dow, 0, secondOfDay,
+                      from, to, ni, tzni, rrule);
+    } catch (final Throwable ignored) {
+      return null;
+    }
+  }
+}
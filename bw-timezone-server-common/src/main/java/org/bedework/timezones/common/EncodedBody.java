@@ -0,0 +1,267 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** A response body rendered once into UTF-8 bytes along with its
+ * headers. The bytes are never modified once built.
+ *
+ * <p>Compressed variants are built the first time they are asked for
+ * and kept for the life of the body.</p>
+ *
+ * @author douglm
+ */
+public class EncodedBody {
+  /** gzip content coding */
+  public static final String gzip = "gzip";
+
+  /** deflate (zlib) content coding */
+  public static final String deflate = "deflate";
+
+  private final byte[] bytes;
+
+  /* Built on demand - a race just builds it twice */
+  private volatile byte[] gzipped;
+
+  private volatile byte[] deflated;
+
+  private final String contentType;
+
+  private final String etag;
+
+  private final long lastModified;
+
+  /**
+   * @param val the body
+   * @param contentType for the response
+   * @param etag quoted etag for the response
+   */
+  public EncodedBody(final String val,
+                     final String contentType,
+                     final String etag) {
+    this(val.getBytes(StandardCharsets.UTF_8), contentType, etag);
+  }
+
+  /**
+   * @param bytes the encoded body - not copied
+   * @param contentType for the response
+   * @param etag quoted etag for the response or null
+   */
+  public EncodedBody(final byte[] bytes,
+                     final String contentType,
+                     final String etag) {
+    this(bytes, contentType, etag, -1);
+  }
+
+  /**
+   * @param val the body
+   * @param contentType for the response
+   * @param etag quoted etag for the response
+   * @param lastModified millis or -1 for unknown
+   */
+  public EncodedBody(final String val,
+                     final String contentType,
+                     final String etag,
+                     final long lastModified) {
+    this(val.getBytes(StandardCharsets.UTF_8), contentType, etag,
+         lastModified);
+  }
+
+  /**
+   * @param bytes the encoded body - not copied
+   * @param contentType for the response
+   * @param etag quoted etag for the response or null
+   * @param lastModified millis or -1 for unknown
+   */
+  public EncodedBody(final byte[] bytes,
+                     final String contentType,
+                     final String etag,
+                     final long lastModified) {
+    this.bytes = bytes;
+    this.contentType = contentType;
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  /** For subclasses which hold the body some other way. They must
+   * override {@link #content()}, {@link #getContentLength()} and
+   * {@link #writeTo(OutputStream)}.
+   *
+   * @param contentType for the response
+   * @param etag quoted etag for the response or null
+   * @param lastModified millis or -1 for unknown
+   */
+  protected EncodedBody(final String contentType,
+                        final String etag,
+                        final long lastModified) {
+    this((byte[])null, contentType, etag, lastModified);
+  }
+
+  /**
+   * @return length in bytes
+   */
+  public int getContentLength() {
+    return bytes.length;
+  }
+
+  /**
+   * @return content type
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return quoted etag
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /** Each content coding is a different representation so gets its
+   * own tag.
+   *
+   * @param encoding null, gzip or deflate
+   * @return quoted etag for that variant
+   */
+  public String getEtag(final String encoding) {
+    return codingEtag(etag, encoding);
+  }
+
+  /**
+   * @param etag quoted etag of the identity representation or null
+   * @param encoding null, gzip or deflate
+   * @return quoted etag for that content coding
+   */
+  public static String codingEtag(final String etag,
+                                  final String encoding) {
+    if ((etag == null) || (encoding == null) || !etag.endsWith("\"")) {
+      return etag;
+    }
+
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * @return last modified millis or -1 for unknown
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @param encoding null, gzip or deflate
+   * @return length in bytes of that variant
+   * @throws IOException on compression error
+   */
+  public int getContentLength(final String encoding) throws IOException {
+    if (encoding == null) {
+      return getContentLength();
+    }
+
+    return variant(encoding).length;
+  }
+
+  /**
+   * @param os to write the body to
+   * @throws IOException on write error
+   */
+  public void writeTo(final OutputStream os) throws IOException {
+    os.write(bytes);
+  }
+
+  /**
+   * @param os to write the body to
+   * @param encoding null, gzip or deflate
+   * @throws IOException on write error
+   */
+  public void writeTo(final OutputStream os,
+                      final String encoding) throws IOException {
+    if (encoding == null) {
+      writeTo(os);
+      return;
+    }
+
+    os.write(variant(encoding));
+  }
+
+  /**
+   * @return the complete uncompressed body - not to be modified
+   */
+  protected byte[] content() {
+    return bytes;
+  }
+
+  /** Write part of the body
+   *
+   * @param os to write to
+   * @param off offset in the body
+   * @param len number of bytes
+   * @throws IOException on write error
+   */
+  void writeTo(final OutputStream os,
+               final int off,
+               final int len) throws IOException {
+    os.write(content(), off, len);
+  }
+
+  private byte[] variant(final String encoding) throws IOException {
+    if (gzip.equals(encoding)) {
+      byte[] res = gzipped;
+
+      if (res == null) {
+        final ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(getContentLength() / 4);
+        try (GZIPOutputStream os = new GZIPOutputStream(bos)) {
+          writeTo(os);
+        }
+
+        res = bos.toByteArray();
+        gzipped = res;
+      }
+
+      return res;
+    }
+
+    if (deflate.equals(encoding)) {
+      byte[] res = deflated;
+
+      if (res == null) {
+        final ByteArrayOutputStream bos =
+                new ByteArrayOutputStream(getContentLength() / 4);
+        try (DeflaterOutputStream os = new DeflaterOutputStream(bos)) {
+          writeTo(os);
+        }
+
+        res = bos.toByteArray();
+        deflated = res;
+      }
+
+      return res;
+    }
+
+    return content();
+  }
+}
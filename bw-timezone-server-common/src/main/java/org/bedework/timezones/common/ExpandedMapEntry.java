@@ -28,6 +28,7 @@ import org.bedework.util.timezones.model.ExpandedTimezoneType;
 public class ExpandedMapEntry {
   private String etag;
   private ExpandedTimezoneType tzs;
+  private long lastModified = -1;
 
   /**
    * @param etag
@@ -39,6 +40,18 @@ public class ExpandedMapEntry {
     this.tzs = tzs;
   }
 
+  /**
+   * @param etag quoted etag
+   * @param tzs the expansion
+   * @param lastModified millis or -1 for unknown
+   */
+  public ExpandedMapEntry(final String etag,
+                          final ExpandedTimezoneType tzs,
+                          final long lastModified) {
+    this(etag, tzs);
+    this.lastModified = lastModified;
+  }
+
   /**
    * @return etag
    */
@@ -46,6 +59,13 @@ public class ExpandedMapEntry {
     return etag;
   }
 
+  /**
+   * @return last modified millis or -1 for unknown
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   /**
    * @return tzs
    */
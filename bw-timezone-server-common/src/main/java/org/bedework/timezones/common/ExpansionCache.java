@@ -0,0 +1,68 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.ExpandedTimezoneType;
+
+/** A bounded, thread-safe cache of expansions.
+ *
+ * <p>Each entry is weighted by a fixed base, for the key and wrapping
+ * objects, plus its number of observances.</p>
+ *
+ * @author douglm
+ */
+public class ExpansionCache extends WeightedCache<ExpandedMapEntry> {
+  /** Weight of an entry before its observances */
+  public static final int entryWeight = 4;
+
+  /** Default maximum weight - room for about 100,000 entries of
+   * ten observances */
+  public static final long defaultMaxWeight = 1500000;
+
+  /**
+   * @param maxWeight maximum total weight - <= 0 for the default
+   * @param ttlSecs time to live in seconds - <= 0 for no expiry
+   */
+  public ExpansionCache(final long maxWeight,
+                        final long ttlSecs) {
+    super("expansion",
+          (maxWeight <= 0) ? defaultMaxWeight : maxWeight,
+          ttlSecs);
+  }
+
+  /** An empty cache with the same limits which continues to
+   * accumulate statistics into the counters of the given cache.
+   *
+   * @param from the cache we are replacing
+   */
+  public ExpansionCache(final ExpansionCache from) {
+    super(from);
+  }
+
+  @Override
+  protected int weigh(final ExpandedMapEntry val) {
+    final ExpandedTimezoneType etzt = val.getTzs();
+
+    if ((etzt == null) || (etzt.getObservances() == null)) {
+      return entryWeight;
+    }
+
+    return entryWeight + etzt.getObservances().size();
+  }
+}
@@ -21,29 +21,90 @@ package org.bedework.timezones.common;
 import org.bedework.timezones.common.Differ.DiffListEntry;
 import org.bedework.timezones.common.db.TzAlias;
 import org.bedework.util.calendar.XcalUtil;
-import org.bedework.util.timezones.FileTzFetcher;
-import org.bedework.util.timezones.TzFetcher;
+import org.bedework.util.timezones.DateTimeUtil;
 
 import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VTimeZone;
 import net.fortuna.ical4j.model.property.Version;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.LineNumberReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Cached data obtained from a set of files and directories..
+ *
+ * <p>Once {@link #startWatching()} is called the directory is watched.
+ * Changed .ics files, and a changed aliases.properties, are applied
+ * to the current data as a new generation. A changed info.properties
+ * means a new release so causes a full reload.</p>
  *
  * @author douglm
  */
 public class FileCachedData extends AbstractCachedData {
   private String source;
 
+  /* Changes are applied once things have been quiet this long - rsync
+   * touches many files in a burst.
+   */
+  private static final long quietMillis = 500;
+
+  /* ...or this long after the first change if they keep coming */
+  private static final long maxDelayMillis = 5000;
+
+  private static final String aliasesFile = "aliases.properties";
+  private static final String infoFile = "info.properties";
+
+  /* Where each id came from and what each file holds */
+  private final Map<String, Path> idFiles = new HashMap<>();
+  private final Map<Path, Set<String>> fileIds = new HashMap<>();
+
+  private WatchThread watcher;
+
+  private long watchUpdates;
+  private long watchFiles;
+
+  /* A parsed .ics file */
+  private static class ParsedFile {
+    final Path path;
+    final List<VTimeZone> vtzs = new ArrayList<>();
+    Throwable failure;
+
+    ParsedFile(final Path path) {
+      this.path = path;
+    }
+  }
+
+  /* Changes seen by the watcher and not yet applied */
+  private static class Pending {
+    final Set<Path> files = new TreeSet<>();
+    final Set<Path> deleted = new TreeSet<>();
+    boolean aliases;
+    boolean info;
+    boolean overflow;
+  }
+
   /**
    * @param cfg configuration file
    * @throws TzException
@@ -55,6 +116,47 @@ public class FileCachedData extends AbstractCachedData {
 
   @Override
   public void stop() throws TzException {
+    final WatchThread w;
+
+    synchronized (this) {
+      w = watcher;
+      watcher = null;
+    }
+
+    if (w != null) {
+      w.shutdown();
+    }
+  }
+
+  /** Watch the data directory and apply changes as they happen. Only
+   * for the instance serving requests - {@link #stop()} ends it.
+   *
+   * @throws TzException if the directory can't be watched
+   */
+  public synchronized void startWatching() throws TzException {
+    if (watcher != null) {
+      return;
+    }
+
+    try {
+      watcher = new WatchThread(getdata().toPath().toAbsolutePath());
+      watcher.start();
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  @Override
+  public synchronized List<Stat> getStats() throws TzException {
+    final List<Stat> stats = super.getStats();
+
+    stats.add(new Stat(msgPrefix + " watching", String.valueOf(watcher != null)));
+    stats.add(new Stat(msgPrefix + " watch updates", watchUpdates));
+    stats.add(new Stat(msgPrefix + " watch files", watchFiles));
+
+    return stats;
   }
 
   @Override
@@ -73,29 +175,29 @@ public class FileCachedData extends AbstractCachedData {
     // XXX ??
   }
 
-  @Override
-  public List<String> findIds(final String val) throws TzException {
-    return new ArrayList<>();
-  }
-
   private synchronized void loadData() throws TzException {
     try {
-      final long smillis = System.currentTimeMillis();
+      final long start = System.nanoTime();
 
       /* ======================== First get the data file =================== */
       final File f = getdata();
 
       TzServerUtil.lastDataFetch = System.currentTimeMillis();
 
+      final long buildStart = System.nanoTime();
+      reloadTimer("fetch").recordNanos(buildStart - start);
+
+      final Snapshot snap = newSnapshot();
+
       /* ========================= get the data info ======================== */
 
       /* This MUST be stored in the directory as file info.properties */
 
       final Properties info = new Properties();
 
-      info.load(getFileRdr(f, "info.properties"));
+      info.load(getFileRdr(f, infoFile));
 
-      dtstamp = XcalUtil.getXmlFormatDateTime(info.getProperty(
+      snap.dtstamp = XcalUtil.getXmlFormatDateTime(info.getProperty(
               "buildTime"));
       if (info.getProperty("prodid") != null) {
         TzServerUtil.setProdid(info.getProperty("prodid"));
@@ -105,20 +207,22 @@ public class FileCachedData extends AbstractCachedData {
 
       /* ===================== Rebuild the alias maps ======================= */
 
-      aliasMaps = buildAliasMaps(f);
+      snap.aliasMaps = buildAliasMaps(f);
 
       /* ===================== All tzs into the table ======================= */
 
-      fetchTzs(dtstamp);
-      expansions.clear();
+      fetchTzs(f, snap);
+
+      publish(snap);
+
+      reloadTimer("build").recordSince(buildStart);
 
-      cfg.setDtstamp(dtstamp);
+      cfg.setDtstamp(snap.dtstamp);
       cfg.setSource(source);
 
       TzServerUtil.saveConfig();
 
-      TzServerUtil.reloadsMillis += System.currentTimeMillis() - smillis;
-      TzServerUtil.reloads++;
+      reloadTimer("total").recordSince(start);
     } catch (final Throwable t) {
       throw new TzException(t);
     }
@@ -141,7 +245,7 @@ public class FileCachedData extends AbstractCachedData {
       maps.byAlias = new HashMap<>();
       maps.aliases = new Properties();
 
-      maps.aliases.load(getFileRdr(parent, "aliases.properties"));
+      maps.aliases.load(getFileRdr(parent, aliasesFile));
 
       final StringBuilder aliasStr = new StringBuilder();
 
@@ -194,24 +298,234 @@ public class FileCachedData extends AbstractCachedData {
     }
   }
 
-  private void fetchTzs(final String dtstamp) throws TzException {
+  private void fetchTzs(final File dir,
+                        final Snapshot snap) throws TzException {
     try {
-      resetTzs();
+      final List<Path> files;
 
-      final TzFetcher tzFetcher = new FileTzFetcher(cfg.getTzdataUrl());
+      try (Stream<Path> paths = Files.walk(dir.toPath().toAbsolutePath())) {
+        files = paths.filter(FileCachedData::isIcs)
+                     .sorted()
+                     .collect(Collectors.toList());
+      }
+
+      /* A file may hold more than one timezone so we need to parse them
+         to find the ids. The rest of the work is done by processSpecs.
+       */
+      final List<ParsedFile> parsed = files.parallelStream()
+                                           .map(this::parseFile)
+                                           .collect(Collectors.toList());
+
+      idFiles.clear();
+      fileIds.clear();
 
-      for (final String id: tzFetcher.getTzids()) {
-        final Calendar cal = new Calendar();
-        cal.getComponents().add(tzFetcher.getTz(id));
-        cal.getProperties().add(new Version());
+      /* By id so the merge order doesn't depend on the file layout */
+      final Map<String, VTimeZone> vtzs = new TreeMap<>();
+
+      for (final ParsedFile pf: parsed) {
+        if (pf.failure != null) {
+          throw new TzException(pf.failure);
+        }
 
-        processSpec(id, cal, null, dtstamp);
+        for (final VTimeZone vtz: pf.vtzs) {
+          final String id = vtz.getTimeZoneId().getValue();
+
+          // Last one wins as it always did
+          vtzs.put(id, vtz);
+          idFiles.put(id, pf.path);
+        }
+      }
+
+      for (final Map.Entry<String, Path> me: idFiles.entrySet()) {
+        fileIds.computeIfAbsent(me.getValue(), k -> new TreeSet<>())
+               .add(me.getKey());
       }
+
+      final List<SpecSource> sources = new ArrayList<>();
+
+      for (final Map.Entry<String, VTimeZone> me: vtzs.entrySet()) {
+        sources.add(source(me.getKey(), me.getValue(), snap.dtstamp));
+      }
+
+      processSpecs(snap, sources);
+    } catch (final TzException te) {
+      throw te;
     } catch (Throwable t) {
       throw new TzException(t);
     }
   }
 
+  /* Apply changes from the watcher. Only the timezones from the changed
+   * files - and those whose aliases changed - are reprocessed.
+   */
+  private synchronized void applyChanges(final Pending pending) throws TzException {
+    if (pending.overflow || pending.info) {
+      if (debug()) {
+        debug("Watcher: full reload");
+      }
+
+      loadData();
+      return;
+    }
+
+    final long start = System.nanoTime();
+
+    /* Files under deleted directories are gone too */
+    for (final Path d: pending.deleted) {
+      for (final Path p: fileIds.keySet()) {
+        if (p.startsWith(d)) {
+          pending.files.add(p);
+        }
+      }
+    }
+
+    final Set<String> changed = new TreeSet<>();
+    final Map<String, VTimeZone> updated = new HashMap<>();
+
+    for (final Path p: pending.files) {
+      ParsedFile pf = null;
+
+      if (Files.isRegularFile(p)) {
+        pf = parseFile(p);
+
+        if (pf.failure != null) {
+          // Probably caught part way through a copy - we'll see it again
+          warn("Unable to parse " + p + ": " + pf.failure.getMessage());
+          continue;
+        }
+      }
+
+      final Set<String> was = fileIds.remove(p);
+
+      if (was != null) {
+        for (final String id: was) {
+          if (p.equals(idFiles.get(id))) {
+            idFiles.remove(id);
+            changed.add(id);
+          }
+        }
+      }
+
+      if (pf == null) {
+        continue;
+      }
+
+      final Set<String> ids = new TreeSet<>();
+
+      for (final VTimeZone vtz: pf.vtzs) {
+        final String id = vtz.getTimeZoneId().getValue();
+
+        ids.add(id);
+        idFiles.put(id, p);
+        updated.put(id, vtz);
+        changed.add(id);
+      }
+
+      fileIds.put(p, ids);
+    }
+
+    final AliasMaps aliasMaps;
+
+    if (pending.aliases) {
+      aliasMaps = buildAliasMaps(getdata());
+    } else if (changed.isEmpty()) {
+      return;
+    } else {
+      aliasMaps = getSnapshot().aliasMaps;
+    }
+
+    final Snapshot snap = copySnapshot(aliasMaps, changed);
+
+    /* Something changed now - the release stamp no longer covers it */
+    snap.dtstamp = DateTimeUtil.rfcDateTimeUTC(new Date());
+
+    final List<SpecSource> sources = new ArrayList<>();
+
+    for (final String id: new TreeSet<>(snap.getAffected())) {
+      final VTimeZone vtz = updated.get(id);
+
+      if (vtz != null) {
+        sources.add(source(id, vtz, snap.dtstamp));
+        continue;
+      }
+
+      /* Unchanged but its aliases did */
+      final String cached = getCachedVtz(id);
+
+      if ((cached == null) || !idFiles.containsKey(id)) {
+        // No longer present
+        continue;
+      }
+
+      sources.add(new SpecSource(id,
+                                 () -> parseDef(TzServerUtil.getCalHdr() +
+                                                        cached +
+                                                        TzServerUtil.getCalTlr()),
+                                 snap.dtstamp));
+    }
+
+    processSpecs(snap, sources);
+
+    publish(snap);
+
+    watchUpdates++;
+    watchFiles += pending.files.size();
+
+    reloadTimer("incremental").recordSince(start);
+
+    cfg.setDtstamp(snap.dtstamp);
+    TzServerUtil.saveConfig();
+
+    if (debug()) {
+      debug("Watcher: applied " + pending.files.size() +
+                    " changed files affecting " +
+                    snap.getAffected().size() + " timezones");
+    }
+  }
+
+  private SpecSource source(final String id,
+                            final VTimeZone vtz,
+                            final String storedDtstamp) {
+    return new SpecSource(id, () -> {
+      final Calendar cal = new Calendar();
+      cal.getComponents().add(vtz);
+      cal.getProperties().add(new Version());
+
+      return cal;
+    }, storedDtstamp);
+  }
+
+  /* Never throws - the failure is noted for the caller */
+  private ParsedFile parseFile(final Path p) {
+    final ParsedFile pf = new ParsedFile(p);
+
+    try {
+      final Calendar cal = parseDef(new String(Files.readAllBytes(p),
+                                               StandardCharsets.UTF_8));
+
+      for (final Object o: cal.getComponents()) {
+        if (o instanceof VTimeZone) {
+          pf.vtzs.add((VTimeZone)o);
+        }
+      }
+    } catch (final Throwable t) {
+      pf.failure = t;
+    }
+
+    return pf;
+  }
+
+  private static boolean isIcs(final Path p) {
+    return isIcsName(p) && Files.isRegularFile(p);
+  }
+
+  private static boolean isIcsName(final Path p) {
+    final String name = p.getFileName().toString();
+
+    // Skip hidden - rsync's temporary files for one
+    return name.endsWith(".ics") && !name.startsWith(".");
+  }
+
   /** Return the File object which must represent a directory.
    *
    * @return File
@@ -266,4 +580,146 @@ public class FileCachedData extends AbstractCachedData {
       throw new TzException(t);
     }
   }
+
+  /* ====================================================================
+   *                   Watcher
+   * ==================================================================== */
+
+  private class WatchThread extends Thread {
+    private final Path root;
+    private final WatchService ws;
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    WatchThread(final Path root) throws IOException {
+      super("bwtz-file-watcher");
+      setDaemon(true);
+
+      this.root = root;
+      ws = root.getFileSystem().newWatchService();
+
+      register(root, null);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          WatchKey key = ws.take();
+
+          /* Gather events until things go quiet */
+          final Pending pending = new Pending();
+          final long end = System.currentTimeMillis() + maxDelayMillis;
+
+          while (key != null) {
+            collect(key, pending);
+
+            final long wait = Math.min(quietMillis,
+                                       end - System.currentTimeMillis());
+            if (wait <= 0) {
+              break;
+            }
+
+            key = ws.poll(wait, TimeUnit.MILLISECONDS);
+          }
+
+          applyChanges(pending);
+        } catch (final ClosedWatchServiceException |
+                InterruptedException e) {
+          break;
+        } catch (final Throwable t) {
+          if (!running) {
+            break;
+          }
+
+          error(t);
+        }
+      }
+
+      if (debug()) {
+        debug("Watcher: stopped");
+      }
+    }
+
+    void shutdown() {
+      running = false;
+
+      try {
+        ws.close();
+      } catch (final Throwable ignored) {
+      }
+
+      interrupt();
+    }
+
+    private void collect(final WatchKey key,
+                         final Pending pending) throws IOException {
+      final Path dir = dirs.get(key);
+
+      for (final WatchEvent<?> ev: key.pollEvents()) {
+        if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+          pending.overflow = true;
+          continue;
+        }
+
+        if (dir == null) {
+          continue;
+        }
+
+        final Path p = dir.resolve((Path)ev.context());
+
+        if (dir.equals(root)) {
+          final String name = p.getFileName().toString();
+
+          if (name.equals(aliasesFile)) {
+            pending.aliases = true;
+            continue;
+          }
+
+          if (name.equals(infoFile)) {
+            pending.info = true;
+            continue;
+          }
+        }
+
+        if (isIcsName(p)) {
+          pending.files.add(p);
+          continue;
+        }
+
+        if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+          // Maybe a directory
+          pending.deleted.add(p);
+        } else if ((ev.kind() == StandardWatchEventKinds.ENTRY_CREATE) &&
+                Files.isDirectory(p)) {
+          register(p, pending);
+        }
+      }
+
+      if (!key.reset()) {
+        dirs.remove(key);
+      }
+    }
+
+    /* Watch the directory and all below it. Files found in a new
+     * directory are added to the pending changes.
+     */
+    private void register(final Path dir,
+                          final Pending pending) throws IOException {
+      try (Stream<Path> paths = Files.walk(dir)) {
+        for (final Path p: (Iterable<Path>)paths::iterator) {
+          if (Files.isDirectory(p)) {
+            dirs.put(p.register(ws,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE,
+                                StandardWatchEventKinds.ENTRY_MODIFY),
+                     p);
+          } else if ((pending != null) && isIcs(p)) {
+            pending.files.add(p);
+          }
+        }
+      }
+    }
+  }
 }
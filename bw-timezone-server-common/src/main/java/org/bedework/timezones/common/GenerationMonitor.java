@@ -0,0 +1,135 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Lets requests wait for the served data to change. Every publish of
+ * new data, and every switch to a new cache, bumps a change count and
+ * wakes the waiters.
+ *
+ * <p>Callers read the count before looking at the data then wait for
+ * it to move, so a change between the two is never missed.</p>
+ *
+ * @author douglm
+ */
+public class GenerationMonitor {
+  /** Default number of request threads allowed to wait - well below
+   * the usual container pool (200 for Tomcat) so idle long polls can't
+   * take every request thread.
+   */
+  public static final int defaultMaxWaiters = 20;
+
+  private static final Object lock = new Object();
+
+  private static long changes;
+
+  private static final AtomicInteger waiters = new AtomicInteger();
+
+  private GenerationMonitor() {
+  }
+
+  /** Called when the data changes
+   */
+  public static void changed() {
+    synchronized (lock) {
+      changes++;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return the current change count
+   */
+  public static long current() {
+    synchronized (lock) {
+      return changes;
+    }
+  }
+
+  /**
+   * @return number of requests waiting
+   */
+  public static int getWaiters() {
+    return waiters.get();
+  }
+
+  /**
+   * @param cfg the configuration - may be null
+   * @return the number of requests allowed to wait at once
+   */
+  public static int getMaxWaiters(final TzConfig cfg) {
+    if ((cfg == null) || (cfg.getMaxListWaiters() == 0)) {
+      return defaultMaxWaiters;
+    }
+
+    return Math.max(0, cfg.getMaxListWaiters());
+  }
+
+  /** Wait until the change count moves from seen. For our own threads,
+   * which are not limited.
+   *
+   * @param seen value of {@link #current()} before looking at the data
+   * @param timeoutMillis maximum wait
+   * @return true if the data changed
+   * @throws InterruptedException if interrupted
+   */
+  public static boolean await(final long seen,
+                              final long timeoutMillis) throws InterruptedException {
+    return await(seen, timeoutMillis, Integer.MAX_VALUE);
+  }
+
+  /** Wait until the change count moves from seen unless there are
+   * already maxWaiters waiting, in which case return at once.
+   *
+   * @param seen value of {@link #current()} before looking at the data
+   * @param timeoutMillis maximum wait
+   * @param maxWaiters most allowed to wait at once
+   * @return true if the data changed
+   * @throws InterruptedException if interrupted
+   */
+  public static boolean await(final long seen,
+                              final long timeoutMillis,
+                              final int maxWaiters) throws InterruptedException {
+    if (waiters.incrementAndGet() > maxWaiters) {
+      waiters.decrementAndGet();
+      return current() != seen;
+    }
+
+    try {
+      final long end = System.currentTimeMillis() + timeoutMillis;
+
+      synchronized (lock) {
+        while (changes == seen) {
+          final long remaining = end - System.currentTimeMillis();
+
+          if (remaining <= 0) {
+            return false;
+          }
+
+          lock.wait(remaining);
+        }
+
+        return true;
+      }
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts requests for keys so we can find the most popular.
+ *
+ * <p>At most a fixed number of keys are tracked. When full a sweep halves
+ * all the counts and drops those which fall to zero, so a key has to keep
+ * being requested to stay. Keys arriving while we are still full are
+ * not counted.</p>
+ *
+ * @param <K> type of key - must be usable as a map key
+ * @author douglm
+ */
+public class HotKeys<K> {
+  private final Map<K, LongAdder> counts = new ConcurrentHashMap<>();
+
+  private final int maxKeys;
+
+  private final Object sweepLock = new Object();
+
+  /**
+   * @param maxKeys maximum number of keys tracked
+   */
+  public HotKeys(final int maxKeys) {
+    this.maxKeys = Math.max(1, maxKeys);
+  }
+
+  /** Count a request for the key
+   *
+   * @param key requested
+   */
+  public void touch(final K key) {
+    add(key, 1);
+  }
+
+  /** Add to the count for the key - used to restore saved counts
+   *
+   * @param key requested
+   * @param ct number of requests
+   */
+  public void add(final K key,
+                  final long ct) {
+    if (ct <= 0) {
+      return;
+    }
+
+    LongAdder la = counts.get(key);
+
+    if (la == null) {
+      if (counts.size() >= maxKeys) {
+        sweep();
+
+        if (counts.size() >= maxKeys) {
+          return;
+        }
+      }
+
+      la = counts.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    la.add(ct);
+  }
+
+  /**
+   * @param n maximum number to return
+   * @return the most requested keys with their counts - most first
+   */
+  public List<Map.Entry<K, Long>> top(final int n) {
+    final List<Map.Entry<K, Long>> res = new ArrayList<>(counts.size());
+
+    for (final Map.Entry<K, LongAdder> me: counts.entrySet()) {
+      final long ct = me.getValue().sum();
+
+      if (ct > 0) {
+        res.add(new AbstractMap.SimpleImmutableEntry<>(
+                me.getKey(), ct));
+      }
+    }
+
+    res.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+    if (res.size() <= n) {
+      return res;
+    }
+
+    return new ArrayList<>(res.subList(0, Math.max(0, n)));
+  }
+
+  /**
+   * @return number of keys tracked
+   */
+  public int size() {
+    return counts.size();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void sweep() {
+    synchronized (sweepLock) {
+      if (counts.size() < maxKeys) {
+        // Someone else got here first
+        return;
+      }
+
+      for (final Map.Entry<K, LongAdder> me: counts.entrySet()) {
+        final LongAdder la = me.getValue();
+        final long half = la.sumThenReset() >>> 1;
+
+        if (half == 0) {
+          counts.remove(me.getKey(), la);
+        } else {
+          la.add(half);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.DateTimeUtil;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/** Timezone summaries indexed by last modification so a changedsince
+ * query is a tail range rather than a scan.
+ *
+ * <p>Last modified values are compared at the resolution of their
+ * rfc formatted form - whole seconds - as the scan did. Results are in
+ * the order of the list the index was built from.</p>
+ *
+ * @author douglm
+ */
+public class LastModIndex {
+  /* The form we generate and expect back */
+  private static final Pattern rfcUtc =
+          Pattern.compile("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\dZ");
+
+  private final List<TimezoneType> all;
+
+  /* Positions in all keyed by last modified epoch seconds */
+  private final NavigableMap<Long, int[]> bySecond = new TreeMap<>();
+
+  /* Positions of those without a last modified - always returned */
+  private final int[] undated;
+
+  /**
+   * @param tzs the summaries - not copied, so must not change
+   */
+  public LastModIndex(final List<TimezoneType> tzs) {
+    all = tzs;
+
+    final TreeMap<Long, List<Integer>> work = new TreeMap<>();
+    final List<Integer> nolm = new ArrayList<>();
+
+    for (int i = 0; i < tzs.size(); i++) {
+      final TimezoneType tz = tzs.get(i);
+
+      if (tz.getLastModified() == null) {
+        nolm.add(i);
+        continue;
+      }
+
+      work.computeIfAbsent(seconds(tz.getLastModified().getTime()),
+                           k -> new ArrayList<>()).add(i);
+    }
+
+    for (final Long k: work.keySet()) {
+      bySecond.put(k, toArray(work.get(k)));
+    }
+
+    undated = toArray(nolm);
+  }
+
+  /**
+   * @param changedSince rfc formatted UTC date-time or null for all
+   * @return summaries modified after changedSince - never null
+   */
+  public List<TimezoneType> changedSince(final String changedSince) {
+    if (changedSince == null) {
+      return Collections.unmodifiableList(all);
+    }
+
+    final Long cs = toSeconds(changedSince);
+
+    if (cs == null) {
+      return scan(changedSince);
+    }
+
+    final Collection<int[]> tail = bySecond.tailMap(cs, false).values();
+
+    int sz = undated.length;
+    for (final int[] pos: tail) {
+      sz += pos.length;
+    }
+
+    if (sz == 0) {
+      return Collections.emptyList();
+    }
+
+    final int[] res = Arrays.copyOf(undated, sz);
+    int i = undated.length;
+
+    for (final int[] pos: tail) {
+      System.arraycopy(pos, 0, res, i, pos.length);
+      i += pos.length;
+    }
+
+    Arrays.sort(res);
+
+    final List<TimezoneType> ss = new ArrayList<>(sz);
+
+    for (final int p: res) {
+      ss.add(all.get(p));
+    }
+
+    return ss;
+  }
+
+  /**
+   * @param val rfc formatted UTC date-time
+   * @return epoch seconds or null if not in the expected form
+   */
+  public static Long toSeconds(final String val) {
+    if ((val == null) || !rfcUtc.matcher(val).matches()) {
+      return null;
+    }
+
+    try {
+      return Instant.parse(val).getEpochSecond();
+    } catch (final Throwable ignored) {
+      return null;
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* Anything else is compared as strings as it always was */
+  private List<TimezoneType> scan(final String changedSince) {
+    final List<TimezoneType> ss = new ArrayList<>();
+
+    for (final TimezoneType tz: all) {
+      if (tz.getLastModified() == null) {
+        ss.add(tz);
+        continue;
+      }
+
+      final String lm = DateTimeUtil.rfcDateTimeUTC(tz.getLastModified());
+
+      if (changedSince.compareTo(lm) < 0) {
+        ss.add(tz);
+      }
+    }
+
+    return ss;
+  }
+
+  private static long seconds(final long millis) {
+    return Math.floorDiv(millis, 1000);
+  }
+
+  private static int[] toArray(final List<Integer> vals) {
+    final int[] res = new int[vals.size()];
+
+    for (int i = 0; i < res.length; i++) {
+      res[i] = vals.get(i);
+    }
+
+    return res;
+  }
+}
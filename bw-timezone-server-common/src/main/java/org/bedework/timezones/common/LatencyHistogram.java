@@ -0,0 +1,149 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A fixed size histogram of latencies in microseconds.
+ *
+ * <p>Buckets are log-linear: 8 buckets per power of 2 so any recorded
+ * value is reported within 12.5%. Values up to about 12 days fit, larger
+ * ones land in the last bucket. Recording never allocates or locks.</p>
+ *
+ * @author douglm
+ */
+public class LatencyHistogram {
+  private static final int subBits = 3;
+  private static final int subBuckets = 1 << subBits;
+
+  /* Largest value we distinguish - 2^40 micros */
+  private static final int maxShift = 40 - subBits;
+
+  private static final int numBuckets = subBuckets * (maxShift + 2);
+
+  private final AtomicLongArray buckets = new AtomicLongArray(numBuckets);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * @param nanos elapsed time in nanoseconds
+   */
+  public void recordNanos(final long nanos) {
+    record(nanos / 1000);
+  }
+
+  /**
+   * @param startNanos from System.nanoTime() at the start
+   */
+  public void recordSince(final long startNanos) {
+    recordNanos(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @param micros elapsed time in microseconds
+   */
+  public void record(final long micros) {
+    final long v = Math.max(0, micros);
+
+    buckets.incrementAndGet(index(v));
+    count.increment();
+    sum.add(v);
+  }
+
+  /**
+   * @return number of values recorded
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return sum of values recorded in microseconds
+   */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * @param q quantile 0 - 1.0
+   * @return upper bound of the bucket holding the quantile in
+   *          microseconds - 0 if nothing recorded
+   */
+  public long getQuantile(final double q) {
+    final long[] counts = new long[numBuckets];
+    long total = 0;
+
+    /* Counts may move while we read - use what we saw */
+    for (int i = 0; i < numBuckets; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    final long target = Math.max(1, (long)Math.ceil(q * total));
+    long seen = 0;
+
+    for (int i = 0; i < numBuckets; i++) {
+      seen += counts[i];
+
+      if (seen >= target) {
+        return upperBound(i);
+      }
+    }
+
+    return upperBound(numBuckets - 1);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static int index(final long v) {
+    if (v < subBuckets) {
+      return (int)v;
+    }
+
+    final int shift = 63 - Long.numberOfLeadingZeros(v) - subBits;
+
+    if (shift > maxShift) {
+      return numBuckets - 1;
+    }
+
+    final int sub = (int)(v >>> shift) - subBuckets;
+
+    return subBuckets * (shift + 1) + sub;
+  }
+
+  private static long upperBound(final int index) {
+    if (index < subBuckets) {
+      return index;
+    }
+
+    final int shift = index / subBuckets - 1;
+    final int sub = index % subBuckets;
+
+    return ((long)(subBuckets + sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,157 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** A body held as the difference from another body - a prefix of the
+ * base, some bytes of its own and a suffix of the base. Used for
+ * aliases, whose VTIMEZONE differs from the target's only around the
+ * TZID, so each costs a few hundred bytes rather than a copy.
+ *
+ * <p>The bytes written are exactly those of the body it was made
+ * from.</p>
+ *
+ * @author douglm
+ */
+public class SplicedBody extends EncodedBody {
+  private final EncodedBody base;
+
+  /* Bytes taken from the start and end of the base */
+  private final int prefix;
+  private final int suffix;
+
+  /* What goes between */
+  private final byte[] middle;
+
+  private SplicedBody(final EncodedBody base,
+                      final int prefix,
+                      final byte[] middle,
+                      final int suffix,
+                      final String contentType,
+                      final String etag,
+                      final long lastModified) {
+    super(contentType, etag, lastModified);
+
+    this.base = base;
+    this.prefix = prefix;
+    this.middle = middle;
+    this.suffix = suffix;
+  }
+
+  /**
+   * @param base the body to share bytes with - not a SplicedBody
+   * @param full the body to represent - only its headers are kept
+   * @return a body which writes the same bytes as full
+   */
+  public static EncodedBody splice(final EncodedBody base,
+                                   final EncodedBody full) {
+    if ((base == null) || (base instanceof SplicedBody)) {
+      return full;
+    }
+
+    final byte[] b = base.content();
+    final byte[] f = full.content();
+    final int max = Math.min(b.length, f.length);
+
+    int prefix = 0;
+    while ((prefix < max) && (b[prefix] == f[prefix])) {
+      prefix++;
+    }
+
+    int suffix = 0;
+    while ((suffix < max - prefix) &&
+            (b[b.length - 1 - suffix] == f[f.length - 1 - suffix])) {
+      suffix++;
+    }
+
+    final byte[] middle = new byte[f.length - prefix - suffix];
+    System.arraycopy(f, prefix, middle, 0, middle.length);
+
+    return new SplicedBody(base, prefix, middle, suffix,
+                           full.getContentType(), full.getEtag(),
+                           full.getLastModified());
+  }
+
+  /** For a caller which already knows where the bodies differ.
+   *
+   * @param base the body to share bytes with - not a SplicedBody
+   * @param prefix bytes taken from the start of base
+   * @param middle bytes which follow them - not copied
+   * @param suffix bytes taken from the end of base
+   * @param contentType for the response
+   * @param etag quoted etag for the response
+   * @param lastModified millis or -1 for unknown
+   * @return the body
+   */
+  public static EncodedBody splice(final EncodedBody base,
+                                   final int prefix,
+                                   final byte[] middle,
+                                   final int suffix,
+                                   final String contentType,
+                                   final String etag,
+                                   final long lastModified) {
+    if ((base instanceof SplicedBody) ||
+            (prefix < 0) || (suffix < 0) ||
+            (prefix + suffix > base.getContentLength())) {
+      throw new IllegalArgumentException("Bad splice");
+    }
+
+    return new SplicedBody(base, prefix, middle, suffix,
+                           contentType, etag, lastModified);
+  }
+
+  /**
+   * @return bytes held by this body rather than shared with the base
+   */
+  public int getOwnLength() {
+    return middle.length;
+  }
+
+  @Override
+  public int getContentLength() {
+    return prefix + middle.length + suffix;
+  }
+
+  @Override
+  public void writeTo(final OutputStream os) throws IOException {
+    base.writeTo(os, 0, prefix);
+    os.write(middle);
+    base.writeTo(os, base.getContentLength() - suffix, suffix);
+  }
+
+  /* The compressed variants are written from the parts - this is
+     only here to complete the contract */
+  @Override
+  protected byte[] content() {
+    final ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(getContentLength());
+
+    try {
+      writeTo(bos);
+    } catch (final IOException ioe) {
+      // Not from a ByteArrayOutputStream
+      throw new RuntimeException(ioe);
+    }
+
+    return bos.toByteArray();
+  }
+}
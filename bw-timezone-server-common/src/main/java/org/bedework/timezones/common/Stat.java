@@ -28,6 +28,7 @@ public class Stat implements Serializable {
   private String name;
   private String value1;
   private String value2;
+  private Number value;
 
   /**
    * @param name
@@ -39,6 +40,18 @@ public class Stat implements Serializable {
     value1 = value;
   }
 
+  /** A numeric stat
+   *
+   * @param name
+   * @param value
+   */
+  public Stat(final String name,
+              final Number value) {
+    this.name = name;
+    this.value = value;
+    value1 = String.valueOf(value);
+  }
+
   /**
    * @param name
    * @param value1
@@ -73,6 +86,13 @@ public class Stat implements Serializable {
     return value2;
   }
 
+  /**
+   * @return typed value or null if not numeric
+   */
+  public Number getValue() {
+    return value;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -0,0 +1,65 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+/** A bounded, thread-safe cache of truncated timezones. Keyed by the
+ * name and the normalized start and end, unbounded ends as "".
+ *
+ * <p>Each entry weighs its size in kilobytes plus one.</p>
+ *
+ * @author douglm
+ */
+public class TruncationCache extends WeightedCache<EncodedBody> {
+  /** Default maximum weight - about 16MB of bodies */
+  public static final long defaultMaxWeight = 16 * 1024;
+
+  /**
+   */
+  public TruncationCache() {
+    super("truncation", defaultMaxWeight, 0);
+  }
+
+  /** An empty cache with the same limits which continues to
+   * accumulate statistics into the counters of the given cache.
+   *
+   * @param from the cache we are replacing
+   */
+  public TruncationCache(final TruncationCache from) {
+    super(from);
+  }
+
+  /**
+   * @param name tzid or alias
+   * @param start normalized start or null
+   * @param end normalized end or null
+   * @return the key for the window
+   */
+  public static ExpandedMapEntryKey key(final String name,
+                                        final String start,
+                                        final String end) {
+    return new ExpandedMapEntryKey(name,
+                                   (start == null) ? "" : start,
+                                   (end == null) ? "" : end);
+  }
+
+  @Override
+  protected int weigh(final EncodedBody val) {
+    return 1 + val.getContentLength() / 1024;
+  }
+}
@@ -122,6 +122,177 @@ public interface TzConfig extends IndexProperties {
   @MBeanInfo("How often we attempt to refresh from the primary - seconds.")
   long getRefreshDelay();
 
+  /** Maximum weight of the expansion cache - each entry weighs
+   * its observances plus a fixed base
+   *
+   * @param val max weight - 0 for default
+   */
+  void setExpansionCacheMaxWeight(long val);
+
+  /**
+   * @return long max weight of the expansion cache
+   */
+  @MBeanInfo("Maximum weight of the expansion cache. Each entry weighs 4 plus its number of observances. 0 for default (1500000).")
+  long getExpansionCacheMaxWeight();
+
+  /** Time to live for expansion cache entries - seconds
+   *
+   * @param val ttl - 0 for no expiry
+   */
+  void setExpansionCacheTtl(long val);
+
+  /**
+   * @return long ttl for expansion cache entries - seconds
+   */
+  @MBeanInfo("Time to live for expansion cache entries - seconds. 0 for no expiry.")
+  long getExpansionCacheTtl();
+
+  /** Maximum number of leveldb updates written in one batch
+   *
+   * @param val max updates - 0 for no limit
+   */
+  void setLeveldbBatchSize(int val);
+
+  /**
+   * @return int max leveldb updates in one batch
+   */
+  @MBeanInfo("Maximum leveldb updates written in one batch. 0 for no limit " +
+          "- every load or sync is a single atomic write.")
+  int getLeveldbBatchSize();
+
+  /** Flag leveldb batches to be synced to disk
+   *
+   * @param val true to sync
+   */
+  void setLeveldbSyncWrites(boolean val);
+
+  /**
+   * @return true if leveldb batches are synced to disk
+   */
+  @MBeanInfo("True if leveldb batches are synced to disk before the write returns.")
+  boolean getLeveldbSyncWrites();
+
+  /** Number of timezones fetched from the primary at once
+   *
+   * @param val number of fetches - 0 for default
+   */
+  void setPrimaryFetchThreads(int val);
+
+  /**
+   * @return int number of concurrent fetches from the primary
+   */
+  @MBeanInfo("Number of timezones a secondary fetches from the primary at once. 0 for default (8).")
+  int getPrimaryFetchThreads();
+
+  /** Time allowed for each fetch from the primary - seconds
+   *
+   * @param val timeout - 0 for default
+   */
+  void setPrimaryFetchTimeout(long val);
+
+  /**
+   * @return long timeout for each fetch from the primary - seconds
+   */
+  @MBeanInfo("Seconds allowed for each fetch from the primary before it is retried. 0 for default (30).")
+  long getPrimaryFetchTimeout();
+
+  /** Number of times a failed fetch from the primary is retried
+   *
+   * @param val retries - negative for default
+   */
+  void setPrimaryFetchRetries(int val);
+
+  /**
+   * @return int retries for a failed fetch from the primary
+   */
+  @MBeanInfo("Times a failed or timed out fetch from the primary is retried with backoff. Negative for default (3).")
+  int getPrimaryFetchRetries();
+
+  /** Long poll wait - seconds
+   *
+   * @param val wait - 0 for default, negative to disable
+   */
+  void setPrimaryLongPollWait(int val);
+
+  /**
+   * @return int seconds a secondary asks the primary to hold a list
+   *         request waiting for changes
+   */
+  @MBeanInfo("Seconds a secondary asks the primary to hold a list request waiting for changes. 0 for default (60), negative to poll every refreshDelay instead.")
+  int getPrimaryLongPollWait();
+
+  /** Location of the tzpack file
+   *
+   * @param val    String
+   */
+  void setTzpackPath(String val);
+
+  /** Location of the tzpack file - a memory mapped snapshot of the
+   * data. If set it is served in place of the leveldb or tzdata, which
+   * is still loaded and kept up to date behind it.
+   *
+   * @return String, null for unset
+   */
+  @MBeanInfo("Location of the tzpack file - a single file snapshot of the data which is memory mapped and served directly. Absolute path. Built from the other data if missing or on a full refresh. That data is kept and the pack rewritten when it changes.")
+  String getTzpackPath();
+
+  /** Location of the published digest of the tzdata zip
+   *
+   * @param val    String
+   */
+  void setTzdataDigestUrl(String val);
+
+  /** Location of the published SHA-256 digest of the tzdata zip - a
+   * file containing the hex digest, optionally followed by the name
+   * as written by sha256sum. If set, a zip which doesn't match is
+   * rejected.
+   *
+   * @return String, null for unset
+   */
+  @MBeanInfo("Url or path of the published SHA-256 digest of the tzdata zip. If set, fetched data which doesn't match is rejected.")
+  String getTzdataDigestUrl();
+
+  /** Number of the most requested zones and of expansions to warm
+   *
+   * @param val count - 0 for default, negative to disable
+   */
+  void setWarmupKeys(int val);
+
+  /**
+   * @return int number of the most requested zones and of expansions
+   *         computed ahead of requests after a restart or reload
+   */
+  @MBeanInfo("Number of the most requested zones and of expansions saved at shutdown (in the leveldb directory, or else the tzpack directory, if given as an absolute path) and computed in the background after a restart or reload. 0 for default (1000), negative to disable.")
+  int getWarmupKeys();
+
+  /** Client addresses allowed to read the metrics
+   *
+   * @param val comma separated addresses - null to disable
+   */
+  void setMetricsAddresses(String val);
+
+  /**
+   * @return String comma separated client addresses allowed to read
+   *         the metrics or null for none
+   */
+  @MBeanInfo("Comma separated client addresses (e.g. 127.0.0.1) allowed to read /metrics. Unset to disable the endpoint.")
+  String getMetricsAddresses();
+
+  /** Maximum number of list requests held waiting for changes. Each
+   * holds a request thread so this should be well below the size of
+   * the container's request pool.
+   *
+   * @param val count - 0 for default, negative to disable waiting
+   */
+  void setMaxListWaiters(int val);
+
+  /**
+   * @return int maximum number of list requests held waiting for
+   *         changes
+   */
+  @MBeanInfo("Maximum number of list requests (with a wait parameter) held waiting for changes. Each holds a request thread so keep this well below the container's request pool. 0 for default (20), negative to disable waiting.")
+  int getMaxListWaiters();
+
   /** 
    *
    * @param val the indexer config location
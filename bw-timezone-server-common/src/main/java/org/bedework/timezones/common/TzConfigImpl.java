@@ -47,6 +47,32 @@ public class TzConfigImpl
 
   private long refreshDelay;
 
+  private long expansionCacheMaxWeight;
+
+  private long expansionCacheTtl;
+
+  private int leveldbBatchSize;
+
+  private boolean leveldbSyncWrites;
+
+  private int primaryFetchThreads;
+
+  private int primaryLongPollWait;
+
+  private String tzpackPath;
+
+  private String tzdataDigestUrl;
+
+  private int warmupKeys;
+
+  private String metricsAddresses;
+
+  private int maxListWaiters;
+
+  private long primaryFetchTimeout;
+
+  private int primaryFetchRetries = -1;
+
   private String indexerURL;
 
   private boolean embeddedIndexer;
@@ -185,6 +211,136 @@ public class TzConfigImpl
     return refreshDelay;
   }
 
+  @Override
+  public void setExpansionCacheMaxWeight(final long val) {
+    expansionCacheMaxWeight = val;
+  }
+
+  @Override
+  public long getExpansionCacheMaxWeight() {
+    return expansionCacheMaxWeight;
+  }
+
+  @Override
+  public void setExpansionCacheTtl(final long val) {
+    expansionCacheTtl = val;
+  }
+
+  @Override
+  public long getExpansionCacheTtl() {
+    return expansionCacheTtl;
+  }
+
+  @Override
+  public void setLeveldbBatchSize(final int val) {
+    leveldbBatchSize = val;
+  }
+
+  @Override
+  public int getLeveldbBatchSize() {
+    return leveldbBatchSize;
+  }
+
+  @Override
+  public void setLeveldbSyncWrites(final boolean val) {
+    leveldbSyncWrites = val;
+  }
+
+  @Override
+  public boolean getLeveldbSyncWrites() {
+    return leveldbSyncWrites;
+  }
+
+  @Override
+  public void setPrimaryFetchThreads(final int val) {
+    primaryFetchThreads = val;
+  }
+
+  @Override
+  public int getPrimaryFetchThreads() {
+    return primaryFetchThreads;
+  }
+
+  @Override
+  public void setPrimaryFetchTimeout(final long val) {
+    primaryFetchTimeout = val;
+  }
+
+  @Override
+  public long getPrimaryFetchTimeout() {
+    return primaryFetchTimeout;
+  }
+
+  @Override
+  public void setPrimaryFetchRetries(final int val) {
+    primaryFetchRetries = val;
+  }
+
+  @Override
+  public int getPrimaryFetchRetries() {
+    return primaryFetchRetries;
+  }
+
+  @Override
+  public void setPrimaryLongPollWait(final int val) {
+    primaryLongPollWait = val;
+  }
+
+  @Override
+  public int getPrimaryLongPollWait() {
+    return primaryLongPollWait;
+  }
+
+  @Override
+  public void setTzpackPath(final String val) {
+    tzpackPath = val;
+  }
+
+  @Override
+  public String getTzpackPath() {
+    return tzpackPath;
+  }
+
+  @Override
+  public void setTzdataDigestUrl(final String val) {
+    tzdataDigestUrl = val;
+  }
+
+  @Override
+  public String getTzdataDigestUrl() {
+    return tzdataDigestUrl;
+  }
+
+  @Override
+  public void setWarmupKeys(final int val) {
+    warmupKeys = val;
+  }
+
+  @Override
+  public int getWarmupKeys() {
+    return warmupKeys;
+  }
+
+  @Override
+  public void setMetricsAddresses(final String val) {
+    metricsAddresses = val;
+  }
+
+  @Override
+  public String getMetricsAddresses() {
+    return metricsAddresses;
+  }
+
+  @Override
+  public void setMaxListWaiters(final int val) {
+    maxListWaiters = val;
+  }
+
+  @Override
+  public int getMaxListWaiters() {
+    return maxListWaiters;
+  }
+
   @Override
   public void setIndexerURL(final String val) {
     indexerURL = val;
@@ -294,6 +450,19 @@ public class TzConfigImpl
     newConf.setPrimaryServer(getPrimaryServer());
     newConf.setTzdataUrl(getTzdataUrl());
     newConf.setRefreshDelay(getRefreshDelay());
+    newConf.setExpansionCacheMaxWeight(getExpansionCacheMaxWeight());
+    newConf.setExpansionCacheTtl(getExpansionCacheTtl());
+    newConf.setLeveldbBatchSize(getLeveldbBatchSize());
+    newConf.setLeveldbSyncWrites(getLeveldbSyncWrites());
+    newConf.setPrimaryFetchThreads(getPrimaryFetchThreads());
+    newConf.setPrimaryFetchTimeout(getPrimaryFetchTimeout());
+    newConf.setPrimaryFetchRetries(getPrimaryFetchRetries());
+    newConf.setPrimaryLongPollWait(getPrimaryLongPollWait());
+    newConf.setTzpackPath(getTzpackPath());
+    newConf.setTzdataDigestUrl(getTzdataDigestUrl());
+    newConf.setWarmupKeys(getWarmupKeys());
+    newConf.setMetricsAddresses(getMetricsAddresses());
+    newConf.setMaxListWaiters(getMaxListWaiters());
 
     ((TzConfigImpl)newConf).setName(getName());
 
@@ -0,0 +1,333 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+/** Conversions between local and UTC date-times.
+ *
+ * <p>All times are seconds since the epoch. A local time is the
+ * wall clock value treated as if it were UTC. Nothing here holds
+ * state so it may be used freely from any thread.</p>
+ *
+ * <p>A local time may fall in a gap (the clocks went forward) or an
+ * overlap (the clocks went back). How those are resolved is given by
+ * a {@link Disambiguation}.</p>
+ *
+ * @author douglm
+ */
+public class TzConverter {
+  /** Returned when a conversion is not possible */
+  public static final long invalid = Long.MIN_VALUE;
+
+  /* Offsets are well within a day so this brackets any transition */
+  private static final long window = 86400;
+
+  private static final long secsPerDay = 86400;
+
+  /** Supplies the utc offset in effect at a given time.
+   */
+  public interface OffsetSource {
+    /**
+     * @param utc epoch seconds
+     * @return offset in seconds in effect at that time
+     */
+    int getOffset(long utc);
+  }
+
+  /** How to resolve local times in a gap or an overlap.
+   */
+  public enum Disambiguation {
+    /** Earlier instant in an overlap, later in a gap - moves a
+     * nonexistent time forward by the length of the gap.
+     */
+    compatible,
+
+    /** The earlier of the two possible instants */
+    earlier,
+
+    /** The later of the two possible instants */
+    later,
+
+    /** Fail the conversion */
+    reject;
+
+    /**
+     * @param val parameter value - null for the default
+     * @return policy or null for an unknown value
+     */
+    public static Disambiguation fromParam(final String val) {
+      if (val == null) {
+        return compatible;
+      }
+
+      for (final Disambiguation d: values()) {
+        if (d.name().equalsIgnoreCase(val)) {
+          return d;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  /** Convert a local time to UTC.
+   *
+   * @param src offsets for the timezone
+   * @param local wall clock time as epoch seconds
+   * @param disambiguation for gaps and overlaps
+   * @return utc epoch seconds or invalid if rejected
+   */
+  public static long toUtc(final OffsetSource src,
+                           final long local,
+                           final Disambiguation disambiguation) {
+    final int before = src.getOffset(local - window);
+    final int after = src.getOffset(local + window);
+
+    if (before == after) {
+      final long utc = local - before;
+
+      if (src.getOffset(utc) == before) {
+        return utc;
+      }
+
+      /* Two transitions in the window - try what is in effect there */
+      final int mid = src.getOffset(utc);
+      if (src.getOffset(local - mid) == mid) {
+        return local - mid;
+      }
+
+      return resolveGap(local, before, mid, disambiguation);
+    }
+
+    final long early = local - Math.max(before, after);
+    final long late = local - Math.min(before, after);
+
+    final boolean earlyOk = (local - early) == src.getOffset(early);
+    final boolean lateOk = (local - late) == src.getOffset(late);
+
+    if (earlyOk && lateOk) {
+      // Overlap
+      switch (disambiguation) {
+        case later:
+          return late;
+        case reject:
+          return invalid;
+        default:
+          return early;
+      }
+    }
+
+    if (earlyOk) {
+      return early;
+    }
+
+    if (lateOk) {
+      return late;
+    }
+
+    return resolveGap(local, before, after, disambiguation);
+  }
+
+  /** Convert a UTC time to local.
+   *
+   * @param src offsets for the timezone
+   * @param utc epoch seconds
+   * @return local wall clock time as epoch seconds
+   */
+  public static long toLocal(final OffsetSource src,
+                             final long utc) {
+    return utc + src.getOffset(utc);
+  }
+
+  /** Parse a date-time of the form yyyyMMddTHHmmss with an optional
+   * trailing Z.
+   *
+   * @param val the date-time
+   * @return epoch seconds treating the value as UTC or invalid
+   */
+  public static long parse(final String val) {
+    if (val == null) {
+      return invalid;
+    }
+
+    final int len = val.length();
+
+    if ((len != 15) && ((len != 16) || (val.charAt(15) != 'Z'))) {
+      return invalid;
+    }
+
+    if (val.charAt(8) != 'T') {
+      return invalid;
+    }
+
+    final int year = digits(val, 0, 4);
+    final int month = digits(val, 4, 2);
+    final int day = digits(val, 6, 2);
+    final int hour = digits(val, 9, 2);
+    final int minute = digits(val, 11, 2);
+    final int second = digits(val, 13, 2);
+
+    if ((year < 0) || (month < 1) || (month > 12) ||
+            (day < 1) || (day > daysInMonth(year, month)) ||
+            (hour < 0) || (hour > 23) ||
+            (minute < 0) || (minute > 59) ||
+            (second < 0) || (second > 59)) {
+      return invalid;
+    }
+
+    return epochDay(year, month, day) * secsPerDay +
+            hour * 3600 + minute * 60 + second;
+  }
+
+  /**
+   * @param val the date-time
+   * @return true if val has a trailing Z
+   */
+  public static boolean isUtc(final String val) {
+    return (val != null) && (val.length() == 16) && (val.charAt(15) == 'Z');
+  }
+
+  /**
+   * @param secs epoch seconds
+   * @return yyyyMMddTHHmmssZ
+   */
+  public static String formatUtc(final long secs) {
+    return format(secs, true);
+  }
+
+  /**
+   * @param secs local time as epoch seconds
+   * @return yyyyMMddTHHmmss
+   */
+  public static String formatLocal(final long secs) {
+    return format(secs, false);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static long resolveGap(final long local,
+                                 final int before,
+                                 final int after,
+                                 final Disambiguation disambiguation) {
+    switch (disambiguation) {
+      case earlier:
+        return local - Math.max(before, after);
+      case reject:
+        return invalid;
+      default:
+        return local - Math.min(before, after);
+    }
+  }
+
+  private static String format(final long secs,
+                               final boolean utc) {
+    final long day = Math.floorDiv(secs, secsPerDay);
+    final int sod = (int)Math.floorMod(secs, secsPerDay);
+
+    /* Civil from days - see Howard Hinnant's date algorithms */
+    final long z = day + 719468;
+    final long era = Math.floorDiv(z, 146097);
+    final int doe = (int)(z - era * 146097);
+    final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final int mp = (5 * doy + 2) / 153;
+    final int d = doy - (153 * mp + 2) / 5 + 1;
+    final int m = (mp < 10) ? mp + 3 : mp - 9;
+    final long y = yoe + era * 400 + ((m <= 2) ? 1 : 0);
+
+    final char[] res = new char[utc ? 16 : 15];
+
+    put(res, 0, (int)y, 4);
+    put(res, 4, m, 2);
+    put(res, 6, d, 2);
+    res[8] = 'T';
+    put(res, 9, sod / 3600, 2);
+    put(res, 11, (sod / 60) % 60, 2);
+    put(res, 13, sod % 60, 2);
+
+    if (utc) {
+      res[15] = 'Z';
+    }
+
+    return new String(res);
+  }
+
+  private static void put(final char[] res,
+                          final int pos,
+                          final int val,
+                          final int width) {
+    int v = val;
+
+    for (int i = pos + width - 1; i >= pos; i--) {
+      res[i] = (char)('0' + (v % 10));
+      v /= 10;
+    }
+  }
+
+  /* Returns -1 for a non-digit */
+  private static int digits(final String val,
+                            final int pos,
+                            final int width) {
+    int res = 0;
+
+    for (int i = pos; i < pos + width; i++) {
+      final char c = val.charAt(i);
+
+      if ((c < '0') || (c > '9')) {
+        return -1;
+      }
+
+      res = res * 10 + (c - '0');
+    }
+
+    return res;
+  }
+
+  private static int daysInMonth(final int year,
+                                 final int month) {
+    switch (month) {
+      case 2:
+        final boolean leap = ((year % 4) == 0) &&
+                (((year % 100) != 0) || ((year % 400) == 0));
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /* Days from civil - see Howard Hinnant's date algorithms */
+  private static long epochDay(final int year,
+                               final int month,
+                               final int day) {
+    final int y = (month <= 2) ? year - 1 : year;
+    final int era = Math.floorDiv(y, 400);
+    final int yoe = y - era * 400;
+    final int mp = (month + 9) % 12;
+    final int doy = (153 * mp + 2) / 5 + day - 1;
+    final int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+    return (long)era * 146097 + doe - 719468;
+  }
+}
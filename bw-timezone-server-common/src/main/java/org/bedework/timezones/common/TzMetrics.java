@@ -0,0 +1,242 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/** Registry of the server metrics.
+ *
+ * <p>Counters are striped (LongAdder) so request threads never contend
+ * on them. Timers are {@link LatencyHistogram}s keyed by a label set,
+ * e.g. action="get". Gauges are read when the metrics are.</p>
+ *
+ * <p>Registering the same name twice returns the same metric so
+ * callers can hold on to what they get back.</p>
+ *
+ * @author douglm
+ */
+public class TzMetrics {
+  /** Prefix for all metric names */
+  public static final String prefix = "tzserver_";
+
+  private static final double[] quantiles = {0.5, 0.99, 0.999};
+
+  private static class Family {
+    final String name;
+    final String help;
+    final String type;
+
+    /* One of these is set */
+    volatile LongAdder counter;
+    volatile LongSupplier supplier;
+    final Map<String, LatencyHistogram> timers =
+            new ConcurrentSkipListMap<>();
+
+    Family(final String name,
+           final String help,
+           final String type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private static final Map<String, Family> families =
+          new ConcurrentSkipListMap<>();
+
+  /**
+   * @param name of counter without prefix - should end in _total
+   * @param help description
+   * @return the counter
+   */
+  public static LongAdder counter(final String name,
+                                  final String help) {
+    final Family f = family(name, help, "counter");
+
+    synchronized (f) {
+      if (f.counter == null) {
+        f.counter = new LongAdder();
+      }
+
+      return f.counter;
+    }
+  }
+
+  /** A counter maintained elsewhere.
+   *
+   * @param name of counter without prefix - should end in _total
+   * @param help description
+   * @param val supplies the value
+   */
+  public static void counter(final String name,
+                             final String help,
+                             final LongSupplier val) {
+    family(name, help, "counter").supplier = val;
+  }
+
+  /**
+   * @param name of gauge without prefix
+   * @param help description
+   * @param val supplies the value
+   */
+  public static void gauge(final String name,
+                           final String help,
+                           final LongSupplier val) {
+    family(name, help, "gauge").supplier = val;
+  }
+
+  /**
+   * @param name of timer without prefix - should end in _seconds
+   * @param help description
+   * @param labels label set e.g. action="get" - may be empty
+   * @return the histogram
+   */
+  public static LatencyHistogram timer(final String name,
+                                       final String help,
+                                       final String labels) {
+    return family(name, help, "summary").timers
+            .computeIfAbsent(labels, k -> new LatencyHistogram());
+  }
+
+  /** Typed values for jmx. Timers give count, mean and quantiles in
+   * microseconds.
+   *
+   * @return all metrics as stats
+   */
+  public static List<Stat> getStats() {
+    final List<Stat> stats = new ArrayList<>();
+
+    for (final Family f: families.values()) {
+      if (f.counter != null) {
+        stats.add(new Stat(f.name, f.counter.sum()));
+        continue;
+      }
+
+      if (f.supplier != null) {
+        stats.add(new Stat(f.name, f.supplier.getAsLong()));
+        continue;
+      }
+
+      for (final Map.Entry<String, LatencyHistogram> me:
+              f.timers.entrySet()) {
+        final String nm = f.name + "{" + me.getKey() + "}";
+        final LatencyHistogram h = me.getValue();
+        final long ct = h.getCount();
+
+        stats.add(new Stat(nm + " count", ct));
+        stats.add(new Stat(nm + " mean us",
+                           (ct == 0) ? 0 : h.getSum() / ct));
+
+        for (final double q: quantiles) {
+          stats.add(new Stat(nm + " p" + quantileName(q) + " us",
+                             h.getQuantile(q)));
+        }
+      }
+    }
+
+    return stats;
+  }
+
+  /** Write all metrics in the Prometheus text exposition format.
+   *
+   * @param wtr for output
+   * @throws IOException on write error
+   */
+  public static void writePrometheus(final Writer wtr) throws IOException {
+    for (final Family f: families.values()) {
+      final String nm = prefix + f.name;
+
+      wtr.write("# HELP " + nm + " " + f.help + "\n");
+      wtr.write("# TYPE " + nm + " " + f.type + "\n");
+
+      if (f.counter != null) {
+        wtr.write(nm + " " + f.counter.sum() + "\n");
+        continue;
+      }
+
+      if (f.supplier != null) {
+        wtr.write(nm + " " + f.supplier.getAsLong() + "\n");
+        continue;
+      }
+
+      for (final Map.Entry<String, LatencyHistogram> me:
+              f.timers.entrySet()) {
+        final String labels = me.getKey();
+        final LatencyHistogram h = me.getValue();
+
+        for (final double q: quantiles) {
+          wtr.write(nm + "{" + join(labels,
+                                    "quantile=\"" + q + "\"") + "} " +
+                            seconds(h.getQuantile(q)) + "\n");
+        }
+
+        final String suffix;
+        if (labels.length() == 0) {
+          suffix = " ";
+        } else {
+          suffix = "{" + labels + "} ";
+        }
+
+        wtr.write(nm + "_sum" + suffix + seconds(h.getSum()) + "\n");
+        wtr.write(nm + "_count" + suffix + h.getCount() + "\n");
+      }
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static Family family(final String name,
+                               final String help,
+                               final String type) {
+    return families.computeIfAbsent(name, k -> new Family(name, help, type));
+  }
+
+  private static String join(final String labels,
+                             final String label) {
+    if (labels.length() == 0) {
+      return label;
+    }
+
+    return labels + "," + label;
+  }
+
+  private static String seconds(final long micros) {
+    return String.valueOf(micros / 1000000.0);
+  }
+
+  /* 0.5 -> 50, 0.999 -> 999 */
+  private static String quantileName(final double q) {
+    final String s = String.valueOf(q).substring(2);
+
+    if (s.length() == 1) {
+      return s + "0";
+    }
+
+    return s;
+  }
+}
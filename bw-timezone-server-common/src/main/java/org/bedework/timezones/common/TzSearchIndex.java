@@ -0,0 +1,333 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/** An index for the find action over tzids, aliases and localized
+ * names.
+ *
+ * <p>Matching is case-insensitive and treats '_' as a space so
+ * "new york" finds America/New_York. Every 3 character substring of
+ * every name is indexed, so a search only looks at names sharing the
+ * rarest trigram of the pattern. Shorter patterns scan all names.</p>
+ *
+ * <p>Results are ranked: a whole name match first, then a whole path
+ * segment or word (London in Europe/London), then a word prefix, then
+ * any other substring. Within each, tzids come before aliases and
+ * aliases before localized names. Ties are in tzid order.</p>
+ *
+ * <p>An index is immutable once built so may be shared freely.</p>
+ *
+ * @author douglm
+ */
+public class TzSearchIndex {
+  private static final int gramSize = 3;
+
+  private static final int kindTzid = 0;
+  private static final int kindAlias = 1;
+  private static final int kindName = 2;
+
+  private static final int numKinds = 3;
+
+  private static class Entry {
+    /* Normalised name */
+    final String key;
+
+    final String tzid;
+
+    /* Only set for localized names */
+    final String lang;
+
+    final int kind;
+
+    Entry(final String name,
+          final String tzid,
+          final String lang,
+          final int kind) {
+      key = normalise(name);
+      this.tzid = tzid;
+      this.lang = lang;
+      this.kind = kind;
+    }
+  }
+
+  /** Collects the names then builds the index.
+   */
+  public static class Builder {
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param tzid the timezone
+     * @return this
+     */
+    public Builder addTzid(final String tzid) {
+      entries.add(new Entry(tzid, tzid, null, kindTzid));
+
+      return this;
+    }
+
+    /**
+     * @param alias the alias id
+     * @param targetIds tzids it refers to
+     * @return this
+     */
+    public Builder addAlias(final String alias,
+                            final List<String> targetIds) {
+      if (targetIds == null) {
+        return this;
+      }
+
+      for (final String tzid: targetIds) {
+        entries.add(new Entry(alias, tzid, null, kindAlias));
+      }
+
+      return this;
+    }
+
+    /**
+     * @param tzid the timezone
+     * @param lang language of the name - may be null
+     * @param name localized name
+     * @return this
+     */
+    public Builder addName(final String tzid,
+                           final String lang,
+                           final String name) {
+      if (name == null) {
+        return this;
+      }
+
+      entries.add(new Entry(name, tzid, lang, kindName));
+
+      return this;
+    }
+
+    /**
+     * @return the index
+     */
+    public TzSearchIndex build() {
+      return new TzSearchIndex(entries);
+    }
+  }
+
+  /** Finds nothing */
+  public static final TzSearchIndex empty = new Builder().build();
+
+  private final Entry[] entries;
+
+  /* Trigram to the entries containing it in ascending order */
+  private final Map<String, int[]> grams;
+
+  private TzSearchIndex(final List<Entry> entries) {
+    this.entries = entries.toArray(new Entry[0]);
+
+    final Map<String, List<Integer>> postings = new HashMap<>();
+    final Set<String> seen = new HashSet<>();
+
+    for (int i = 0; i < this.entries.length; i++) {
+      final String key = this.entries[i].key;
+
+      seen.clear();
+
+      for (int j = 0; j + gramSize <= key.length(); j++) {
+        final String gram = key.substring(j, j + gramSize);
+
+        if (seen.add(gram)) {
+          postings.computeIfAbsent(gram, k -> new ArrayList<>()).add(i);
+        }
+      }
+    }
+
+    grams = new HashMap<>(postings.size() * 2);
+
+    for (final Map.Entry<String, List<Integer>> me: postings.entrySet()) {
+      final List<Integer> l = me.getValue();
+      final int[] p = new int[l.size()];
+
+      for (int i = 0; i < p.length; i++) {
+        p[i] = l.get(i);
+      }
+
+      grams.put(me.getKey(), p);
+    }
+  }
+
+  /**
+   * @return number of names indexed
+   */
+  public int size() {
+    return entries.length;
+  }
+
+  /**
+   * @param val to match anywhere in a name
+   * @param lang if non-null only localized names in this language
+   *             (or a more specific one, so "en" matches "en-US") are
+   *             searched. Tzids and aliases are always searched.
+   * @return matching tzids, best first - never null
+   */
+  public List<String> find(final String val,
+                           final String lang) {
+    if (val == null) {
+      return new ArrayList<>();
+    }
+
+    final String q = normalise(val);
+
+    if (q.length() == 0) {
+      return new ArrayList<>();
+    }
+
+    int[] candidates = null;
+
+    if (q.length() >= gramSize) {
+      for (int i = 0; i + gramSize <= q.length(); i++) {
+        final int[] p = grams.get(q.substring(i, i + gramSize));
+
+        if (p == null) {
+          return new ArrayList<>();
+        }
+
+        if ((candidates == null) || (p.length < candidates.length)) {
+          candidates = p;
+        }
+      }
+    }
+
+    final Map<String, Integer> best = new HashMap<>();
+
+    if (candidates == null) {
+      for (final Entry e: entries) {
+        match(e, q, lang, best);
+      }
+    } else {
+      for (final int i: candidates) {
+        match(entries[i], q, lang, best);
+      }
+    }
+
+    final List<Map.Entry<String, Integer>> res =
+            new ArrayList<>(best.entrySet());
+
+    Collections.sort(res, (a, b) -> {
+      final int cmp = a.getValue().compareTo(b.getValue());
+
+      if (cmp != 0) {
+        return cmp;
+      }
+
+      return a.getKey().compareTo(b.getKey());
+    });
+
+    final List<String> ids = new ArrayList<>(res.size());
+
+    for (final Map.Entry<String, Integer> me: res) {
+      ids.add(me.getKey());
+    }
+
+    return ids;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static void match(final Entry e,
+                            final String q,
+                            final String lang,
+                            final Map<String, Integer> best) {
+    if ((e.kind == kindName) && !langMatches(e.lang, lang)) {
+      return;
+    }
+
+    final int quality = quality(e.key, q);
+
+    if (quality < 0) {
+      return;
+    }
+
+    best.merge(e.tzid, quality * numKinds + e.kind, Math::min);
+  }
+
+  /* 0 whole name, 1 whole word, 2 word prefix, 3 substring, -1 none */
+  private static int quality(final String key,
+                             final String q) {
+    if (key.equals(q)) {
+      return 0;
+    }
+
+    int res = -1;
+    int pos = key.indexOf(q);
+
+    while (pos >= 0) {
+      final int end = pos + q.length();
+      final boolean start = (pos == 0) || isSeparator(key.charAt(pos - 1));
+
+      if (start && ((end == key.length()) ||
+                            isSeparator(key.charAt(end)))) {
+        return 1;
+      }
+
+      final int r = start ? 2 : 3;
+
+      if ((res < 0) || (r < res)) {
+        res = r;
+      }
+
+      pos = key.indexOf(q, pos + 1);
+    }
+
+    return res;
+  }
+
+  private static boolean langMatches(final String entryLang,
+                                     final String lang) {
+    if (lang == null) {
+      return true;
+    }
+
+    if (entryLang == null) {
+      return false;
+    }
+
+    if (entryLang.equalsIgnoreCase(lang)) {
+      return true;
+    }
+
+    return (entryLang.length() > lang.length()) &&
+            (entryLang.charAt(lang.length()) == '-') &&
+            entryLang.regionMatches(true, 0, lang, 0, lang.length());
+  }
+
+  private static boolean isSeparator(final char c) {
+    return (c == '/') || (c == ' ') || (c == '-');
+  }
+
+  private static String normalise(final String val) {
+    return val.trim().toLowerCase(Locale.ROOT).replace('_', ' ');
+  }
+}
@@ -19,7 +19,11 @@
 package org.bedework.timezones.common;
 
 import org.bedework.timezones.common.Differ.DiffListEntry;
+import org.bedework.timezones.common.TzConverter.Disambiguation;
+import org.bedework.timezones.common.db.TzAlias;
 import org.bedework.timezones.common.leveldb.LdbCachedData;
+import org.bedework.timezones.common.tzpack.TzpackCachedData;
+import org.bedework.timezones.common.tzpack.TzpackWriter;
 import org.bedework.util.calendar.XcalUtil;
 import org.bedework.util.jmx.ConfigHolder;
 import org.bedework.util.logging.BwLogger;
@@ -37,18 +41,24 @@ import net.fortuna.ical4j.model.TimeZone;
 import net.fortuna.ical4j.model.UtcOffset;
 import net.fortuna.ical4j.model.component.Observance;
 import net.fortuna.ical4j.model.component.VTimeZone;
-import net.fortuna.ical4j.util.TimeZones;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Objects;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.datatype.DatatypeFactory;
@@ -64,7 +74,7 @@ public class TzServerUtil {
 
   private static String appname = "tzsvr";
 
-  private static TzServerUtil instance;
+  private static volatile TzServerUtil instance;
 
   static ConfigHolder<TzConfigImpl> cfgHolder;
 
@@ -72,22 +82,84 @@ public class TzServerUtil {
 
   private static String prodid = "/bedework.org//NONSGML Bedework//EN";
 
-  /* ======================= Stats ======================= */
-
-  static long gets;
-  static long cacheHits;
-  static long reads;
-  static long nameLists;
-  static long aliasReads;
-  static long conversions;
-  static long conversionsMillis;
-  static long tzfetches;
-  static long reloads;
-  static long reloadsMillis;
-  static long expandFetches;
-  static long expandHits;
-  static long expands;
-  static long expandsMillis;
+  /* Truncation windows built for every timezone as {start, end} */
+  private static final String[][] prebuiltTruncations = {
+          {"19700101T000000Z", null},
+  };
+
+  /* Bytes of digest used in etags */
+  private static final int etagBytes = 16;
+
+  private static volatile String calHdr = makeCalHdr();
+
+  /* ======================= Metrics ======================= */
+
+  static final LongAdder nameLists =
+          TzMetrics.counter("name_lists_total", "Name list requests");
+  static final LongAdder conversions =
+          TzMetrics.counter("conversions_total", "Date-time conversions");
+  static final LatencyHistogram conversionTimes =
+          TzMetrics.timer("conversion_seconds", "Date-time conversion time",
+                          "");
+  static final LongAdder tzfetches =
+          TzMetrics.counter("tz_fetches_total",
+                            "ical4j timezone fetches");
+  static final LongAdder expandFetches =
+          TzMetrics.counter("expand_requests_total", "Expand requests");
+  static final LongAdder expandHits =
+          TzMetrics.counter("expand_hits_total",
+                            "Expand requests answered from the cache");
+  static final LongAdder expands =
+          TzMetrics.counter("expands_total", "Expansions computed");
+  static final LongAdder compiledExpands =
+          TzMetrics.counter("compiled_expands_total",
+                            "Expansions computed from compiled tables");
+  static final LongAdder truncatedFetches =
+          TzMetrics.counter("truncated_requests_total",
+                            "Requests for truncated timezones");
+  static final LongAdder truncates =
+          TzMetrics.counter("truncates_total",
+                            "Truncated timezones built from compiled tables");
+  static final LongAdder truncateFallbacks =
+          TzMetrics.counter("truncate_fallbacks_total",
+                            "Truncations answered with the full timezone");
+  static final LongAdder warmed =
+          TzMetrics.counter("warmup_entries_total",
+                            "Zones and expansions computed by warm-up");
+  static final LatencyHistogram warmupTimes =
+          TzMetrics.timer("warmup_seconds", "Time to warm up new data",
+                          "");
+  static final LongAdder repacks =
+          TzMetrics.counter("tzpack_rewrites_total",
+                            "Tzpack files rewritten after the source changed");
+
+  static {
+    TzMetrics.gauge("timezones", "Timezones in the current data",
+                    () -> currentStat(cd -> cd.getNameList().size()));
+    TzMetrics.gauge("generation", "Generation of the current data",
+                    () -> currentStat(CachedData::getGeneration));
+    TzMetrics.gauge("list_waiters",
+                    "List requests waiting for the data to change",
+                    () -> GenerationMonitor.getWaiters());
+    TzMetrics.gauge("expansion_cache_entries", "Cached expansions",
+                    () -> currentStat(cd -> cd.getExpansions().size()));
+    TzMetrics.gauge("expansion_cache_weight",
+                    "Total weight of cached expansions",
+                    () -> currentStat(cd -> cd.getExpansions().getWeight()));
+    TzMetrics.counter("expansion_cache_hits_total",
+                      "Expansion cache hits",
+                      () -> currentStat(cd -> cd.getExpansions().getHits()));
+    TzMetrics.counter("expansion_cache_misses_total",
+                      "Expansion cache misses",
+                      () -> currentStat(cd -> cd.getExpansions().getMisses()));
+    TzMetrics.counter("expansion_cache_evictions_total",
+                      "Expansion cache evictions",
+                      () -> currentStat(cd -> cd.getExpansions().getEvictions()));
+  }
+
+  private interface CacheStat {
+    long get(CachedData cd) throws TzException;
+  }
 
   /* ======================= Error codes ======================= */
 
@@ -96,7 +168,38 @@ public class TzServerUtil {
 
   /* ======================= Caching ======================= */
 
-  private CachedData cache;
+  /* Never replaced by null once set */
+  private final AtomicReference<CachedData> cache = new AtomicReference<>();
+
+  /* Reloads are done one at a time off the request threads */
+  private static final ExecutorService reloader =
+          Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "TzDataReloader");
+            t.setDaemon(true);
+            return t;
+          });
+
+  /* Warm-ups are run one at a time off the request threads */
+  private static final ExecutorService warmer =
+          Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "TzDataWarmup");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          });
+
+  /* Set up with the first data */
+  private volatile Warmup warmup;
+
+  /* Where the warmup counts are saved */
+  private static final String hotKeysName = "hotkeys.txt";
+
+  /* Watches for changes to the source of a tzpack - started with the
+     first pack */
+  private Thread packRefresher;
+
+  /* Time allowed for a burst of source changes to settle */
+  private static final long repackSettleMillis = 1000;
 
   /** Time we last fetched the data */
   public static long lastDataFetch;
@@ -187,24 +290,30 @@ public class TzServerUtil {
     return String.valueOf(minutes) + ":" + (seconds - minutes * 60);
   }
 
-  /** Cause a refresh of the data
+  /** Cause a refresh of the data. The new data is built in the
+   * background and replaces the current data when complete. Until then
+   * requests continue to be served from the current data.
    *
+   * @param clear remove all stored data first
    * @throws TzException
    */
   public static void fireRefresh(final boolean clear) throws TzException {
     final TzServerUtil tzutil = getInstance();
 
-    if (tzutil.cache != null) {
+    if (tzutil.cache.get() == null) {
+      // Nothing to serve from yet
+      tzutil.getcache();
+      return;
+    }
+
+    reloader.execute(() -> {
       try {
-        tzutil.cache.stop();
+        tzutil.reload(clear);
       } catch (final Throwable t) {
         logger.error(t);
-        logger.error("Error stopping cache");
+        logger.error("Error reloading data");
       }
-
-      tzutil.cache = null;
-    }
-    tzutil.getcache(clear);
+    });
   }
 
   /**
@@ -212,6 +321,7 @@ public class TzServerUtil {
    */
   public static void setProdid(final String val) {
     prodid = val;
+    calHdr = makeCalHdr();
   }
 
   /** Cause data to be checked against primary
@@ -222,6 +332,16 @@ public class TzServerUtil {
     getInstance().getcache().checkData();
   }
 
+  /** Write the current data as a tzpack file.
+   *
+   * @param path of the file
+   * @return number of timezones written
+   * @throws TzException
+   */
+  public static int writeTzpack(final String path) throws TzException {
+    return new TzpackWriter(getInstance().getcache()).write(new File(path));
+  }
+
   /** Compare data pointed to by tzdataUrl with the given data then update.
    *
    * @param tzdataUrl - references source
@@ -330,22 +450,7 @@ public class TzServerUtil {
    * @throws TzException
    */
   public static List<Stat> getStats() throws TzException {
-    List<Stat> stats = new ArrayList<>();
-
-    stats.add(new Stat("Gets", String.valueOf(gets)));
-    stats.add(new Stat("Hits", String.valueOf(cacheHits)));
-    stats.add(new Stat("Name lists", String.valueOf(nameLists)));
-    stats.add(new Stat("Reads", String.valueOf(reads)));
-    stats.add(new Stat("conversions",
-                       String.valueOf(conversions),
-                       String.valueOf(conversionsMillis)));
-    stats.add(new Stat("tzfetches", String.valueOf(tzfetches)));
-    stats.add(new Stat("tzreloads",
-                       String.valueOf(reloads),
-                       String.valueOf(reloadsMillis)));
-    stats.add(new Stat("expands",
-                       String.valueOf(expands),
-                       String.valueOf(expandsMillis)));
+    final List<Stat> stats = TzMetrics.getStats();
 
     if (getInstance().getcache() != null) {
       stats.addAll(getInstance().getcache().getStats());
@@ -354,6 +459,38 @@ public class TzServerUtil {
     return stats;
   }
 
+  /** Resolved once by each backend.
+   *
+   * @param backend name of the backend
+   * @return timer for expansions computed from that backend
+   */
+  public static LatencyHistogram expandTimer(final String backend) {
+    return TzMetrics.timer("expand_seconds", "Time to compute an expansion",
+                           "backend=\"" + backend + "\"");
+  }
+
+  /* Value from the current data or 0 */
+  private static long currentStat(final CacheStat stat) {
+    try {
+      /* Never create the instance just to report on it */
+      final TzServerUtil tzu = instance;
+
+      if (tzu == null) {
+        return 0;
+      }
+
+      final CachedData cd = tzu.cache.get();
+
+      if (cd == null) {
+        return 0;
+      }
+
+      return stat.get(cd);
+    } catch (final Throwable t) {
+      return 0;
+    }
+  }
+
   /* ====================================================================
    *                   Instance methods
    * ==================================================================== */
@@ -363,8 +500,12 @@ public class TzServerUtil {
    * @throws TzException
    */
   public void stop() throws TzException {
-    if (cache != null) {
-      cache.stop();
+    saveHotKeys();
+
+    final CachedData cd = cache.get();
+
+    if (cd != null) {
+      cd.stop();
     }
   }
 
@@ -373,7 +514,12 @@ public class TzServerUtil {
    * @throws TzException
    */
   public String getDtstamp() throws TzException {
-    String dtst = getcache().getDtstamp();
+    return getDtstamp(getcache());
+  }
+
+  /* Dtstamp of the given data */
+  private static String getDtstamp(final CachedData cd) throws TzException {
+    final String dtst = cd.getDtstamp();
     if (dtst != null) {
       return dtst;
     }
@@ -381,12 +527,20 @@ public class TzServerUtil {
     return DateTimeUtil.rfcDateTimeUTC(new DateTime(lastDataFetch));
   }
 
+  /**
+   * @return generation of the current data
+   * @throws TzException
+   */
+  public long getGeneration() throws TzException {
+    return getcache().getGeneration();
+  }
+
   /**
    * @return names from the zip file.
    * @throws TzException
    */
   public SortedSet<String> getNames() throws TzException {
-    nameLists++;
+    nameLists.increment();
 
     return getcache().getNameList();
   }
@@ -417,6 +571,101 @@ public class TzServerUtil {
     return getcache().getAliasedCachedVtz(name);
   }
 
+  /** Normalize a truncation start or end.
+   *
+   * @param val UTC date-time as yyyy-MM-ddTHH:mm:ssZ or yyyyMMddTHHmmssZ
+   * @return value as yyyyMMddTHHmmssZ or null if invalid
+   */
+  public static String truncationPoint(final String val) {
+    if (val == null) {
+      return null;
+    }
+
+    final String ical = val.replace("-", "").replace(":", "");
+
+    if (CompiledTimezone.icalUtcToEpoch(ical) == null) {
+      return null;
+    }
+
+    if (ical.length() == 8) {
+      return ical + "T000000Z";
+    }
+
+    return ical;
+  }
+
+  /** Get the timezone truncated to the range [start, end) as defined by
+   * RFC 7808. Bodies are built from the compiled tables. Those for the
+   * prebuilt windows are kept with the data, others go in a bounded
+   * cache. Where the table can't cover the range the full timezone is
+   * returned.
+   *
+   * @param name tzid or alias
+   * @param start normalized truncation start or null for none
+   * @param end normalized truncation end or null for none
+   * @return complete encoded VCALENDAR or null
+   * @throws TzException
+   */
+  public EncodedBody getTruncatedTzBody(final String name,
+                                        final String start,
+                                        final String end) throws TzException {
+    truncatedFetches.increment();
+
+    /* One key however the caller wrote the points */
+    final String from = truncationPoint(start);
+    final String to = truncationPoint(end);
+
+    if (((start != null) && (from == null)) ||
+            ((end != null) && (to == null))) {
+      throw new TzException("Invalid truncation window " +
+                                    start + "/" + end);
+    }
+
+    return getTruncatedTzBody(getcache(), name, from, to);
+  }
+
+  /**
+   * @param name tzid or alias
+   * @return complete encoded VCALENDAR or null
+   * @throws TzException
+   */
+  public EncodedBody getTzBody(final String name) throws TzException {
+    final CachedData cd = getcache();
+    EncodedBody body = cd.getTzBody(name);
+
+    if (body == null) {
+      body = cd.getAliasedTzBody(name);
+    }
+
+    if (body != null) {
+      zoneRequested(name);
+    }
+
+    return body;
+  }
+
+  /** Check a tzid or alias without fetching or building a body and
+   * without counting it as a request for the timezone.
+   *
+   * @param name tzid or alias
+   * @return true if we have a timezone for the name
+   * @throws TzException
+   */
+  public boolean exists(final String name) throws TzException {
+    final CachedData cd = getcache();
+    final SortedSet<String> names = cd.getNameList();
+
+    if (names.contains(name)) {
+      return true;
+    }
+
+    final TzAlias alias = cd.fromAlias(name);
+
+    return (alias != null) && (alias.getTargetIds() != null) &&
+            !alias.getTargetIds().isEmpty() &&
+            names.contains(alias.getTargetIds().get(0));
+  }
+
   /**
    * @return String value of aliases file.
    * @throws TzException
@@ -442,49 +691,48 @@ public class TzServerUtil {
    */
   public String getUtc(final String time,
                        final String tzid) throws Throwable {
-    if (DateTimeUtil.isISODateTimeUTC(time)) {
+    return getUtc(time, tzid, Disambiguation.compatible);
+  }
+
+  /** Convert a local time in the given timezone to UTC.
+   *
+   * @param time yyyyMMddTHHmmss or already UTC
+   * @param tzid of the local time
+   * @param disambiguation for times in a gap or overlap
+   * @return String utc date or null for a bad time, unknown tzid or
+   *          rejected ambiguous time
+   * @throws TzException on error
+   */
+  public String getUtc(final String time,
+                       final String tzid,
+                       final Disambiguation disambiguation) throws TzException {
+    if (TzConverter.isUtc(time)) {
       // Already UTC
       return time;
     }
 
-    if (!DateTimeUtil.isISODateTime(time)) {
+    final long local = TzConverter.parse(time);
+    if (local == TzConverter.invalid) {
       return null;  // Bad datetime
     }
 
-    conversions++;
-    long smillis = System.currentTimeMillis();
-
-    TimeZone tz = fetchTimeZone(tzid);
-
-    DateFormat formatTd  = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-    formatTd.setTimeZone(tz);
+    conversions.increment();
+    final long start = System.nanoTime();
 
-    Date date = formatTd.parse(time);
-    String utc;
-
-    synchronized (cal) {
-      cal.clear();
-      cal.setTime(date);
+    final TzConverter.OffsetSource src = getOffsetSource(getcache(), tzid);
+    if (src == null) {
+      return null;
+    }
 
-      //formatTd.setTimeZone(utctz);
-      //debug("formatTd with utc: " + formatTd.format(date));
+    final long utc = TzConverter.toUtc(src, local, disambiguation);
 
-      StringBuilder sb = new StringBuilder();
-      digit4(sb, cal.get(Calendar.YEAR));
-      digit2(sb, cal.get(Calendar.MONTH) + 1); // Month starts at 0
-      digit2(sb, cal.get(Calendar.DAY_OF_MONTH));
-      sb.append('T');
-      digit2(sb, cal.get(Calendar.HOUR_OF_DAY));
-      digit2(sb, cal.get(Calendar.MINUTE));
-      digit2(sb, cal.get(Calendar.SECOND));
-      sb.append('Z');
+    conversionTimes.recordSince(start);
 
-      utc = sb.toString();
+    if (utc == TzConverter.invalid) {
+      return null;
     }
 
-    conversionsMillis += System.currentTimeMillis() - smillis;
-
-    return utc;
+    return TzConverter.formatUtc(utc);
   }
 
   /** Convert from local time in fromTzid to local time in toTzid. If dateTime is
@@ -498,37 +746,114 @@ public class TzServerUtil {
    */
   public String convertDateTime(final String dateTime, final String fromTzid,
                                 final String toTzid) throws Throwable {
-    String UTCdt = null;
-    if (DateTimeUtil.isISODateTimeUTC(dateTime)) {
-      // Already UTC
-      UTCdt = dateTime;
-    } else if (!DateTimeUtil.isISODateTime(dateTime)) {
-      return null;  // Bad datetime
-    } else if (toTzid == null) {
+    return convertDateTime(dateTime, fromTzid, toTzid,
+                           Disambiguation.compatible);
+  }
+
+  /** Convert from local time in fromTzid to local time in toTzid. If
+   * dateTime is already an iso utc date time fromTzid may be null.
+   *
+   * @param dateTime yyyyMMddTHHmmss or UTC
+   * @param fromTzid timezone of dateTime
+   * @param toTzid timezone we want
+   * @param disambiguation for times in a gap or overlap
+   * @return String time in given timezone or null
+   * @throws TzException on error
+   */
+  public String convertDateTime(final String dateTime,
+                                final String fromTzid,
+                                final String toTzid,
+                                final Disambiguation disambiguation) throws TzException {
+    if (toTzid == null) {
       return null;  // Bad toTzid
-    } else {
-      UTCdt = getUtc(dateTime, fromTzid);
-      conversions--; // avoid double inc
     }
 
-    conversions++;
-    final long smillis = System.currentTimeMillis();
+    final long dt = TzConverter.parse(dateTime);
+    if (dt == TzConverter.invalid) {
+      return null;  // Bad datetime
+    }
+
+    conversions.increment();
+    final long start = System.nanoTime();
 
-    // Convert to time in toTzid
+    /* Use the same data throughout */
+    final CachedData cd = getcache();
 
-    final Date dt = DateTimeUtil.fromISODateTimeUTC(UTCdt);
+    final long utc;
 
-    final TimeZone tz = fetchTimeZone(toTzid);
-    if (tz == null) {
+    if (TzConverter.isUtc(dateTime)) {
+      utc = dt;
+    } else {
+      final TzConverter.OffsetSource from = getOffsetSource(cd, fromTzid);
+      if (from == null) {
+        return null;
+      }
+
+      utc = TzConverter.toUtc(from, dt, disambiguation);
+      if (utc == TzConverter.invalid) {
+        return null;
+      }
+    }
+
+    final TzConverter.OffsetSource to = getOffsetSource(cd, toTzid);
+    if (to == null) {
       return null;
     }
 
-    final String cdt = DateTimeUtil.isoDateTime(dt, tz);
-    conversionsMillis += System.currentTimeMillis() - smillis;
+    final String cdt = TzConverter.formatLocal(TzConverter.toLocal(to, utc));
+    conversionTimes.recordSince(start);
 
     return cdt;
   }
 
+  /* Offsets for the timezone or alias. Use the compiled table where
+   * we can, otherwise the ical4j timezone.
+   */
+  private TzConverter.OffsetSource getOffsetSource(final CachedData cd,
+                                                   final String tzid) throws TzException {
+    if (tzid == null) {
+      return null;
+    }
+
+    String id = tzid;
+    CompiledTimezone ctz = cd.getCompiledTimezone(id);
+
+    if (ctz == null) {
+      final TzAlias alias = cd.fromAlias(tzid);
+
+      if ((alias == null) || (alias.getTargetIds() == null) ||
+              alias.getTargetIds().isEmpty()) {
+        return null;
+      }
+
+      id = alias.getTargetIds().get(0);
+      ctz = cd.getCompiledTimezone(id);
+    }
+
+    if ((ctz != null) && ctz.getExtrapolatable()) {
+      return ctz;
+    }
+
+    final TimeZone tz = cd.getTimeZone(id);
+    if (tz == null) {
+      return ctz;
+    }
+
+    if (ctz == null) {
+      return utc -> tz.getOffset(utc * 1000) / 1000;
+    }
+
+    /* Table up to the horizon then ical4j */
+    final CompiledTimezone table = ctz;
+    return utc -> {
+      if (utc < CompiledTimezone.horizon) {
+        return table.getOffset(utc);
+      }
+
+      return tz.getOffset(utc * 1000) / 1000;
+    };
+  }
+
   /**
    * @param tzids - to fetch
    * @return list of summary info
@@ -556,6 +881,17 @@ public class TzServerUtil {
     return getcache().findTimezones(name);
   }
 
+  /**
+   * @param name - non null name for partial match
+   * @param lang - null or language for localized names
+   * @return list of summary info, best match first
+   * @throws TzException
+   */
+  public List<TimezoneType> findTimezones(final String name,
+                                          final String lang) throws TzException {
+    return getcache().findTimezones(name, lang);
+  }
+
   private static class ObservanceWrapper implements Comparable<ObservanceWrapper> {
     ObservanceType ot;
 
@@ -580,8 +916,126 @@ public class TzServerUtil {
                                       final String start,
                                       final String end,
                                       final boolean oldForm) throws Throwable {
-    expandFetches++;
+    expandFetches.increment();
+
+    final ExpandedMapEntry tzs =
+            getExpanded(getcache(), tzid, start, end, oldForm);
+
+    final Warmup wu = warmup;
+    if ((tzs != null) && (wu != null)) {
+      wu.expansionRequested(
+              new Warmup.ExpandRequest(tzid, start, end, oldForm));
+    }
+
+    return tzs;
+  }
+
+  /* Truncation from the given data */
+  private EncodedBody getTruncatedTzBody(final CachedData cd,
+                                         final String name,
+                                         final String start,
+                                         final String end) throws TzException {
+    final long generation = cd.getGeneration();
+
+    EncodedBody body = cd.getTruncatedTzBody(name, start, end);
+    if (body != null) {
+      return body;
+    }
+
+    final boolean keep = isPrebuilt(start, end);
+
+    EncodedBody full = cd.getTzBody(name);
+    String target = name;
+    List<String> aliasOf = null;
+
+    if (full == null) {
+      full = cd.getAliasedTzBody(name);
+
+      if (full == null) {
+        return null;
+      }
+
+      target = null;
+      final TzAlias alias = cd.fromAlias(name);
+
+      if ((alias != null) && (alias.getTargetIds() != null)) {
+        /* As in the full aliased body */
+        aliasOf = alias.getTargetIds();
+
+        for (final String id: alias.getTargetIds()) {
+          if (cd.getTzBody(id) != null) {
+            target = id;
+            break;
+          }
+        }
+      }
+    }
+
+    final CompiledTimezone ctz;
+    if (target == null) {
+      ctz = null;
+    } else {
+      ctz = cd.getCompiledTimezone(target);
+    }
+
+    String vtz = null;
+
+    if (ctz != null) {
+      final long from;
+      if (start == null) {
+        from = Long.MIN_VALUE;
+      } else {
+        from = CompiledTimezone.icalUtcToEpoch(start);
+      }
+
+      final long to;
+      if (end == null) {
+        to = Long.MAX_VALUE;
+      } else {
+        to = CompiledTimezone.icalUtcToEpoch(end);
+      }
+
+      vtz = ctz.truncate(name, aliasOf, from, to);
+    }
+
+    if (vtz == null) {
+      // The full data is still correct within the window
+      truncateFallbacks.increment();
+
+      if (!keep) {
+        // Nothing gained by caching it again
+        return full;
+      }
+
+      body = full;
+    } else {
+      truncates.increment();
+
+      /* Depends only on the data - same on every server */
+      final String etag = "\"" + digest(full.getEtag(),
+                                        "truncated",
+                                        String.valueOf(start),
+                                        String.valueOf(end)) + "\"";
+
+      body = new EncodedBody(getCalHdr() + vtz + getCalTlr(),
+                             "text/calendar; charset=UTF-8",
+                             etag,
+                             full.getLastModified());
+    }
 
+    if (cd.getGeneration() == generation) {
+      cd.setTruncatedTzBody(name, start, end, body, keep);
+    }
+
+    return body;
+  }
+
+  /* Expansion from the given data */
+  private ExpandedMapEntry getExpanded(final CachedData cd,
+                                       final String tzid,
+                                       final String start,
+                                       final String end,
+                                       final boolean oldForm) throws Throwable {
     final ExpandedMapEntryKey emek;
     if (oldForm) {
       emek = makeExpandedKey(tzid, start, end);
@@ -591,79 +1045,176 @@ public class TzServerUtil {
                                      XcalUtil.getIcalFormatDateTime(end));
     }
 
-    ExpandedMapEntry tzs = getcache().getExpanded(emek);
+    /* Use the same data throughout */
+    final long generation = cd.getGeneration();
+
+    ExpandedMapEntry tzs = cd.getExpanded(emek);
     if (tzs != null) {
-      expandHits++;
+      expandHits.increment();
       return tzs;
     }
 
-    final long smillis = System.currentTimeMillis();
+    final long expandStart = System.nanoTime();
 
-    final TimeZone tz = fetchTimeZone(tzid);
-    if (tz == null) {
+    final EncodedBody zone = cd.getTzBody(tzid);
+    if (zone == null) {
       return null;
     }
 
-    final VTimeZone vtz = tz.getVTimeZone();
+    final List<ObservanceType> obs = expand(cd, emek);
+    if (obs == null) {
+      return null;
+    }
+
+    final ExpandedTimezoneType etzt = new ExpandedTimezoneType();
+
+    etzt.setDtstamp(getDtstamp(cd));
+    if (!oldForm) {
+      etzt.setTzid(tzid);
+    }
+
+    if (!obs.isEmpty()) {
+      etzt.setObservances(obs);
+    }
 
-    final DateTime dtstart = new DateTime(emek.getStart());
-    final DateTime dtend = new DateTime(emek.getEnd());
+    /* Depends only on the data - same on every server */
+    final String etag = "\"" + digest(zone.getEtag(),
+                                      etzt.getDtstamp(),
+                                      tzid,
+                                      emek.getStart(),
+                                      emek.getEnd(),
+                                      String.valueOf(oldForm)) + "\"";
 
-    dtstart.setTimeZone(tz);
-    dtend.setTimeZone(tz);
+    tzs = new ExpandedMapEntry(etag, etzt, zone.getLastModified());
 
-    final Period p = new Period(dtstart, dtend);
+    if (cd.getGeneration() == generation) {
+      // Data didn't change under us
+      cd.setExpanded(emek, tzs);
+    }
+
+    cd.getExpandTimer().recordSince(expandStart);
+    expands.increment();
+
+    return tzs;
+  }
 
-    final ComponentList cl = vtz.getObservances();
+  /* Expand from the compiled transition table if it covers the range,
+   * otherwise fall back to ical4j.
+   */
+  private List<ObservanceType> expand(final CachedData cd,
+                                      final ExpandedMapEntryKey emek) throws TzException {
+    final Long startSecs = CompiledTimezone.icalUtcToEpoch(emek.getStart());
+    final Long endSecs = CompiledTimezone.icalUtcToEpoch(emek.getEnd());
 
-    final TreeSet<ObservanceWrapper> obws = new TreeSet<>();
+    if ((startSecs == null) || (endSecs == null)) {
+      return expandIcal(cd, emek);
+    }
 
-    for (final Object o: cl) {
-      final Observance ob = (Observance)o;
+    final CompiledTimezone ctz = cd.getCompiledTimezone(emek.getTzid());
 
-      final PeriodList pl = ob.calculateRecurrenceSet(p);
+    if ((ctz == null) || !ctz.covers(endSecs)) {
+      return expandIcal(cd, emek);
+    }
 
-      for (final Object po: pl) {
-        final Period onsetPer = (Period)po;
+    compiledExpands.increment();
 
-        final ObservanceType ot = new ObservanceType();
+    final List<ObservanceType> obs = ctz.expand(startSecs, endSecs);
 
-        ot.setName(ob.getName());
-        ot.setOnset(XcalUtil.getXmlFormatDateTime(
-                onsetPer.getStart().toString()));
+    if (logger.isDebugEnabled()) {
+      verifyExpansion(cd, emek, obs);
+    }
 
-        ot.setUtcOffsetFrom(
-                (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000));
+    return obs;
+  }
 
-        ot.setUtcOffsetTo(
-                (int)(ob.getOffsetTo().getOffset().getOffset() / 1000));
+  /* Compare a compiled expansion with the ical4j result */
+  private void verifyExpansion(final CachedData cd,
+                               final ExpandedMapEntryKey emek,
+                               final List<ObservanceType> obs) throws TzException {
+    final List<ObservanceType> icalObs = expandIcal(cd, emek);
 
-        obws.add(new ObservanceWrapper(ot));
-      }
+    if (icalObs == null) {
+      return;
     }
 
-    final ExpandedTimezoneType etzt = new ExpandedTimezoneType();
+    boolean ok = icalObs.size() == obs.size();
 
-    etzt.setDtstamp(getDtstamp());
-    if (!oldForm) {
-      etzt.setTzid(tzid);
+    for (int i = 0; ok && (i < obs.size()); i++) {
+      final ObservanceType a = obs.get(i);
+      final ObservanceType b = icalObs.get(i);
+
+      ok = a.getOnset().equals(b.getOnset()) &&
+              (a.getUtcOffsetFrom() == b.getUtcOffsetFrom()) &&
+              (a.getUtcOffsetTo() == b.getUtcOffsetTo());
     }
 
-    for (final ObservanceWrapper ow: obws) {
-      if (etzt.getObservances() == null) {
-        etzt.setObservances(new ArrayList<ObservanceType>());
-      }
-      etzt.getObservances().add(ow.ot);
+    if (!ok) {
+      logger.warn("Compiled expansion differs from ical4j for " +
+                          emek.getTzid() + " " + emek.getStart() +
+                          " - " + emek.getEnd());
     }
+  }
 
-    tzs = new ExpandedMapEntry(String.valueOf(smillis), etzt);
+  private List<ObservanceType> expandIcal(final CachedData cd,
+                                          final ExpandedMapEntryKey emek) throws TzException {
+    try {
+      tzfetches.increment();
 
-    getcache().setExpanded(emek, tzs);
+      final TimeZone tz = cd.getTimeZone(emek.getTzid());
+      if (tz == null) {
+        return null;
+      }
 
-    expandsMillis += System.currentTimeMillis() - smillis;
-    expands++;
+      final VTimeZone vtz = tz.getVTimeZone();
 
-    return tzs;
+      final DateTime dtstart = new DateTime(emek.getStart());
+      final DateTime dtend = new DateTime(emek.getEnd());
+
+      dtstart.setTimeZone(tz);
+      dtend.setTimeZone(tz);
+
+      final Period p = new Period(dtstart, dtend);
+
+      final ComponentList cl = vtz.getObservances();
+
+      final TreeSet<ObservanceWrapper> obws = new TreeSet<>();
+
+      for (final Object o: cl) {
+        final Observance ob = (Observance)o;
+
+        final PeriodList pl = ob.calculateRecurrenceSet(p);
+
+        for (final Object po: pl) {
+          final Period onsetPer = (Period)po;
+
+          final ObservanceType ot = new ObservanceType();
+
+          ot.setName(ob.getName());
+          ot.setOnset(XcalUtil.getXmlFormatDateTime(
+                  onsetPer.getStart().toString()));
+
+          ot.setUtcOffsetFrom(
+                  (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000));
+
+          ot.setUtcOffsetTo(
+                  (int)(ob.getOffsetTo().getOffset().getOffset() / 1000));
+
+          obws.add(new ObservanceWrapper(ot));
+        }
+      }
+
+      final List<ObservanceType> obs = new ArrayList<>(obws.size());
+
+      for (final ObservanceWrapper ow: obws) {
+        obs.add(ow.ot);
+      }
+
+      return obs;
+    } catch (final TzException tze) {
+      throw tze;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
   }
 
   private String delimited(final UtcOffset val) {
@@ -698,9 +1249,15 @@ public class TzServerUtil {
    * @throws TzException
    */
   public TimeZone fetchTimeZone(final String tzid) throws TzException {
-    tzfetches++;
+    tzfetches.increment();
+
+    final TimeZone tz = getcache().getTimeZone(tzid);
 
-    return getcache().getTimeZone(tzid);
+    if (tz != null) {
+      zoneRequested(tzid);
+    }
+
+    return tz;
   }
 
   /* ====================================================================
@@ -711,10 +1268,7 @@ public class TzServerUtil {
    * @return an ical Calendar prefix
    */
   public static String getCalHdr() {
-    return "BEGIN:VCALENDAR\n" +
-           "VERSION:2.0\n" +
-           "CALSCALE:GREGORIAN\n" +
-           "PRODID:" + prodid + "\n";
+    return calHdr;
   }
 
   /**
@@ -724,6 +1278,63 @@ public class TzServerUtil {
     return "END:VCALENDAR\n";
   }
 
+  /** Digest the values for use as an etag. The result is the same on
+   * every server given the same values.
+   *
+   * @param vals to digest - nulls allowed
+   * @return hex digest
+   */
+  public static String digest(final String... vals) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+      for (final String val: vals) {
+        if (val != null) {
+          md.update(val.getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte)0);
+      }
+
+      return hex(md.digest());
+    } catch (final NoSuchAlgorithmException nsae) {
+      // Required in every jvm
+      throw new RuntimeException(nsae);
+    }
+  }
+
+  /** The same as {@link #digest(String...)} for one value held as
+   * UTF-8 in pieces - so a large value need not be put together.
+   *
+   * @param parts of the UTF-8 encoded value in order
+   * @return hex digest
+   */
+  public static String digestParts(final ByteBuffer... parts) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+      for (final ByteBuffer part: parts) {
+        md.update(part);
+      }
+      md.update((byte)0);
+
+      return hex(md.digest());
+    } catch (final NoSuchAlgorithmException nsae) {
+      // Required in every jvm
+      throw new RuntimeException(nsae);
+    }
+  }
+
+  private static String hex(final byte[] d) {
+    final StringBuilder sb = new StringBuilder(etagBytes * 2);
+
+    for (int i = 0; i < etagBytes; i++) {
+      sb.append(Character.forDigit((d[i] >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(d[i] & 0xF, 16));
+    }
+
+    return sb.toString();
+  }
+
   /**
    * @return an etag based on when we refreshed data
    * @throws TzException
@@ -742,6 +1353,13 @@ public class TzServerUtil {
    *                   Private methods
    * ==================================================================== */
 
+  private static String makeCalHdr() {
+    return "BEGIN:VCALENDAR\n" +
+           "VERSION:2.0\n" +
+           "CALSCALE:GREGORIAN\n" +
+           "PRODID:" + prodid + "\n";
+  }
+
   private ExpandedMapEntryKey makeExpandedKey(final String tzid,
                                               final String start,
                                               final String end) throws TzException {
@@ -798,66 +1416,443 @@ public class TzServerUtil {
   }
 
   private CachedData getcache() throws TzException {
-    if (cache == null) {
-      getcache(false);
+    final CachedData cd = cache.get();
+
+    if (cd != null) {
+      return cd;
+    }
+
+    synchronized (locker) {
+      if (cache.get() == null) {
+        if (warmup == null) {
+          warmup = makeWarmup();
+        }
+
+        final CachedData newCache = makeCache(false);
+
+        if (newCache != null) {
+          cache.set(newCache);
+          scheduleWarmup(newCache);
+        }
+      }
+    }
+
+    return cache.get();
+  }
+
+  /* Build a complete new cache then swap it in and stop the old one.
+   * The old one keeps serving while the new one loads but its updates
+   * are paused so it can't write the store under the new one.
+   */
+  private void reload(final boolean clear) throws TzException {
+    final CachedData current = cache.get();
+
+    if (current != null) {
+      current.pauseUpdates();
+    }
+
+    CachedData newCache = null;
+
+    try {
+      newCache = makeCache(clear);
+    } finally {
+      if (newCache == null) {
+        resumeUpdates(current);
+      }
+    }
+
+    if (newCache == null) {
+      logger.error("Reload failed - continuing with current data");
+      return;
+    }
+
+    final CachedData oldCache = cache.getAndSet(newCache);
+
+    GenerationMonitor.changed();
+    scheduleWarmup(newCache);
+
+    if (oldCache == null) {
+      return;
+    }
+
+    try {
+      oldCache.stop();
+    } catch (final Throwable t) {
+      logger.error(t);
+      logger.error("Error stopping cache");
     }
+  }
+
+  /* ====================================================================
+   *                   Warm-up
+   * ==================================================================== */
 
-    return cache;
+  private void zoneRequested(final String name) {
+    final Warmup wu = warmup;
+
+    if (wu != null) {
+      wu.zoneRequested(name);
+    }
   }
 
-  private void getcache(final boolean clear) throws TzException {
+  /* Tracks requests from the start. Counts saved by the last run are
+   * added in so we warm the first data with them.
+   */
+  private Warmup makeWarmup() {
     final TzConfig cfg = getTzConfig();
+    final Warmup wu = new Warmup((cfg == null) ? 0 : cfg.getWarmupKeys());
+
+    final File f = hotKeysFile(cfg);
+    if (f != null) {
+      final int ct = wu.load(f);
+
+      if (ct > 0) {
+        logger.info("Read " + ct + " hot keys from " + f);
+      }
+    }
 
+    return wu;
+  }
+
+  /* Kept with the leveldb data if we have any, otherwise next to the
+   * tzpack. Only absolute paths are used - with neither the counts
+   * aren't kept over a restart.
+   */
+  static File hotKeysFile(final TzConfig cfg) {
     if (cfg == null) {
-      logger.error("No config data");
+      return null;
+    }
+
+    if (cfg.getLeveldbPath() != null) {
+      final File dir = new File(cfg.getLeveldbPath());
+
+      if (dir.isAbsolute()) {
+        return new File(dir, hotKeysName);
+      }
+    }
+
+    if (cfg.getTzpackPath() != null) {
+      final File dir = new File(cfg.getTzpackPath()).getParentFile();
+
+      if ((dir != null) && dir.isAbsolute()) {
+        return new File(dir, hotKeysName);
+      }
+    }
+
+    return null;
+  }
+
+  private void saveHotKeys() {
+    final Warmup wu = warmup;
+
+    if ((wu == null) || !wu.enabled()) {
+      return;
+    }
+
+    final File f = hotKeysFile(getTzConfig());
+    if (f == null) {
       return;
     }
 
     try {
-      cache = new LdbCachedData(cfg, clear);
-    } catch (final TzException te) {
-      logger.error(te);
-      cache = null;
+      final int ct = wu.save(f);
+      logger.info("Saved " + ct + " hot keys to " + f);
+    } catch (final Throwable t) {
+      logger.warn("Unable to save hot keys to " + f + ": " +
+                          t.getMessage());
     }
+  }
+
+  /* Build the common truncations and compute the most requested zones
+   * and expansions for the new data in the background. Requests are
+   * served meanwhile - a request for something not yet warmed just
+   * computes it. We give up if the data is replaced again.
+   */
+  private void scheduleWarmup(final CachedData cd) {
+    final Warmup wu = warmup;
 
-    if (cache == null) {
-      cache = getDataSource(cfg);
+    warmer.execute(() -> {
+      if (cache.get() != cd) {
+        return;
+      }
+
+      final long start = System.nanoTime();
+
+      int ct = prebuildTruncations(cd);
+
+      if ((wu == null) || !wu.enabled()) {
+        warmupTimes.recordSince(start);
+        return;
+      }
+
+      ct += wu.warm(new Warmup.Warmer() {
+        @Override
+        public boolean zone(final String name) throws Throwable {
+          if (cache.get() != cd) {
+            return false;
+          }
+
+          if (cd.getTzBody(name) != null) {
+            cd.getTimeZone(name);
+          } else {
+            cd.getAliasedTzBody(name);
+          }
+
+          warmed.increment();
+          return true;
+        }
+
+        @Override
+        public boolean expansion(final Warmup.ExpandRequest req)
+                throws Throwable {
+          if (cache.get() != cd) {
+            return false;
+          }
+
+          getExpanded(cd, req.tzid, req.start, req.end, req.oldForm);
+
+          warmed.increment();
+          return true;
+        }
+      });
+
+      warmupTimes.recordSince(start);
+
+      logger.info("Warmed " + ct + " entries in " +
+                          ((System.nanoTime() - start) / 1000000) + " ms");
+    });
+  }
+
+  /* Truncations for every timezone in the common windows */
+  private static boolean isPrebuilt(final String start,
+                                    final String end) {
+    for (final String[] w: prebuiltTruncations) {
+      if (Objects.equals(w[0], start) && Objects.equals(w[1], end)) {
+        return true;
+      }
     }
+
+    return false;
   }
 
-  private static final Calendar cal = Calendar.getInstance();
-  private static final java.util.TimeZone utctz;
+  private int prebuildTruncations(final CachedData cd) {
+    int ct = 0;
 
-  static {
     try {
-      utctz = TimeZone.getTimeZone(TimeZones.UTC_ID);
+      for (final String tzid: cd.getNameList()) {
+        for (final String[] w: prebuiltTruncations) {
+          if (cache.get() != cd) {
+            return ct;
+          }
+
+          getTruncatedTzBody(cd, tzid, w[0], w[1]);
+          ct++;
+        }
+      }
     } catch (final Throwable t) {
-      throw new RuntimeException("Unable to initialise UTC timezone");
+      logger.warn("Unable to prebuild truncations: " + t.getMessage());
     }
-    cal.setTimeZone(utctz);
+
+    return ct;
   }
 
-  private static void digit2(final StringBuilder sb, final int val) throws Throwable {
-    if (val > 99) {
-      throw new Exception("Bad date");
+  private static void resumeUpdates(final CachedData cd) {
+    if (cd == null) {
+      return;
     }
-    if (val < 10) {
-      sb.append("0");
+
+    try {
+      cd.resumeUpdates();
+    } catch (final Throwable t) {
+      logger.error(t);
+      logger.error("Error resuming updates");
     }
-    sb.append(val);
   }
 
-  private static void digit4(final StringBuilder sb, final int val) throws Throwable {
-    if (val > 9999) {
-      throw new Exception("Bad date");
+  private CachedData makeCache(final boolean clear) throws TzException {
+    final TzConfig cfg = getTzConfig();
+
+    if (cfg == null) {
+      logger.error("No config data");
+      return null;
     }
-    if (val < 10) {
-      sb.append("000");
-    } else if (val < 100) {
-      sb.append("00");
-    } else if (val < 1000) {
-      sb.append("0");
+
+    if (cfg.getTzpackPath() != null) {
+      final CachedData cd = makePackCache(cfg, clear);
+
+      if (cd != null) {
+        return cd;
+      }
+
+      logger.warn("Unable to use tzpack - continuing without it");
     }
-    sb.append(val);
+
+    return makeSourceCache(cfg, clear);
+  }
+
+  /* Serve from the tzpack, building it from the other data first if it's
+   * missing or this is a full refresh.
+   */
+  private CachedData makePackCache(final TzConfig cfg,
+                                   final boolean clear) {
+    final File f = new File(cfg.getTzpackPath());
+
+    try {
+      final TzpackCachedData pack;
+
+      if (clear || !f.exists()) {
+        final CachedData src = makeSourceCache(cfg, clear);
+
+        if (src == null) {
+          return null;
+        }
+
+        try {
+          final long gen = src.getGeneration();
+
+          new TzpackWriter(src).write(f);
+          pack = new TzpackCachedData(cfg, src, gen);
+        } catch (final TzException te) {
+          src.stop();
+          throw te;
+        }
+      } else {
+        // Serve at once - the source is loaded in the background
+        pack = new TzpackCachedData(cfg, null, -1);
+        reloader.execute(() -> attachPackSource(cfg, pack));
+      }
+
+      startPackRefresher();
+
+      return pack;
+    } catch (final TzException te) {
+      logger.error(te);
+      return null;
+    }
+  }
+
+  /* Load the source behind a pack opened from an existing file and
+   * rewrite the pack if the source has moved on.
+   */
+  private void attachPackSource(final TzConfig cfg,
+                                final TzpackCachedData pack) {
+    try {
+      final CachedData src = makeSourceCache(cfg, false);
+
+      if (src == null) {
+        logger.warn("No source for tzpack - it will not be updated");
+        return;
+      }
+
+      if (!pack.attachSource(src)) {
+        // Replaced while we loaded
+        src.stop();
+        return;
+      }
+
+      repack();
+    } catch (final Throwable t) {
+      logger.error(t);
+      logger.error("Unable to load the source for the tzpack");
+    }
+  }
+
+  private synchronized void startPackRefresher() {
+    if (packRefresher != null) {
+      return;
+    }
+
+    packRefresher = new Thread(() -> {
+      while (true) {
+        try {
+          final long seen = GenerationMonitor.current();
+          final CachedData cd = cache.get();
+
+          if ((cd instanceof TzpackCachedData) &&
+                  ((TzpackCachedData)cd).isStale()) {
+            // Serialised with reloads
+            reloader.submit(this::repack).get();
+          }
+
+          GenerationMonitor.await(seen, 60 * 1000);
+          Thread.sleep(repackSettleMillis);
+        } catch (final InterruptedException ie) {
+          return;
+        } catch (final Throwable t) {
+          logger.error(t);
+        }
+      }
+    }, "TzpackRefresher");
+
+    packRefresher.setDaemon(true);
+    packRefresher.start();
+  }
+
+  /* Rewrite the pack from its source if that has changed and serve a
+   * new mapping of it. Only run on the reloader.
+   */
+  private void repack() {
+    final CachedData cd = cache.get();
+
+    if (!(cd instanceof TzpackCachedData)) {
+      return;
+    }
+
+    final TzpackCachedData pack = (TzpackCachedData)cd;
+
+    if (!pack.isStale()) {
+      return;
+    }
+
+    final CachedData src = pack.getSourceData();
+    final TzConfig cfg = getTzConfig();
+
+    try {
+      final long gen = src.getGeneration();
+
+      new TzpackWriter(src).write(new File(cfg.getTzpackPath()));
+
+      final TzpackCachedData newPack = new TzpackCachedData(cfg, src, gen);
+
+      if (!cache.compareAndSet(pack, newPack)) {
+        return;
+      }
+
+      pack.detachSource();
+      repacks.increment();
+
+      logger.info("Rewrote tzpack for data " + newPack.getDtstamp());
+
+      GenerationMonitor.changed();
+      scheduleWarmup(newPack);
+
+      pack.stop();
+    } catch (final Throwable t) {
+      logger.error(t);
+      logger.error("Unable to rewrite the tzpack - serving the old one");
+    }
+  }
+
+  private CachedData makeSourceCache(final TzConfig cfg,
+                                     final boolean clear) throws TzException {
+    try {
+      return new LdbCachedData(cfg, clear);
+    } catch (final TzException te) {
+      logger.error(te);
+    }
+
+    final CachedData cd = getDataSource(cfg);
+
+    if (cd instanceof FileCachedData) {
+      // We serve from it so apply changes as they arrive
+      try {
+        ((FileCachedData)cd).startWatching();
+      } catch (final TzException te) {
+        logger.warn("Unable to watch " + cfg.getTzdataUrl() +
+                            ": " + te.getMessage());
+      }
+    }
+
+    return cd;
   }
 }
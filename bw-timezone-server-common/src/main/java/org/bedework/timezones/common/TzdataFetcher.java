@@ -0,0 +1,356 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/** Fetch the tzdata zip and hand each entry to a handler as it is
+ * read - nothing is written to disk.
+ *
+ * <p>Remote data is fetched conditionally using the validators from
+ * the last successful load, local data is skipped if its size and
+ * modification time are unchanged. If a digest url is configured the
+ * SHA-256 of the zip must match the published value.</p>
+ *
+ * <p>The validators only move forward when the caller says the data
+ * was used, so a failed load is retried in full next time.</p>
+ *
+ * @author douglm
+ */
+class TzdataFetcher implements Logged {
+  /** Called for each file in the zip, in zip order */
+  interface EntryHandler {
+    /**
+     * @param name of the entry
+     * @param content UTF-8 decoded
+     * @throws Throwable on error
+     */
+    void entry(String name, String content) throws Throwable;
+  }
+
+  private static final int connectTimeout = 10 * 1000;
+  private static final int readTimeout = 60 * 1000;
+  private static final int bufferSize = 64 * 1024;
+
+  private final String dataUrl;
+  private final String digestUrl;
+
+  /* From the last load we used */
+  private String etag;
+  private String lastModified;
+  private long fileModified = -1;
+  private long fileLength = -1;
+
+  /* From the fetch in progress */
+  private String newEtag;
+  private String newLastModified;
+  private long newFileModified = -1;
+  private long newFileLength = -1;
+
+  private long notModified;
+
+  /**
+   * @param dataUrl http(s) url or path of the zip
+   * @param digestUrl http(s) url or path of the digest - null for none
+   */
+  TzdataFetcher(final String dataUrl,
+                final String digestUrl) {
+    this.dataUrl = dataUrl;
+    this.digestUrl = digestUrl;
+  }
+
+  /** Fetch the data unless it's unchanged since the last call to
+   * {@link #used()}.
+   *
+   * @param handler gets each entry
+   * @return false if the data is unchanged - the handler was not called
+   * @throws TzException on error or a digest mismatch
+   */
+  boolean fetch(final EntryHandler handler) throws TzException {
+    if (!isRemote(dataUrl)) {
+      return fetchFile(handler);
+    }
+
+    HttpURLConnection conn = null;
+
+    try {
+      conn = open(dataUrl);
+
+      if (etag != null) {
+        conn.setRequestProperty("If-None-Match", etag);
+      }
+
+      if (lastModified != null) {
+        conn.setRequestProperty("If-Modified-Since", lastModified);
+      }
+
+      final int status = conn.getResponseCode();
+
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        notModified++;
+
+        if (debug()) {
+          debug("Tzdata not modified at " + dataUrl);
+        }
+        return false;
+      }
+
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new TzException("Status " + status + " fetching " + dataUrl);
+      }
+
+      newEtag = conn.getHeaderField("ETag");
+      newLastModified = conn.getHeaderField("Last-Modified");
+
+      try (InputStream is = conn.getInputStream()) {
+        unzip(is, handler);
+      }
+
+      return true;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    } finally {
+      if (conn != null) {
+        conn.disconnect();
+      }
+    }
+  }
+
+  /** The data from the last fetch was loaded - later fetches are
+   * conditional on it.
+   */
+  void used() {
+    etag = newEtag;
+    lastModified = newLastModified;
+    fileModified = newFileModified;
+    fileLength = newFileLength;
+  }
+
+  /**
+   * @return number of fetches skipped as the data was unchanged
+   */
+  long getNotModified() {
+    return notModified;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private boolean fetchFile(final EntryHandler handler) throws TzException {
+    try {
+      final File f = new File(dataUrl);
+
+      if (!f.isFile()) {
+        throw new TzException(dataUrl + " does not exist or is not a file");
+      }
+
+      final long modified = f.lastModified();
+      final long length = f.length();
+
+      if ((modified == fileModified) && (length == fileLength)) {
+        notModified++;
+        return false;
+      }
+
+      newFileModified = modified;
+      newFileLength = length;
+
+      try (InputStream is = new FileInputStream(f)) {
+        unzip(is, handler);
+      }
+
+      return true;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  private void unzip(final InputStream is,
+                     final EntryHandler handler) throws Throwable {
+    final MessageDigest md = MessageDigest.getInstance("SHA-256");
+    final InputStream in =
+            new BufferedInputStream(new DigestInputStream(is, md),
+                                    bufferSize);
+    final ZipInputStream zis = new ZipInputStream(in);
+
+    final byte[] buff = new byte[bufferSize];
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    for (;;) {
+      final ZipEntry ze = zis.getNextEntry();
+
+      if (ze == null) {
+        break;
+      }
+
+      if (ze.isDirectory()) {
+        continue;
+      }
+
+      bos.reset();
+
+      for (;;) {
+        final int num = zis.read(buff);
+
+        if (num < 0) {
+          break;
+        }
+
+        bos.write(buff, 0, num);
+      }
+
+      handler.entry(ze.getName(),
+                    new String(bos.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /* The central directory follows the entries - digest all of it */
+    for (;;) {
+      if (in.read(buff) < 0) {
+        break;
+      }
+    }
+
+    if (digestUrl == null) {
+      return;
+    }
+
+    final String expected = publishedDigest();
+    final String actual = hex(md.digest());
+
+    if (!actual.equalsIgnoreCase(expected)) {
+      throw new TzException("Digest mismatch for " + dataUrl +
+                                    ": expected " + expected +
+                                    " got " + actual);
+    }
+  }
+
+  /* First token of the digest file - sha256sum format */
+  private String publishedDigest() throws Throwable {
+    final byte[] content;
+
+    if (isRemote(digestUrl)) {
+      HttpURLConnection conn = null;
+
+      try {
+        conn = open(digestUrl);
+
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+          throw new TzException("Status " + conn.getResponseCode() +
+                                        " fetching " + digestUrl);
+        }
+
+        try (InputStream is = conn.getInputStream()) {
+          content = readAll(is);
+        }
+      } finally {
+        if (conn != null) {
+          conn.disconnect();
+        }
+      }
+    } else {
+      try (InputStream is = new FileInputStream(digestUrl)) {
+        content = readAll(is);
+      }
+    }
+
+    final String[] parts = new String(content, StandardCharsets.US_ASCII)
+            .trim().split("\\s+");
+
+    if ((parts.length == 0) || (parts[0].length() != 64)) {
+      throw new TzException("No SHA-256 digest in " + digestUrl);
+    }
+
+    return parts[0];
+  }
+
+  private static HttpURLConnection open(final String url) throws Throwable {
+    final HttpURLConnection conn =
+            (HttpURLConnection)new URL(url).openConnection();
+
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(readTimeout);
+    conn.setUseCaches(false);
+
+    return conn;
+  }
+
+  private static byte[] readAll(final InputStream is) throws Throwable {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final byte[] buff = new byte[4096];
+
+    for (;;) {
+      final int num = is.read(buff);
+
+      if (num < 0) {
+        return bos.toByteArray();
+      }
+
+      bos.write(buff, 0, num);
+    }
+  }
+
+  private static boolean isRemote(final String url) {
+    return url.startsWith("http:") || url.startsWith("https:");
+  }
+
+  private static String hex(final byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+    for (final byte b: bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+
+    return sb.toString();
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
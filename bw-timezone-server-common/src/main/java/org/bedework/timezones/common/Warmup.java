@@ -0,0 +1,358 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+
+/** Remembers the zones and expansions most requested so that new data
+ * can have them computed before the requests arrive.
+ *
+ * <p>The counts survive restarts in a small text file saved at shutdown
+ * and read back at startup. Each line is a tab separated record:</p>
+ * <pre>
+ *   Z count name
+ *   E count oldForm tzid start end
+ * </pre>
+ *
+ * <p>A missing start or end - the usual case - is an empty field.</p>
+ *
+ * @author douglm
+ */
+class Warmup implements Logged {
+  /** Default number of zones and of expansions we warm */
+  static final int defaultKeys = 1000;
+
+  /* We track more than we warm so newcomers get a chance */
+  private static final int trackFactor = 4;
+
+  private static final String header =
+          "# Bedework timezone server - most requested keys";
+
+  /** An expansion request as received */
+  static class ExpandRequest {
+    final String tzid;
+    final String start;
+    final String end;
+    final boolean oldForm;
+
+    ExpandRequest(final String tzid,
+                  final String start,
+                  final String end,
+                  final boolean oldForm) {
+      this.tzid = tzid;
+      this.start = start;
+      this.end = end;
+      this.oldForm = oldForm;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(tzid, start, end, oldForm);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof ExpandRequest)) {
+        return false;
+      }
+
+      final ExpandRequest that = (ExpandRequest)o;
+
+      return (oldForm == that.oldForm) &&
+              Objects.equals(tzid, that.tzid) &&
+              Objects.equals(start, that.start) &&
+              Objects.equals(end, that.end);
+    }
+  }
+
+  /** Does the work against one set of data */
+  interface Warmer {
+    /**
+     * @param name tzid or alias
+     * @return false to stop warming
+     * @throws Throwable on error
+     */
+    boolean zone(String name) throws Throwable;
+
+    /**
+     * @param req the expansion
+     * @return false to stop warming
+     * @throws Throwable on error
+     */
+    boolean expansion(ExpandRequest req) throws Throwable;
+  }
+
+  private final int keys;
+
+  private final HotKeys<String> zones;
+
+  private final HotKeys<ExpandRequest> expansions;
+
+  /**
+   * @param keys number of zones and of expansions to warm - 0 for
+   *             default, negative to disable
+   */
+  Warmup(final int keys) {
+    if (keys == 0) {
+      this.keys = defaultKeys;
+    } else {
+      this.keys = Math.max(0, keys);
+    }
+
+    zones = new HotKeys<>(this.keys * trackFactor);
+    expansions = new HotKeys<>(this.keys * trackFactor);
+  }
+
+  /**
+   * @return true if we are tracking anything
+   */
+  boolean enabled() {
+    return keys > 0;
+  }
+
+  /**
+   * @param name tzid or alias requested
+   */
+  void zoneRequested(final String name) {
+    if (enabled() && (name != null)) {
+      zones.touch(name);
+    }
+  }
+
+  /**
+   * @param req expansion requested
+   */
+  void expansionRequested(final ExpandRequest req) {
+    if (enabled() && (req.tzid != null)) {
+      expansions.touch(req);
+    }
+  }
+
+  /** Warm the hottest zones then the hottest expansions. Individual
+   * failures are logged and skipped.
+   *
+   * @param warmer does the work
+   * @return number of entries warmed
+   */
+  int warm(final Warmer warmer) {
+    int ct = 0;
+
+    for (final Map.Entry<String, Long> me: zones.top(keys)) {
+      try {
+        if (!warmer.zone(me.getKey())) {
+          return ct;
+        }
+        ct++;
+      } catch (final Throwable t) {
+        if (debug()) {
+          debug("Unable to warm " + me.getKey() + ": " + t.getMessage());
+        }
+      }
+    }
+
+    for (final Map.Entry<ExpandRequest, Long> me: expansions.top(keys)) {
+      try {
+        if (!warmer.expansion(me.getKey())) {
+          return ct;
+        }
+        ct++;
+      } catch (final Throwable t) {
+        if (debug()) {
+          debug("Unable to warm expansion of " + me.getKey().tzid +
+                        ": " + t.getMessage());
+        }
+      }
+    }
+
+    return ct;
+  }
+
+  /** Add the counts saved in the file. Missing files and bad lines are
+   * ignored.
+   *
+   * @param f the file
+   * @return number of keys read
+   */
+  int load(final File f) {
+    if (!enabled() || !f.exists()) {
+      return 0;
+    }
+
+    int ct = 0;
+
+    try (BufferedReader in = new BufferedReader(
+            new InputStreamReader(new FileInputStream(f),
+                                  StandardCharsets.UTF_8))) {
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+
+        final String[] parts = line.split("\t", -1);
+
+        try {
+          if ((parts.length == 3) && parts[0].equals("Z")) {
+            zones.add(parts[2], Long.parseLong(parts[1]));
+            ct++;
+          } else if ((parts.length == 6) && parts[0].equals("E")) {
+            expansions.add(new ExpandRequest(parts[3],
+                                             fromField(parts[4]),
+                                             fromField(parts[5]),
+                                             parts[2].equals("1")),
+                           Long.parseLong(parts[1]));
+            ct++;
+          }
+        } catch (final NumberFormatException ignored) {
+          // Skip it
+        }
+      }
+    } catch (final Throwable t) {
+      warn("Unable to read " + f + ": " + t.getMessage());
+    }
+
+    return ct;
+  }
+
+  /** Save the hottest keys, replacing the file.
+   *
+   * @param f the file
+   * @return number of keys written
+   * @throws TzException on error
+   */
+  int save(final File f) throws TzException {
+    if (!enabled()) {
+      return 0;
+    }
+
+    try {
+      final File dir = f.getAbsoluteFile().getParentFile();
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new TzException("Unable to create " + dir);
+      }
+
+      final File tmp = new File(dir, f.getName() + ".tmp");
+      int ct = 0;
+
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp),
+                                               StandardCharsets.UTF_8)) {
+        out.write(header);
+        out.write('\n');
+
+        for (final Map.Entry<String, Long> me: zones.top(keys)) {
+          if (!storable(me.getKey())) {
+            continue;
+          }
+
+          out.write("Z\t" + me.getValue() + "\t" + me.getKey() + "\n");
+          ct++;
+        }
+
+        for (final Map.Entry<ExpandRequest, Long> me:
+                expansions.top(keys)) {
+          final ExpandRequest req = me.getKey();
+
+          if (!storable(req.tzid) ||
+                  !storableField(req.start) || !storableField(req.end)) {
+            continue;
+          }
+
+          out.write("E\t" + me.getValue() + "\t" +
+                            (req.oldForm ? "1" : "0") + "\t" +
+                            req.tzid + "\t" + toField(req.start) + "\t" +
+                            toField(req.end) + "\n");
+          ct++;
+        }
+      }
+
+      Files.move(tmp.toPath(), f.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+
+      return ct;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static boolean storable(final String val) {
+    return (val != null) &&
+            (val.indexOf('\t') < 0) &&
+            (val.indexOf('\n') < 0) &&
+            (val.indexOf('\r') < 0);
+  }
+
+  /* Null is written as an empty field so an empty value can't be
+     told apart - it's not kept */
+  private static boolean storableField(final String val) {
+    return (val == null) || (!val.isEmpty() && storable(val));
+  }
+
+  private static String toField(final String val) {
+    if (val == null) {
+      return "";
+    }
+
+    return val;
+  }
+
+  private static String fromField(final String val) {
+    if (val.isEmpty()) {
+      return null;
+    }
+
+    return val;
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,349 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A bounded, thread-safe cache of values derived from a timezone
+ * over a period.
+ *
+ * <p>Subclasses give each entry a weight. When the total weight
+ * exceeds the maximum a sweep removes the least frequently used
+ * entries until we are back under a low water mark. Each sweep also
+ * halves the use counts so old popularity decays.</p>
+ *
+ * <p>Entries may optionally expire after a fixed time.</p>
+ *
+ * @param <V> type of the cached values
+ * @author douglm
+ */
+public abstract class WeightedCache<V> {
+  /* We sweep down to this fraction of the max */
+  private static final double lowWater = 0.9;
+
+  private static class Entry<V> {
+    final V value;
+    final int weight;
+    final long created;
+
+    volatile int uses = 1;
+
+    Entry(final V value,
+          final int weight) {
+      this.value = value;
+      this.weight = weight;
+      created = System.currentTimeMillis();
+    }
+  }
+
+  private final Map<ExpandedMapEntryKey, Entry<V>> entries =
+          new ConcurrentHashMap<>();
+
+  private final AtomicLong weight = new AtomicLong();
+
+  private final long maxWeight;
+
+  private final long ttlMillis;
+
+  private final Object sweepLock = new Object();
+
+  /* Used in the stats - e.g. "expansion" */
+  private final String what;
+
+  /* Counters are shared with caches built from this one */
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final LongAdder expirations;
+  private final LongAdder invalidations;
+
+  /**
+   * @param what the values are - for the stats
+   * @param maxWeight maximum total weight - must be positive
+   * @param ttlSecs time to live in seconds - <= 0 for no expiry
+   */
+  protected WeightedCache(final String what,
+                          final long maxWeight,
+                          final long ttlSecs) {
+    this.what = what;
+    this.maxWeight = maxWeight;
+
+    if (ttlSecs <= 0) {
+      ttlMillis = 0;
+    } else {
+      ttlMillis = ttlSecs * 1000;
+    }
+
+    hits = new LongAdder();
+    misses = new LongAdder();
+    evictions = new LongAdder();
+    expirations = new LongAdder();
+    invalidations = new LongAdder();
+  }
+
+  /** An empty cache with the same limits which continues to
+   * accumulate statistics into the counters of the given cache.
+   *
+   * @param from the cache we are replacing
+   */
+  protected WeightedCache(final WeightedCache<V> from) {
+    what = from.what;
+    maxWeight = from.maxWeight;
+    ttlMillis = from.ttlMillis;
+
+    hits = from.hits;
+    misses = from.misses;
+    evictions = from.evictions;
+    expirations = from.expirations;
+    invalidations = from.invalidations;
+  }
+
+  /**
+   * @param key of entry
+   * @return entry or null
+   */
+  public V get(final ExpandedMapEntryKey key) {
+    final Entry<V> e = entries.get(key);
+
+    if (e == null) {
+      misses.increment();
+      return null;
+    }
+
+    if (expired(e)) {
+      if (entries.remove(key, e)) {
+        weight.addAndGet(-e.weight);
+        expirations.increment();
+      }
+      misses.increment();
+      return null;
+    }
+
+    final int uses = e.uses;
+    if (uses < Integer.MAX_VALUE) {
+      // Racy but only a hint
+      e.uses = uses + 1;
+    }
+
+    hits.increment();
+    return e.value;
+  }
+
+  /**
+   * @param key of entry
+   * @param val the value
+   */
+  public void put(final ExpandedMapEntryKey key,
+                  final V val) {
+    final int w = weigh(val);
+
+    if (w > maxWeight) {
+      return;
+    }
+
+    final Entry<V> e = new Entry<>(val, w);
+    final Entry<V> old = entries.put(key, e);
+
+    long total = weight.addAndGet(w);
+    if (old != null) {
+      total = weight.addAndGet(-old.weight);
+    }
+
+    if (total > maxWeight) {
+      sweep();
+    }
+  }
+
+  /** Remove everything
+   */
+  public void clear() {
+    synchronized (sweepLock) {
+      entries.clear();
+      weight.set(0);
+    }
+  }
+
+  /** Remove the entries for the given timezones
+   *
+   * @param tzids ids (or aliases) whose data changed
+   * @return number of entries removed
+   */
+  public int invalidate(final Collection<String> tzids) {
+    if (tzids.isEmpty()) {
+      return 0;
+    }
+
+    int ct = 0;
+
+    for (final Map.Entry<ExpandedMapEntryKey, Entry<V>> me:
+            entries.entrySet()) {
+      if (!tzids.contains(me.getKey().getTzid())) {
+        continue;
+      }
+
+      final Entry<V> e = me.getValue();
+      if (entries.remove(me.getKey(), e)) {
+        weight.addAndGet(-e.weight);
+        ct++;
+      }
+    }
+
+    invalidations.add(ct);
+
+    return ct;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return current total weight
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  /**
+   * @return hits since the cache was created
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return misses since the cache was created
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return evictions since the cache was created
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @param prefix for stat names
+   * @return stats for the cache
+   */
+  public List<Stat> getStats(final String prefix) {
+    final List<Stat> stats = new ArrayList<>();
+
+    final String cache = prefix + " " + what + " cache ";
+
+    stats.add(new Stat(prefix + " cached " + what + "s", size()));
+    stats.add(new Stat(cache + "weight", getWeight()));
+    stats.add(new Stat(cache + "max weight", maxWeight));
+    stats.add(new Stat(cache + "hits", getHits()));
+    stats.add(new Stat(cache + "misses", getMisses()));
+    stats.add(new Stat(cache + "evictions", getEvictions()));
+    stats.add(new Stat(cache + "expirations", expirations.sum()));
+    stats.add(new Stat(cache + "invalidations", invalidations.sum()));
+
+    return stats;
+  }
+
+  /**
+   * @param val to be cached
+   * @return its weight
+   */
+  protected abstract int weigh(V val);
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private boolean expired(final Entry<V> e) {
+    return (ttlMillis > 0) &&
+            ((System.currentTimeMillis() - e.created) > ttlMillis);
+  }
+
+  private void sweep() {
+    synchronized (sweepLock) {
+      if (weight.get() <= maxWeight) {
+        // Someone else got here first
+        return;
+      }
+
+      final long target = (long)(maxWeight * lowWater);
+
+      /* Drop expired entries and find the spread of use counts */
+      final List<Map.Entry<ExpandedMapEntryKey, Entry<V>>> live =
+              new ArrayList<>(entries.size());
+
+      for (final Map.Entry<ExpandedMapEntryKey, Entry<V>> me:
+              entries.entrySet()) {
+        final Entry<V> e = me.getValue();
+
+        if (expired(e)) {
+          if (entries.remove(me.getKey(), e)) {
+            weight.addAndGet(-e.weight);
+            expirations.increment();
+          }
+          continue;
+        }
+
+        live.add(me);
+      }
+
+      if (weight.get() > target) {
+        /* Least used first, heavier first within the same count */
+        live.sort((a, b) -> {
+          final int res = Integer.compare(a.getValue().uses,
+                                          b.getValue().uses);
+          if (res != 0) {
+            return res;
+          }
+
+          return Integer.compare(b.getValue().weight,
+                                 a.getValue().weight);
+        });
+
+        for (final Map.Entry<ExpandedMapEntryKey, Entry<V>> me: live) {
+          if (weight.get() <= target) {
+            break;
+          }
+
+          final Entry<V> e = me.getValue();
+          if (entries.remove(me.getKey(), e)) {
+            weight.addAndGet(-e.weight);
+            evictions.increment();
+          }
+        }
+      }
+
+      /* Age the survivors */
+      for (final Entry<V> e: entries.values()) {
+        e.uses = Math.max(1, e.uses >>> 1);
+      }
+    }
+  }
+}
@@ -22,36 +22,23 @@ import org.bedework.timezones.common.Differ.DiffListEntry;
 import org.bedework.timezones.common.db.TzAlias;
 import org.bedework.util.calendar.XcalUtil;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /** Cached data affected by the source data.
+ *
+ * <p>The zip is streamed straight into the load pipeline. A check
+ * when the data is unchanged costs a conditional request.</p>
  *
  * @author douglm
  */
 public class ZipCachedData  extends AbstractCachedData {
-  private ZipFile tzDefsZipFile;
-
-  private File tzDefsFile;
+  private final TzdataFetcher fetcher;
 
   /**
    * @param cfg
@@ -59,6 +46,13 @@ public class ZipCachedData  extends AbstractCachedData {
    */
   public ZipCachedData(final TzConfig cfg) throws TzException {
     super(cfg, "Zip");
+
+    if (cfg.getTzdataUrl() == null) {
+      throw new TzException("No data url defined");
+    }
+
+    fetcher = new TzdataFetcher(cfg.getTzdataUrl(),
+                                cfg.getTzdataDigestUrl());
     loadData();
   }
 
@@ -83,91 +77,111 @@ public class ZipCachedData  extends AbstractCachedData {
   }
 
   @Override
-  public List<String> findIds(final String val) throws TzException {
-    List<String> ids = new ArrayList<String>();
+  public List<Stat> getStats() throws TzException {
+    final List<Stat> stats = super.getStats();
+
+    stats.add(new Stat(msgPrefix + " fetches not modified",
+                       fetcher.getNotModified()));
 
-    return ids;
+    return stats;
   }
 
   private synchronized void loadData() throws TzException {
     try {
-      long smillis = System.currentTimeMillis();
+      final long start = System.nanoTime();
 
-      /* ======================== First get the data file =================== */
-      File f = getdata();
+      final Snapshot snap = newSnapshot();
+      final List<SpecSource> sources = new ArrayList<>();
+      final String[] aliases = new String[1];
 
-      /* ============================ open a zip file ======================= */
-      ZipFile zf = new ZipFile(f);
+      /* ================= Stream the entries out of the zip ============== */
 
-      if (tzDefsZipFile != null) {
-        try {
-          tzDefsZipFile.close();
-        } catch (Throwable t) {
+      final boolean changed = fetcher.fetch((name, content) -> {
+        if (name.equals("info.txt")) {
+          snap.dtstamp = buildTime(content);
+          return;
         }
-      }
 
-      if (tzDefsFile != null) {
-        try {
-          tzDefsFile.delete();
-        } catch (Throwable t) {
+        if (name.equals("aliases.txt")) {
+          aliases[0] = content;
+          return;
         }
-      }
-
-      tzDefsFile = f;
-      tzDefsZipFile = zf;
-
-      TzServerUtil.lastDataFetch = System.currentTimeMillis();
 
-      /* ========================= get the data info ======================== */
+        if (!(name.startsWith("zoneinfo/") && name.endsWith(".ics"))) {
+          return;
+        }
 
-      ZipEntry ze = tzDefsZipFile.getEntry("info.txt");
+        final String id = name.substring(9, name.length() - 4);
 
-      String info = entryToString(ze);
+        sources.add(new SpecSource(id, () -> parseDef(content), null));
+      });
 
-      String[] infoLines = info.split("\n");
+      TzServerUtil.lastDataFetch = System.currentTimeMillis();
 
-      for (String s: infoLines) {
-        if (s.startsWith("buildTime=")) {
-          String bt = s.substring("buildTime=".length());
-          if (!bt.endsWith("Z")) {
-            // Pretend it's UTC
-            bt += "Z";
-          }
-          dtstamp = XcalUtil.getXmlFormatDateTime(bt);
+      if (!changed) {
+        if (debug()) {
+          debug("Data unchanged - not reloading");
         }
+        return;
       }
 
+      if (aliases[0] == null) {
+        throw new TzException("No aliases.txt in " + cfg.getTzdataUrl());
+      }
+
+      final long buildStart = System.nanoTime();
+      reloadTimer("fetch").recordNanos(buildStart - start);
+
       /* ===================== Rebuild the alias maps ======================= */
 
-      aliasMaps = buildAliasMaps(tzDefsZipFile);
+      snap.aliasMaps = buildAliasMaps(aliases[0]);
 
       /* ===================== All tzs into the table ======================= */
 
-      unzipTzs(tzDefsZipFile, dtstamp);
-      expansions.clear();
+      processSpecs(snap, sources);
 
-      TzServerUtil.reloadsMillis += System.currentTimeMillis() - smillis;
-      TzServerUtil.reloads++;
+      publish(snap);
+      fetcher.used();
+
+      reloadTimer("build").recordSince(buildStart);
+      reloadTimer("total").recordSince(start);
+    } catch (final TzException te) {
+      throw te;
     } catch (Throwable t) {
       throw new TzException(t);
     }
   }
 
+  private static String buildTime(final String info) {
+    String res = null;
+
+    for (String s: info.split("\n")) {
+      if (s.startsWith("buildTime=")) {
+        String bt = s.substring("buildTime=".length()).trim();
+        if (!bt.endsWith("Z")) {
+          // Pretend it's UTC
+          bt += "Z";
+        }
+        res = XcalUtil.getXmlFormatDateTime(bt);
+      }
+    }
+
+    return res;
+  }
+
   /** We store the aliases as a bunch of properties of the form <br/>
    * alias=val<br/>
    * the alias is the name and val is a comma separated list of
    * target ids.
    *
-   * @param tzDefsZipFile
+   * @param aliasesStr content of aliases.txt
    * @return mapped aliases
    * @throws TzException
    */
-  private AliasMaps buildAliasMaps(final ZipFile tzDefsZipFile) throws TzException {
+  private AliasMaps buildAliasMaps(final String aliasesStr) throws TzException {
     try {
-      ZipEntry ze = tzDefsZipFile.getEntry("aliases.txt");
-
       AliasMaps maps = new AliasMaps();
-      maps.aliasesStr = entryToString(ze);
+      maps.aliasesStr = aliasesStr;
 
       maps.byTzid = new HashMap<>();
       maps.byAlias = new HashMap<>();
@@ -209,120 +223,4 @@ public class ZipCachedData  extends AbstractCachedData {
       throw new TzException(t);
     }
   }
-
-  private void unzipTzs(final ZipFile tzDefsZipFile,
-                        final String dtstamp) throws TzException {
-    try {
-      resetTzs();
-
-      Enumeration<? extends ZipEntry> zes = tzDefsZipFile.entries();
-
-      while (zes.hasMoreElements()) {
-        ZipEntry ze = zes.nextElement();
-
-        if (ze.isDirectory()) {
-          continue;
-        }
-
-        String n = ze.getName();
-
-        if (!(n.startsWith("zoneinfo/") && n.endsWith(".ics"))) {
-          continue;
-        }
-
-        String id = n.substring(9, n.length() - 4);
-
-        processSpec(id, entryToString(ze), null, null);
-      }
-    } catch (Throwable t) {
-      throw new TzException(t);
-    }
-  }
-
-  /** Retrieve the data and store in a temp file. Return the file object.
-   *
-   * @return File
-   * @throws TzException
-   */
-  private File getdata() throws TzException {
-    try {
-      String dataUrl = cfg.getTzdataUrl();
-      if (dataUrl == null) {
-        throw new TzException("No data url defined");
-      }
-
-      if (!dataUrl.startsWith("http:")) {
-        return new File(dataUrl);
-      }
-
-      /* Fetch the data */
-      HttpClient client = new DefaultHttpClient();
-
-      HttpRequestBase get = new HttpGet(dataUrl);
-
-      HttpResponse resp = client.execute(get);
-
-      InputStream is = null;
-      FileOutputStream fos = null;
-
-      try {
-        is = resp.getEntity().getContent();
-
-        File f = File.createTempFile("bwtzserver", "zip");
-
-        fos = new FileOutputStream(f);
-
-        byte[] buff = new byte[4096];
-
-        for (;;) {
-          int num = is.read(buff);
-
-          if (num < 0) {
-            break;
-          }
-
-          if (num > 0) {
-            fos.write(buff, 0, num);
-          }
-        }
-
-        return f;
-      } finally {
-        try {
-          fos.close();
-        } finally {}
-
-        try {
-          is.close();
-        } finally {}
-      }
-    } catch (Throwable t) {
-      throw new TzException(t);
-    }
-  }
-
-  private String entryToString(final ZipEntry ze) throws Throwable {
-    InputStreamReader is = new InputStreamReader(tzDefsZipFile.getInputStream(ze),
-                                                 "UTF-8");
-
-    StringWriter sw = new StringWriter();
-
-    char[] buff = new char[4096];
-
-    for (;;) {
-      int num = is.read(buff);
-
-      if (num < 0) {
-        break;
-      }
-
-      if (num > 0) {
-        sw.write(buff, 0, num);
-      }
-    }
-
-    is.close();
-
-    return sw.toString();
-  }
 }
@@ -0,0 +1,184 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/** Long polls the primary for changes since our sync token.
+ *
+ * <p>The primary holds a list request with a wait parameter until it
+ * has changes or the wait is up. A primary which doesn't know the
+ * parameter answers at once with nothing, which we treat as
+ * unavailable so the caller falls back to polling.</p>
+ *
+ * @author douglm
+ */
+class ChangeWaiter implements Logged {
+  enum Result {
+    /** The primary has changes - or we were told to look anyway */
+    changed,
+
+    /** Waited the full time with no changes */
+    unchanged,
+
+    /** Long polling didn't work */
+    unavailable
+  }
+
+  private static final int connectTimeout = 10 * 1000;
+
+  /* Allowance on top of the wait for the response to arrive */
+  private static final int readSlop = 30 * 1000;
+
+  private final String primaryUrl;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private volatile HttpURLConnection current;
+
+  private volatile boolean aborted;
+
+  /**
+   * @param primaryUrl the primary
+   */
+  ChangeWaiter(final String primaryUrl) {
+    if (primaryUrl.endsWith("/")) {
+      this.primaryUrl = primaryUrl.substring(0, primaryUrl.length() - 1);
+    } else {
+      this.primaryUrl = primaryUrl;
+    }
+  }
+
+  /** Wait for changes since the token.
+   *
+   * @param token our sync token
+   * @param waitSecs how long the primary should wait
+   * @return result
+   */
+  Result await(final String token,
+               final long waitSecs) {
+    if (token == null) {
+      return Result.changed;
+    }
+
+    if (aborted) {
+      // Asked to look before we got here
+      aborted = false;
+      return Result.changed;
+    }
+
+    final long start = System.currentTimeMillis();
+
+    HttpURLConnection conn = null;
+
+    try {
+      final URL url = new URL(primaryUrl + "/zones?changedsince=" +
+                                      URLEncoder.encode(token, "UTF-8") +
+                                      "&wait=" + waitSecs);
+
+      conn = (HttpURLConnection)url.openConnection();
+      current = conn;
+
+      conn.setConnectTimeout(connectTimeout);
+      conn.setReadTimeout((int)(waitSecs * 1000) + readSlop);
+      conn.setRequestProperty("Accept", "application/json");
+      conn.setUseCaches(false);
+
+      if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        if (debug()) {
+          debug("Long poll status " + conn.getResponseCode() +
+                        " from " + url);
+        }
+        return Result.unavailable;
+      }
+
+      final JsonNode list;
+
+      try (InputStream is = conn.getInputStream()) {
+        list = mapper.readTree(is);
+      }
+
+      final JsonNode tzs = list.get("timezones");
+
+      if ((tzs != null) && (tzs.size() > 0)) {
+        return Result.changed;
+      }
+
+      /* Nothing - make sure the primary actually waited */
+      if ((System.currentTimeMillis() - start) < waitSecs * 500) {
+        return Result.unavailable;
+      }
+
+      return Result.unchanged;
+    } catch (final Throwable t) {
+      if (aborted) {
+        return Result.changed;
+      }
+
+      if (debug()) {
+        debug("Long poll failed: " + t.getMessage());
+      }
+
+      return Result.unavailable;
+    } finally {
+      current = null;
+      aborted = false;
+
+      if (conn != null) {
+        conn.disconnect();
+      }
+    }
+  }
+
+  /** Stop any wait in progress - it returns changed.
+   */
+  void abort() {
+    aborted = true;
+
+    final HttpURLConnection conn = current;
+
+    if (conn != null) {
+      conn.disconnect();
+    }
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
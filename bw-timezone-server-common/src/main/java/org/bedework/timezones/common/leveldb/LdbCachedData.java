@@ -20,6 +20,7 @@ package org.bedework.timezones.common.leveldb;
 
 import org.bedework.timezones.common.AbstractCachedData;
 import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.LatencyHistogram;
 import org.bedework.timezones.common.Differ.DiffListEntry;
 import org.bedework.timezones.common.Stat;
 import org.bedework.timezones.common.TzConfig;
@@ -43,40 +44,44 @@ import org.bedework.util.timezones.model.TimezoneType;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
-import org.iq80.leveldb.Options;
 import org.iq80.leveldb.impl.Iq80DBFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 
 /** Cached timezone data in a leveldb database.
+ *
+ * <p>The database stays open for the life of the object. Lookups read
+ * from a leveldb snapshot so they run concurrently with each other and
+ * with updates. Updates serialise on the write lock of the shared
+ * {@link LdbHandle}.</p>
  *
  * @author douglm
  */
 public class LdbCachedData extends AbstractCachedData {
-  private boolean running;
+  private volatile boolean running;
 
   protected ObjectMapper mapper = new ObjectMapper(); // create once, reuse
 
-  protected static final Object dbLock = new Object();
-
-  /** Current Database
+  /** Current Database - null once stopped
    */
-  protected DB db;
+  private volatile LdbHandle handle;
 
   /* Leveldb has no concept of table. It's just key-value pairs.
    * We prefix all the timezone spec names with timezoneSpecPrefix and all the
@@ -88,18 +93,31 @@ public class LdbCachedData extends AbstractCachedData {
 
   private final static String aliasPrefix = "AL:";
 
-  /** */
-  protected boolean open;
+  /* Value is the LdbCodec version all records have been converted to.
+   * Absent for a database written as json.
+   */
+  private final static String formatKey = "FM:version";
+
+  /* The sync token (dtstamp) and source of the data. Written in the
+   * same batch as the data they describe.
+   */
+  private final static String syncTokenKey = "SY:token";
+
+  private final static String sourceKey = "SY:source";
 
   private long reloads;
   private long primaryFetches;
   private long lastFetchCt;
+  private long lastUpdateCt;
   private String lastFetchStatus = "None";
+  private long longPolls;
+  private long longPollChanges;
+  private long longPollFallbacks;
 
-  private String lastConfigLevelDbPath;
+  /* Default seconds we ask the primary to wait */
+  private static final int defaultLongPollWait = 60;
 
-  /* Calculated from config level db path */
-  private String levelDbPath;
+  private volatile ChangeWaiter waiter;
 
   private class UpdateThread extends Thread {
     boolean showedTrace;
@@ -115,6 +133,7 @@ public class LdbCachedData extends AbstractCachedData {
     public void run() {
       while (running) {
         long refreshWait = 9999;
+        boolean synced = false;
 
         synchronized (LdbCachedData.this) {
           try {
@@ -124,9 +143,11 @@ public class LdbCachedData extends AbstractCachedData {
               debug("Updater: About to update");
             }
 
-            if (!updateFromPrimary()) {
+            if (!syncFromPrimary()) {
               // Try again in at most 10 minutes (need an error retry param)
               refreshWait = Math.min(refreshWait, 600);
+            } else {
+              synced = true;
             }
           } catch (final Throwable t) {
             if (!showedTrace) {
@@ -143,22 +164,30 @@ public class LdbCachedData extends AbstractCachedData {
           }
         }
 
-        if (debug()) {
-          debug("Updater: About to wait for " +
-              refreshWait +
-                " seconds");
+        if (!running) {
+          break;
+        }
 
+        if (synced && waitForChange(refreshWait)) {
+          continue;
         }
 
-        if (!running) {
-          break;
+        /* Jittered so a fleet of secondaries doesn't poll in step */
+        final long waitMillis = (long)(refreshWait * 1000 *
+                (0.9 + 0.2 * ThreadLocalRandom.current().nextDouble()));
+
+        if (debug()) {
+          debug("Updater: About to wait for " +
+              waitMillis +
+                " millis");
+
         }
 
         // Hang around
         try {
           Object o = new Object();
           synchronized (o) {
-            o.wait(refreshWait * 1000);
+            o.wait(waitMillis);
           }
         } catch (InterruptedException ie) {
           if (debug()) {
@@ -171,7 +200,10 @@ public class LdbCachedData extends AbstractCachedData {
     }
   }
 
-  private UpdateThread updater;
+  private volatile UpdateThread updater;
+
+  /* Guards starting and stopping the updater */
+  private final Object updaterLock = new Object();
 
   /** Start from database cache. Fall back is probably to use the
    * zipped data.
@@ -199,40 +231,100 @@ public class LdbCachedData extends AbstractCachedData {
       throw new TzException(t);
     }
 
-    info("Load leveldb timezone data");
-    loadData(clear);
+    if (cfg.getLeveldbPath() == null) {
+      throw new TzException("No levelDbPath");
+    }
 
-    running = true;
+    handle = LdbHandle.acquire(cfg.getLeveldbPath());
 
-    if (!cfg.getPrimaryServer()) {
-      info("start timezone data update thread");
-      updater = new UpdateThread("DbdataUpdater");
-      updater.start();
+    info("Load leveldb timezone data");
+
+    try {
+      loadData(clear);
+    } catch (final TzException te) {
+      releaseDb();
+      throw te;
     }
+
+    resumeUpdates();
   }
 
   @Override
   public void stop() throws TzException {
-    running = false;
+    pauseUpdates();
 
     if (!cfg.getPrimaryServer()) {
-      if (updater == null) {
-        error("Already stopped");
-        return;
-      }
-
-      updater.interrupt();
-      updater = null;
-
       info("************************************************************");
       info(" * TZdb cache updater terminated ");
       info("************************************************************");
     }
+
+    synchronized (this) {
+      releaseDb();
+    }
+  }
+
+  /** Stop the updater and wait for it to finish any sync in progress.
+   *
+   * @throws TzException if interrupted while waiting
+   */
+  @Override
+  public void pauseUpdates() throws TzException {
+    final UpdateThread u;
+
+    synchronized (updaterLock) {
+      running = false;
+      u = updater;
+      updater = null;
+    }
+
+    if (u == null) {
+      return;
+    }
+
+    u.interrupt();
+
+    final ChangeWaiter cw = waiter;
+    if (cw != null) {
+      cw.abort();
+    }
+
+    try {
+      u.join();
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TzException(ie);
+    }
+  }
+
+  @Override
+  public void resumeUpdates() {
+    if (cfg.getPrimaryServer() || (handle == null)) {
+      return;
+    }
+
+    synchronized (updaterLock) {
+      if (updater != null) {
+        return;
+      }
+
+      info("start timezone data update thread");
+      running = true;
+      updater = new UpdateThread("DbdataUpdater");
+      updater.start();
+    }
   }
 
   @Override
   public String getSource() throws TzException {
-    return cfg.getSource();
+    final byte[] val = getHandle().getDb().get(Iq80DBFactory.bytes(sourceKey));
+
+    if (val == null) {
+      // Not yet stored in the db
+      return cfg.getSource();
+    }
+
+    return Iq80DBFactory.asString(val);
   }
 
   @Override
@@ -241,11 +333,22 @@ public class LdbCachedData extends AbstractCachedData {
 
     stats.addAll(super.getStats());
 
-    stats.add(new Stat("Db reloads", String.valueOf(reloads)));
-    stats.add(new Stat("Db primary fetches", String.valueOf(primaryFetches)));
-    stats.add(new Stat("Db last fetch count",
-                       String.valueOf(lastFetchCt)));
+    stats.add(new Stat("Db reloads", reloads));
+    stats.add(new Stat("Db primary fetches", primaryFetches));
+    stats.add(new Stat("Db last fetch count", lastFetchCt));
+    stats.add(new Stat("Db last update count", lastUpdateCt));
     stats.add(new Stat("Db last fetch status", lastFetchStatus));
+    stats.add(new Stat("Db long polls", longPolls));
+    stats.add(new Stat("Db long poll changes", longPollChanges));
+    stats.add(new Stat("Db long poll fallbacks", longPollFallbacks));
+
+    final LatencyHistogram fetches = PrimaryFetcher.getFetchTimer();
+
+    stats.add(new Stat("Db fetch count", fetches.getCount()));
+    stats.add(new Stat("Db fetch p50 us", fetches.getQuantile(0.5)));
+    stats.add(new Stat("Db fetch p99 us", fetches.getQuantile(0.99)));
+    stats.add(new Stat("Db fetch retries", PrimaryFetcher.getRetries()));
+    stats.add(new Stat("Db fetch timeouts", PrimaryFetcher.getTimeouts()));
 
     return stats;
   }
@@ -255,8 +358,14 @@ public class LdbCachedData extends AbstractCachedData {
    */
   @Override
   public void checkData() throws TzException {
-    if (updater != null) {
-      updater.interrupt();
+    final UpdateThread u = updater;
+    if (u != null) {
+      u.interrupt();
+    }
+
+    final ChangeWaiter cw = waiter;
+    if (cw != null) {
+      cw.abort();
     }
   }
 
@@ -267,40 +376,18 @@ public class LdbCachedData extends AbstractCachedData {
       return;
     }
 
-    try {
+    final LdbHandle h = getHandle();
+
+    h.lockWrite();
+    try (LdbHandle.Batch batch = newBatch(h)) {
       final AliasMaps amaps = buildAliasMaps();
 
       for (final DiffListEntry dle: dles) {
-        updateFromDiffEntry(dtstamp, amaps, dle);
+        updateFromDiffEntry(batch, dtstamp, amaps, dle);
       }
 
-      cfg.setDtstamp(dtstamp);
-
-      TzServerUtil.saveConfig();
-    } catch (final TzException te) {
-      fail();
-      throw te;
-    } catch (final Throwable t) {
-      fail();
-      throw new TzException(t);
-    }
-  }
-
-  @Override
-  public List<String> findIds(final String val) throws TzException {
-    try {
-      open();
-
-      final List<String> ids = new ArrayList<>();
-
-      ids.addAll(findTzs(val));
-
-      final List<TzAlias> as = findTzAliases(val);
-      for (final TzAlias a: as) {
-        ids.addAll(a.getTargetIds());
-      }
-
-      return ids;
+      putString(batch, syncTokenKey, dtstamp);
+      batch.commit();
     } catch (final TzException te) {
       fail();
       throw te;
@@ -308,7 +395,7 @@ public class LdbCachedData extends AbstractCachedData {
       fail();
       throw new TzException(t);
     } finally {
-      close();
+      h.unlockWrite();
     }
   }
 
@@ -321,8 +408,8 @@ public class LdbCachedData extends AbstractCachedData {
    * @throws TzException
    */
   public void putTzAlias(final TzAlias val) throws TzException {
-    db.put(Iq80DBFactory.bytes(aliasPrefix + val.getAliasId()),
-           bytesJson(val));
+    getHandle().getDb().put(Iq80DBFactory.bytes(aliasPrefix + val.getAliasId()),
+                            LdbCodec.encode(val));
   }
 
   /**
@@ -330,7 +417,8 @@ public class LdbCachedData extends AbstractCachedData {
    * @throws TzException
    */
   public void removeTzAlias(final TzAlias val) throws TzException {
-    db.delete(Iq80DBFactory.bytes(aliasPrefix + val.getAliasId()));
+    getHandle().getDb().delete(
+            Iq80DBFactory.bytes(aliasPrefix + val.getAliasId()));
   }
 
   /**
@@ -339,13 +427,14 @@ public class LdbCachedData extends AbstractCachedData {
    * @throws TzException
    */
   public TzAlias getTzAlias(final String val) throws TzException {
-    final byte[] aliasBytes = db.get(Iq80DBFactory.bytes(aliasPrefix + val));
+    final byte[] aliasBytes =
+            getHandle().getDb().get(Iq80DBFactory.bytes(aliasPrefix + val));
 
     if (aliasBytes == null) {
       return null;
     }
 
-    return getJson(aliasBytes, TzAlias.class);
+    return decodeAlias(aliasBytes);
   }
 
   /**
@@ -354,10 +443,104 @@ public class LdbCachedData extends AbstractCachedData {
    * @throws TzException
    */
   public List<TzAlias> findTzAliases(final String val) throws TzException {
+    try (LdbHandle.Reader rdr = getHandle().reader()) {
+      return findTzAliases(rdr, val);
+    }
+  }
+
+  /**
+   * @param val to match
+   * @return matching tz entry names
+   * @throws TzException
+   */
+  public List<String> findTzs(final String val) throws TzException {
+    try (LdbHandle.Reader rdr = getHandle().reader()) {
+      return findTzs(rdr, val);
+    }
+  }
+
+  /**
+   * @param val the spec
+   * @throws TzException
+   */
+  public void putTzSpec(final TzDbSpec val) throws TzException {
+    getHandle().getDb().put(Iq80DBFactory.bytes(timezoneSpecPrefix + val.getName()),
+                            LdbCodec.encode(val));
+  }
+
+  /* ====================================================================
+   *                   Db methods
+   * ==================================================================== */
+
+  private LdbHandle.Batch newBatch(final LdbHandle h) {
+    return h.batch(cfg.getLeveldbBatchSize(), cfg.getLeveldbSyncWrites());
+  }
+
+  private void putTzAlias(final LdbHandle.Batch batch,
+                          final TzAlias val) throws TzException {
+    batch.put(aliasPrefix + val.getAliasId(), LdbCodec.encode(val));
+  }
+
+  private void removeTzAlias(final LdbHandle.Batch batch,
+                             final TzAlias val) throws TzException {
+    batch.delete(aliasPrefix + val.getAliasId());
+  }
+
+  private TzAlias getTzAlias(final LdbHandle.Batch batch,
+                             final String val) throws TzException {
+    final byte[] aliasBytes = batch.get(aliasPrefix + val);
+
+    if (aliasBytes == null) {
+      return null;
+    }
+
+    return decodeAlias(aliasBytes);
+  }
+
+  private void putTzSpec(final LdbHandle.Batch batch,
+                         final TzDbSpec val) throws TzException {
+    batch.put(timezoneSpecPrefix + val.getName(), LdbCodec.encode(val));
+  }
+
+  private TzDbSpec getSpec(final LdbHandle.Batch batch,
+                           final String id) throws TzException {
+    final byte[] specBytes = batch.get(timezoneSpecPrefix + id);
+
+    if (specBytes == null) {
+      return null;
+    }
+
+    return decodeSpec(specBytes);
+  }
+
+  private void putString(final LdbHandle.Batch batch,
+                         final String key,
+                         final String val) throws TzException {
+    if (val == null) {
+      batch.delete(key);
+      return;
+    }
+
+    batch.put(key, Iq80DBFactory.bytes(val));
+  }
+
+  /* Token for the data as seen by the batch or reader - falls back to
+   * the config for a db written before we stored it.
+   */
+  private String getSyncToken(final byte[] val) {
+    if (val == null) {
+      return cfg.getDtstamp();
+    }
+
+    return Iq80DBFactory.asString(val);
+  }
+
+  private List<TzAlias> findTzAliases(final LdbHandle.Reader rdr,
+                                      final String val) throws TzException {
     try {
       final List<TzAlias> aliases = new ArrayList<>();
 
-      try (DBIterator it = db.iterator()) {
+      try (DBIterator it = rdr.iterator()) {
         for (it.seekToFirst(); it.hasNext(); it.next()) {
           final String key = Iq80DBFactory.asString(it.peekNext().getKey());
 
@@ -371,8 +554,7 @@ public class LdbCachedData extends AbstractCachedData {
             continue;
           }
 
-          final TzAlias alias = getJson(it.peekNext().getValue(),
-                                        TzAlias.class);
+          final TzAlias alias = decodeAlias(it.peekNext().getValue());
 
           aliases.add(alias);
         }
@@ -384,16 +566,12 @@ public class LdbCachedData extends AbstractCachedData {
     }
   }
 
-  /**
-   * @param val to match
-   * @return matching tz entry names
-   * @throws TzException
-   */
-  public List<String> findTzs(final String val) throws TzException {
+  private List<String> findTzs(final LdbHandle.Reader rdr,
+                               final String val) throws TzException {
     try {
       final List<String> ids = new ArrayList<>();
 
-      try (DBIterator it = db.iterator()) {
+      try (DBIterator it = rdr.iterator()) {
         for (it.seekToFirst(); it.hasNext(); it.next()) {
           final String key = Iq80DBFactory.asString(it.peekNext().getKey());
 
@@ -417,68 +595,32 @@ public class LdbCachedData extends AbstractCachedData {
     }
   }
 
-  /**
-   * @param val the spec
-   * @throws TzException
-   */
-  public void putTzSpec(final TzDbSpec val) throws TzException {
-    db.put(Iq80DBFactory.bytes(timezoneSpecPrefix + val.getName()),
-           bytesJson(val));
-  }
-
   /* ====================================================================
    *                   Transaction methods
    * ==================================================================== */
 
-  private DB open() throws TzException {
-    synchronized (dbLock) {
-      while (true) {
-        if (!isOpen()) {
-          getDb();
-          open = true;
-
-          return db;
-        }
+  private LdbHandle getHandle() throws TzException {
+    final LdbHandle h = handle;
 
-        if (debug()) {
-          debug("Wait for db");
-        }
-
-        try {
-          dbLock.wait(3000);
-        } catch (final Throwable t) {
-          throw new TzException(t);
-        }
-      }
+    if (h == null) {
+      throw new TzException("Db cache is stopped");
     }
+
+    return h;
   }
 
-  private void close() {
-    synchronized (dbLock) {
-      if (open) {
-        closeDb();
-        open = false;
-      }
+  private void releaseDb() {
+    final LdbHandle h = handle;
 
-      dbLock.notify();
+    if (h == null) {
+      return;
     }
-  }
-
-  private void fail() {
-  }
 
-  private boolean isOpen() {
-    return open;
+    handle = null;
+    h.release();
   }
 
-  /* ====================================================================
-   *                   Session methods
-   * ==================================================================== */
-
-  protected void checkOpen() throws TzException {
-    if (!isOpen()) {
-      throw new TzException("Session call when closed");
-    }
+  private void fail() {
   }
 
   /* ====================================================================
@@ -489,56 +631,141 @@ public class LdbCachedData extends AbstractCachedData {
    * @throws TzException
    */
   private void loadData(final boolean clear) throws TzException {
-    synchronized (dbLock) {
+    final LdbHandle h = getHandle();
+
+    h.lockWrite();
+    try {
       reloads++;
 
+      final long start = System.nanoTime();
+
       try {
-        try {
-          open();
-
-          if (clear) {
-            try (DBIterator iterator = getDb().iterator()) {
-              for (iterator.seekToFirst(); iterator.hasNext();
-                   iterator.next()) {
-                getDb().delete(iterator.peekNext().getKey());
-              }
-            }
-          }
-        } finally {
-          close();
+        if (clear) {
+          clear(h);
+        } else {
+          migrate(h);
         }
 
-        if (!cfg.getPrimaryServer()) {
-          updateFromPrimary();
-        } else if (clear) {
-          loadInitialData();
-        }
+        try (LdbHandle.Batch batch = newBatch(h)) {
+          if (!cfg.getPrimaryServer()) {
+            updateFromPrimary(batch, new HashSet<>());
+          } else if (clear) {
+            loadInitialData(batch);
+          }
 
-        dtstamp = cfg.getDtstamp();
+          batch.commit();
+        }
 
         TzServerUtil.lastDataFetch = System.currentTimeMillis();
 
-      /* ===================== Rebuild the alias maps ======================= */
+        final long buildStart = System.nanoTime();
+        reloadTimer("fetch").recordNanos(buildStart - start);
 
-        aliasMaps = buildAliasMaps();
+        buildSnapshot();
 
-      /* ===================== All tzs into the table ======================= */
-
-        processSpecs(dtstamp);
-
-        expansions.clear();
+        reloadTimer("build").recordSince(buildStart);
+        reloadTimer("total").recordSince(start);
       } catch (final TzException te) {
         fail();
         throw te;
       } catch (final Throwable t) {
         fail();
         throw new TzException(t);
-      } finally {
-        close();
       }
+    } finally {
+      h.unlockWrite();
     }
   }
 
+  /* Remove everything. Committed on its own - an empty db has no sync
+   * token so a crash before it's refilled just means a full load.
+   */
+  private void clear(final LdbHandle h) throws TzException {
+    try (LdbHandle.Batch batch = newBatch(h);
+         LdbHandle.Reader rdr = h.reader();
+         DBIterator it = rdr.iterator()) {
+      for (it.seekToFirst(); it.hasNext(); it.next()) {
+        batch.delete(Iq80DBFactory.asString(it.peekNext().getKey()));
+      }
+
+      putString(batch, formatKey, String.valueOf(LdbCodec.version));
+      batch.commit();
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* Convert any json records to the binary format. Records are self
+   * describing so a partly converted db is still usable and we just
+   * carry on from where we were next time.
+   */
+  private void migrate(final LdbHandle h) throws TzException {
+    final String current = String.valueOf(LdbCodec.version);
+    final byte[] fmt = h.getDb().get(Iq80DBFactory.bytes(formatKey));
+
+    if ((fmt != null) && current.equals(Iq80DBFactory.asString(fmt))) {
+      return;
+    }
+
+    final int ct;
+
+    try (LdbHandle.Batch batch = newBatch(h)) {
+      ct = convertJson(h, batch, mapper);
+    }
+
+    if (ct > 0) {
+      info("Converted " + ct + " leveldb records to format version " +
+                   current);
+    }
+  }
+
+  /* Convert the json records and mark the db as converted. Returns the
+   * number of records converted.
+   */
+  static int convertJson(final LdbHandle h,
+                         final LdbHandle.Batch batch,
+                         final ObjectMapper mapper) throws TzException {
+    int ct = 0;
+
+    try (LdbHandle.Reader rdr = h.reader();
+         DBIterator it = rdr.iterator()) {
+      for (it.seekToFirst(); it.hasNext(); it.next()) {
+        final byte[] value = it.peekNext().getValue();
+
+        if (LdbCodec.isBinary(value)) {
+          continue;
+        }
+
+        final String k = Iq80DBFactory.asString(it.peekNext().getKey());
+
+        if (k.startsWith(timezoneSpecPrefix)) {
+          batch.put(k, LdbCodec.encode(
+                  mapper.readValue(value, TzDbSpec.class)));
+        } else if (k.startsWith(aliasPrefix)) {
+          batch.put(k, LdbCodec.encode(
+                  mapper.readValue(value, TzAlias.class)));
+        } else {
+          continue;
+        }
+
+        ct++;
+      }
+
+      // Last so it's only there when everything is converted
+      batch.put(formatKey,
+                Iq80DBFactory.bytes(String.valueOf(LdbCodec.version)));
+      batch.commit();
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+
+    return ct;
+  }
+
   private static class TzEntry {
     String id;
     TimezoneType sum;
@@ -546,15 +773,157 @@ public class LdbCachedData extends AbstractCachedData {
     TaggedTimeZone ttz;
   }
 
+  /* Long poll the primary until it has changes or the refresh delay is
+   * up. Returns true to sync now, false if the primary can't long poll
+   * and we should wait the refresh delay instead.
+   */
+  private boolean waitForChange(final long refreshWait) {
+    final int wait = cfg.getPrimaryLongPollWait();
+
+    if ((wait < 0) || (cfg.getPrimaryUrl() == null)) {
+      return false;
+    }
+
+    ChangeWaiter cw = waiter;
+    if (cw == null) {
+      cw = new ChangeWaiter(cfg.getPrimaryUrl());
+      waiter = cw;
+    }
+
+    final long end = System.currentTimeMillis() + refreshWait * 1000;
+
+    while (running) {
+      final long remaining = end - System.currentTimeMillis();
+
+      if (remaining <= 0) {
+        // Periodic sync anyway
+        return true;
+      }
+
+      final String token;
+
+      try {
+        token = getSyncToken(getHandle().getDb().get(
+                Iq80DBFactory.bytes(syncTokenKey)));
+      } catch (final Throwable t) {
+        return false;
+      }
+
+      final long secs = Math.max(1,
+                                 Math.min((wait == 0) ? defaultLongPollWait : wait,
+                                          remaining / 1000));
+
+      longPolls++;
+
+      switch (cw.await(token, secs)) {
+        case changed:
+          longPollChanges++;
+
+          /* Spread the fleet a little */
+          try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(1000));
+          } catch (final InterruptedException ignored) {
+          }
+
+          return true;
+
+        case unavailable:
+          longPollFallbacks++;
+          return false;
+
+        default:
+          // Nothing yet - ask again
+      }
+    }
+
+    return false;
+  }
+
+  /* Run an update from the primary as one batch then apply the changes
+   * to the in-memory data. Still holding the write lock so we publish
+   * in the same order as we commit. A new token with no changes is
+   * still published so the dtstamp we hand out keeps up with it.
+   */
+  private boolean syncFromPrimary() throws TzException {
+    final LdbHandle h = getHandle();
+    final Set<String> changed = new HashSet<>();
+
+    h.lockWrite();
+    try {
+      final boolean ok;
+
+      try (LdbHandle.Batch batch = newBatch(h)) {
+        ok = updateFromPrimary(batch, changed);
+
+        batch.commit();
+      }
+
+      if (!changed.isEmpty() ||
+              !Objects.equals(getDtstamp(),
+                              getSyncToken(h.getDb().get(
+                                      Iq80DBFactory.bytes(syncTokenKey))))) {
+        applyChanges(h, changed);
+      }
+
+      return ok;
+    } finally {
+      h.unlockWrite();
+    }
+  }
+
+  /* Reprocess only the changed timezones. The token is read in the
+   * same view as the specs so the dtstamp moves with the data.
+   */
+  private void applyChanges(final LdbHandle h,
+                            final Set<String> changed) throws TzException {
+    final long start = System.nanoTime();
+    final Snapshot snap;
+
+    try (LdbHandle.Reader rdr = h.reader()) {
+      snap = copySnapshot(buildAliasMaps(rdr), changed);
+
+      snap.dtstamp = getSyncToken(rdr.get(syncTokenKey));
+
+      for (final String id: snap.getAffected()) {
+        final byte[] val = rdr.get(timezoneSpecPrefix + id);
+
+        if (val == null) {
+          // No longer present
+          continue;
+        }
+
+        processDbSpec(snap, decodeSpec(val));
+      }
+    } catch (final TzException te) {
+      warn("Unable to apply changes - rebuilding: " + te.getMessage());
+      buildSnapshot();
+      return;
+    }
+
+    publish(snap);
+
+    reloadTimer("incremental").recordSince(start);
+
+    if (debug()) {
+      debug("Applied changes to " + snap.getAffected().size() +
+                    " timezones");
+    }
+  }
+
   /** Call the primary server and get a list of data that's changed since we last
    * looked. Then fetch each changed timezone and update the db.
    *
-   * <p>We try not to keep the db locked for long periods</p>
+   * <p>Called holding the write lock. Readers are not held up. All
+   * changes go in the batch with the new sync token put last, so if we
+   * fail part way the next sync starts from the old token.</p>
    *
+   * @param batch for the updates - committed by the caller
+   * @param changed ids of updated timezones added here
    * @return true if we successfully contacted the server
    * @throws TzException
    */
-  private synchronized boolean updateFromPrimary() throws TzException {
+  private synchronized boolean updateFromPrimary(final LdbHandle.Batch batch,
+                                                 final Set<String> changed) throws TzException {
     if (debug()) {
       debug("Updating from primary");
     }
@@ -580,11 +949,13 @@ public class LdbCachedData extends AbstractCachedData {
       final Timezones tzs = new TimezonesImpl();
       tzs.init(cfg.getPrimaryUrl());
 
-      final String changedSince = cfg.getDtstamp();
+      final String changedSince = getSyncToken(batch.get(syncTokenKey));
 
       final long startTime = System.currentTimeMillis();
       long fetchTime = 0;
 
+      lastUpdateCt = 0;
+
       final TimezoneListType tzl;
 
       try {
@@ -603,13 +974,6 @@ public class LdbCachedData extends AbstractCachedData {
 
       final String svrCs = tzl.getSynctoken();
 
-      if ((changedSince == null) ||
-                 !svrCs.equals(changedSince)) {
-        cfg.setDtstamp(svrCs);
-
-        TzServerUtil.saveConfig();
-      }
-
       primaryFetches++;
       lastFetchCt = tzl.getTimezones().size();
 
@@ -629,43 +993,53 @@ public class LdbCachedData extends AbstractCachedData {
       /* First go through the returned list and get our own spec.
          Need the db for that.
        */
-      try {
-        open();
+      for (final TimezoneType sum : tzl.getTimezones()) {
+        final TzEntry entry = new TzEntry();
 
-        for (final TimezoneType sum : tzl.getTimezones()) {
-          final TzEntry entry = new TzEntry();
-
-          entry.id = sum.getTzid();
-          entry.sum = sum;
-          if (debug()) {
-            debug("Get db spec for timezone " + entry.id);
-          }
+        entry.id = sum.getTzid();
+        entry.sum = sum;
+        if (debug()) {
+          debug("Get db spec for timezone " + entry.id);
+        }
 
-          entry.dbspec = getSpec(entry.id);
+        entry.dbspec = getSpec(batch, entry.id);
 
-          tzEntries.add(entry);
-        }
-      } finally {
-        close();
+        tzEntries.add(entry);
       }
 
       /* Now fetch the timezones from the primary - no db needed
        */
 
-      for (final TzEntry entry : tzEntries) {
-        if (debug()) {
-          debug("Fetching timezone " + entry.id);
-        }
+      final Map<String, String> etags = new HashMap<>();
 
+      for (final TzEntry entry : tzEntries) {
         String etag = null;
         if (entry.dbspec != null) {
           etag = entry.dbspec.getEtag();
         }
 
-        final long startFetch = System.currentTimeMillis();
-        final TaggedTimeZone ttz = tzs.getTimeZone(entry.id, etag);
+        etags.put(entry.id, etag);
+      }
+
+      final long startFetch = System.currentTimeMillis();
+
+      final PrimaryFetcher fetcher =
+              new PrimaryFetcher(() -> {
+                final Timezones cl = new TimezonesImpl();
+                cl.init(cfg.getPrimaryUrl());
+
+                return cl;
+              },
+                                 cfg.getPrimaryFetchThreads(),
+                                 cfg.getPrimaryFetchTimeout(),
+                                 cfg.getPrimaryFetchRetries());
+
+      final Map<String, TaggedTimeZone> fetched = fetcher.fetch(etags);
 
-        fetchTime += System.currentTimeMillis() - startFetch;
+      fetchTime = System.currentTimeMillis() - startFetch;
+
+      for (final TzEntry entry : tzEntries) {
+        final TaggedTimeZone ttz = fetched.get(entry.id);
 
         if ((ttz != null) && (ttz.vtz == null)) {
           // No change
@@ -688,92 +1062,94 @@ public class LdbCachedData extends AbstractCachedData {
 
       final AliasMaps amaps = buildAliasMaps();
 
-      try {
-        open();
+      for (final TzEntry entry : tzEntries) {
+        if (debug()) {
+          debug("Processing timezone " + entry.id);
+        }
 
-        for (final TzEntry entry : tzEntries) {
+        if (entry.ttz == null) {
           if (debug()) {
-            debug("Processing timezone " + entry.id);
-          }
-
-          if (entry.ttz == null) {
-            if (debug()) {
-              debug("No change.");
-            }
-            continue;
+            debug("No change.");
           }
+          continue;
+        }
 
-          final boolean add = entry.dbspec == null;
+        final boolean add = entry.dbspec == null;
 
-          if (add) {
-            // Create a new one
-            entry.dbspec = new TzDbSpec();
-          }
+        if (add) {
+          // Create a new one
+          entry.dbspec = new TzDbSpec();
+        }
 
-          entry.dbspec.setName(entry.id);
-          entry.dbspec.setEtag(entry.ttz.etag);
-          entry.dbspec.setDtstamp(DateTimeUtil.rfcDateTimeUTC(
-                  entry.sum.getLastModified()));
-          entry.dbspec.setSource(cfg.getPrimaryUrl());
-          entry.dbspec.setActive(true);
-          entry.dbspec.setVtimezone(entry.ttz.vtz);
+        entry.dbspec.setName(entry.id);
+        entry.dbspec.setEtag(entry.ttz.etag);
+        entry.dbspec.setDtstamp(DateTimeUtil.rfcDateTimeUTC(
+                entry.sum.getLastModified()));
+        entry.dbspec.setSource(cfg.getPrimaryUrl());
+        entry.dbspec.setActive(true);
+        entry.dbspec.setVtimezone(entry.ttz.vtz);
 
-          if (!Util.isEmpty(entry.sum.getLocalNames())) {
-            final Set<LocalizedString> dns;
+        if (!Util.isEmpty(entry.sum.getLocalNames())) {
+          final Set<LocalizedString> dns;
 
-            if (add) {
-              dns = new TreeSet<>();
-              entry.dbspec.setDisplayNames(dns);
-            } else {
-              dns = entry.dbspec.getDisplayNames();
-              dns.clear(); // XXX not good - forces delete and recreate
-            }
+          if (add) {
+            dns = new TreeSet<>();
+            entry.dbspec.setDisplayNames(dns);
+          } else {
+            dns = entry.dbspec.getDisplayNames();
+            dns.clear(); // XXX not good - forces delete and recreate
+          }
 
-            for (final LocalNameType ln : entry.sum.getLocalNames()) {
-              final LocalizedString ls =
-                      new LocalizedString(ln.getLang(),
-                                          ln.getValue());
+          for (final LocalNameType ln : entry.sum.getLocalNames()) {
+            final LocalizedString ls =
+                    new LocalizedString(ln.getLang(),
+                                        ln.getValue());
 
-              dns.add(ls);
-            }
+            dns.add(ls);
           }
+        }
 
-          putTzSpec(entry.dbspec);
+        putTzSpec(batch, entry.dbspec);
+        changed.add(entry.id);
+        lastUpdateCt++;
 
-          /* Get all aliases for this id */
-          final SortedSet<String> aliases = amaps.byTzid.get(entry.id);
+        /* Get all aliases for this id */
+        final SortedSet<String> aliases = amaps.byTzid.get(entry.id);
 
-          if (!Util.isEmpty(entry.sum.getAliases())) {
-            for (final String a : entry.sum.getAliases()) {
-              TzAlias tza = amaps.byAlias.get(a);
+        if (!Util.isEmpty(entry.sum.getAliases())) {
+          for (final String a : entry.sum.getAliases()) {
+            TzAlias tza = amaps.byAlias.get(a);
 
-              if (tza == null) {
-                tza = new TzAlias(a);
-              }
+            if (tza == null) {
+              tza = new TzAlias(a);
+            }
 
-              tza.addTargetId(entry.id);
+            tza.addTargetId(entry.id);
 
-              putTzAlias(tza);
+            putTzAlias(batch, tza);
 
-              /* We've seen this alias. Remove from the list */
-              if (aliases != null) {
-                aliases.remove(a);
-              }
+            /* We've seen this alias. Remove from the list */
+            if (aliases != null) {
+              aliases.remove(a);
             }
           }
+        }
+
+        if (aliases != null) {
+          /* remaining aliases should be deleted */
+          for (final String alias: aliases) {
+            final TzAlias tza = getTzAlias(batch, alias);
 
-          if (aliases != null) {
-            /* remaining aliases should be deleted */
-            for (final String alias: aliases) {
-              final TzAlias tza = getTzAlias(alias);
-              removeTzAlias(tza);
+            if (tza != null) {
+              removeTzAlias(batch, tza);
             }
           }
         }
-      } finally {
-        close();
       }
 
+      // Last - marks the sync as complete
+      putString(batch, syncTokenKey, svrCs);
+
       info("Total time: " +
                    TzServerUtil.printableTime(
                            System.currentTimeMillis() - startTime));
@@ -790,16 +1166,15 @@ public class LdbCachedData extends AbstractCachedData {
     return true;
   }
 
-  private void updateFromDiffEntry(final String dtstamp,
+  private void updateFromDiffEntry(final LdbHandle.Batch batch,
+                                   final String dtstamp,
                                    final AliasMaps amaps,
                                    final DiffListEntry dle) throws TzException {
     try {
-      open();
-
       final String id = dle.tzid;
 
       if (!dle.aliasChangeOnly) {
-        TzDbSpec dbspec = getSpec(id);
+        TzDbSpec dbspec = getSpec(batch, id);
 
         if (dbspec != null) {
           if (dle.add) {
@@ -822,7 +1197,7 @@ public class LdbCachedData extends AbstractCachedData {
 
         // XXX Localized names?
 
-        putTzSpec(dbspec);
+        putTzSpec(batch, dbspec);
       }
 
       if (Util.isEmpty(dle.aliases)) {
@@ -832,7 +1207,7 @@ public class LdbCachedData extends AbstractCachedData {
       final SortedSet<String> aliases = amaps.byTzid.get(id);
 
       for (final String a: dle.aliases) {
-        TzAlias alias = getTzAlias(a);
+        TzAlias alias = getTzAlias(batch, a);
 
         if (alias == null) {
           alias = new TzAlias(a);
@@ -840,40 +1215,40 @@ public class LdbCachedData extends AbstractCachedData {
 
         alias.addTargetId(id);
 
-        putTzAlias(alias);
+        putTzAlias(batch, alias);
+
+        if (aliases != null) {
+          aliases.remove(a);
+        }
+      }
 
-        aliases.remove(a);
+      if (aliases == null) {
+        return;
       }
 
       /* remaining aliases should be deleted */
       for (final String alias: aliases) {
-        final TzAlias tza = getTzAlias(alias);
-        removeTzAlias(tza);
+        final TzAlias tza = getTzAlias(batch, alias);
+
+        if (tza != null) {
+          removeTzAlias(batch, tza);
+        }
       }
     } catch (final TzException tze) {
       throw tze;
     } catch (final Throwable t) {
       throw new TzException(t);
-    } finally {
-      close();
     }
   }
 
-  private boolean loadInitialData() throws TzException {
+  private boolean loadInitialData(final LdbHandle.Batch batch) throws TzException {
     try {
-      open();
-
       if (debug()) {
         debug("Loading initial data from " + cfg.getTzdataUrl());
       }
 
       final CachedData cachedData = TzServerUtil.getDataSource(cfg);
 
-      cfg.setDtstamp(cachedData.getDtstamp());
-      cfg.setSource(cachedData.getSource());
-
-      TzServerUtil.saveConfig();
-
       final List<TimezoneType> tzs = cachedData.getTimezones((String)null);
 
       if (debug()) {
@@ -885,7 +1260,7 @@ public class LdbCachedData extends AbstractCachedData {
       for (final TimezoneType tz: tzs) {
         if (tz.getAliases() != null) {
           for (final String a: tz.getAliases()) {
-            TzAlias alias = getTzAlias(a);
+            TzAlias alias = getTzAlias(batch, a);
 
             if (alias == null) {
               alias = new TzAlias(a);
@@ -893,7 +1268,7 @@ public class LdbCachedData extends AbstractCachedData {
 
             alias.addTargetId(tz.getTzid());
 
-            putTzAlias(alias);
+            putTzAlias(batch, alias);
           }
         }
 
@@ -914,7 +1289,7 @@ public class LdbCachedData extends AbstractCachedData {
         spec.setEtag(cachedData.getDtstamp());
         spec.setActive(true);
 
-        putTzSpec(spec);
+        putTzSpec(batch, spec);
 
         ct++;
         if (debug() && ((ct%25) == 0)) {
@@ -926,29 +1301,25 @@ public class LdbCachedData extends AbstractCachedData {
         debug("Initial load processed " + ct + " timezones");
       }
 
+      // Last - marks the load as complete
+      putString(batch, sourceKey, cachedData.getSource());
+      putString(batch, syncTokenKey, cachedData.getDtstamp());
+
       return true;
     } catch (final TzException te) {
       error("Unable to add tz data to db", te);
       throw te;
-    } finally {
-      close();
     }
   }
 
-  private TzDbSpec getSpec(final String id) throws TzException {
-    final byte[] specBytes = db.get(Iq80DBFactory.bytes(timezoneSpecPrefix + id));
-
-    if (specBytes == null) {
-      return null;
+  private AliasMaps buildAliasMaps() throws TzException {
+    try (LdbHandle.Reader rdr = getHandle().reader()) {
+      return buildAliasMaps(rdr);
     }
-
-    return getJson(specBytes, TzDbSpec.class);
   }
 
-  private AliasMaps buildAliasMaps() throws TzException {
+  private AliasMaps buildAliasMaps(final LdbHandle.Reader rdr) throws TzException {
     try {
-      open();
-
       final AliasMaps maps = new AliasMaps();
 
       maps.byTzid = new HashMap<>();
@@ -957,7 +1328,7 @@ public class LdbCachedData extends AbstractCachedData {
 
       final StringBuilder aliasStr = new StringBuilder();
 
-      try (DBIterator it = db.iterator()) {
+      try (DBIterator it = rdr.iterator()) {
         for(it.seekToFirst(); it.hasNext(); it.next()) {
           final String key = Iq80DBFactory.asString(it.peekNext().getKey());
 
@@ -965,8 +1336,7 @@ public class LdbCachedData extends AbstractCachedData {
             continue;
           }
 
-          final TzAlias alias = getJson(it.peekNext().getValue(),
-                                  TzAlias.class);
+          final TzAlias alias = decodeAlias(it.peekNext().getValue());
 
           final String aliasId = alias.getAliasId();
           final StringBuilder ids = new StringBuilder();
@@ -1005,18 +1375,37 @@ public class LdbCachedData extends AbstractCachedData {
       return maps;
     } catch (final Throwable t) {
       throw new TzException(t);
-    } finally {
-      close();
     }
   }
 
-  private void processSpecs(final String dtstamp) throws TzException {
-    try {
-      open();
+  /* Build a new snapshot from the db and make it the current data.
+   */
+  private void buildSnapshot() throws TzException {
+    final Snapshot snap = newSnapshot();
+
+    /* Token, aliases and specs from the same view of the db */
+    try (LdbHandle.Reader rdr = getHandle().reader()) {
+      snap.dtstamp = getSyncToken(rdr.get(syncTokenKey));
+
+      /* =================== Rebuild the alias maps ===================== */
+
+      snap.aliasMaps = buildAliasMaps(rdr);
+
+      /* =================== All tzs into the table ===================== */
 
-      resetTzs();
+      processSpecs(rdr, snap);
+    }
+
+    publish(snap);
+  }
 
-      try (DBIterator it = db.iterator()) {
+  private void processSpecs(final LdbHandle.Reader rdr,
+                            final Snapshot snap) throws TzException {
+    try {
+      final List<TzDbSpec> specs = new ArrayList<>();
+      final List<SpecSource> sources = new ArrayList<>();
+
+      try (DBIterator it = rdr.iterator()) {
         for(it.seekToFirst(); it.hasNext(); it.next()) {
           final String key = Iq80DBFactory.asString(it.peekNext().getKey());
 
@@ -1024,78 +1413,68 @@ public class LdbCachedData extends AbstractCachedData {
             continue;
           }
 
-          final TzDbSpec spec = getJson(it.peekNext().getValue(),
-                                        TzDbSpec.class);
-
-          String dt = spec.getDtstamp();
-          if (!dt.endsWith("Z")) {
-            // Pretend it's UTC
-            dt += "Z";
-          }
+          final TzDbSpec spec = decodeSpec(it.peekNext().getValue());
 
-          processSpec(spec.getName(), 
-                      spec.getVtimezone(),
-                      spec.getEtag(),
-                      XcalUtil.getXmlFormatDateTime(dt));
+          specs.add(spec);
+          sources.add(new SpecSource(spec.getName(),
+                                     () -> parseDef(spec.getVtimezone()),
+                                     storedDtstamp(spec)));
         }
       }
+
+      processSpecs(snap, sources);
+
+      for (final TzDbSpec spec: specs) {
+        addDisplayNames(snap, spec.getName(), spec.getDisplayNames());
+      }
     } catch (final TzException te) {
       throw te;
     } catch (final Throwable t) {
       throw new TzException(t);
-    } finally {
-      close();
     }
   }
 
-  private DB getDb() throws TzException {
-    if (db != null) {
-      return db;
-    }
-
+  private void processDbSpec(final Snapshot snap,
+                             final TzDbSpec spec) throws TzException {
     try {
-      if ((lastConfigLevelDbPath == null) ||
-          (!lastConfigLevelDbPath.equals(cfg.getLeveldbPath()))) {
-        lastConfigLevelDbPath = cfg.getLeveldbPath();
-
-        if (debug()) {
-          debug("Try to open leveldb at " + lastConfigLevelDbPath);
-        }
-
-        final File f = new File(lastConfigLevelDbPath);
-
-        if (!f.isAbsolute()) {
-          throw new TzException("levelDbPath must be absolute - found " +
-                                lastConfigLevelDbPath);
-        }
+      processSpec(snap,
+                  spec.getName(),
+                  spec.getVtimezone(),
+                  storedDtstamp(spec));
 
-        levelDbPath = lastConfigLevelDbPath;
-      }
-
-      final Options options = new Options();
-      options.createIfMissing(true);
-      db = Iq80DBFactory.factory.open(new File(levelDbPath), options);
+      addDisplayNames(snap, spec.getName(), spec.getDisplayNames());
+    } catch (final TzException te) {
+      throw te;
     } catch (final Throwable t) {
-      // Always bad.
-      error(t);
       throw new TzException(t);
     }
+  }
+
+  private static String storedDtstamp(final TzDbSpec spec) {
+    String dt = spec.getDtstamp();
+    if (!dt.endsWith("Z")) {
+      // Pretend it's UTC
+      dt += "Z";
+    }
 
-    return db;
+    return XcalUtil.getXmlFormatDateTime(dt);
   }
 
-  private void closeDb() {
-    if (db == null) {
-      return;
+  /* Either format - json is only found in an unconverted db */
+  private TzDbSpec decodeSpec(final byte[] value) throws TzException {
+    if (LdbCodec.isBinary(value)) {
+      return LdbCodec.decodeSpec(value);
     }
 
-    try {
-      db.close();
-      db = null;
-    } catch (Throwable t) {
-      warn("Error closing db: " + t.getMessage());
-      error(t);
+    return getJson(value, TzDbSpec.class);
+  }
+
+  private TzAlias decodeAlias(final byte[] value) throws TzException {
+    if (LdbCodec.isBinary(value)) {
+      return LdbCodec.decodeAlias(value);
     }
+
+    return getJson(value, TzAlias.class);
   }
 
   /** ===================================================================
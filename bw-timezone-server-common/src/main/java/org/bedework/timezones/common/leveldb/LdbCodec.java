@@ -0,0 +1,336 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.db.LocalizedString;
+import org.bedework.timezones.common.db.TzAlias;
+import org.bedework.timezones.common.db.TzDbSpec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** Binary encoding of the records we store in leveldb.
+ *
+ * <p>A record is a marker byte, which can never start a json value, a
+ * format version and a record type followed by the fields. Strings
+ * are a 4 byte length (-1 for null) and UTF-8 bytes.</p>
+ *
+ * <p>A spec decodes its small fields immediately. The vtimezone and
+ * display names are only decoded when asked for, so looking at the
+ * etag or dtstamp of a spec costs almost nothing.</p>
+ *
+ * @author douglm
+ */
+public class LdbCodec {
+  /** Current format version */
+  public static final int version = 1;
+
+  private static final byte marker = (byte)0xB7;
+
+  private static final byte typeSpec = 'S';
+
+  private static final byte typeAlias = 'A';
+
+  /* marker, version, type */
+  private static final int headerSize = 3;
+
+  /** A spec which decodes its large fields on first use.
+   */
+  private static class LazySpec extends TzDbSpec {
+    private final byte[] data;
+
+    private final int vtzPos;
+
+    private boolean vtzDecoded;
+
+    private boolean namesDecoded;
+
+    LazySpec(final byte[] data,
+             final int vtzPos) {
+      this.data = data;
+      this.vtzPos = vtzPos;
+    }
+
+    @Override
+    public void setVtimezone(final String val) {
+      vtzDecoded = true;
+      super.setVtimezone(val);
+    }
+
+    @Override
+    public String getVtimezone() {
+      if (!vtzDecoded) {
+        super.setVtimezone(readString(data, vtzPos));
+        vtzDecoded = true;
+      }
+
+      return super.getVtimezone();
+    }
+
+    @Override
+    public void setDisplayNames(final Set<LocalizedString> val) {
+      namesDecoded = true;
+      super.setDisplayNames(val);
+    }
+
+    @Override
+    public Set<LocalizedString> getDisplayNames() {
+      if (!namesDecoded) {
+        super.setDisplayNames(readNames(data,
+                                        vtzPos + stringSize(data, vtzPos)));
+        namesDecoded = true;
+      }
+
+      return super.getDisplayNames();
+    }
+  }
+
+  /**
+   * @param val stored value
+   * @return true if it's in our format rather than json
+   */
+  public static boolean isBinary(final byte[] val) {
+    return (val != null) && (val.length >= headerSize) &&
+            (val[0] == marker);
+  }
+
+  /**
+   * @param val the spec
+   * @return encoded bytes
+   */
+  public static byte[] encode(final TzDbSpec val) {
+    final Encoder enc = new Encoder(typeSpec);
+
+    enc.string(val.getName());
+    enc.string(val.getEtag());
+    enc.string(val.getDtstamp());
+    enc.string(val.getSource());
+    enc.bool(val.getActive());
+    enc.string(val.getVtimezone());
+
+    final Set<LocalizedString> names = val.getDisplayNames();
+
+    if (names == null) {
+      enc.integer(-1);
+    } else {
+      enc.integer(names.size());
+
+      for (final LocalizedString ls: names) {
+        enc.string(ls.getLang());
+        enc.string(ls.getValue());
+      }
+    }
+
+    return enc.toByteArray();
+  }
+
+  /**
+   * @param val the alias
+   * @return encoded bytes
+   */
+  public static byte[] encode(final TzAlias val) {
+    final Encoder enc = new Encoder(typeAlias);
+
+    enc.string(val.getAliasId());
+
+    final List<String> ids = val.getTargetIds();
+
+    if (ids == null) {
+      enc.integer(-1);
+    } else {
+      enc.integer(ids.size());
+
+      for (final String id: ids) {
+        enc.string(id);
+      }
+    }
+
+    return enc.toByteArray();
+  }
+
+  /**
+   * @param val encoded bytes
+   * @return the spec
+   * @throws TzException if not a spec in a format we know
+   */
+  public static TzDbSpec decodeSpec(final byte[] val) throws TzException {
+    int pos = checkHeader(val, typeSpec);
+
+    final String name = readString(val, pos);
+    pos += stringSize(val, pos);
+    final String etag = readString(val, pos);
+    pos += stringSize(val, pos);
+    final String dtstamp = readString(val, pos);
+    pos += stringSize(val, pos);
+    final String source = readString(val, pos);
+    pos += stringSize(val, pos);
+    final boolean active = val[pos] != 0;
+    pos++;
+
+    final LazySpec spec = new LazySpec(val, pos);
+
+    spec.setName(name);
+    spec.setEtag(etag);
+    spec.setDtstamp(dtstamp);
+    spec.setSource(source);
+    spec.setActive(active);
+
+    return spec;
+  }
+
+  /**
+   * @param val encoded bytes
+   * @return the alias
+   * @throws TzException if not an alias in a format we know
+   */
+  public static TzAlias decodeAlias(final byte[] val) throws TzException {
+    int pos = checkHeader(val, typeAlias);
+
+    final TzAlias alias = new TzAlias(readString(val, pos));
+    pos += stringSize(val, pos);
+
+    final int ct = readInt(val, pos);
+    pos += 4;
+
+    if (ct < 0) {
+      return alias;
+    }
+
+    final List<String> ids = new ArrayList<>(ct);
+
+    for (int i = 0; i < ct; i++) {
+      ids.add(readString(val, pos));
+      pos += stringSize(val, pos);
+    }
+
+    alias.setTargetIds(ids);
+
+    return alias;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static class Encoder extends ByteArrayOutputStream {
+    Encoder(final byte type) {
+      super(256);
+
+      write(marker);
+      write(version);
+      write(type);
+    }
+
+    void integer(final int val) {
+      write(val >>> 24);
+      write(val >>> 16);
+      write(val >>> 8);
+      write(val);
+    }
+
+    void bool(final boolean val) {
+      write(val ? 1 : 0);
+    }
+
+    void string(final String val) {
+      if (val == null) {
+        integer(-1);
+        return;
+      }
+
+      final byte[] b = val.getBytes(StandardCharsets.UTF_8);
+
+      integer(b.length);
+      write(b, 0, b.length);
+    }
+  }
+
+  /* Returns position after the header */
+  private static int checkHeader(final byte[] val,
+                                 final byte type) throws TzException {
+    if (!isBinary(val)) {
+      throw new TzException("Not a binary record");
+    }
+
+    if (val[1] > version) {
+      throw new TzException("Unsupported record version " + val[1]);
+    }
+
+    if (val[2] != type) {
+      throw new TzException("Expected record type " + (char)type +
+                                    " found " + (char)val[2]);
+    }
+
+    return headerSize;
+  }
+
+  private static int readInt(final byte[] val,
+                             final int pos) {
+    return ((val[pos] & 0xff) << 24) |
+            ((val[pos + 1] & 0xff) << 16) |
+            ((val[pos + 2] & 0xff) << 8) |
+            (val[pos + 3] & 0xff);
+  }
+
+  /* Bytes taken by the string at pos including its length */
+  private static int stringSize(final byte[] val,
+                                final int pos) {
+    return 4 + Math.max(0, readInt(val, pos));
+  }
+
+  private static String readString(final byte[] val,
+                                   final int pos) {
+    final int len = readInt(val, pos);
+
+    if (len < 0) {
+      return null;
+    }
+
+    return new String(val, pos + 4, len, StandardCharsets.UTF_8);
+  }
+
+  private static Set<LocalizedString> readNames(final byte[] val,
+                                                final int start) {
+    int pos = start;
+    final int ct = readInt(val, pos);
+    pos += 4;
+
+    if (ct < 0) {
+      return null;
+    }
+
+    final Set<LocalizedString> names = new TreeSet<>();
+
+    for (int i = 0; i < ct; i++) {
+      final String lang = readString(val, pos);
+      pos += stringSize(val, pos);
+      final String value = readString(val, pos);
+      pos += stringSize(val, pos);
+
+      names.add(new LocalizedString(lang, value));
+    }
+
+    return names;
+  }
+}
@@ -0,0 +1,404 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.timezones.common.TzException;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A leveldb database opened once and shared by everything using the
+ * same path.
+ *
+ * <p>Leveldb allows only one open per process so a reload, which builds
+ * a new cache before stopping the old one, must share the handle. The
+ * handle is reference counted and the database closed when the last
+ * user releases it.</p>
+ *
+ * <p>Readers take a {@link Reader} which reads from a leveldb snapshot
+ * and never waits. Writers serialise on {@link #lockWrite()} and group
+ * their updates in a {@link Batch}.</p>
+ *
+ * @author douglm
+ */
+class LdbHandle implements Logged {
+  private static final Map<String, LdbHandle> handles = new HashMap<>();
+
+  private final String path;
+
+  private final DB db;
+
+  /* Users of the handle including open readers */
+  private final AtomicInteger refs = new AtomicInteger(1);
+
+  /* Guarded by handles */
+  private boolean closed;
+
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /** A consistent view of the db as it was when the reader was created.
+   */
+  class Reader implements AutoCloseable {
+    private final Snapshot snapshot;
+    private final ReadOptions opts;
+
+    Reader() throws TzException {
+      retain();
+
+      try {
+        snapshot = db.getSnapshot();
+        opts = new ReadOptions().snapshot(snapshot);
+      } catch (final Throwable t) {
+        release();
+        throw new TzException(t);
+      }
+    }
+
+    /**
+     * @param key the key
+     * @return value or null
+     */
+    byte[] get(final String key) {
+      return db.get(Iq80DBFactory.bytes(key), opts);
+    }
+
+    /**
+     * @return iterator over the snapshot - caller must close
+     */
+    DBIterator iterator() {
+      return db.iterator(opts);
+    }
+
+    @Override
+    public void close() {
+      try {
+        snapshot.close();
+      } catch (final Throwable t) {
+        warn("Error closing snapshot: " + t.getMessage());
+      }
+
+      release();
+    }
+  }
+
+  /** Updates applied to the db together. With no size limit everything
+   * is one atomic write on commit. With a limit the updates are written
+   * in chunks of that size, the last one on commit - so anything which
+   * marks the update as complete should be the last thing put.
+   *
+   * <p>Gets see updates made through the batch which are not yet
+   * written. Only use while holding the write lock.</p>
+   */
+  class Batch implements AutoCloseable {
+    private final int maxSize;
+
+    private final WriteOptions opts;
+
+    private WriteBatch wb;
+
+    /* Unwritten updates - null value for a delete */
+    private final Map<String, byte[]> pending = new HashMap<>();
+
+    private long written;
+
+    Batch(final int maxSize,
+          final boolean sync) {
+      this.maxSize = maxSize;
+      opts = new WriteOptions().sync(sync);
+    }
+
+    /**
+     * @param key the key
+     * @return value including unwritten updates or null
+     */
+    byte[] get(final String key) {
+      if (pending.containsKey(key)) {
+        return pending.get(key);
+      }
+
+      return db.get(Iq80DBFactory.bytes(key));
+    }
+
+    /**
+     * @param key the key
+     * @param val the value
+     * @throws TzException on write error
+     */
+    void put(final String key,
+             final byte[] val) throws TzException {
+      batch().put(Iq80DBFactory.bytes(key), val);
+      pending.put(key, val);
+      checkSize();
+    }
+
+    /**
+     * @param key the key
+     * @throws TzException on write error
+     */
+    void delete(final String key) throws TzException {
+      batch().delete(Iq80DBFactory.bytes(key));
+      pending.put(key, null);
+      checkSize();
+    }
+
+    /** Write anything outstanding.
+     *
+     * @throws TzException on write error
+     */
+    void commit() throws TzException {
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      try {
+        db.write(wb, opts);
+        written += pending.size();
+      } catch (final Throwable t) {
+        throw new TzException(t);
+      } finally {
+        discard();
+      }
+    }
+
+    /**
+     * @return number of updates written so far
+     */
+    long getWritten() {
+      return written;
+    }
+
+    /** Discards anything not committed.
+     */
+    @Override
+    public void close() {
+      discard();
+    }
+
+    private WriteBatch batch() {
+      if (wb == null) {
+        wb = db.createWriteBatch();
+      }
+
+      return wb;
+    }
+
+    private void checkSize() throws TzException {
+      if ((maxSize > 0) && (pending.size() >= maxSize)) {
+        commit();
+      }
+    }
+
+    private void discard() {
+      pending.clear();
+
+      if (wb == null) {
+        return;
+      }
+
+      try {
+        wb.close();
+      } catch (final Throwable t) {
+        warn("Error closing write batch: " + t.getMessage());
+      }
+
+      wb = null;
+    }
+  }
+
+  private LdbHandle(final String path,
+                    final DB db) {
+    this.path = path;
+    this.db = db;
+  }
+
+  /** Get the handle for the path, opening the database if needed.
+   * Each call must be matched by a call to {@link #release()}.
+   *
+   * @param path absolute path of the database
+   * @return handle
+   * @throws TzException on error
+   */
+  static LdbHandle acquire(final String path) throws TzException {
+    final File f = new File(path);
+
+    if (!f.isAbsolute()) {
+      throw new TzException("levelDbPath must be absolute - found " +
+                                    path);
+    }
+
+    synchronized (handles) {
+      final LdbHandle h = handles.get(path);
+
+      if (h != null) {
+        if (h.tryRetain()) {
+          return h;
+        }
+
+        /* Last user released it but has not closed it yet */
+        h.closeDb();
+        handles.remove(path);
+      }
+
+      try {
+        final Options options = new Options();
+        options.createIfMissing(true);
+
+        final LdbHandle nh =
+                new LdbHandle(path, Iq80DBFactory.factory.open(f, options));
+
+        if (nh.debug()) {
+          nh.debug("Opened leveldb at " + path);
+        }
+
+        handles.put(path, nh);
+
+        return nh;
+      } catch (final Throwable t) {
+        throw new TzException(t);
+      }
+    }
+  }
+
+  /** Drop a reference. The db is closed when the last is dropped.
+   */
+  void release() {
+    if (refs.decrementAndGet() > 0) {
+      return;
+    }
+
+    synchronized (handles) {
+      /* No one can retain once we hit zero */
+      handles.remove(path, this);
+      closeDb();
+    }
+  }
+
+  /**
+   * @return a reader on a snapshot of the current data - must be closed
+   * @throws TzException if the db is closed
+   */
+  Reader reader() throws TzException {
+    return new Reader();
+  }
+
+  /** Start a batch of updates. Only use while holding the write lock.
+   *
+   * @param maxSize updates per write - 0 for no limit
+   * @param sync true to sync each write to disk
+   * @return an empty batch - must be closed
+   */
+  Batch batch(final int maxSize,
+              final boolean sync) {
+    return new Batch(maxSize, sync);
+  }
+
+  /** The db for single writes and for reads that must see them. Only
+   * use while holding the write lock.
+   *
+   * @return the db
+   */
+  DB getDb() {
+    return db;
+  }
+
+  /** Serialise updates. Reads do not need this.
+   */
+  void lockWrite() {
+    writeLock.lock();
+  }
+
+  /**
+   */
+  void unlockWrite() {
+    writeLock.unlock();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void retain() throws TzException {
+    if (!tryRetain()) {
+      throw new TzException("Leveldb at " + path + " is closed");
+    }
+  }
+
+  private boolean tryRetain() {
+    while (true) {
+      final int ct = refs.get();
+
+      if (ct <= 0) {
+        return false;
+      }
+
+      if (refs.compareAndSet(ct, ct + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /* Called holding handles */
+  private void closeDb() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    try {
+      db.close();
+
+      if (debug()) {
+        debug("Closed leveldb at " + path);
+      }
+    } catch (final Throwable t) {
+      warn("Error closing db: " + t.getMessage());
+      error(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,330 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.timezones.common.LatencyHistogram;
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.TzMetrics;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+import org.bedework.util.timezones.Timezones;
+import org.bedework.util.timezones.Timezones.TaggedTimeZone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Fetches timezones from the primary a number at a time.
+ *
+ * <p>A fixed number of workers take ids from a shared queue so no more
+ * than that many requests are outstanding. Each attempt has a timeout
+ * and failures are retried with exponential backoff. If any timezone
+ * still can't be fetched the whole fetch fails, so a sync never
+ * records a token for data it doesn't have.</p>
+ *
+ * <p>Virtual threads are used when the JVM has them, otherwise daemon
+ * platform threads.</p>
+ *
+ * @author douglm
+ */
+class PrimaryFetcher implements Logged {
+  /** Creates a client for the primary. Lets the fetcher be pointed at
+   * a stand-in.
+   */
+  interface ClientFactory {
+    /**
+     * @return an initialised client
+     * @throws Throwable on error
+     */
+    Timezones newClient() throws Throwable;
+  }
+
+  static final int defaultThreads = 8;
+
+  static final long defaultTimeout = 30;
+
+  static final int defaultRetries = 3;
+
+  private static final long initialBackoffMillis = 250;
+
+  private static final long maxBackoffMillis = 10000;
+
+  private static final LatencyHistogram fetchTimer =
+          TzMetrics.timer("primary_fetch_seconds",
+                          "Time taken by successful fetches of a " +
+                                  "timezone from the primary",
+                          "");
+
+  private static final LongAdder retries =
+          TzMetrics.counter("primary_fetch_retries_total",
+                            "Fetches from the primary retried after a " +
+                                    "failure or timeout");
+
+  private static final LongAdder timeouts =
+          TzMetrics.counter("primary_fetch_timeouts_total",
+                            "Fetches from the primary which timed out");
+
+  private final ClientFactory factory;
+
+  private final int threads;
+
+  private final long timeoutMillis;
+
+  private final int maxRetries;
+
+  /* Idle clients - a client is only used by one fetch at a time */
+  private final Queue<Timezones> clients = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param factory creates clients
+   * @param threads concurrent fetches - 0 or less for default
+   * @param timeout per attempt in seconds - 0 or less for default
+   * @param retries per timezone - negative for default
+   */
+  PrimaryFetcher(final ClientFactory factory,
+                 final int threads,
+                 final long timeout,
+                 final int retries) {
+    this.factory = factory;
+    this.threads = (threads <= 0) ? defaultThreads : threads;
+    timeoutMillis = 1000 * ((timeout <= 0) ? defaultTimeout : timeout);
+    maxRetries = (retries < 0) ? defaultRetries : retries;
+  }
+
+  /**
+   * @return histogram of successful fetch times
+   */
+  static LatencyHistogram getFetchTimer() {
+    return fetchTimer;
+  }
+
+  /**
+   * @return total retries
+   */
+  static long getRetries() {
+    return retries.sum();
+  }
+
+  /**
+   * @return total timeouts
+   */
+  static long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  /** Fetch every timezone in the map.
+   *
+   * @param etags tzid to the etag we have - value null if none
+   * @return tzid to result. No entry if the primary doesn't have it. A
+   *         null vtz in the result if unchanged.
+   * @throws TzException if any fetch failed after retries
+   */
+  Map<String, TaggedTimeZone> fetch(final Map<String, String> etags) throws TzException {
+    final Map<String, TaggedTimeZone> results = new ConcurrentHashMap<>();
+
+    if (etags.isEmpty()) {
+      return results;
+    }
+
+    final Queue<String> ids = new ConcurrentLinkedQueue<>(etags.keySet());
+    final AtomicReference<TzException> failure = new AtomicReference<>();
+    final AtomicInteger done = new AtomicInteger();
+
+    final ExecutorService exec = newExecutor();
+
+    try {
+      final List<Future<?>> workers = new ArrayList<>();
+      final int n = Math.min(threads, etags.size());
+
+      for (int i = 0; i < n; i++) {
+        workers.add(exec.submit(() -> {
+          while (failure.get() == null) {
+            final String id = ids.poll();
+
+            if (id == null) {
+              return;
+            }
+
+            try {
+              final TaggedTimeZone ttz = fetchOne(exec, id, etags.get(id));
+
+              if (ttz != null) {
+                results.put(id, ttz);
+              }
+
+              final int ct = done.incrementAndGet();
+              if (debug() && ((ct % 50) == 0)) {
+                debug("Fetched " + ct + " of " + etags.size());
+              }
+            } catch (final TzException te) {
+              failure.compareAndSet(null, te);
+            }
+          }
+        }));
+      }
+
+      for (final Future<?> f: workers) {
+        f.get();
+      }
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TzException(ie);
+    } catch (final ExecutionException ee) {
+      throw new TzException(ee.getCause());
+    } finally {
+      // Interrupt anything stuck
+      exec.shutdownNow();
+    }
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+
+    return results;
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private TaggedTimeZone fetchOne(final ExecutorService exec,
+                                  final String id,
+                                  final String etag) throws TzException {
+    long backoff = initialBackoffMillis;
+    int attempt = 0;
+
+    while (true) {
+      final long start = System.nanoTime();
+      final Future<TaggedTimeZone> f = exec.submit(() -> get(id, etag));
+      Throwable cause;
+
+      try {
+        final TaggedTimeZone ttz = f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        fetchTimer.recordSince(start);
+
+        return ttz;
+      } catch (final TimeoutException te) {
+        f.cancel(true);
+        timeouts.increment();
+        cause = te;
+      } catch (final ExecutionException ee) {
+        cause = ee.getCause();
+      } catch (final InterruptedException ie) {
+        f.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new TzException(ie);
+      }
+
+      if (attempt >= maxRetries) {
+        error("Unable to fetch " + id + " after " + (attempt + 1) +
+                      " attempts: " + cause);
+        throw new TzException(cause);
+      }
+
+      attempt++;
+      retries.increment();
+
+      if (debug()) {
+        debug("Retry " + attempt + " for " + id + " after " + cause);
+      }
+
+      try {
+        // Jitter so the workers don't retry in step
+        Thread.sleep(backoff +
+                             ThreadLocalRandom.current().nextLong(backoff));
+      } catch (final InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new TzException(ie);
+      }
+
+      backoff = Math.min(backoff * 2, maxBackoffMillis);
+    }
+  }
+
+  private TaggedTimeZone get(final String id,
+                             final String etag) throws Exception {
+    try {
+      Timezones client = clients.poll();
+
+      if (client == null) {
+        client = factory.newClient();
+      }
+
+      final TaggedTimeZone ttz = client.getTimeZone(id, etag);
+
+      // Only reused if it completed
+      clients.add(client);
+
+      return ttz;
+    } catch (final Exception e) {
+      throw e;
+    } catch (final Throwable t) {
+      // Client exceptions are not Exceptions
+      throw new Exception(t);
+    }
+  }
+
+  private ExecutorService newExecutor() {
+    try {
+      // Java 21 and later
+      return (ExecutorService)Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor")
+              .invoke(null);
+    } catch (final Throwable ignored) {
+    }
+
+    final AtomicInteger ct = new AtomicInteger();
+
+    return Executors.newCachedThreadPool(r -> {
+      final Thread t = new Thread(r, "PrimaryFetch-" + ct.incrementAndGet());
+      t.setDaemon(true);
+
+      return t;
+    });
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
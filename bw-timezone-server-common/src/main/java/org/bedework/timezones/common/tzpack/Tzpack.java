@@ -0,0 +1,136 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.tzpack;
+
+import java.nio.ByteBuffer;
+
+/** Layout of a tzpack file - a single file snapshot of the timezone
+ * data which is memory mapped and served without parsing.
+ *
+ * <p>All values are big-endian. A reference is a 4 byte absolute file
+ * offset and a 4 byte length, with a length of -1 for null. Strings
+ * are UTF-8.</p>
+ *
+ * <pre>
+ *   header        magic, version, file length, counts, section offsets
+ *                 and references to the dtstamp, source and aliases
+ *   zone index    fixed size records sorted by the UTF-8 bytes of the
+ *                 tzid: tzid, full body, vtimezone, body etag,
+ *                 compiled table, summary, last modified
+ *   alias index   fixed size records sorted by alias: alias, full
+ *                 body, vtimezone, body etag, target ids
+ *   data          everything referenced from the above
+ * </pre>
+ *
+ * <p>The vtimezone reference usually points into the body so the text
+ * is only stored once.</p>
+ *
+ * @author douglm
+ */
+final class Tzpack {
+  static final int magic = 0x545A504B; // "TZPK"
+
+  static final int version = 1;
+
+  /* ======================== header ========================= */
+
+  static final int hdrMagic = 0;
+  static final int hdrVersion = 4;
+  static final int hdrLength = 8;
+  static final int hdrZoneCount = 12;
+  static final int hdrAliasCount = 16;
+  static final int hdrZoneIndex = 20;
+  static final int hdrAliasIndex = 24;
+  static final int hdrDtstamp = 28;
+  static final int hdrSource = 36;
+  static final int hdrAliasesStr = 44;
+
+  static final int headerSize = 52;
+
+  /* ===================== zone records ====================== */
+
+  static final int zoneName = 0;
+  static final int zoneBody = 8;
+  static final int zoneVtz = 16;
+  static final int zoneEtag = 24;
+  static final int zoneCompiled = 32;
+  static final int zoneSummary = 40;
+  static final int zoneLastMod = 48;
+
+  static final int zoneRecSize = 56;
+
+  /* ===================== alias records ===================== */
+
+  static final int aliasName = 0;
+  static final int aliasBody = 8;
+  static final int aliasVtz = 16;
+  static final int aliasEtag = 24;
+  static final int aliasTargets = 32;
+
+  static final int aliasRecSize = 40;
+
+  private Tzpack() {
+  }
+
+  /** Unsigned byte comparison - the sort order of the indexes.
+   *
+   * @param a bytes
+   * @param b bytes
+   * @return usual comparator result
+   */
+  static int compare(final byte[] a,
+                     final byte[] b) {
+    final int len = Math.min(a.length, b.length);
+
+    for (int i = 0; i < len; i++) {
+      final int res = (a[i] & 0xff) - (b[i] & 0xff);
+
+      if (res != 0) {
+        return res;
+      }
+    }
+
+    return a.length - b.length;
+  }
+
+  /** Compare the bytes at a reference with the key without copying.
+   *
+   * @param buf the pack
+   * @param refPos position of the reference
+   * @param key bytes
+   * @return usual comparator result
+   */
+  static int compare(final ByteBuffer buf,
+                     final int refPos,
+                     final byte[] key) {
+    final int off = buf.getInt(refPos);
+    final int len = buf.getInt(refPos + 4);
+    final int min = Math.min(len, key.length);
+
+    for (int i = 0; i < min; i++) {
+      final int res = (buf.get(off + i) & 0xff) - (key[i] & 0xff);
+
+      if (res != 0) {
+        return res;
+      }
+    }
+
+    return len - key.length;
+  }
+}
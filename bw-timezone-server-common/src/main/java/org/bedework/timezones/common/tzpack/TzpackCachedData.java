@@ -0,0 +1,1124 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.tzpack;
+
+import org.bedework.timezones.common.AbstractCachedData;
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.CompiledTimezone;
+import org.bedework.timezones.common.Differ.DiffListEntry;
+import org.bedework.timezones.common.EncodedBody;
+import org.bedework.timezones.common.ExpandedMapEntry;
+import org.bedework.timezones.common.ExpandedMapEntryKey;
+import org.bedework.timezones.common.ExpansionCache;
+import org.bedework.timezones.common.LastModIndex;
+import org.bedework.timezones.common.LatencyHistogram;
+import org.bedework.timezones.common.Stat;
+import org.bedework.timezones.common.TruncationCache;
+import org.bedework.timezones.common.TzConfig;
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.TzSearchIndex;
+import org.bedework.timezones.common.TzServerUtil;
+import org.bedework.timezones.common.db.TzAlias;
+import org.bedework.util.caching.FlushMap;
+import org.bedework.util.calendar.IcalToXcal;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import ietf.params.xml.ns.icalendar_2.IcalendarType;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+
+/** Timezone data served directly from a memory mapped tzpack file.
+ *
+ * <p>Opening a pack checks the header and walks the indexes, so a
+ * corrupt pack fails to open rather than while serving. Nothing else
+ * is decoded, so startup costs little and the data lives in the page
+ * cache rather than the heap.
+ * Bodies, compiled tables and parsed forms are decoded on demand and a
+ * bounded number of them are kept.</p>
+ *
+ * <p>The data is read only. Changes are made by rebuilding the pack
+ * from another source, see {@link TzpackWriter}. That source is kept
+ * running behind the pack so a secondary still syncs from its primary
+ * and a primary still takes updates. When the source changes the pack
+ * is rewritten and a new instance maps it.</p>
+ *
+ * @author douglm
+ */
+public class TzpackCachedData implements Logged, CachedData {
+  private final TzConfig cfg;
+
+  private final File file;
+
+  private final ByteBuffer buf;
+
+  private final int zoneCount;
+  private final int aliasCount;
+  private final int zoneIndex;
+  private final int aliasIndex;
+
+  private final String dtstamp;
+
+  private final long generation;
+
+  private final long openMillis;
+
+  private final ExpansionCache expansions;
+
+  /* The data the pack was built from - null once stopped or handed on */
+  private CachedData source;
+
+  /* Generation of the source the pack was written from - -1 if not */
+  private long sourceGeneration = -1;
+
+  private boolean stopped;
+
+  private final LatencyHistogram expandTimer =
+          TzServerUtil.expandTimer(getName());
+
+  /* Decoded on demand - bounded */
+  private final Map<String, EncodedBody> bodies =
+          Collections.synchronizedMap(new FlushMap<>());
+
+  /* At most one per alias in the pack */
+  private final Map<String, FutureTask<EncodedBody>> aliasedBodies =
+          new ConcurrentHashMap<>();
+
+  /* The fixed windows built for every zone. Keyed by tzid or alias
+     then by window */
+  private final Map<String, Map<String, EncodedBody>> keptTruncations =
+          new ConcurrentHashMap<>();
+
+  /* Any other windows */
+  private final TruncationCache truncations = new TruncationCache();
+
+  private final Map<String, CompiledTimezone> compiledTzs =
+          Collections.synchronizedMap(new FlushMap<>());
+
+  private final Map<String, TimeZone> timeZones =
+          Collections.synchronizedMap(new FlushMap<>());
+
+  /* At most one per id or alias in the pack */
+  private final Map<String, FutureTask<IcalendarType>> xtzs =
+          new ConcurrentHashMap<>();
+
+  private final Map<String, FutureTask<IcalendarType>> aliasedXtzs =
+          new ConcurrentHashMap<>();
+
+  /* Built on first use - a race just builds them twice */
+  private volatile SortedSet<String> nameList;
+
+  private volatile List<TimezoneType> timezones;
+
+  private volatile TzSearchIndex index;
+
+  private volatile LastModIndex lastMods;
+
+  /**
+   * @param cfg the configuration - tzpackPath must be set
+   * @param source the pack was written from or null to attach later
+   * @param sourceGeneration generation of the source when written
+   * @throws TzException if the pack is missing or not valid
+   */
+  public TzpackCachedData(final TzConfig cfg,
+                          final CachedData source,
+                          final long sourceGeneration) throws TzException {
+    this.cfg = cfg;
+    this.source = source;
+    this.sourceGeneration = sourceGeneration;
+
+    final long start = System.currentTimeMillis();
+
+    if (cfg.getTzpackPath() == null) {
+      throw new TzException("No tzpackPath");
+    }
+
+    file = new File(cfg.getTzpackPath());
+
+    buf = map(file);
+
+    if ((buf.capacity() < Tzpack.headerSize) ||
+            (buf.getInt(Tzpack.hdrMagic) != Tzpack.magic)) {
+      throw new TzException("Not a tzpack: " + file);
+    }
+
+    if (buf.getInt(Tzpack.hdrVersion) != Tzpack.version) {
+      throw new TzException("Unsupported tzpack version " +
+                                    buf.getInt(Tzpack.hdrVersion) +
+                                    " in " + file);
+    }
+
+    if (buf.getInt(Tzpack.hdrLength) != buf.capacity()) {
+      throw new TzException("Truncated tzpack: " + file);
+    }
+
+    zoneCount = buf.getInt(Tzpack.hdrZoneCount);
+    aliasCount = buf.getInt(Tzpack.hdrAliasCount);
+    zoneIndex = buf.getInt(Tzpack.hdrZoneIndex);
+    aliasIndex = buf.getInt(Tzpack.hdrAliasIndex);
+
+    try {
+      validate();
+    } catch (final TzException te) {
+      throw te;
+    } catch (final RuntimeException re) {
+      throw new TzException("Corrupt tzpack " + file + ": " + re);
+    }
+
+    dtstamp = string(Tzpack.hdrDtstamp);
+
+    expansions = new ExpansionCache(cfg.getExpansionCacheMaxWeight(),
+                                    cfg.getExpansionCacheTtl());
+
+    generation = AbstractCachedData.nextGeneration();
+
+    openMillis = System.currentTimeMillis() - start;
+
+    info("Opened tzpack " + file + " with " + zoneCount +
+                 " timezones in " + openMillis + " millis");
+  }
+
+  /** Attach the source for a pack opened without one.
+   *
+   * @param val the source
+   * @return false if we are already stopped
+   * @throws TzException
+   */
+  public synchronized boolean attachSource(final CachedData val) throws TzException {
+    if (stopped) {
+      return false;
+    }
+
+    source = val;
+
+    if (dtstamp.equals(val.getDtstamp())) {
+      sourceGeneration = val.getGeneration();
+    } else {
+      sourceGeneration = -1;
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the source the pack was built from or null
+   */
+  public synchronized CachedData getSourceData() {
+    return source;
+  }
+
+  /** Give up the source - a new pack written from it takes it over.
+   *
+   * @return the source or null
+   */
+  public synchronized CachedData detachSource() {
+    final CachedData s = source;
+
+    source = null;
+
+    return s;
+  }
+
+  /**
+   * @return true if the source has changed since the pack was written
+   */
+  public synchronized boolean isStale() {
+    return (source != null) &&
+            (source.getGeneration() != sourceGeneration);
+  }
+
+  /* ====================================================================
+   *                   CachedData methods
+   * ==================================================================== */
+
+  @Override
+  public void stop() throws TzException {
+    final CachedData s;
+
+    synchronized (this) {
+      stopped = true;
+      s = detachSource();
+    }
+
+    if (s != null) {
+      s.stop();
+    }
+
+    // The mapping goes when we are collected
+  }
+
+  @Override
+  public void pauseUpdates() throws TzException {
+    final CachedData s = getSourceData();
+
+    if (s != null) {
+      s.pauseUpdates();
+    }
+  }
+
+  @Override
+  public void resumeUpdates() throws TzException {
+    final CachedData s = getSourceData();
+
+    if (s != null) {
+      s.resumeUpdates();
+    }
+  }
+
+  @Override
+  public String getSource() throws TzException {
+    return string(Tzpack.hdrSource);
+  }
+
+  @Override
+  public String getName() {
+    return "Tzpack";
+  }
+
+  @Override
+  public LatencyHistogram getExpandTimer() {
+    return expandTimer;
+  }
+
+  @Override
+  public List<Stat> getStats() throws TzException {
+    final List<Stat> stats = new ArrayList<>();
+
+    stats.add(new Stat("Tzpack #tzs", zoneCount));
+    stats.add(new Stat("Tzpack #aliases", aliasCount));
+    stats.add(new Stat("Tzpack dtstamp", dtstamp));
+    stats.add(new Stat("Tzpack generation", generation));
+    stats.add(new Stat("Tzpack file size", buf.capacity()));
+    stats.add(new Stat("Tzpack open millis", openMillis));
+    stats.addAll(expansions.getStats("Tzpack"));
+    stats.addAll(truncations.getStats("Tzpack"));
+
+    final CachedData s = getSourceData();
+
+    if (s != null) {
+      stats.addAll(s.getStats());
+    }
+
+    return stats;
+  }
+
+  @Override
+  public ExpansionCache getExpansions() {
+    return expansions;
+  }
+
+  @Override
+  public void checkData() throws TzException {
+    // The pack is rewritten if the source changes
+    final CachedData s = getSourceData();
+
+    if (s != null) {
+      s.checkData();
+    }
+  }
+
+  @Override
+  public void updateData(final String dtstamp,
+                         final List<DiffListEntry> dles) throws TzException {
+    final CachedData s = getSourceData();
+
+    if (s == null) {
+      throw new TzException("Tzpack data is read only - " +
+                                    "update the source and rebuild the pack");
+    }
+
+    // The pack is rewritten once the source publishes
+    s.updateData(dtstamp, dles);
+  }
+
+  @Override
+  public String getDtstamp() throws TzException {
+    return dtstamp;
+  }
+
+  @Override
+  public long getGeneration() {
+    return generation;
+  }
+
+  @Override
+  public TzAlias fromAlias(final String val) throws TzException {
+    final int rec = findAlias(val);
+
+    if (rec < 0) {
+      return null;
+    }
+
+    final TzAlias alias = new TzAlias(val);
+
+    for (final String id: targets(rec)) {
+      alias.addTargetId(id);
+    }
+
+    return alias;
+  }
+
+  @Override
+  public String getAliasesStr() throws TzException {
+    return string(Tzpack.hdrAliasesStr);
+  }
+
+  @Override
+  public SortedSet<String> findAliases(final String tzid) throws TzException {
+    final TimezoneType tz = summary(findZone(tzid));
+
+    if ((tz == null) || (tz.getAliases() == null)) {
+      return null;
+    }
+
+    return new TreeSet<>(tz.getAliases());
+  }
+
+  @Override
+  public SortedSet<String> getNameList() throws TzException {
+    SortedSet<String> nl = nameList;
+
+    if (nl == null) {
+      nl = new TreeSet<>();
+
+      for (int i = 0; i < zoneCount; i++) {
+        nl.add(string(zoneRec(i) + Tzpack.zoneName));
+      }
+
+      nl = Collections.unmodifiableSortedSet(nl);
+      nameList = nl;
+    }
+
+    return nl;
+  }
+
+  @Override
+  public void setExpanded(final ExpandedMapEntryKey key,
+                          final ExpandedMapEntry tzs) throws TzException {
+    expansions.put(key, tzs);
+  }
+
+  @Override
+  public ExpandedMapEntry getExpanded(final ExpandedMapEntryKey key) throws TzException {
+    return expansions.get(key);
+  }
+
+  @Override
+  public EncodedBody getTruncatedTzBody(final String name,
+                                        final String start,
+                                        final String end) throws TzException {
+    final Map<String, EncodedBody> bodies = keptTruncations.get(name);
+
+    if (bodies != null) {
+      final EncodedBody body = bodies.get(start + "/" + end);
+
+      if (body != null) {
+        return body;
+      }
+    }
+
+    return truncations.get(TruncationCache.key(name, start, end));
+  }
+
+  @Override
+  public void setTruncatedTzBody(final String name,
+                                 final String start,
+                                 final String end,
+                                 final EncodedBody body,
+                                 final boolean keep) throws TzException {
+    if (keep) {
+      keptTruncations.computeIfAbsent(
+              name, k -> new ConcurrentHashMap<>()).put(start + "/" + end,
+                                                        body);
+      return;
+    }
+
+    truncations.put(TruncationCache.key(name, start, end), body);
+  }
+
+  @Override
+  public CompiledTimezone getCompiledTimezone(final String tzid) throws TzException {
+    CompiledTimezone ctz = compiledTzs.get(tzid);
+
+    if (ctz != null) {
+      return ctz;
+    }
+
+    final int rec = findZone(tzid);
+
+    if (rec < 0) {
+      return null;
+    }
+
+    final ByteBuffer b = slice(rec + Tzpack.zoneCompiled);
+
+    if (b == null) {
+      return null;
+    }
+
+    ctz = CompiledTimezone.read(b);
+    compiledTzs.put(tzid, ctz);
+
+    return ctz;
+  }
+
+  @Override
+  public EncodedBody getTzBody(final String tzid) throws TzException {
+    EncodedBody body = bodies.get(tzid);
+
+    if (body != null) {
+      return body;
+    }
+
+    final int rec = findZone(tzid);
+
+    if (rec < 0) {
+      return null;
+    }
+
+    body = body(rec + Tzpack.zoneBody, rec + Tzpack.zoneEtag,
+                buf.getLong(rec + Tzpack.zoneLastMod));
+
+    if (body != null) {
+      bodies.put(tzid, body);
+    }
+
+    return body;
+  }
+
+  @Override
+  public EncodedBody getAliasedTzBody(final String alias) throws TzException {
+    return AbstractCachedData.derive(aliasedBodies, alias, a -> {
+      final int rec = findAlias(a);
+
+      if (rec < 0) {
+        return null;
+      }
+
+      /* Same last modified as the target - as when built */
+      final List<String> targets = targets(rec);
+      long lastMod = -1;
+
+      if (!targets.isEmpty()) {
+        final int trec = findZone(targets.get(0));
+
+        if (trec >= 0) {
+          lastMod = buf.getLong(trec + Tzpack.zoneLastMod);
+        }
+      }
+
+      return body(rec + Tzpack.aliasBody, rec + Tzpack.aliasEtag, lastMod);
+    });
+  }
+
+  @Override
+  public String getCachedVtz(final String name) throws TzException {
+    final int rec = findZone(name);
+
+    if (rec < 0) {
+      return null;
+    }
+
+    return string(rec + Tzpack.zoneVtz);
+  }
+
+  @Override
+  public Collection<String> getAllCachedVtzs() throws TzException {
+    /* Decoded as iterated */
+    return new AbstractList<String>() {
+      @Override
+      public String get(final int i) {
+        return string(zoneRec(i) + Tzpack.zoneVtz);
+      }
+
+      @Override
+      public int size() {
+        return zoneCount;
+      }
+    };
+  }
+
+  @Override
+  public TimeZone getTimeZone(final String tzid) throws TzException {
+    TimeZone tz = timeZones.get(tzid);
+
+    if (tz != null) {
+      return tz;
+    }
+
+    final Calendar cal = parse(getCachedVtz(tzid));
+
+    if (cal == null) {
+      return null;
+    }
+
+    tz = new TimeZone(vtzFromCal(cal));
+    timeZones.put(tzid, tz);
+
+    return tz;
+  }
+
+  @Override
+  public IcalendarType getXTimeZone(final String tzid) throws TzException {
+    return AbstractCachedData.derive(xtzs, tzid,
+                                     id -> xcal(getCachedVtz(id)));
+  }
+
+  @Override
+  public IcalendarType getAliasedXTimeZone(final String tzid) throws TzException {
+    return AbstractCachedData.derive(aliasedXtzs, tzid,
+                                     a -> xcal(getAliasedCachedVtz(a)));
+  }
+
+  @Override
+  public String getAliasedCachedVtz(final String name) throws TzException {
+    final int rec = findAlias(name);
+
+    if (rec < 0) {
+      return null;
+    }
+
+    return string(rec + Tzpack.aliasVtz);
+  }
+
+  @Override
+  public List<TimezoneType> getTimezones(final String[] tzids) throws TzException {
+    final List<TimezoneType> ss = new ArrayList<>();
+
+    for (final String tzid: tzids) {
+      final TimezoneType t = summary(findZone(tzid));
+
+      if (t != null) {
+        ss.add(t);
+      }
+    }
+
+    return ss;
+  }
+
+  @Override
+  public List<TimezoneType> getTimezones(final String changedSince) throws TzException {
+    LastModIndex lmi = lastMods;
+
+    if (lmi == null) {
+      lmi = new LastModIndex(getAllTimezones());
+      lastMods = lmi;
+    }
+
+    return lmi.changedSince(changedSince);
+  }
+
+  @Override
+  public List<TimezoneType> findTimezones(final String name) throws TzException {
+    return findTimezones(name, null);
+  }
+
+  @Override
+  public List<TimezoneType> findTimezones(final String name,
+                                          final String lang) throws TzException {
+    final List<TimezoneType> sums = new ArrayList<>();
+
+    for (final String id: getIndex().find(name, lang)) {
+      final TimezoneType tz = summary(findZone(id));
+
+      if (tz != null) {
+        sums.add(tz);
+      }
+    }
+
+    return sums;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static ByteBuffer map(final File f) throws TzException {
+    try (FileChannel fc = FileChannel.open(f.toPath(),
+                                           StandardOpenOption.READ)) {
+      final MappedByteBuffer mbb =
+              fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+
+      return mbb;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* Check that every reference lies within the file, the indexes are
+   * in search order and the structures referenced decode within their
+   * bounds. Decoding errors show up as runtime exceptions.
+   */
+  private void validate() throws TzException {
+    if ((zoneCount < 0) || (aliasCount < 0)) {
+      throw corrupt("negative count");
+    }
+
+    checkRange(zoneIndex, (long)zoneCount * Tzpack.zoneRecSize);
+    checkRange(aliasIndex, (long)aliasCount * Tzpack.aliasRecSize);
+
+    checkRef(Tzpack.hdrDtstamp);
+    checkRef(Tzpack.hdrSource);
+    checkRef(Tzpack.hdrAliasesStr);
+
+    if (buf.getInt(Tzpack.hdrDtstamp + 4) < 0) {
+      throw corrupt("no dtstamp");
+    }
+
+    byte[] prev = null;
+
+    for (int i = 0; i < zoneCount; i++) {
+      final int rec = zoneRec(i);
+
+      prev = checkName(prev, rec + Tzpack.zoneName);
+      checkRef(rec + Tzpack.zoneBody);
+      checkRef(rec + Tzpack.zoneVtz);
+      checkRef(rec + Tzpack.zoneEtag);
+      checkRef(rec + Tzpack.zoneCompiled);
+      checkRef(rec + Tzpack.zoneSummary);
+
+      summary(rec);
+
+      final ByteBuffer b = slice(rec + Tzpack.zoneCompiled);
+
+      if (b != null) {
+        CompiledTimezone.read(b);
+
+        if (b.hasRemaining()) {
+          throw corrupt("compiled table length for " +
+                                string(rec + Tzpack.zoneName));
+        }
+      }
+    }
+
+    prev = null;
+
+    for (int i = 0; i < aliasCount; i++) {
+      final int rec = aliasRec(i);
+
+      prev = checkName(prev, rec + Tzpack.aliasName);
+      checkRef(rec + Tzpack.aliasBody);
+      checkRef(rec + Tzpack.aliasVtz);
+      checkRef(rec + Tzpack.aliasEtag);
+      checkRef(rec + Tzpack.aliasTargets);
+
+      targets(rec);
+    }
+  }
+
+  /* Names must be present and strictly ascending for the searches */
+  private byte[] checkName(final byte[] prev,
+                           final int refPos) throws TzException {
+    checkRef(refPos);
+
+    final byte[] name = bytes(refPos);
+
+    if (name == null) {
+      throw corrupt("missing name at " + refPos);
+    }
+
+    if ((prev != null) && (Tzpack.compare(prev, name) >= 0)) {
+      throw corrupt("index out of order at " + refPos);
+    }
+
+    return name;
+  }
+
+  private void checkRef(final int refPos) throws TzException {
+    final int len = buf.getInt(refPos + 4);
+
+    if (len == -1) {
+      return;
+    }
+
+    if (len < 0) {
+      throw corrupt("bad length at " + refPos);
+    }
+
+    checkRange(buf.getInt(refPos), len);
+  }
+
+  private void checkRange(final int off,
+                          final long len) throws TzException {
+    if ((off < Tzpack.headerSize) || (off + len > buf.capacity())) {
+      throw corrupt("reference outside the file: " + off + "/" + len);
+    }
+  }
+
+  private TzException corrupt(final String msg) {
+    return new TzException("Corrupt tzpack " + file + ": " + msg);
+  }
+
+  private int zoneRec(final int i) {
+    return zoneIndex + i * Tzpack.zoneRecSize;
+  }
+
+  private int aliasRec(final int i) {
+    return aliasIndex + i * Tzpack.aliasRecSize;
+  }
+
+  /* Position of the record or -1 */
+  private int findZone(final String tzid) {
+    if (tzid == null) {
+      return -1;
+    }
+
+    final byte[] key = tzid.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = zoneCount - 1;
+
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int rec = zoneRec(mid);
+      final int res = Tzpack.compare(buf, rec + Tzpack.zoneName, key);
+
+      if (res < 0) {
+        lo = mid + 1;
+      } else if (res > 0) {
+        hi = mid - 1;
+      } else {
+        return rec;
+      }
+    }
+
+    return -1;
+  }
+
+  private int findAlias(final String alias) {
+    if (alias == null) {
+      return -1;
+    }
+
+    final byte[] key = alias.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = aliasCount - 1;
+
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int rec = aliasRec(mid);
+      final int res = Tzpack.compare(buf, rec + Tzpack.aliasName, key);
+
+      if (res < 0) {
+        lo = mid + 1;
+      } else if (res > 0) {
+        hi = mid - 1;
+      } else {
+        return rec;
+      }
+    }
+
+    return -1;
+  }
+
+  /* A view of the referenced bytes or null. Views are independent so
+   * this is safe for concurrent use.
+   */
+  private ByteBuffer slice(final int refPos) {
+    final int off = buf.getInt(refPos);
+    final int len = buf.getInt(refPos + 4);
+
+    if (len < 0) {
+      return null;
+    }
+
+    final ByteBuffer b = buf.duplicate();
+    b.position(off);
+    b.limit(off + len);
+
+    return b.slice();
+  }
+
+  private byte[] bytes(final int refPos) {
+    final ByteBuffer b = slice(refPos);
+
+    if (b == null) {
+      return null;
+    }
+
+    final byte[] res = new byte[b.remaining()];
+    b.get(res);
+
+    return res;
+  }
+
+  private String string(final int refPos) {
+    final byte[] b = bytes(refPos);
+
+    if (b == null) {
+      return null;
+    }
+
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  private static String string(final ByteBuffer b) {
+    final int len = b.getInt();
+
+    if (len < 0) {
+      return null;
+    }
+
+    if (len > b.remaining()) {
+      throw new BufferUnderflowException();
+    }
+
+    final byte[] res = new byte[len];
+    b.get(res);
+
+    return new String(res, StandardCharsets.UTF_8);
+  }
+
+  /* A count of items of at least minSize bytes that must fit in what
+   * is left - so a corrupt count can't have us allocate huge lists.
+   */
+  private static int count(final ByteBuffer b,
+                           final int minSize) {
+    final int ct = b.getInt();
+
+    if ((ct < 0) || (ct > b.remaining() / minSize)) {
+      throw new BufferUnderflowException();
+    }
+
+    return ct;
+  }
+
+  private EncodedBody body(final int bodyPos,
+                           final int etagPos,
+                           final long lastModified) {
+    final byte[] b = bytes(bodyPos);
+
+    if (b == null) {
+      return null;
+    }
+
+    return new EncodedBody(b,
+                           "text/calendar; charset=UTF-8",
+                           string(etagPos),
+                           lastModified);
+  }
+
+  private List<String> targets(final int rec) {
+    final ByteBuffer b = slice(rec + Tzpack.aliasTargets);
+    final List<String> ids = new ArrayList<>();
+
+    if (b == null) {
+      return ids;
+    }
+
+    final int ct = count(b, 4);
+
+    for (int i = 0; i < ct; i++) {
+      ids.add(string(b));
+    }
+
+    return ids;
+  }
+
+  private TimezoneType summary(final int rec) {
+    if (rec < 0) {
+      return null;
+    }
+
+    final TimezoneType tz = new TimezoneType();
+
+    tz.setTzid(string(rec + Tzpack.zoneName));
+
+    final ByteBuffer b = slice(rec + Tzpack.zoneSummary);
+
+    if (b == null) {
+      return tz;
+    }
+
+    tz.setEtag(string(b));
+
+    final long lm = b.getLong();
+    if (lm >= 0) {
+      tz.setLastModified(new Date(lm));
+    }
+
+    final byte inactive = b.get();
+    if (inactive != 0) {
+      tz.setInactive(inactive == 2);
+    }
+
+    final int act = count(b, 4);
+    if (act > 0) {
+      final List<String> as = new ArrayList<>(act);
+
+      for (int i = 0; i < act; i++) {
+        as.add(string(b));
+      }
+
+      tz.setAliases(as);
+    }
+
+    final int lnct = count(b, 9);
+    if (lnct > 0) {
+      final List<LocalNameType> lns = new ArrayList<>(lnct);
+
+      for (int i = 0; i < lnct; i++) {
+        final LocalNameType ln = new LocalNameType();
+
+        ln.setLang(string(b));
+        ln.setValue(string(b));
+        ln.setPref(b.get() != 0);
+
+        lns.add(ln);
+      }
+
+      tz.setLocalNames(lns);
+    }
+
+    return tz;
+  }
+
+  /* The summaries are small and the list is asked for often */
+  private List<TimezoneType> getAllTimezones() {
+    List<TimezoneType> tzs = timezones;
+
+    if (tzs == null) {
+      tzs = new ArrayList<>(zoneCount);
+
+      for (int i = 0; i < zoneCount; i++) {
+        tzs.add(summary(zoneRec(i)));
+      }
+
+      tzs = Collections.unmodifiableList(tzs);
+      timezones = tzs;
+    }
+
+    return tzs;
+  }
+
+  private TzSearchIndex getIndex() {
+    TzSearchIndex idx = index;
+
+    if (idx != null) {
+      return idx;
+    }
+
+    final TzSearchIndex.Builder b = new TzSearchIndex.Builder();
+
+    for (final TimezoneType tz: getAllTimezones()) {
+      b.addTzid(tz.getTzid());
+
+      if (tz.getLocalNames() != null) {
+        for (final LocalNameType ln: tz.getLocalNames()) {
+          b.addName(tz.getTzid(), ln.getLang(), ln.getValue());
+        }
+      }
+    }
+
+    for (int i = 0; i < aliasCount; i++) {
+      final int rec = aliasRec(i);
+
+      b.addAlias(string(rec + Tzpack.aliasName), targets(rec));
+    }
+
+    idx = b.build();
+    index = idx;
+
+    return idx;
+  }
+
+  private IcalendarType xcal(final String vtz) throws TzException {
+    final Calendar cal = parse(vtz);
+
+    if (cal == null) {
+      return null;
+    }
+
+    try {
+      return IcalToXcal.fromIcal(cal, null, true);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  private Calendar parse(final String vtz) throws TzException {
+    if (vtz == null) {
+      return null;
+    }
+
+    try {
+      final CalendarBuilder cb = new CalendarBuilder();
+
+      final UnfoldingReader ufrdr = new UnfoldingReader(
+              new StringReader(TzServerUtil.getCalHdr() +
+                                       vtz +
+                                       TzServerUtil.getCalTlr()),
+              true);
+
+      return cb.build(ufrdr);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  private VTimeZone vtzFromCal(final Calendar cal) throws TzException {
+    final VTimeZone vtz =
+            (VTimeZone)cal.getComponents().getComponent(Component.VTIMEZONE);
+    if (vtz == null) {
+      throw new TzException("Incorrectly stored timezone");
+    }
+
+    return vtz;
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
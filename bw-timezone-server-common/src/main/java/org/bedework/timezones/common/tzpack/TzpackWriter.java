@@ -0,0 +1,415 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.tzpack;
+
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.CompiledTimezone;
+import org.bedework.timezones.common.EncodedBody;
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.db.TzAlias;
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.logging.Logged;
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+/** Write the data from any CachedData as a tzpack file.
+ *
+ * <p>The file is written alongside the target and renamed into place
+ * so a reader never sees a partly written pack.</p>
+ *
+ * @author douglm
+ */
+public class TzpackWriter implements Logged {
+  private final CachedData cd;
+
+  /* Everything after the indexes */
+  private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+  private final DataOutputStream dout = new DataOutputStream(data);
+
+  /* Absolute offset of the data section */
+  private int dataOff;
+
+  /**
+   * @param cd source of the data
+   */
+  public TzpackWriter(final CachedData cd) {
+    this.cd = cd;
+  }
+
+  /** Write the pack.
+   *
+   * @param f the file to (re)write
+   * @return number of timezones written
+   * @throws TzException on error
+   */
+  public int write(final File f) throws TzException {
+    try {
+      final Map<String, TimezoneType> sums = new HashMap<>();
+
+      for (final TimezoneType tz: cd.getTimezones((String)null)) {
+        sums.put(tz.getTzid(), tz);
+      }
+
+      final List<String> ids = sorted(cd.getNameList());
+
+      /* Every alias of every zone */
+      final Map<String, TzAlias> aliases = new HashMap<>();
+
+      for (final String id: ids) {
+        final SortedSet<String> as = cd.findAliases(id);
+
+        if (as == null) {
+          continue;
+        }
+
+        for (final String a: as) {
+          final TzAlias alias = cd.fromAlias(a);
+
+          if (alias != null) {
+            aliases.put(a, alias);
+          }
+        }
+      }
+
+      final List<String> aliasIds = sorted(aliases.keySet());
+
+      final int zoneIndex = Tzpack.headerSize;
+      final int aliasIndex = zoneIndex + ids.size() * Tzpack.zoneRecSize;
+      dataOff = aliasIndex + aliasIds.size() * Tzpack.aliasRecSize;
+
+      final ByteBuffer hdr = ByteBuffer.allocate(dataOff);
+
+      for (int i = 0; i < ids.size(); i++) {
+        writeZone(hdr, zoneIndex + i * Tzpack.zoneRecSize,
+                  ids.get(i), sums.get(ids.get(i)));
+      }
+
+      for (int i = 0; i < aliasIds.size(); i++) {
+        final String a = aliasIds.get(i);
+
+        writeAlias(hdr, aliasIndex + i * Tzpack.aliasRecSize,
+                   a, aliases.get(a));
+      }
+
+      ref(hdr, Tzpack.hdrDtstamp, string(cd.getDtstamp()));
+      ref(hdr, Tzpack.hdrSource, string(cd.getSource()));
+      ref(hdr, Tzpack.hdrAliasesStr, string(cd.getAliasesStr()));
+
+      dout.flush();
+
+      hdr.putInt(Tzpack.hdrMagic, Tzpack.magic);
+      hdr.putInt(Tzpack.hdrVersion, Tzpack.version);
+      hdr.putInt(Tzpack.hdrLength, dataOff + data.size());
+      hdr.putInt(Tzpack.hdrZoneCount, ids.size());
+      hdr.putInt(Tzpack.hdrAliasCount, aliasIds.size());
+      hdr.putInt(Tzpack.hdrZoneIndex, zoneIndex);
+      hdr.putInt(Tzpack.hdrAliasIndex, aliasIndex);
+
+      final File dir = f.getAbsoluteFile().getParentFile();
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new TzException("Unable to create " + dir);
+      }
+
+      final File tmp = new File(dir, f.getName() + ".tmp");
+
+      try (OutputStream os = new FileOutputStream(tmp)) {
+        os.write(hdr.array());
+        data.writeTo(os);
+      }
+
+      Files.move(tmp.toPath(), f.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+
+      info("Wrote tzpack " + f + " with " + ids.size() +
+                   " timezones and " + aliasIds.size() + " aliases");
+
+      return ids.size();
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private void writeZone(final ByteBuffer idx,
+                         final int pos,
+                         final String id,
+                         final TimezoneType sum) throws Throwable {
+    final EncodedBody body = cd.getTzBody(id);
+
+    ref(idx, pos + Tzpack.zoneName, string(id));
+
+    final byte[] bodyBytes = bytes(body);
+    final long[] bodyRef = raw(bodyBytes);
+    ref(idx, pos + Tzpack.zoneBody, bodyRef);
+    ref(idx, pos + Tzpack.zoneVtz,
+        vtz(bodyRef, bodyBytes, cd.getCachedVtz(id)));
+
+    if (body == null) {
+      ref(idx, pos + Tzpack.zoneEtag, nullRef);
+      idx.putLong(pos + Tzpack.zoneLastMod, -1);
+    } else {
+      ref(idx, pos + Tzpack.zoneEtag, string(body.getEtag()));
+      idx.putLong(pos + Tzpack.zoneLastMod, body.getLastModified());
+    }
+
+    final CompiledTimezone ctz = cd.getCompiledTimezone(id);
+
+    if (ctz == null) {
+      ref(idx, pos + Tzpack.zoneCompiled, nullRef);
+    } else {
+      final int start = dout.size();
+      ctz.write(dout);
+      ref(idx, pos + Tzpack.zoneCompiled,
+          new long[]{start, dout.size() - start});
+    }
+
+    ref(idx, pos + Tzpack.zoneSummary, summary(sum));
+  }
+
+  private void writeAlias(final ByteBuffer idx,
+                          final int pos,
+                          final String a,
+                          final TzAlias alias) throws Throwable {
+    ref(idx, pos + Tzpack.aliasName, string(a));
+
+    final EncodedBody body = cd.getAliasedTzBody(a);
+
+    final byte[] bodyBytes = bytes(body);
+    final long[] bodyRef = raw(bodyBytes);
+    ref(idx, pos + Tzpack.aliasBody, bodyRef);
+    ref(idx, pos + Tzpack.aliasVtz,
+        vtz(bodyRef, bodyBytes, cd.getAliasedCachedVtz(a)));
+
+    if (body == null) {
+      ref(idx, pos + Tzpack.aliasEtag, nullRef);
+    } else {
+      ref(idx, pos + Tzpack.aliasEtag, string(body.getEtag()));
+    }
+
+    final int start = dout.size();
+    final List<String> targets = alias.getTargetIds();
+
+    if (targets == null) {
+      dout.writeInt(0);
+    } else {
+      dout.writeInt(targets.size());
+      for (final String t: targets) {
+        putString(t);
+      }
+    }
+
+    ref(idx, pos + Tzpack.aliasTargets,
+        new long[]{start, dout.size() - start});
+  }
+
+  /* Summary: etag, last modified millis (-1 for none), inactive
+   * (0 unset, 1 false, 2 true), aliases and local names.
+   */
+  private long[] summary(final TimezoneType sum) throws IOException {
+    if (sum == null) {
+      return nullRef;
+    }
+
+    final int start = dout.size();
+
+    putString(sum.getEtag());
+
+    if (sum.getLastModified() == null) {
+      dout.writeLong(-1);
+    } else {
+      dout.writeLong(sum.getLastModified().getTime());
+    }
+
+    if (sum.getInactive() == null) {
+      dout.writeByte(0);
+    } else if (sum.getInactive()) {
+      dout.writeByte(2);
+    } else {
+      dout.writeByte(1);
+    }
+
+    final List<String> as = sum.getAliases();
+    if (as == null) {
+      dout.writeInt(0);
+    } else {
+      dout.writeInt(as.size());
+      for (final String a: as) {
+        putString(a);
+      }
+    }
+
+    final List<LocalNameType> lns = sum.getLocalNames();
+    if (lns == null) {
+      dout.writeInt(0);
+    } else {
+      dout.writeInt(lns.size());
+      for (final LocalNameType ln: lns) {
+        putString(ln.getLang());
+        putString(ln.getValue());
+        dout.writeBoolean(ln.isPref());
+      }
+    }
+
+    return new long[]{start, dout.size() - start};
+  }
+
+  private static byte[] bytes(final EncodedBody body) throws IOException {
+    if (body == null) {
+      return null;
+    }
+
+    final ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(body.getContentLength());
+    body.writeTo(bos);
+
+    return bos.toByteArray();
+  }
+
+  private long[] raw(final byte[] val) throws IOException {
+    if (val == null) {
+      return nullRef;
+    }
+
+    final int start = dout.size();
+    dout.write(val);
+
+    return new long[]{start, val.length};
+  }
+
+  /* Point into the body if the vtimezone is there - it normally is,
+   * between the calendar header and trailer.
+   */
+  private long[] vtz(final long[] bodyRef,
+                     final byte[] body,
+                     final String vtz) throws IOException {
+    if (vtz == null) {
+      return nullRef;
+    }
+
+    final byte[] b = vtz.getBytes(StandardCharsets.UTF_8);
+
+    if (body != null) {
+      for (int i = 0; i + b.length <= body.length; i++) {
+        if (regionMatches(body, i, b)) {
+          return new long[]{bodyRef[0] + i, b.length};
+        }
+      }
+    }
+
+    return raw(b);
+  }
+
+  private static boolean regionMatches(final byte[] all,
+                                       final int pos,
+                                       final byte[] b) {
+    for (int i = 0; i < b.length; i++) {
+      if (all[pos + i] != b[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private long[] string(final String val) throws IOException {
+    if (val == null) {
+      return nullRef;
+    }
+
+    return raw(val.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /* Inline string - length then bytes */
+  private void putString(final String val) throws IOException {
+    if (val == null) {
+      dout.writeInt(-1);
+      return;
+    }
+
+    final byte[] b = val.getBytes(StandardCharsets.UTF_8);
+
+    dout.writeInt(b.length);
+    dout.write(b);
+  }
+
+  private static final long[] nullRef = {0, -1};
+
+  /* Data relative offset and length into an absolute reference */
+  private void ref(final ByteBuffer buf,
+                   final int pos,
+                   final long[] ref) {
+    if (ref[1] < 0) {
+      buf.putInt(pos, 0);
+      buf.putInt(pos + 4, -1);
+      return;
+    }
+
+    buf.putInt(pos, dataOff + (int)ref[0]);
+    buf.putInt(pos + 4, (int)ref[1]);
+  }
+
+  private static List<String> sorted(final Iterable<String> vals) {
+    final TreeMap<byte[], String> tm = new TreeMap<>(Tzpack::compare);
+
+    for (final String s: vals) {
+      tm.put(s.getBytes(StandardCharsets.UTF_8), s);
+    }
+
+    return new ArrayList<>(tm.values());
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -130,6 +130,136 @@ public class TzConf extends ConfBase<TzConfigImpl> implements TzConfMBean, Confi
     return getConfig().getRefreshDelay();
   }
 
+  @Override
+  public void setExpansionCacheMaxWeight(final long val) {
+    getConfig().setExpansionCacheMaxWeight(val);
+  }
+
+  @Override
+  public long getExpansionCacheMaxWeight() {
+    return getConfig().getExpansionCacheMaxWeight();
+  }
+
+  @Override
+  public void setExpansionCacheTtl(final long val) {
+    getConfig().setExpansionCacheTtl(val);
+  }
+
+  @Override
+  public long getExpansionCacheTtl() {
+    return getConfig().getExpansionCacheTtl();
+  }
+
+  @Override
+  public void setLeveldbBatchSize(final int val) {
+    getConfig().setLeveldbBatchSize(val);
+  }
+
+  @Override
+  public int getLeveldbBatchSize() {
+    return getConfig().getLeveldbBatchSize();
+  }
+
+  @Override
+  public void setLeveldbSyncWrites(final boolean val) {
+    getConfig().setLeveldbSyncWrites(val);
+  }
+
+  @Override
+  public boolean getLeveldbSyncWrites() {
+    return getConfig().getLeveldbSyncWrites();
+  }
+
+  @Override
+  public void setPrimaryFetchThreads(final int val) {
+    getConfig().setPrimaryFetchThreads(val);
+  }
+
+  @Override
+  public int getPrimaryFetchThreads() {
+    return getConfig().getPrimaryFetchThreads();
+  }
+
+  @Override
+  public void setPrimaryFetchTimeout(final long val) {
+    getConfig().setPrimaryFetchTimeout(val);
+  }
+
+  @Override
+  public long getPrimaryFetchTimeout() {
+    return getConfig().getPrimaryFetchTimeout();
+  }
+
+  @Override
+  public void setPrimaryFetchRetries(final int val) {
+    getConfig().setPrimaryFetchRetries(val);
+  }
+
+  @Override
+  public int getPrimaryFetchRetries() {
+    return getConfig().getPrimaryFetchRetries();
+  }
+
+  @Override
+  public void setPrimaryLongPollWait(final int val) {
+    getConfig().setPrimaryLongPollWait(val);
+  }
+
+  @Override
+  public int getPrimaryLongPollWait() {
+    return getConfig().getPrimaryLongPollWait();
+  }
+
+  @Override
+  public void setTzpackPath(final String val) {
+    getConfig().setTzpackPath(val);
+  }
+
+  @Override
+  public String getTzpackPath() {
+    return getConfig().getTzpackPath();
+  }
+
+  @Override
+  public void setTzdataDigestUrl(final String val) {
+    getConfig().setTzdataDigestUrl(val);
+  }
+
+  @Override
+  public String getTzdataDigestUrl() {
+    return getConfig().getTzdataDigestUrl();
+  }
+
+  @Override
+  public void setWarmupKeys(final int val) {
+    getConfig().setWarmupKeys(val);
+  }
+
+  @Override
+  public int getWarmupKeys() {
+    return getConfig().getWarmupKeys();
+  }
+
+  @Override
+  public void setMetricsAddresses(final String val) {
+    getConfig().setMetricsAddresses(val);
+  }
+
+  @Override
+  public String getMetricsAddresses() {
+    return getConfig().getMetricsAddresses();
+  }
+
+  @Override
+  public void setMaxListWaiters(final int val) {
+    getConfig().setMaxListWaiters(val);
+  }
+
+  @Override
+  public int getMaxListWaiters() {
+    return getConfig().getMaxListWaiters();
+  }
+
   @Override
   public void setIndexerURL(final String val) {
     getConfig().setIndexerURL(val);
@@ -238,6 +368,16 @@ public class TzConf extends ConfBase<TzConfigImpl> implements TzConfMBean, Confi
     }
   }
 
+  @Override
+  public String writeTzpack(final String path) {
+    try {
+      return "Wrote " + TzServerUtil.writeTzpack(path) + " timezones";
+    } catch (final Throwable t) {
+      error(t);
+      return "Tzpack error: " + t.getLocalizedMessage();
+    }
+  }
+
   @Override
   public String checkData() {
     try {
@@ -66,6 +66,14 @@ public interface TzConfMBean extends TzConfig, ConfBaseMBean {
   @MBeanInfo("Update the data from the data at the given url.")
   String updateData(@MBeanInfo("Url of the data for update") String tzdataUrl);
 
+  /** Write the current data as a tzpack
+   *
+   * @param path of the file
+   * @return completion code.
+   */
+  @MBeanInfo("Write the current data as a tzpack file.")
+  String writeTzpack(@MBeanInfo("Absolute path of the file") String path);
+
   /** Check with primary source
    *
    * @return completion code.
@@ -0,0 +1,298 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.timezones.common.Differ.DiffListEntry;
+import org.bedework.timezones.common.db.TzAlias;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Aliased bodies are spliced from the target body but must be the
+ * same bytes, etag and length as the copied and renamed VTIMEZONE.
+ *
+ * @author douglm
+ */
+public class AliasBodyTest {
+  private static final String london =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:Europe/London\r\n" +
+          "LAST-MODIFIED:20200101T000000Z\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:+0000\r\n" +
+          "TZOFFSETTO:+0100\r\n" +
+          "TZNAME:BST\r\n" +
+          "DTSTART:19810329T010000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:+0100\r\n" +
+          "TZOFFSETTO:+0000\r\n" +
+          "TZNAME:GMT\r\n" +
+          "DTSTART:19961027T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  /* Non-ASCII names either side of the part that changes */
+  private static final String zurich =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:Europe/Z\u00fcrich\r\n" +
+          "X-LIC-LOCATION:Z\u00fcrich \ud83c\udfd4\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:+0200\r\n" +
+          "TZOFFSETTO:+0100\r\n" +
+          "TZNAME:MEZ \u00e9t\u00e9\r\n" +
+          "DTSTART:19961027T030000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:+0100\r\n" +
+          "TZOFFSETTO:+0200\r\n" +
+          "TZNAME:MESZ\r\n" +
+          "DTSTART:19810329T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  @Test
+  public void sameAsCopiedVtimezone() throws Throwable {
+    final Map<String, String> vtzs = new TreeMap<>();
+    vtzs.put("Europe/London", london);
+    vtzs.put("Europe/Z\u00fcrich", zurich);
+
+    final Properties aliases = new Properties();
+    aliases.setProperty("GB", "Europe/London");
+    aliases.setProperty("GB-Eire", "Europe/London");
+    aliases.setProperty("Europe/Belfast", "Europe/London,Europe/Dublin");
+    aliases.setProperty("Europe/Z\u00fcri", "Europe/Z\u00fcrich");
+    aliases.setProperty("\ud83c\udfd4", "Europe/Z\u00fcrich");
+
+    final Data data = new Data(vtzs, aliases);
+
+    for (final String alias: aliases.stringPropertyNames()) {
+      final EncodedBody body = data.getAliasedTzBody(alias);
+      final String avtz = data.copiedVtz(alias);
+      final EncodedBody old = new EncodedBody(
+              TzServerUtil.getCalHdr() + avtz + TzServerUtil.getCalTlr(),
+              "text/calendar; charset=UTF-8",
+              "\"" + TzServerUtil.digest(avtz) + "\"");
+
+      assertTrue(alias, body instanceof SplicedBody);
+      assertEquals(alias, old.getEtag(), body.getEtag());
+      assertEquals(alias, old.getContentType(), body.getContentType());
+      assertEquals(alias, old.getContentLength(), body.getContentLength());
+      assertArrayEquals(alias, bytes(old, null), bytes(body, null));
+      assertEquals(alias, avtz, data.getAliasedCachedVtz(alias));
+
+      /* Only a few bytes of its own */
+      assertTrue(alias, ((SplicedBody)body).getOwnLength() < 200);
+
+      checkVariants(old, body);
+    }
+
+    assertNull(data.getAliasedTzBody("Europe/Nowhere"));
+  }
+
+  @Test
+  public void splicedVariants() throws Throwable {
+    final EncodedBody base = new EncodedBody(
+            "BEGIN:VCALENDAR\nTZID:Europe/Z\u00fcrich\nEND:VCALENDAR\n",
+            "text/calendar", "\"base\"");
+    final EncodedBody full = new EncodedBody(
+            "BEGIN:VCALENDAR\nTZID:Z\u00fcri\n" +
+                    "TZID-ALIAS-OF:Europe/Z\u00fcrich\nEND:VCALENDAR\n",
+            "text/calendar", "\"full\"", 1000);
+
+    final EncodedBody spliced = SplicedBody.splice(base, full);
+
+    assertTrue(spliced instanceof SplicedBody);
+    assertEquals("\"full\"", spliced.getEtag());
+    assertEquals(1000, spliced.getLastModified());
+    assertArrayEquals(bytes(full, null), bytes(spliced, null));
+
+    checkVariants(full, spliced);
+
+    /* Never spliced from a spliced body */
+    assertTrue(SplicedBody.splice(spliced, full) == full);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badSplice() throws Throwable {
+    final EncodedBody base = new EncodedBody("abc", "text/plain", null);
+
+    SplicedBody.splice(base, 2, new byte[0], 2, "text/plain", null, -1);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Compressed output differs with the buffering so compare what it
+   * expands to.
+   */
+  private static void checkVariants(final EncodedBody expect,
+                                    final EncodedBody got) throws Throwable {
+    final byte[] content = bytes(expect, null);
+
+    for (final String enc: new String[]{EncodedBody.gzip,
+                                        EncodedBody.deflate}) {
+      assertEquals(expect.getEtag(enc), got.getEtag(enc));
+
+      final byte[] b = bytes(got, enc);
+      assertEquals(b.length, got.getContentLength(enc));
+
+      final InputStream is;
+      if (EncodedBody.gzip.equals(enc)) {
+        is = new GZIPInputStream(new ByteArrayInputStream(b));
+      } else {
+        is = new InflaterInputStream(new ByteArrayInputStream(b));
+      }
+
+      assertArrayEquals(enc, content, readAll(is));
+    }
+  }
+
+  private static byte[] bytes(final EncodedBody body,
+                              final String encoding) throws Throwable {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    body.writeTo(bos, encoding);
+
+    return bos.toByteArray();
+  }
+
+  private static byte[] readAll(final InputStream is) throws Throwable {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final byte[] buf = new byte[1024];
+
+    int len;
+    while ((len = is.read(buf)) > 0) {
+      bos.write(buf, 0, len);
+    }
+
+    return bos.toByteArray();
+  }
+
+  /* Loads the given vtimezones and aliases */
+  private static class Data extends AbstractCachedData {
+    private final Map<String, String> vtzs;
+
+    Data(final Map<String, String> vtzs,
+         final Properties aliases) throws TzException {
+      super(new TzConfigImpl(), "Test");
+
+      this.vtzs = vtzs;
+
+      final Snapshot snap = newSnapshot();
+
+      snap.dtstamp = "2020-01-01T00:00:00Z";
+      snap.aliasMaps = aliasMaps(aliases);
+
+      final List<SpecSource> sources = new ArrayList<>();
+
+      for (final Map.Entry<String, String> me: vtzs.entrySet()) {
+        sources.add(new SpecSource(
+                me.getKey(),
+                () -> parseDef(TzServerUtil.getCalHdr() + me.getValue() +
+                                       TzServerUtil.getCalTlr()),
+                null));
+      }
+
+      processSpecs(snap, sources);
+      publish(snap);
+    }
+
+    /* As aliased bodies were built before they were spliced */
+    String copiedVtz(final String alias) throws TzException {
+      final TzAlias a = getSnapshot().aliasMaps.byAlias.get(alias);
+      final String target = a.getTargetIds().get(0);
+
+      assertNotNull(vtzs.get(target));
+
+      return aliasVtz(alias,
+                      vtzFromCal(parseDef(TzServerUtil.getCalHdr() +
+                                                  getCachedVtz(target) +
+                                                  TzServerUtil.getCalTlr())),
+                      a.getTargetIds()).toString();
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public String getSource() {
+      return "test";
+    }
+
+    @Override
+    public void checkData() {
+    }
+
+    @Override
+    public void updateData(final String dtstamp,
+                           final List<DiffListEntry> dles) {
+    }
+
+    private static AliasMaps aliasMaps(final Properties aliases) {
+      final AliasMaps maps = new AliasMaps();
+
+      maps.aliases = aliases;
+      maps.aliasesStr = "";
+      maps.byTzid = new HashMap<>();
+      maps.byAlias = new HashMap<>();
+
+      for (final String aliasId: aliases.stringPropertyNames()) {
+        final TzAlias alias = new TzAlias(aliasId);
+
+        for (final String id: aliases.getProperty(aliasId).split(",")) {
+          alias.addTargetId(id);
+
+          final SortedSet<String> as =
+                  maps.byTzid.computeIfAbsent(id, k -> new TreeSet<>());
+          as.add(aliasId);
+        }
+
+        maps.byAlias.put(aliasId, alias);
+      }
+
+      return maps;
+    }
+  }
+}
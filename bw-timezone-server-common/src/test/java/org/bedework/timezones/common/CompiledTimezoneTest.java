@@ -0,0 +1,501 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.ObservanceType;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Compiled tables checked against the ical4j expansion of the same
+ * VTIMEZONE, across the compiled horizon, and through the binary form.
+ *
+ * @author douglm
+ */
+public class CompiledTimezoneTest {
+  /* US rules - rules with UNTIL then open ended rules from 2007 */
+  private static final String newYork =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:America/New_York\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:-0500\r\n" +
+          "TZOFFSETTO:-0400\r\n" +
+          "TZNAME:EDT\r\n" +
+          "DTSTART:19870405T020000\r\n" +
+          "RRULE:FREQ=YEARLY;UNTIL=20060402T070000Z;BYMONTH=4;BYDAY=1SU\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:-0400\r\n" +
+          "TZOFFSETTO:-0500\r\n" +
+          "TZNAME:EST\r\n" +
+          "DTSTART:19871025T020000\r\n" +
+          "RRULE:FREQ=YEARLY;UNTIL=20061029T060000Z;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:-0500\r\n" +
+          "TZOFFSETTO:-0400\r\n" +
+          "TZNAME:EDT\r\n" +
+          "DTSTART:20070311T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:-0400\r\n" +
+          "TZOFFSETTO:-0500\r\n" +
+          "TZNAME:EST\r\n" +
+          "DTSTART:20071104T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  /* A window rule (Friday on or after the 23rd) and a last Sunday */
+  private static final String jerusalem =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:Asia/Jerusalem\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:+0200\r\n" +
+          "TZOFFSETTO:+0300\r\n" +
+          "TZNAME:IDT\r\n" +
+          "DTSTART:20130329T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYMONTHDAY=23,24,25,26,27,28,29;BYDAY=FR\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:+0300\r\n" +
+          "TZOFFSETTO:+0200\r\n" +
+          "TZNAME:IST\r\n" +
+          "DTSTART:20131027T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  /* Observed DST for two years then stopped */
+  private static final String phoenix =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:America/Phoenix\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:-0600\r\n" +
+          "TZOFFSETTO:-0700\r\n" +
+          "TZNAME:MST\r\n" +
+          "DTSTART:19671029T020000\r\n" +
+          "RRULE:FREQ=YEARLY;UNTIL=19681027T080000Z;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:-0700\r\n" +
+          "TZOFFSETTO:-0600\r\n" +
+          "TZNAME:MDT\r\n" +
+          "DTSTART:19670430T020000\r\n" +
+          "RDATE:19680428T020000\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  /* No rules at all */
+  private static final String fixed =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:Etc/GMT+5\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:-0500\r\n" +
+          "TZOFFSETTO:-0500\r\n" +
+          "TZNAME:-05\r\n" +
+          "DTSTART:16010101T000000\r\n" +
+          "END:STANDARD\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  /* A rule form we can't extrapolate */
+  private static final String twoMonths =
+          "BEGIN:VTIMEZONE\r\n" +
+          "TZID:Test/TwoMonths\r\n" +
+          "BEGIN:DAYLIGHT\r\n" +
+          "TZOFFSETFROM:+0100\r\n" +
+          "TZOFFSETTO:+0200\r\n" +
+          "DTSTART:20000301T020000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3,4;BYMONTHDAY=1\r\n" +
+          "END:DAYLIGHT\r\n" +
+          "BEGIN:STANDARD\r\n" +
+          "TZOFFSETFROM:+0200\r\n" +
+          "TZOFFSETTO:+0100\r\n" +
+          "DTSTART:20001029T030000\r\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\r\n" +
+          "END:STANDARD\r\n" +
+          "END:VTIMEZONE\r\n";
+
+  @Test
+  public void expandMatchesIcal() throws Throwable {
+    for (final String def: new String[]{newYork, jerusalem,
+                                        phoenix, fixed}) {
+      final VTimeZone vtz = parse(def);
+      final CompiledTimezone ctz = compile(vtz);
+
+      assertTrue(ctz.getTzid(), ctz.getExtrapolatable());
+
+      checkExpand(ctz, vtz, 1960, 2060);
+    }
+  }
+
+  @Test
+  public void expandAcrossHorizon() throws Throwable {
+    final VTimeZone vtz = parse(newYork);
+    final CompiledTimezone ctz = compile(vtz);
+
+    /* Straddling, starting exactly at and wholly past the horizon */
+    checkExpand(ctz, vtz, 2036, 2040);
+    checkExpand(ctz, vtz, CompiledTimezone.compiledToYear, 2041);
+    checkExpand(ctz, vtz, 2045, 2047);
+    checkExpand(ctz, vtz, 2099, 2101);
+  }
+
+  @Test
+  public void getOffsetMatchesIcal() throws Throwable {
+    for (final String def: new String[]{newYork, jerusalem,
+                                        phoenix, fixed}) {
+      final VTimeZone vtz = parse(def);
+      final CompiledTimezone ctz = compile(vtz);
+      final TreeMap<Long, int[]> icalTrans = icalTransitions(vtz,
+                                                             1900, 2070);
+
+      for (final Long onset: icalTrans.keySet()) {
+        if ((onset < epoch(1960)) || (onset >= epoch(2060))) {
+          continue;
+        }
+
+        final int[] offs = icalTrans.get(onset);
+
+        assertEquals(ctz.getTzid() + " before " + onset,
+                     offs[0], ctz.getOffset(onset - 1));
+        assertEquals(ctz.getTzid() + " at " + onset,
+                     offs[1], ctz.getOffset(onset));
+      }
+
+      if (icalTrans.isEmpty()) {
+        continue;
+      }
+
+      /* Every day at noon utc through the horizon */
+      for (long t = epoch(2030) + 43200; t < epoch(2050);
+           t += 86400) {
+        final Long prev = icalTrans.floorKey(t);
+        final int expect = (prev == null) ?
+                           icalTrans.firstEntry().getValue()[0] :
+                           icalTrans.get(prev)[1];
+
+        assertEquals(ctz.getTzid() + " at " + t,
+                     expect, ctz.getOffset(t));
+      }
+    }
+  }
+
+  @Test
+  public void stoppedDst() throws Throwable {
+    final CompiledTimezone ctz = compile(parse(phoenix));
+
+    assertEquals(4, ctz.size());
+    assertTrue(ctz.covers(Long.MAX_VALUE));
+    assertTrue(ctz.expand(epoch(1970), epoch(2100)).isEmpty());
+    assertEquals(-7 * 3600, ctz.getOffset(epoch(2000)));
+    assertEquals(-7 * 3600, ctz.getOffset(epoch(2045) + 200 * 86400));
+  }
+
+  @Test
+  public void noRules() throws Throwable {
+    final CompiledTimezone ctz = compile(parse(fixed));
+
+    assertTrue(ctz.covers(Long.MAX_VALUE));
+    assertTrue(ctz.expand(epoch(1970), epoch(2100)).isEmpty());
+
+    for (final int yr: new int[]{1600, 1970, 2037, 2038, 2200}) {
+      assertEquals(-5 * 3600, ctz.getOffset(epoch(yr) + 1000));
+    }
+  }
+
+  @Test
+  public void notExtrapolatable() throws Throwable {
+    final VTimeZone vtz = parse(twoMonths);
+    final CompiledTimezone ctz = compile(vtz);
+
+    assertFalse(ctz.getExtrapolatable());
+    assertTrue(ctz.covers(CompiledTimezone.horizon));
+    assertFalse(ctz.covers(CompiledTimezone.horizon + 1));
+    assertNull(ctz.truncate("Test/TwoMonths", epoch(2000),
+                            Long.MAX_VALUE));
+
+    /* Still good before the horizon */
+    checkExpand(ctz, vtz, 2000, CompiledTimezone.compiledToYear);
+  }
+
+  @Test
+  public void truncateOpen() throws Throwable {
+    final VTimeZone vtz = parse(newYork);
+    final CompiledTimezone ctz = compile(vtz);
+
+    /* All within the open ended rules - just the RRULEs */
+    final String recent = ctz.truncate("America/New_York", epoch(2010),
+                                       Long.MAX_VALUE);
+
+    assertFalse(recent.contains("RDATE"));
+    assertTrue(recent.length() < newYork.length());
+    checkTruncated(ctz, recent, 2010, 2060);
+
+    /* Explicit only until the rules take over */
+    final String all = ctz.truncate("America/New_York", epoch(1970),
+                                    Long.MAX_VALUE);
+
+    for (final String line: all.split("\r\n")) {
+      if (line.startsWith("RDATE:")) {
+        assertTrue(line, line.compareTo("RDATE:2007") < 0);
+      }
+    }
+
+    checkTruncated(ctz, all, 1970, 2060);
+
+    /* Starting on a rule onset */
+    final long onset = LocalDateTime.of(2030, 3, 10, 7, 0)
+                                    .toEpochSecond(ZoneOffset.UTC);
+    final String atOnset = ctz.truncate("America/New_York", onset,
+                                        Long.MAX_VALUE);
+
+    assertEquals(2, atOnset.split("DTSTART").length - 1);
+    checkTruncated(ctz, atOnset, 2030, 2060);
+  }
+
+  @Test
+  public void truncateAlias() throws Throwable {
+    final CompiledTimezone ctz = compile(parse(newYork));
+    final String trunc = ctz.truncate("US/Eastern",
+                                      Arrays.asList("America/New_York"),
+                                      epoch(2010), Long.MAX_VALUE);
+
+    assertTrue(trunc.startsWith("BEGIN:VTIMEZONE\r\n" +
+                                        "TZID:US/Eastern\r\n" +
+                                        "TZID-ALIAS-OF:America/New_York\r\n"));
+
+    final VTimeZone avtz = parse(trunc);
+
+    assertEquals("US/Eastern", avtz.getTimeZoneId().getValue());
+    assertEquals("America/New_York",
+                 avtz.getProperty("TZID-ALIAS-OF").getValue());
+
+    /* Otherwise the same as the target */
+    assertEquals(ctz.truncate("US/Eastern", epoch(2010), Long.MAX_VALUE),
+                 trunc.replace("TZID-ALIAS-OF:America/New_York\r\n", ""));
+  }
+
+  @Test
+  public void writeRead() throws Throwable {
+    for (final String def: new String[]{newYork, jerusalem,
+                                        phoenix, fixed, twoMonths}) {
+      final CompiledTimezone ctz = compile(parse(def));
+
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ctz.write(new DataOutputStream(bos));
+
+      /* Trailing bytes must be left alone */
+      final byte[] b = bos.toByteArray();
+      final ByteBuffer buf = ByteBuffer.allocate(b.length + 4);
+      buf.put(b).putInt(0x5a5a5a5a).flip();
+
+      final CompiledTimezone rd = CompiledTimezone.read(buf);
+
+      assertEquals(b.length, buf.position());
+      assertEquals(0x5a5a5a5a, buf.getInt());
+
+      assertEquals(ctz.getTzid(), rd.getTzid());
+      assertEquals(ctz.size(), rd.size());
+      assertEquals(ctz.getExtrapolatable(), rd.getExtrapolatable());
+
+      final long end = ctz.getExtrapolatable() ? epoch(2060) :
+                       CompiledTimezone.horizon;
+
+      assertEquals(ctz.getTzid(),
+                   toStrings(ctz.expand(epoch(1960), end)),
+                   toStrings(rd.expand(epoch(1960), end)));
+
+      for (long t = epoch(1960); t < end; t += 7 * 86400 + 3607) {
+        assertEquals(ctz.getOffset(t), rd.getOffset(t));
+      }
+
+      assertEquals(ctz.truncate("X", epoch(1970), Long.MAX_VALUE),
+                   rd.truncate("X", epoch(1970), Long.MAX_VALUE));
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static void checkExpand(final CompiledTimezone ctz,
+                                  final VTimeZone vtz,
+                                  final int fromYear,
+                                  final int toYear) throws Throwable {
+    final long from = epoch(fromYear);
+    final long to = epoch(toYear);
+
+    assertTrue(ctz.covers(to));
+
+    final List<String> expect = new ArrayList<>();
+
+    for (final Long onset:
+            icalTransitions(vtz, fromYear - 1, toYear + 1).keySet()) {
+      if ((onset < from) || (onset >= to)) {
+        continue;
+      }
+
+      expect.add(String.valueOf(onset));
+    }
+
+    final List<String> got = new ArrayList<>();
+    for (final ObservanceType ot: ctz.expand(from, to)) {
+      got.add(String.valueOf(utcOnset(ot)));
+    }
+
+    assertEquals(ctz.getTzid() + " " + fromYear + "-" + toYear,
+                 expect, got);
+  }
+
+  /* ical4j expansion of the truncated form matches the table within
+   * the window
+   */
+  private static void checkTruncated(final CompiledTimezone ctz,
+                                     final String trunc,
+                                     final int fromYear,
+                                     final int toYear) throws Throwable {
+    final long from = epoch(fromYear);
+    final long to = epoch(toYear);
+    final List<String> expect = new ArrayList<>();
+
+    for (final ObservanceType ot: ctz.expand(from, to)) {
+      expect.add(String.valueOf(utcOnset(ot)));
+    }
+
+    final List<String> got = new ArrayList<>();
+
+    for (final Long onset:
+            icalTransitions(parse(trunc), fromYear - 1,
+                            toYear + 1).keySet()) {
+      if ((onset >= from) && (onset < to)) {
+        got.add(String.valueOf(onset));
+      }
+    }
+
+    assertEquals(ctz.getTzid() + " " + fromYear + "-" + toYear,
+                 expect, got);
+  }
+
+  /* Utc onset -> {from, to} from ical4j for a window of whole years.
+   * Onsets that change no offset are left out so a fixed zone has none.
+   */
+  private static TreeMap<Long, int[]> icalTransitions(final VTimeZone vtz,
+                                                      final int fromYear,
+                                                      final int toYear) throws Throwable {
+    final TreeMap<Long, int[]> res = new TreeMap<>();
+    final Period p = new Period(new DateTime(fromYear + "0101T000000Z"),
+                                new DateTime(toYear + "0101T000000Z"));
+
+    for (final Object o: vtz.getObservances()) {
+      final Observance ob = (Observance)o;
+
+      final int from =
+              (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000);
+      final int to =
+              (int)(ob.getOffsetTo().getOffset().getOffset() / 1000);
+
+      final PeriodList pl = ob.calculateRecurrenceSet(p);
+
+      for (final Object po: pl) {
+        final String local = ((Period)po).getStart().toString();
+
+        if (from == to) {
+          continue;
+        }
+
+        res.put(LocalDateTime.parse(local.substring(0, 15),
+                                    icalLocal)
+                             .toEpochSecond(ZoneOffset.UTC) - from,
+                new int[]{from, to});
+      }
+    }
+
+    return res;
+  }
+
+  private static final DateTimeFormatter icalLocal =
+          DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+  private static final DateTimeFormatter xmlLocal =
+          DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+  private static long utcOnset(final ObservanceType ot) {
+    return LocalDateTime.parse(ot.getOnset(), xmlLocal)
+                        .toEpochSecond(ZoneOffset.UTC) -
+            ot.getUtcOffsetFrom();
+  }
+
+  private static List<String> toStrings(final List<ObservanceType> obs) {
+    final List<String> res = new ArrayList<>(obs.size());
+
+    for (final ObservanceType ot: obs) {
+      res.add(ot.getName() + " " + ot.getOnset() + " " +
+                      ot.getUtcOffsetFrom() + " " + ot.getUtcOffsetTo());
+    }
+
+    return res;
+  }
+
+  private static long epoch(final int year) {
+    return LocalDate.of(year, 1, 1).toEpochDay() * 86400;
+  }
+
+  private static CompiledTimezone compile(final VTimeZone vtz) throws Throwable {
+    return CompiledTimezone.compile(
+            vtz.getProperty("TZID").getValue(), vtz);
+  }
+
+  static VTimeZone parse(final String vtz) throws Throwable {
+    final Calendar cal = new CalendarBuilder().build(
+            new UnfoldingReader(new StringReader(
+                    TzServerUtil.getCalHdr() + vtz +
+                            TzServerUtil.getCalTlr()), true));
+
+    return (VTimeZone)cal.getComponents()
+                         .getComponent(Component.VTIMEZONE);
+  }
+}
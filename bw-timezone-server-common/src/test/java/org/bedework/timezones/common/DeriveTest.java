@@ -0,0 +1,117 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Building derived forms at most once per key.
+ *
+ * @author douglm
+ */
+public class DeriveTest {
+  private final Map<String, FutureTask<String>> derived =
+          new ConcurrentHashMap<>();
+
+  @Test
+  public void once() throws Throwable {
+    final AtomicInteger built = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals("A!", AbstractCachedData.derive(derived, "A", k -> {
+        built.incrementAndGet();
+        return k + "!";
+      }));
+    }
+
+    assertEquals(1, built.get());
+
+    /* None is remembered too */
+    assertNull(AbstractCachedData.derive(derived, "B", k -> null));
+    assertNull(AbstractCachedData.derive(derived, "B", k -> "B"));
+  }
+
+  @Test
+  public void failureRetried() throws Throwable {
+    try {
+      AbstractCachedData.derive(derived, "A", k -> {
+        throw new TzException("bad");
+      });
+      fail("Expected a TzException");
+    } catch (final TzException te) {
+      assertEquals("bad", te.getMessage());
+    }
+
+    try {
+      AbstractCachedData.derive(derived, "A", k -> {
+        throw new IllegalStateException();
+      });
+      fail("Expected a TzException");
+    } catch (final TzException te) {
+      assertTrue(te.getCause() instanceof IllegalStateException);
+    }
+
+    assertEquals("A", AbstractCachedData.derive(derived, "A", k -> k));
+  }
+
+  @Test
+  public void otherKeysNotBlocked() throws Throwable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final String[] slow = new String[1];
+
+    final Thread t = new Thread(() -> {
+      try {
+        slow[0] = AbstractCachedData.derive(derived, "slow", k -> {
+          started.countDown();
+          release.await();
+          return k;
+        });
+      } catch (final TzException ignored) {
+      }
+    });
+    t.start();
+
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    /* Built while the slow one is still running */
+    for (int i = 0; i < 100; i++) {
+      final String key = "k" + i;
+      assertEquals(key, AbstractCachedData.derive(derived, key, k -> k));
+    }
+
+    release.countDown();
+    t.join(10000);
+
+    assertEquals("slow", slow[0]);
+    assertEquals("slow",
+                 AbstractCachedData.derive(derived, "slow", k -> "again"));
+  }
+}
@@ -0,0 +1,222 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.timezones.common.TzConverter.Disambiguation;
+import org.bedework.timezones.common.TzConverter.OffsetSource;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Local to UTC conversion in gaps and overlaps under each policy, and
+ * parsing and formatting of date-times.
+ *
+ * @author douglm
+ */
+public class TzConverterTest {
+  private static final OffsetSource newYork = source("America/New_York");
+
+  /* Half hour DST */
+  private static final OffsetSource lordHowe =
+          source("Australia/Lord_Howe");
+
+  private static final DateTimeFormatter basic =
+          DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+  @Test
+  public void gap() {
+    /* Clocks went from 02:00 EST to 03:00 EDT */
+    final long local = TzConverter.parse("20210314T023000");
+
+    assertEquals("20210314T073000Z",
+                 utc(newYork, local, Disambiguation.compatible));
+    assertEquals("20210314T063000Z",
+                 utc(newYork, local, Disambiguation.earlier));
+    assertEquals("20210314T073000Z",
+                 utc(newYork, local, Disambiguation.later));
+    assertEquals(TzConverter.invalid,
+                 TzConverter.toUtc(newYork, local,
+                                   Disambiguation.reject));
+  }
+
+  @Test
+  public void overlap() {
+    /* 01:30 happened in EDT then again in EST */
+    final long local = TzConverter.parse("20211107T013000");
+
+    assertEquals("20211107T053000Z",
+                 utc(newYork, local, Disambiguation.compatible));
+    assertEquals("20211107T053000Z",
+                 utc(newYork, local, Disambiguation.earlier));
+    assertEquals("20211107T063000Z",
+                 utc(newYork, local, Disambiguation.later));
+    assertEquals(TzConverter.invalid,
+                 TzConverter.toUtc(newYork, local,
+                                   Disambiguation.reject));
+  }
+
+  @Test
+  public void unambiguous() {
+    final long local = TzConverter.parse("20210704T120000");
+
+    for (final Disambiguation d: Disambiguation.values()) {
+      assertEquals(d.name(), "20210704T160000Z", utc(newYork, local, d));
+    }
+  }
+
+  @Test
+  public void matchesJavaTime() {
+    check("America/New_York", newYork);
+    check("Australia/Lord_Howe", lordHowe);
+  }
+
+  @Test
+  public void toLocal() {
+    final long utc = TzConverter.parse("20211107T063000Z");
+
+    assertEquals("20211107T013000",
+                 TzConverter.formatLocal(TzConverter.toLocal(newYork,
+                                                             utc)));
+  }
+
+  @Test
+  public void disambiguationParam() {
+    assertEquals(Disambiguation.compatible,
+                 Disambiguation.fromParam(null));
+    assertEquals(Disambiguation.later, Disambiguation.fromParam("LATER"));
+    assertEquals(Disambiguation.reject, Disambiguation.fromParam("reject"));
+    assertNull(Disambiguation.fromParam("latest"));
+  }
+
+  @Test
+  public void parseFormat() {
+    final Random r = new Random(7808);
+    final long min = LocalDateTime.of(1, 1, 1, 0, 0)
+                                  .toEpochSecond(ZoneOffset.UTC);
+    final long max = LocalDateTime.of(9999, 12, 31, 23, 59, 59)
+                                  .toEpochSecond(ZoneOffset.UTC);
+
+    for (int i = 0; i < 100000; i++) {
+      final long secs = min + (long)(r.nextDouble() * (max - min));
+      final String local = LocalDateTime.ofEpochSecond(secs, 0,
+                                                       ZoneOffset.UTC)
+                                        .format(basic);
+
+      assertEquals(local, TzConverter.formatLocal(secs));
+      assertEquals(local + "Z", TzConverter.formatUtc(secs));
+      assertEquals(secs, TzConverter.parse(local));
+      assertEquals(secs, TzConverter.parse(local + "Z"));
+    }
+  }
+
+  @Test
+  public void parseValidates() {
+    assertEquals(LocalDateTime.of(2000, 2, 29, 23, 59, 59)
+                              .toEpochSecond(ZoneOffset.UTC),
+                 TzConverter.parse("20000229T235959"));
+
+    for (final String s: new String[]{
+            null,
+            "",
+            "19000229T000000",
+            "20210230T000000",
+            "20211301T000000",
+            "20210100T000000",
+            "20210101T240000",
+            "20210101T006000",
+            "20210101T000060",
+            "2021010T000000",
+            "20210101X000000",
+            "20210101T000000z",
+            "2021-01-01T00:00:00",
+            "2021010aT000000"}) {
+      assertEquals(String.valueOf(s), TzConverter.invalid,
+                   TzConverter.parse(s));
+    }
+
+    assertTrue(TzConverter.isUtc("20210101T000000Z"));
+    assertFalse(TzConverter.isUtc("20210101T000000"));
+    assertFalse(TzConverter.isUtc(null));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  /* Every half hour of local time over a few years. java.time resolves
+   * gaps and overlaps the same way as compatible.
+   */
+  private static void check(final String tzid,
+                            final OffsetSource src) {
+    final ZoneId zone = ZoneId.of(tzid);
+    final ZoneRules rules = zone.getRules();
+
+    for (LocalDateTime ldt = LocalDateTime.of(2019, 1, 1, 0, 15);
+         ldt.getYear() < 2023;
+         ldt = ldt.plusMinutes(30)) {
+      final long local = ldt.toEpochSecond(ZoneOffset.UTC);
+      final ZonedDateTime zdt = ZonedDateTime.of(ldt, zone);
+
+      assertEquals(tzid + " " + ldt, zdt.toEpochSecond(),
+                   TzConverter.toUtc(src, local,
+                                     Disambiguation.compatible));
+
+      final int valid = rules.getValidOffsets(ldt).size();
+
+      if (valid != 1) {
+        assertEquals(tzid + " " + ldt, TzConverter.invalid,
+                     TzConverter.toUtc(src, local,
+                                       Disambiguation.reject));
+      }
+
+      if (valid == 2) {
+        assertEquals(tzid + " " + ldt,
+                     zdt.withLaterOffsetAtOverlap().toEpochSecond(),
+                     TzConverter.toUtc(src, local,
+                                       Disambiguation.later));
+      }
+    }
+  }
+
+  private static String utc(final OffsetSource src,
+                            final long local,
+                            final Disambiguation d) {
+    return TzConverter.formatUtc(TzConverter.toUtc(src, local, d));
+  }
+
+  private static OffsetSource source(final String tzid) {
+    final ZoneRules rules = ZoneId.of(tzid).getRules();
+
+    return utc -> rules.getOffset(Instant.ofEpochSecond(utc))
+                       .getTotalSeconds();
+  }
+}
@@ -0,0 +1,147 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Ranking, language and normalisation of find over a small index.
+ *
+ * @author douglm
+ */
+public class TzSearchIndexTest {
+  private final TzSearchIndex index = new TzSearchIndex.Builder()
+          .addTzid("America/Detroit")
+          .addTzid("America/Londonderry")
+          .addTzid("America/New_York")
+          .addTzid("Canada/Eastern")
+          .addTzid("Europe/London")
+          .addAlias("US/Eastern", ids("America/New_York"))
+          .addAlias("GB", ids("Europe/London"))
+          .addAlias("Nowhere", null)
+          .addName("America/Detroit", "en", "Eastern")
+          .addName("America/New_York", "en-US", "Eastern Time")
+          .addName("Europe/London", "fr", "Heure du Royaume-Uni")
+          .addName("Europe/London", null, "Greenwich")
+          .addName("Europe/London", "en", null)
+          .build();
+
+  @Test
+  public void size() {
+    assertEquals(11, index.size());
+  }
+
+  @Test
+  public void ranking() {
+    /* Whole word then word prefix */
+    assertEquals(ids("Europe/London", "America/Londonderry"),
+                 index.find("london", null));
+
+    /* Substrings tie - tzid order */
+    assertEquals(ids("America/Londonderry", "Europe/London"),
+                 index.find("ondon", null));
+
+    /* Whole name (a localized one) beats a whole word in a tzid, which
+     * beats a whole word in an alias
+     */
+    assertEquals(ids("America/Detroit", "Canada/Eastern",
+                     "America/New_York"),
+                 index.find("eastern", null));
+
+    assertEquals(ids("Europe/London"), index.find("Europe/London", null));
+    assertEquals(ids("Europe/London"), index.find("gb", null));
+  }
+
+  @Test
+  public void lang() {
+    assertEquals(ids("Europe/London"), index.find("heure", "fr"));
+    assertEquals(ids("Europe/London"), index.find("heure", "FR"));
+    assertEquals(ids(), index.find("heure", "en"));
+    assertEquals(ids("Europe/London"), index.find("heure", null));
+
+    /* en matches en-US but not the other way round */
+    assertEquals(ids("America/New_York"),
+                 index.find("eastern time", "en"));
+    assertEquals(ids("America/New_York"),
+                 index.find("eastern time", "en-us"));
+    assertEquals(ids(), index.find("eastern time", "e"));
+    assertEquals(ids(), index.find("eastern time", "en-GB"));
+
+    /* No language is only found without a language */
+    assertEquals(ids("Europe/London"), index.find("greenwich", null));
+    assertEquals(ids(), index.find("greenwich", "en"));
+
+    /* Tzids and aliases are always searched */
+    assertEquals(ids("Canada/Eastern", "America/New_York"),
+                 index.find("eastern", "de"));
+  }
+
+  @Test
+  public void normalise() {
+    for (final String q: new String[]{"new york", "NEW_YORK",
+                                      "  New York ", "new_york"}) {
+      assertEquals(q, ids("America/New_York"), index.find(q, null));
+    }
+
+    assertEquals(ids("America/New_York"),
+                 index.find("america/new york", null));
+  }
+
+  @Test
+  public void shortPatterns() {
+    /* Under a trigram - every name is looked at */
+    assertEquals(ids("America/New_York"), index.find("yo", null));
+    assertEquals(ids("America/New_York"), index.find("w y", null));
+    assertEquals(ids("Europe/London"), index.find("GB", null));
+
+    final List<String> res = index.find("e", null);
+
+    assertEquals(5, res.size());
+    assertTrue(res.containsAll(ids("America/Detroit",
+                                   "America/Londonderry",
+                                   "America/New_York",
+                                   "Canada/Eastern",
+                                   "Europe/London")));
+  }
+
+  @Test
+  public void noMatch() {
+    assertEquals(ids(), index.find(null, null));
+    assertEquals(ids(), index.find("", null));
+    assertEquals(ids(), index.find("   ", null));
+    assertEquals(ids(), index.find("xyz", null));
+    assertEquals(ids(), index.find("nowhere", null));
+    assertEquals(ids(), index.find("london x", null));
+    assertEquals(ids(), TzSearchIndex.empty.find("london", null));
+  }
+
+  private static List<String> ids(final String... val) {
+    if (val.length == 0) {
+      return Collections.emptyList();
+    }
+
+    return Arrays.asList(val);
+  }
+}
@@ -0,0 +1,253 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Fetches of the tzdata zip from a local stand-in server and from a
+ * file: conditional fetches, digests and failures.
+ *
+ * @author douglm
+ */
+public class TzdataFetcherTest {
+  private HttpServer server;
+
+  /* Served as /tzdata.zip with its etag */
+  private volatile byte[] zip;
+  private volatile String etag;
+
+  /* Served as /tzdata.zip.sha256 */
+  private volatile String digest;
+
+  private volatile int status = 200;
+
+  private final AtomicInteger downloads = new AtomicInteger();
+
+  private final Map<String, String> entries = new HashMap<>();
+
+  private final TzdataFetcher.EntryHandler collect = entries::put;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/tzdata.zip", this::serveZip);
+    server.createContext("/tzdata.zip.sha256", ex ->
+            respond(ex, 200, (digest + "  tzdata.zip\n")
+                    .getBytes(StandardCharsets.US_ASCII)));
+    server.start();
+
+    setData("1", "Europe/London.ics", "london-1");
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void remoteFetchIsConditional() throws Throwable {
+    final TzdataFetcher fetcher = new TzdataFetcher(url("/tzdata.zip"),
+                                                    null);
+
+    assertTrue(fetcher.fetch(collect));
+    assertEquals("london-1", entries.get("Europe/London.ics"));
+
+    fetcher.used();
+    entries.clear();
+
+    assertFalse(fetcher.fetch(collect));
+    assertTrue(entries.isEmpty());
+    assertEquals(1, fetcher.getNotModified());
+    assertEquals(1, downloads.get());
+
+    /* New data on the server */
+    setData("2", "Europe/London.ics", "london-2");
+
+    assertTrue(fetcher.fetch(collect));
+    assertEquals("london-2", entries.get("Europe/London.ics"));
+  }
+
+  @Test
+  public void unusedFetchIsRepeated() throws Throwable {
+    final TzdataFetcher fetcher = new TzdataFetcher(url("/tzdata.zip"),
+                                                    null);
+
+    assertTrue(fetcher.fetch(collect));
+
+    // Load failed - not marked as used
+    assertTrue(fetcher.fetch(collect));
+    assertEquals(2, downloads.get());
+  }
+
+  @Test
+  public void digestMatches() throws Throwable {
+    final TzdataFetcher fetcher =
+            new TzdataFetcher(url("/tzdata.zip"), url("/tzdata.zip.sha256"));
+
+    assertTrue(fetcher.fetch(collect));
+    assertEquals("london-1", entries.get("Europe/London.ics"));
+  }
+
+  @Test(expected = TzException.class)
+  public void digestMismatchIsRejected() throws Throwable {
+    final String good = digest;
+
+    setData("2", "Europe/London.ics", "tampered");
+    digest = good;
+
+    new TzdataFetcher(url("/tzdata.zip"),
+                      url("/tzdata.zip.sha256")).fetch(collect);
+  }
+
+  @Test(expected = TzException.class)
+  public void serverErrorFails() throws Throwable {
+    status = 503;
+
+    new TzdataFetcher(url("/tzdata.zip"), null).fetch(collect);
+  }
+
+  @Test
+  public void localFileSkippedIfUnchanged() throws Throwable {
+    final File f = File.createTempFile("tzdata", ".zip");
+
+    try {
+      write(f, zip);
+
+      final TzdataFetcher fetcher = new TzdataFetcher(f.getPath(), null);
+
+      assertTrue(fetcher.fetch(collect));
+      assertEquals("london-1", entries.get("Europe/London.ics"));
+
+      fetcher.used();
+
+      assertFalse(fetcher.fetch(collect));
+      assertEquals(1, fetcher.getNotModified());
+
+      /* Different length so it shows even if the time doesn't move */
+      setData("2", "Europe/London.ics", "london-2 changed");
+      write(f, zip);
+
+      assertTrue(fetcher.fetch(collect));
+      assertEquals("london-2 changed", entries.get("Europe/London.ics"));
+    } finally {
+      f.delete();
+    }
+  }
+
+  @Test(expected = TzException.class)
+  public void missingLocalFileFails() throws Throwable {
+    new TzdataFetcher("/nonexistent/tzdata.zip", null).fetch(collect);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private String url(final String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private void setData(final String version,
+                       final String name,
+                       final String content) throws Exception {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+      zos.putNextEntry(new ZipEntry(name));
+      zos.write(content.getBytes(StandardCharsets.UTF_8));
+      zos.closeEntry();
+    }
+
+    zip = bos.toByteArray();
+    etag = "\"" + version + "\"";
+
+    final StringBuilder sb = new StringBuilder();
+
+    for (final byte b: MessageDigest.getInstance("SHA-256").digest(zip)) {
+      sb.append(String.format("%02x", b));
+    }
+
+    digest = sb.toString();
+  }
+
+  private void serveZip(final HttpExchange ex) throws IOException {
+    if (status != 200) {
+      respond(ex, status, null);
+      return;
+    }
+
+    ex.getResponseHeaders().add("ETag", etag);
+
+    if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+      respond(ex, 304, null);
+      return;
+    }
+
+    downloads.incrementAndGet();
+    respond(ex, 200, zip);
+  }
+
+  private static void respond(final HttpExchange ex,
+                              final int status,
+                              final byte[] body) throws IOException {
+    try {
+      if (body == null) {
+        ex.sendResponseHeaders(status, -1);
+        return;
+      }
+
+      ex.sendResponseHeaders(status, body.length);
+
+      try (OutputStream os = ex.getResponseBody()) {
+        os.write(body);
+      }
+    } finally {
+      ex.close();
+    }
+  }
+
+  private static void write(final File f,
+                            final byte[] content) throws IOException {
+    try (OutputStream os = new FileOutputStream(f)) {
+      os.write(content);
+    }
+  }
+}
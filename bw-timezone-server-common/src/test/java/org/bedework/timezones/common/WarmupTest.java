@@ -0,0 +1,128 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.timezones.common.Warmup.ExpandRequest;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Saving and reloading the most requested keys.
+ *
+ * @author douglm
+ */
+public class WarmupTest {
+  @Test
+  public void roundTrip() throws Throwable {
+    final File dir = Files.createTempDirectory("warmup").toFile();
+    final File f = new File(dir, "hotkeys.txt");
+
+    try {
+      final Warmup wu = new Warmup(10);
+
+      final ExpandRequest open =
+              new ExpandRequest("America/New_York", null, null, false);
+      final ExpandRequest from =
+              new ExpandRequest("Europe/London", "20200101T000000Z", null,
+                                true);
+      final ExpandRequest empty =
+              new ExpandRequest("Europe/Paris", "", null, false);
+      final ExpandRequest tab =
+              new ExpandRequest("Europe/Paris", "2020\t", null, false);
+
+      for (int i = 0; i < 3; i++) {
+        wu.zoneRequested("America/New_York");
+        wu.expansionRequested(open);
+      }
+
+      wu.zoneRequested("Europe/London");
+      wu.expansionRequested(from);
+      wu.expansionRequested(empty);
+      wu.expansionRequested(tab);
+
+      assertEquals(4, wu.save(f));
+
+      final Warmup rd = new Warmup(10);
+      assertEquals(4, rd.load(f));
+
+      final List<String> zones = new ArrayList<>();
+      final List<ExpandRequest> expansions = new ArrayList<>();
+
+      rd.warm(new Warmup.Warmer() {
+        @Override
+        public boolean zone(final String name) {
+          zones.add(name);
+          return true;
+        }
+
+        @Override
+        public boolean expansion(final ExpandRequest req) {
+          expansions.add(req);
+          return true;
+        }
+      });
+
+      assertEquals(2, zones.size());
+      assertEquals("America/New_York", zones.get(0));
+      assertEquals("Europe/London", zones.get(1));
+
+      assertEquals(2, expansions.size());
+      assertEquals(open, expansions.get(0));
+      assertNull(expansions.get(0).start);
+      assertNull(expansions.get(0).end);
+      assertEquals(from, expansions.get(1));
+    } finally {
+      f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void hotKeysFile() {
+    final TzConfigImpl cfg = new TzConfigImpl();
+    final File tmp = new File(System.getProperty("java.io.tmpdir"))
+            .getAbsoluteFile();
+
+    assertNull(TzServerUtil.hotKeysFile(null));
+    assertNull(TzServerUtil.hotKeysFile(cfg));
+
+    /* Relative paths aren't used */
+    cfg.setLeveldbPath("tzdb");
+    cfg.setTzpackPath("tzpack/tz.pack");
+    assertNull(TzServerUtil.hotKeysFile(cfg));
+
+    cfg.setTzpackPath(new File(tmp, "tz.pack").getPath());
+    assertEquals(new File(tmp, "hotkeys.txt"),
+                 TzServerUtil.hotKeysFile(cfg));
+
+    final File ldb = new File(tmp, "tzdb");
+    cfg.setLeveldbPath(ldb.getPath());
+    assertEquals(new File(ldb, "hotkeys.txt"),
+                 TzServerUtil.hotKeysFile(cfg));
+    assertTrue(TzServerUtil.hotKeysFile(cfg).isAbsolute());
+  }
+}
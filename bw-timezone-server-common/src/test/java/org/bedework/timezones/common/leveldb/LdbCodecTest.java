@@ -0,0 +1,273 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.db.LocalizedString;
+import org.bedework.timezones.common.db.TzAlias;
+import org.bedework.timezones.common.db.TzDbSpec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Round trips through the binary record format and conversion of a
+ * json valued database.
+ *
+ * @author douglm
+ */
+public class LdbCodecTest {
+  private static final String vtz =
+          "BEGIN:VTIMEZONE\r\nTZID:Europe/Z\u00fcrich\r\nEND:VTIMEZONE\r\n";
+
+  @Test
+  public void specRoundTrip() throws Throwable {
+    final TzDbSpec spec = spec("Europe/Zurich", vtz);
+    final byte[] b = LdbCodec.encode(spec);
+
+    assertTrue(LdbCodec.isBinary(b));
+
+    final TzDbSpec rd = LdbCodec.decodeSpec(b);
+
+    checkSpec(spec, rd);
+  }
+
+  @Test
+  public void specNullFields() throws Throwable {
+    final TzDbSpec spec = new TzDbSpec();
+    spec.setName("Etc/Nothing");
+    spec.setActive(false);
+
+    final TzDbSpec rd = LdbCodec.decodeSpec(LdbCodec.encode(spec));
+
+    assertEquals("Etc/Nothing", rd.getName());
+    assertNull(rd.getEtag());
+    assertNull(rd.getDtstamp());
+    assertNull(rd.getSource());
+    assertFalse(rd.getActive());
+    assertNull(rd.getVtimezone());
+    assertNull(rd.getDisplayNames());
+
+    /* An empty set is not the same as none */
+    spec.setDisplayNames(new TreeSet<>());
+    assertTrue(LdbCodec.decodeSpec(LdbCodec.encode(spec))
+                       .getDisplayNames().isEmpty());
+  }
+
+  @Test
+  public void lazyFields() throws Throwable {
+    final TzDbSpec spec = spec("Europe/Zurich", vtz);
+    final byte[] b = LdbCodec.encode(spec);
+
+    /* Names first - they're found by skipping the vtimezone */
+    TzDbSpec rd = LdbCodec.decodeSpec(b);
+    assertEquals(names(spec.getDisplayNames()),
+                 names(rd.getDisplayNames()));
+    assertSame(rd.getDisplayNames(), rd.getDisplayNames());
+    assertEquals(vtz, rd.getVtimezone());
+    assertSame(rd.getVtimezone(), rd.getVtimezone());
+
+    /* A set value wins over the encoded one */
+    rd = LdbCodec.decodeSpec(b);
+    rd.setVtimezone("changed");
+    rd.setDisplayNames(null);
+    assertEquals("changed", rd.getVtimezone());
+    assertNull(rd.getDisplayNames());
+
+    /* Re-encoding a decoded spec gives the same bytes */
+    assertArrayEquals(b, LdbCodec.encode(LdbCodec.decodeSpec(b)));
+  }
+
+  @Test
+  public void aliasRoundTrip() throws Throwable {
+    final TzAlias alias = new TzAlias("US/Eastern");
+    alias.addTargetId("America/New_York");
+    alias.addTargetId("America/Detroit");
+
+    TzAlias rd = LdbCodec.decodeAlias(LdbCodec.encode(alias));
+
+    assertEquals("US/Eastern", rd.getAliasId());
+    assertEquals(alias.getTargetIds(), rd.getTargetIds());
+
+    rd = LdbCodec.decodeAlias(LdbCodec.encode(new TzAlias("Nowhere")));
+
+    assertEquals("Nowhere", rd.getAliasId());
+    assertNull(rd.getTargetIds());
+  }
+
+  @Test
+  public void notBinary() throws Throwable {
+    final byte[] json = new ObjectMapper().writeValueAsBytes(
+            spec("Europe/Zurich", vtz));
+
+    assertFalse(LdbCodec.isBinary(json));
+    assertFalse(LdbCodec.isBinary(null));
+    assertFalse(LdbCodec.isBinary(new byte[0]));
+  }
+
+  @Test(expected = TzException.class)
+  public void decodeJson() throws Throwable {
+    LdbCodec.decodeSpec(new ObjectMapper().writeValueAsBytes(
+            spec("Europe/Zurich", vtz)));
+  }
+
+  @Test(expected = TzException.class)
+  public void wrongType() throws Throwable {
+    LdbCodec.decodeAlias(LdbCodec.encode(spec("Europe/Zurich", vtz)));
+  }
+
+  @Test(expected = TzException.class)
+  public void laterVersion() throws Throwable {
+    final byte[] b = LdbCodec.encode(new TzAlias("US/Eastern"));
+    b[1] = (byte)(LdbCodec.version + 1);
+
+    LdbCodec.decodeAlias(b);
+  }
+
+  @Test
+  public void convertJsonDb() throws Throwable {
+    final File dir = Files.createTempDirectory("ldbcodec").toFile();
+    final ObjectMapper mapper = new ObjectMapper();
+
+    final TzDbSpec zurich = spec("Europe/Zurich", vtz);
+    final TzDbSpec london = spec("Europe/London", "london");
+    final TzAlias alias = new TzAlias("GB");
+    alias.addTargetId("Europe/London");
+
+    final LdbHandle h = LdbHandle.acquire(dir.getAbsolutePath());
+
+    try {
+      /* As written before the binary format */
+      put(h, "TZ:Europe/Zurich", mapper.writeValueAsBytes(zurich));
+      put(h, "AL:GB", mapper.writeValueAsBytes(alias));
+      put(h, "SY:token", Iq80DBFactory.bytes("20200101T000000Z"));
+
+      /* Partly converted already */
+      put(h, "TZ:Europe/London", LdbCodec.encode(london));
+
+      try (LdbHandle.Batch batch = h.batch(1, false)) {
+        assertEquals(2, LdbCachedData.convertJson(h, batch, mapper));
+      }
+
+      checkSpec(zurich, LdbCodec.decodeSpec(get(h, "TZ:Europe/Zurich")));
+      checkSpec(london, LdbCodec.decodeSpec(get(h, "TZ:Europe/London")));
+
+      final TzAlias rd = LdbCodec.decodeAlias(get(h, "AL:GB"));
+      assertEquals("GB", rd.getAliasId());
+      assertEquals(alias.getTargetIds(), rd.getTargetIds());
+
+      /* Anything else is left alone */
+      assertEquals("20200101T000000Z",
+                   Iq80DBFactory.asString(get(h, "SY:token")));
+
+      assertEquals(String.valueOf(LdbCodec.version),
+                   Iq80DBFactory.asString(get(h, "FM:version")));
+
+      /* Nothing left to do */
+      try (LdbHandle.Batch batch = h.batch(0, false)) {
+        assertEquals(0, LdbCachedData.convertJson(h, batch, mapper));
+      }
+    } finally {
+      h.release();
+      delete(dir);
+    }
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private static TzDbSpec spec(final String name,
+                               final String vtz) {
+    final TzDbSpec spec = new TzDbSpec();
+
+    spec.setName(name);
+    spec.setEtag("\"" + name.hashCode() + "\"");
+    spec.setDtstamp("20200101T000000Z");
+    spec.setSource("tzdata");
+    spec.setActive(true);
+    spec.setVtimezone(vtz);
+
+    final Set<LocalizedString> names = new TreeSet<>();
+    names.add(new LocalizedString("en", name.substring(7)));
+    names.add(new LocalizedString("de", name.substring(7) + " Zeit"));
+    spec.setDisplayNames(names);
+
+    return spec;
+  }
+
+  private static void checkSpec(final TzDbSpec expect,
+                                final TzDbSpec got) {
+    assertEquals(expect.getName(), got.getName());
+    assertEquals(expect.getEtag(), got.getEtag());
+    assertEquals(expect.getDtstamp(), got.getDtstamp());
+    assertEquals(expect.getSource(), got.getSource());
+    assertEquals(expect.getActive(), got.getActive());
+    assertEquals(expect.getVtimezone(), got.getVtimezone());
+    assertEquals(names(expect.getDisplayNames()),
+                 names(got.getDisplayNames()));
+  }
+
+  private static List<String> names(final Set<LocalizedString> val) {
+    final List<String> res = new ArrayList<>();
+
+    for (final LocalizedString ls: val) {
+      res.add(ls.getLang() + ":" + ls.getValue());
+    }
+
+    return res;
+  }
+
+  private static void put(final LdbHandle h,
+                          final String key,
+                          final byte[] val) {
+    h.getDb().put(Iq80DBFactory.bytes(key), val);
+  }
+
+  private static byte[] get(final LdbHandle h,
+                            final String key) {
+    return h.getDb().get(Iq80DBFactory.bytes(key));
+  }
+
+  private static void delete(final File f) {
+    final File[] files = f.listFiles();
+
+    if (files != null) {
+      for (final File c: files) {
+        delete(c);
+      }
+    }
+
+    f.delete();
+  }
+}
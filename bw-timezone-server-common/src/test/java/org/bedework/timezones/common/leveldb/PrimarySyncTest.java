@@ -0,0 +1,245 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.timezones.common.TzException;
+import org.bedework.util.timezones.Timezones.TaggedTimeZone;
+import org.bedework.util.timezones.model.TimezoneListType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Secondary sync against a stand-in primary: the changedsince list,
+ * conditional fetches with retries and the long poll.
+ *
+ * @author douglm
+ */
+public class PrimarySyncTest {
+  private StubPrimary primary;
+
+  private final ExecutorService exec = Executors.newCachedThreadPool();
+
+  @Before
+  public void setUp() throws Exception {
+    primary = new StubPrimary();
+  }
+
+  @After
+  public void tearDown() {
+    exec.shutdownNow();
+    primary.stop();
+  }
+
+  /* ====================================================================
+   *                   changedsince sync
+   * ==================================================================== */
+
+  @Test
+  public void changedSinceSync() throws Throwable {
+    primary.update("Europe/London", "london-1");
+    final String token = primary.update("America/New_York", "ny-1");
+
+    final StubClient client = new StubClient(primary.getUrl());
+    final PrimaryFetcher fetcher = fetcher(2);
+
+    /* Initial load - everything */
+    TimezoneListType tzl = client.getList(null);
+    assertEquals(token, tzl.getSynctoken());
+    assertEquals(2, tzl.getTimezones().size());
+
+    final Map<String, TaggedTimeZone> fetched =
+            fetcher.fetch(etags(tzl));
+    assertEquals(2, fetched.size());
+    assertEquals("london-1", fetched.get("Europe/London").vtz);
+    assertEquals("ny-1", fetched.get("America/New_York").vtz);
+
+    /* One change - only that comes back */
+    final String token2 = primary.update("Europe/London", "london-2");
+
+    tzl = client.getList(token);
+    assertEquals(token2, tzl.getSynctoken());
+    assertEquals(1, tzl.getTimezones().size());
+    assertEquals("Europe/London", tzl.getTimezones().get(0).getTzid());
+
+    final Map<String, String> ours = new HashMap<>();
+    ours.put("Europe/London", fetched.get("Europe/London").etag);
+    ours.put("America/New_York", fetched.get("America/New_York").etag);
+
+    final Map<String, TaggedTimeZone> refetched = fetcher.fetch(ours);
+
+    assertEquals("london-2", refetched.get("Europe/London").vtz);
+    assertFalse(ours.get("Europe/London")
+                        .equals(refetched.get("Europe/London").etag));
+
+    /* Conditional fetch of the one we have - not modified */
+    assertNull(refetched.get("America/New_York").vtz);
+
+    /* Nothing since the latest token */
+    assertTrue(client.getList(token2).getTimezones().isEmpty());
+  }
+
+  @Test
+  public void missingZoneHasNoEntry() throws Throwable {
+    primary.update("Europe/London", "london-1");
+
+    final Map<String, String> ours = new HashMap<>();
+    ours.put("Europe/London", null);
+    ours.put("Nowhere/Gone", null);
+
+    final Map<String, TaggedTimeZone> fetched = fetcher(2).fetch(ours);
+
+    assertEquals(1, fetched.size());
+    assertNotNull(fetched.get("Europe/London"));
+  }
+
+  @Test
+  public void fetchRetriesFailures() throws Throwable {
+    primary.update("Europe/London", "london-1");
+    primary.failNext(2);
+
+    final long retries = PrimaryFetcher.getRetries();
+
+    final Map<String, String> ours = new HashMap<>();
+    ours.put("Europe/London", null);
+
+    final Map<String, TaggedTimeZone> fetched =
+            new PrimaryFetcher(() -> new StubClient(primary.getUrl()),
+                               1, 5, 3).fetch(ours);
+
+    assertEquals("london-1", fetched.get("Europe/London").vtz);
+    assertEquals(retries + 2, PrimaryFetcher.getRetries());
+  }
+
+  @Test(expected = TzException.class)
+  public void fetchFailsAfterRetries() throws Throwable {
+    primary.update("Europe/London", "london-1");
+    primary.failNext(10);
+
+    final Map<String, String> ours = new HashMap<>();
+    ours.put("Europe/London", null);
+
+    new PrimaryFetcher(() -> new StubClient(primary.getUrl()),
+                       1, 5, 1).fetch(ours);
+  }
+
+  /* ====================================================================
+   *                   Long poll
+   * ==================================================================== */
+
+  @Test
+  public void longPollReturnsOnChange() throws Throwable {
+    final String token = primary.update("Europe/London", "london-1");
+    final ChangeWaiter waiter = new ChangeWaiter(primary.getUrl() + "/");
+
+    final long start = System.currentTimeMillis();
+    final Future<ChangeWaiter.Result> res =
+            exec.submit(() -> waiter.await(token, 30));
+
+    Thread.sleep(300);
+    assertFalse(res.isDone());
+
+    primary.update("Europe/London", "london-2");
+
+    assertEquals(ChangeWaiter.Result.changed,
+                 res.get(10, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start < 10000);
+  }
+
+  @Test
+  public void longPollTimesOutUnchanged() throws Throwable {
+    final String token = primary.update("Europe/London", "london-1");
+
+    assertEquals(ChangeWaiter.Result.unchanged,
+                 new ChangeWaiter(primary.getUrl()).await(token, 1));
+  }
+
+  @Test
+  public void longPollWithoutSupportIsUnavailable() throws Throwable {
+    final String token = primary.update("Europe/London", "london-1");
+    primary.setLongPoll(false);
+
+    assertEquals(ChangeWaiter.Result.unavailable,
+                 new ChangeWaiter(primary.getUrl()).await(token, 5));
+  }
+
+  @Test
+  public void longPollUnreachableIsUnavailable() throws Throwable {
+    final String url = primary.getUrl();
+    primary.stop();
+
+    assertEquals(ChangeWaiter.Result.unavailable,
+                 new ChangeWaiter(url).await("1", 5));
+  }
+
+  @Test
+  public void longPollAbortReturnsChanged() throws Throwable {
+    final String token = primary.update("Europe/London", "london-1");
+    final ChangeWaiter waiter = new ChangeWaiter(primary.getUrl());
+
+    final Future<ChangeWaiter.Result> res =
+            exec.submit(() -> waiter.await(token, 30));
+
+    Thread.sleep(300);
+    waiter.abort();
+
+    assertEquals(ChangeWaiter.Result.changed,
+                 res.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void noTokenIsChanged() {
+    assertEquals(ChangeWaiter.Result.changed,
+                 new ChangeWaiter(primary.getUrl()).await(null, 30));
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private PrimaryFetcher fetcher(final int threads) {
+    return new PrimaryFetcher(() -> new StubClient(primary.getUrl()),
+                              threads, 5, 0);
+  }
+
+  /* Everything in the list with no etag - as for an initial load */
+  private static Map<String, String> etags(final TimezoneListType tzl) {
+    final Map<String, String> res = new HashMap<>();
+
+    for (final TimezoneType tz: tzl.getTimezones()) {
+      res.put(tz.getTzid(), null);
+    }
+
+    return res;
+  }
+}
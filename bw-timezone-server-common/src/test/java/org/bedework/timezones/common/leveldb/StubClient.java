@@ -0,0 +1,209 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.util.logging.BwLogger;
+import org.bedework.util.timezones.TimeZoneName;
+import org.bedework.util.timezones.Timezones;
+import org.bedework.util.timezones.TimezonesException;
+import org.bedework.util.timezones.model.TimezoneListType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.fortuna.ical4j.model.TimeZone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/** Just enough of a timezones client to sync from a
+ * {@link StubPrimary}: the list and conditional fetches.
+ *
+ * @author douglm
+ */
+class StubClient extends Timezones {
+  private final String primaryUrl;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  StubClient(final String primaryUrl) {
+    this.primaryUrl = primaryUrl;
+  }
+
+  @Override
+  public TimezoneListType getList(final String changedSince)
+          throws TimezonesException {
+    try {
+      String url = primaryUrl + "/zones";
+
+      if (changedSince != null) {
+        url += "?changedsince=" + URLEncoder.encode(changedSince, "UTF-8");
+      }
+
+      final HttpURLConnection conn =
+              (HttpURLConnection)new URL(url).openConnection();
+
+      try (InputStream is = conn.getInputStream()) {
+        return mapper.readValue(is, TimezoneListType.class);
+      } finally {
+        conn.disconnect();
+      }
+    } catch (final Throwable t) {
+      throw new TimezonesException(t);
+    }
+  }
+
+  @Override
+  public TaggedTimeZone getTimeZone(final String id,
+                                    final String etag)
+          throws TimezonesException {
+    try {
+      final HttpURLConnection conn =
+              (HttpURLConnection)new URL(primaryUrl + "/zones/" +
+                      URLEncoder.encode(id, "UTF-8")).openConnection();
+
+      try {
+        if (etag != null) {
+          conn.setRequestProperty("If-None-Match", etag);
+        }
+
+        final int status = conn.getResponseCode();
+
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+          return new TaggedTimeZone(etag);
+        }
+
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+          return null;
+        }
+
+        if (status != HttpURLConnection.HTTP_OK) {
+          throw new TimezonesException("Status " + status + " for " + id);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (InputStream is = conn.getInputStream()) {
+          final byte[] buf = new byte[4096];
+          int len;
+
+          while ((len = is.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+          }
+        }
+
+        return new TaggedTimeZone(conn.getHeaderField("ETag"),
+                                  new String(out.toByteArray(),
+                                             StandardCharsets.UTF_8));
+      } finally {
+        conn.disconnect();
+      }
+    } catch (final TimezonesException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TimezonesException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   Not used by the sync
+   * ==================================================================== */
+
+  @Override
+  public void init(final String serverUrl) {
+  }
+
+  @Override
+  public TimeZone getTimeZone(final String id) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Collection<TimeZoneName> getTimeZoneNames() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void refreshTimezones() {
+  }
+
+  @Override
+  public String unalias(final String id) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setDefaultTimeZoneId(final String id) {
+  }
+
+  @Override
+  public String getDefaultTimeZoneId() {
+    return null;
+  }
+
+  @Override
+  public TimeZone getDefaultTimeZone() {
+    return null;
+  }
+
+  @Override
+  public void register(final String id,
+                       final TimeZone timezone) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String calculateUtc(final String time,
+                             final String tzid) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getDatesCached() {
+    return 0;
+  }
+
+  @Override
+  public long getDateCacheHits() {
+    return 0;
+  }
+
+  @Override
+  public long getDateCacheMisses() {
+    return 0;
+  }
+
+  /* ====================================================================
+   *                   Logged methods
+   * ==================================================================== */
+
+  private BwLogger logger = new BwLogger();
+
+  @Override
+  public BwLogger getLogger() {
+    if ((logger.getLoggedClass() == null) && (logger.getLoggedName() == null)) {
+      logger.setLoggedClass(getClass());
+    }
+
+    return logger;
+  }
+}
@@ -0,0 +1,273 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.leveldb;
+
+import org.bedework.util.timezones.model.TimezoneListType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A stand-in primary on a local port. Serves the changedsince list,
+ * with long polling, and the timezones with etags.
+ *
+ * <p>The sync token is a count of the changes made.</p>
+ *
+ * @author douglm
+ */
+class StubPrimary {
+  private static class Zone {
+    final String vtz;
+    final String etag;
+    final int changed;
+
+    Zone(final String vtz,
+         final String etag,
+         final int changed) {
+      this.vtz = vtz;
+      this.etag = etag;
+      this.changed = changed;
+    }
+  }
+
+  private final Map<String, Zone> zones = new HashMap<>();
+
+  private int token;
+
+  private boolean longPoll = true;
+
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private final AtomicInteger zoneFetches = new AtomicInteger();
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final HttpServer server;
+
+  StubPrimary() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/zones", this::handle);
+
+    /* Long polls hold a thread each */
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * @return url of the primary
+   */
+  String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  /** Add or change a timezone
+   *
+   * @param tzid of the timezone
+   * @param vtz its new value
+   * @return the new sync token
+   */
+  synchronized String update(final String tzid,
+                             final String vtz) {
+    token++;
+    zones.put(tzid, new Zone(vtz, "\"" + tzid + "-" + token + "\"",
+                             token));
+    notifyAll();
+
+    return getToken();
+  }
+
+  synchronized String getToken() {
+    return String.valueOf(token);
+  }
+
+  /**
+   * @param val false to answer at once as a primary without long
+   *            polling does
+   */
+  synchronized void setLongPoll(final boolean val) {
+    longPoll = val;
+  }
+
+  /**
+   * @param n number of timezone fetches to fail with a 503
+   */
+  void failNext(final int n) {
+    failures.set(n);
+  }
+
+  /**
+   * @return number of timezone fetches answered
+   */
+  int getZoneFetches() {
+    return zoneFetches.get();
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private void handle(final HttpExchange ex) throws IOException {
+    try {
+      final String path = ex.getRequestURI().getPath();
+
+      if (path.equals("/zones")) {
+        list(ex, query(ex));
+        return;
+      }
+
+      zone(ex, URLDecoder.decode(path.substring("/zones/".length()),
+                                 "UTF-8"));
+    } catch (final InterruptedException ie) {
+      respond(ex, 503, null, null);
+    } finally {
+      ex.close();
+    }
+  }
+
+  private void list(final HttpExchange ex,
+                    final Map<String, String> pars)
+          throws IOException, InterruptedException {
+    final TimezoneListType tzl = new TimezoneListType();
+    tzl.setTimezones(new ArrayList<>());
+
+    synchronized (this) {
+      final int since;
+      if (pars.get("changedsince") == null) {
+        since = 0;
+      } else {
+        since = Integer.parseInt(pars.get("changedsince"));
+      }
+
+      if (longPoll && (pars.get("wait") != null)) {
+        final long end = System.currentTimeMillis() +
+                Long.parseLong(pars.get("wait")) * 1000;
+
+        while ((token <= since) && (System.currentTimeMillis() < end)) {
+          wait(Math.max(1, end - System.currentTimeMillis()));
+        }
+      }
+
+      for (final Map.Entry<String, Zone> me: zones.entrySet()) {
+        if (me.getValue().changed <= since) {
+          continue;
+        }
+
+        final TimezoneType tz = new TimezoneType();
+        tz.setTzid(me.getKey());
+        tz.setEtag(me.getValue().etag);
+        tz.setLastModified(new Date());
+
+        tzl.getTimezones().add(tz);
+      }
+
+      tzl.setSynctoken(getToken());
+    }
+
+    respond(ex, 200, "application/json",
+            mapper.writeValueAsBytes(tzl));
+  }
+
+  private void zone(final HttpExchange ex,
+                    final String tzid) throws IOException {
+    if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+      respond(ex, 503, null, null);
+      return;
+    }
+
+    zoneFetches.incrementAndGet();
+
+    final Zone z;
+    synchronized (this) {
+      z = zones.get(tzid);
+    }
+
+    if (z == null) {
+      respond(ex, 404, null, null);
+      return;
+    }
+
+    ex.getResponseHeaders().add("ETag", z.etag);
+
+    if (z.etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+      respond(ex, 304, null, null);
+      return;
+    }
+
+    respond(ex, 200, "text/calendar",
+            z.vtz.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Map<String, String> query(final HttpExchange ex)
+          throws IOException {
+    final Map<String, String> pars = new HashMap<>();
+    final String q = ex.getRequestURI().getRawQuery();
+
+    if (q == null) {
+      return pars;
+    }
+
+    for (final String par: q.split("&")) {
+      final int pos = par.indexOf('=');
+
+      if (pos > 0) {
+        pars.put(par.substring(0, pos),
+                 URLDecoder.decode(par.substring(pos + 1), "UTF-8"));
+      }
+    }
+
+    return pars;
+  }
+
+  private static void respond(final HttpExchange ex,
+                              final int status,
+                              final String contentType,
+                              final byte[] body) throws IOException {
+    if (contentType != null) {
+      ex.getResponseHeaders().add("Content-Type", contentType);
+    }
+
+    if (body == null) {
+      ex.sendResponseHeaders(status, -1);
+      return;
+    }
+
+    ex.sendResponseHeaders(status, body.length);
+
+    try (OutputStream os = ex.getResponseBody()) {
+      os.write(body);
+    }
+  }
+}
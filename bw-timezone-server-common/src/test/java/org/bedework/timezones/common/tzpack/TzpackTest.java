@@ -0,0 +1,571 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common.tzpack;
+
+import org.bedework.timezones.common.CachedData;
+import org.bedework.timezones.common.CompiledTimezone;
+import org.bedework.timezones.common.EncodedBody;
+import org.bedework.timezones.common.TzConfigImpl;
+import org.bedework.timezones.common.TzException;
+import org.bedework.timezones.common.db.TzAlias;
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Write a pack from a stand-in source, read it back through
+ * TzpackCachedData and check that corrupt packs fail to open.
+ *
+ * @author douglm
+ */
+public class TzpackTest {
+  /* String order and UTF-8 byte order differ for the last two */
+  private static final List<String> ids = Arrays.asList(
+          "America/New_York",
+          "Etc/NoSummary",
+          "Europe/Z\u00fcrich",
+          "Europe/Zz",
+          "Test/\uff21",
+          "Test/\ud83d\ude00");
+
+  private static final Map<String, List<String>> aliases =
+          new TreeMap<>();
+
+  static {
+    aliases.put("US/Eastern", Collections.singletonList("America/New_York"));
+    aliases.put("Europe/Zuerich",
+                Collections.singletonList("Europe/Z\u00fcrich"));
+    aliases.put("Test/Other", Collections.singletonList("Test/\uff21"));
+  }
+
+  private File file;
+
+  private final Map<String, TimezoneType> sums = new HashMap<>();
+
+  private final Map<String, CompiledTimezone> tables = new HashMap<>();
+
+  private final CachedData source = source();
+
+  @Before
+  public void setUp() throws Throwable {
+    file = new File(Files.createTempDirectory("tzpack").toFile(),
+                    "test.tzpack");
+
+    long lastMod = 1500000000000L;
+
+    for (final String id: ids) {
+      lastMod += 1000;
+
+      if (id.equals("Etc/NoSummary")) {
+        continue;
+      }
+
+      final TimezoneType tz = new TimezoneType();
+
+      tz.setTzid(id);
+      tz.setEtag(etag(id));
+      tz.setLastModified(new Date(lastMod));
+
+      final List<String> as = aliasesOf(id);
+      if (!as.isEmpty()) {
+        tz.setAliases(as);
+      }
+
+      if (id.startsWith("Europe/")) {
+        tz.setInactive(id.endsWith("Zz"));
+
+        final LocalNameType ln = new LocalNameType();
+        ln.setLang("de");
+        ln.setValue(id.substring(7) + " Zeit");
+        ln.setPref(true);
+
+        tz.setLocalNames(new ArrayList<>(Collections.singletonList(ln)));
+      }
+
+      sums.put(id, tz);
+    }
+
+    tables.put("America/New_York",
+               table("America/New_York", 1173596400L, -18000, -14400));
+    tables.put("Test/\ud83d\ude00",
+               table("Test/\ud83d\ude00", 0, 3600, 7200));
+
+    assertEquals(ids.size(), new TzpackWriter(source).write(file));
+  }
+
+  @After
+  public void tearDown() {
+    final File dir = file.getParentFile();
+    final File[] files = dir.listFiles();
+
+    if (files != null) {
+      for (final File f: files) {
+        f.delete();
+      }
+    }
+
+    dir.delete();
+  }
+
+  @Test
+  public void roundTrip() throws Throwable {
+    final TzpackCachedData pack = open();
+
+    assertEquals("20200101T000000Z", pack.getDtstamp());
+    assertEquals("test", pack.getSource());
+    assertEquals(source.getAliasesStr(), pack.getAliasesStr());
+    assertEquals(source.getNameList(), pack.getNameList());
+
+    for (final String id: ids) {
+      checkBody(source.getTzBody(id), pack.getTzBody(id));
+      assertEquals(vtz(id), pack.getCachedVtz(id));
+
+      final CompiledTimezone ctz = tables.get(id);
+
+      if (ctz == null) {
+        assertNull(id, pack.getCompiledTimezone(id));
+      } else {
+        assertArrayEquals(id, bytes(ctz),
+                          bytes(pack.getCompiledTimezone(id)));
+      }
+
+      final List<TimezoneType> tzs =
+              pack.getTimezones(new String[]{id});
+
+      assertEquals(1, tzs.size());
+      checkSummary(id, sums.get(id), tzs.get(0));
+
+      final SortedSet<String> as = pack.findAliases(id);
+
+      if (aliasesOf(id).isEmpty()) {
+        assertNull(as);
+      } else {
+        assertEquals(aliasesOf(id), new ArrayList<>(as));
+      }
+    }
+
+    for (final String a: aliases.keySet()) {
+      final String target = aliases.get(a).get(0);
+      final EncodedBody body = pack.getAliasedTzBody(a);
+
+      checkBody(source.getAliasedTzBody(a), body);
+
+      /* Aliases take the last modified of their target */
+      assertEquals(source.getTzBody(target).getLastModified(),
+                   body.getLastModified());
+
+      assertEquals(aliasVtz(a), pack.getAliasedCachedVtz(a));
+      assertEquals(aliases.get(a), pack.fromAlias(a).getTargetIds());
+    }
+
+    assertEquals(Collections.singletonList("America/New_York"),
+                 tzids(pack.findTimezones("eastern")));
+    assertEquals(ids.size(), pack.getTimezones((String)null).size());
+  }
+
+  @Test
+  public void missing() throws Throwable {
+    final TzpackCachedData pack = open();
+
+    /* Either side of every name in byte order */
+    for (final String n: new String[]{"", "A", "America/New_Yor",
+                                      "America/New_York ", "Europe/Z",
+                                      "Europe/Zzz", "Test/", "Zulu",
+                                      "Test/\uffff"}) {
+      assertNull(n, pack.getTzBody(n));
+      assertNull(n, pack.getCompiledTimezone(n));
+      assertNull(n, pack.getCachedVtz(n));
+      assertNull(n, pack.fromAlias(n));
+      assertNull(n, pack.getAliasedTzBody(n));
+    }
+
+    assertNull(pack.getTzBody(null));
+    assertTrue(pack.getTimezones(new String[]{"Nowhere"}).isEmpty());
+  }
+
+  /* ====================================================================
+   *                   Corrupt packs
+   * ==================================================================== */
+
+  @Test
+  public void tooShort() throws Throwable {
+    corrupt(b -> {}, 10);
+  }
+
+  @Test
+  public void negativeCount() throws Throwable {
+    corrupt(b -> b.putInt(Tzpack.hdrZoneCount, -1), 0);
+  }
+
+  @Test
+  public void indexPastEnd() throws Throwable {
+    corrupt(b -> b.putInt(Tzpack.hdrAliasCount, 1000), 0);
+  }
+
+  @Test
+  public void bodyPastEnd() throws Throwable {
+    corrupt(b -> b.putInt(zoneRec(b, 0) + Tzpack.zoneBody + 4,
+                          b.capacity()), 0);
+  }
+
+  @Test
+  public void badOffset() throws Throwable {
+    corrupt(b -> b.putInt(zoneRec(b, 1) + Tzpack.zoneEtag, -8), 0);
+  }
+
+  @Test
+  public void badLength() throws Throwable {
+    corrupt(b -> b.putInt(aliasRec(b, 0) + Tzpack.aliasVtz + 4, -2), 0);
+  }
+
+  @Test
+  public void outOfOrder() throws Throwable {
+    corrupt(b -> {
+      final int r0 = zoneRec(b, 0) + Tzpack.zoneName;
+      final int r1 = zoneRec(b, 1) + Tzpack.zoneName;
+      final long ref0 = b.getLong(r0);
+
+      b.putLong(r0, b.getLong(r1));
+      b.putLong(r1, ref0);
+    }, 0);
+  }
+
+  @Test
+  public void missingName() throws Throwable {
+    corrupt(b -> b.putInt(aliasRec(b, 1) + Tzpack.aliasName + 4, -1), 0);
+  }
+
+  @Test
+  public void targetCount() throws Throwable {
+    corrupt(b -> b.putInt(b.getInt(aliasRec(b, 0) + Tzpack.aliasTargets),
+                          Integer.MAX_VALUE), 0);
+  }
+
+  @Test
+  public void summaryCount() throws Throwable {
+    /* Local names of Europe/Zz - after etag, last modified, inactive
+       and aliases */
+    corrupt(b -> {
+      final int rec = zoneRec(b, 2);
+      int pos = b.getInt(rec + Tzpack.zoneSummary);
+
+      pos += 4 + b.getInt(pos);  // etag
+      pos += 8 + 1;              // last modified, inactive
+
+      final int ct = b.getInt(pos);
+      pos += 4;
+
+      for (int i = 0; i < ct; i++) {
+        pos += 4 + b.getInt(pos);  // alias
+      }
+
+      b.putInt(pos, 1 << 28);
+    }, 0);
+  }
+
+  @Test
+  public void compiledCount() throws Throwable {
+    corrupt(b -> {
+      final int pos = b.getInt(zoneRec(b, 0) + Tzpack.zoneCompiled);
+
+      /* Transition count follows the tzid */
+      b.putInt(pos + 4 + b.getInt(pos), 1 << 28);
+    }, 0);
+  }
+
+  @Test
+  public void compiledLength() throws Throwable {
+    corrupt(b -> {
+      final int ref = zoneRec(b, 0) + Tzpack.zoneCompiled + 4;
+
+      b.putInt(ref, b.getInt(ref) - 1);
+    }, 0);
+  }
+
+  /* ====================================================================
+   *                   Private methods
+   * ==================================================================== */
+
+  private TzpackCachedData open() throws TzException {
+    final TzConfigImpl cfg = new TzConfigImpl();
+
+    cfg.setTzpackPath(file.getAbsolutePath());
+
+    return new TzpackCachedData(cfg, null, -1);
+  }
+
+  /* Change the pack and optionally cut it short then check it won't
+   * open.
+   */
+  private void corrupt(final Consumer<ByteBuffer> change,
+                       final int len) throws Throwable {
+    final byte[] b = Files.readAllBytes(file.toPath());
+
+    change.accept(ByteBuffer.wrap(b));
+
+    Files.write(file.toPath(),
+                (len == 0) ? b : Arrays.copyOf(b, len));
+
+    try {
+      open();
+      fail("Opened corrupt pack");
+    } catch (final TzException expected) {
+    }
+  }
+
+  private static int zoneRec(final ByteBuffer b,
+                             final int i) {
+    return b.getInt(Tzpack.hdrZoneIndex) + i * Tzpack.zoneRecSize;
+  }
+
+  private static int aliasRec(final ByteBuffer b,
+                              final int i) {
+    return b.getInt(Tzpack.hdrAliasIndex) + i * Tzpack.aliasRecSize;
+  }
+
+  private static void checkBody(final EncodedBody expect,
+                                final EncodedBody got) throws IOException {
+    if (expect == null) {
+      assertNull(got);
+      return;
+    }
+
+    assertNotNull(got);
+    assertArrayEquals(content(expect), content(got));
+    assertEquals(expect.getEtag(), got.getEtag());
+    assertEquals(expect.getContentLength(), got.getContentLength());
+  }
+
+  private static void checkSummary(final String id,
+                                   final TimezoneType expect,
+                                   final TimezoneType got) {
+    assertEquals(id, got.getTzid());
+
+    if (expect == null) {
+      assertNull(got.getEtag());
+      assertNull(got.getLastModified());
+      return;
+    }
+
+    assertEquals(expect.getEtag(), got.getEtag());
+    assertEquals(expect.getLastModified(), got.getLastModified());
+    assertEquals(expect.getInactive(), got.getInactive());
+    assertEquals(expect.getAliases(), got.getAliases());
+
+    if (expect.getLocalNames() == null) {
+      assertNull(got.getLocalNames());
+      return;
+    }
+
+    assertEquals(expect.getLocalNames().size(),
+                 got.getLocalNames().size());
+
+    for (int i = 0; i < expect.getLocalNames().size(); i++) {
+      final LocalNameType e = expect.getLocalNames().get(i);
+      final LocalNameType g = got.getLocalNames().get(i);
+
+      assertEquals(e.getLang(), g.getLang());
+      assertEquals(e.getValue(), g.getValue());
+      assertEquals(e.isPref(), g.isPref());
+    }
+  }
+
+  private static List<String> tzids(final List<TimezoneType> tzs) {
+    final List<String> res = new ArrayList<>();
+
+    for (final TimezoneType tz: tzs) {
+      res.add(tz.getTzid());
+    }
+
+    return res;
+  }
+
+  private static byte[] content(final EncodedBody body) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    body.writeTo(bos);
+
+    return bos.toByteArray();
+  }
+
+  private static byte[] bytes(final CompiledTimezone ctz) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+    ctz.write(new DataOutputStream(bos));
+
+    return bos.toByteArray();
+  }
+
+  /* One transition in the binary form */
+  private static CompiledTimezone table(final String tzid,
+                                        final long onset,
+                                        final int from,
+                                        final int to) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bos);
+
+    putString(out, tzid);
+
+    out.writeInt(1);
+    out.writeLong(onset);
+    out.writeInt(from);
+    out.writeInt(to);
+    out.writeInt(0);
+    out.writeInt(1);
+
+    out.writeInt(2);
+    putString(out, "DAYLIGHT");
+    putString(out, "DST");
+
+    out.writeInt(0);
+    out.writeBoolean(false);
+
+    return CompiledTimezone.read(ByteBuffer.wrap(bos.toByteArray()));
+  }
+
+  private static void putString(final DataOutputStream out,
+                                final String val) throws IOException {
+    final byte[] b = val.getBytes(StandardCharsets.UTF_8);
+
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static List<String> aliasesOf(final String id) {
+    final List<String> res = new ArrayList<>();
+
+    for (final Map.Entry<String, List<String>> me: aliases.entrySet()) {
+      if (me.getValue().contains(id)) {
+        res.add(me.getKey());
+      }
+    }
+
+    return res;
+  }
+
+  private static String etag(final String id) {
+    return "\"" + Integer.toHexString(id.hashCode()) + "\"";
+  }
+
+  private static String vtz(final String id) {
+    return "BEGIN:VTIMEZONE\r\nTZID:" + id + "\r\nEND:VTIMEZONE\r\n";
+  }
+
+  private static String aliasVtz(final String alias) {
+    return "BEGIN:VTIMEZONE\r\nTZID:" + alias + "\r\n" +
+            "TZID-ALIAS-OF:" + aliases.get(alias).get(0) + "\r\n" +
+            "END:VTIMEZONE\r\n";
+  }
+
+  private static EncodedBody calendar(final String vtz,
+                                      final String etag,
+                                      final long lastModified) {
+    return new EncodedBody("BEGIN:VCALENDAR\r\n" + vtz +
+                                   "END:VCALENDAR\r\n",
+                           "text/calendar; charset=UTF-8",
+                           etag, lastModified);
+  }
+
+  /* Just what the writer asks for */
+  private CachedData source() {
+    return (CachedData)Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[]{CachedData.class},
+            (p, m, args) -> {
+              final String arg = ((args != null) && (args.length > 0) &&
+                                          (args[0] instanceof String)) ?
+                                 (String)args[0] : null;
+
+              switch (m.getName()) {
+                case "getDtstamp":
+                  return "20200101T000000Z";
+                case "getSource":
+                  return "test";
+                case "getAliasesStr":
+                  return aliases.toString();
+                case "getNameList":
+                  return new TreeSet<>(ids);
+                case "getTimezones":
+                  return new ArrayList<>(sums.values());
+                case "findAliases":
+                  final List<String> as = aliasesOf(arg);
+                  return as.isEmpty() ? null : new TreeSet<>(as);
+                case "fromAlias":
+                  if (!aliases.containsKey(arg)) {
+                    return null;
+                  }
+
+                  final TzAlias alias = new TzAlias(arg);
+                  alias.setTargetIds(aliases.get(arg));
+                  return alias;
+                case "getTzBody":
+                  if (!ids.contains(arg)) {
+                    return null;
+                  }
+
+                  return calendar(vtz(arg), etag(arg),
+                                  1500000000000L + 1000 *
+                                          (ids.indexOf(arg) + 1));
+                case "getCachedVtz":
+                  return ids.contains(arg) ? vtz(arg) : null;
+                case "getAliasedTzBody":
+                  if (!aliases.containsKey(arg)) {
+                    return null;
+                  }
+
+                  return calendar(aliasVtz(arg), etag(arg), -1);
+                case "getAliasedCachedVtz":
+                  return aliases.containsKey(arg) ? aliasVtz(arg) : null;
+                case "getCompiledTimezone":
+                  return tables.get(arg);
+                default:
+                  throw new UnsupportedOperationException(m.getName());
+              }
+            });
+  }
+}
@@ -270,7 +270,7 @@ class Processor {
                           params.getVerboseId());
   }
 
-  private void buildVtzs() {
+  void buildVtzs() {
     if (vtzsBuilt) {
       return;
     }
@@ -18,6 +18,7 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.EncodedBody;
 import org.bedework.timezones.common.TzConfig;
 import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.util.timezones.model.CapabilitiesAcceptParameterType;
@@ -48,7 +49,7 @@ public class CapabilitiesHandler extends MethodBase {
                 " deployed and/or enabled.");
 
     addAction(capabilities, "list",
-              "/zones{?changedsince}",
+              "/zones{?changedsince,wait}",
               "This action lists all timezone identifiers, in summary " +
                 "format, with optional localized data. In addition, it " +
                 "returns a timestamp which is the current server global " +
@@ -59,7 +60,14 @@ public class CapabilitiesHandler extends MethodBase {
                       null,
                       "OPTIONAL, but MUST occur only once. If present, " +
                         "limits the response to timezones changed since " +
-                        "the given timestamp."));
+                        "the given timestamp."),
+              makePar("wait",
+                      false,
+                      false,
+                      null,
+                      "OPTIONAL, only with changedsince. Number of " +
+                        "seconds to wait for a change if there are none " +
+                        "yet. Capped by the server."));
 
     addAction(capabilities, "get",
               "/zones{/tzid}{?start,end}",
@@ -118,8 +126,46 @@ public class CapabilitiesHandler extends MethodBase {
                         true,
                         null,
                         "OPTIONAL, but MUST occur only once. If present, " +
-                        "indicates that timezone aliases should be returned " +
-                        "in the list. "));
+                        "localized names are only matched in that " +
+                        "language. Identifiers and aliases are always " +
+                        "matched. "));
+
+    addAction(capabilities, "convert",
+              "/convert{?datetime,from,to,disambiguation}",
+              "Extension: converts a date-time from one timezone to " +
+                "another. ",
+              makePar("datetime",
+                      true,
+                      false,
+                      null,
+                      "REQUIRED. Local date-time yyyyMMddTHHmmss, or UTC " +
+                        "with a trailing Z in which case from is ignored."),
+              makePar("from",
+                      false,
+                      false,
+                      null,
+                      "Timezone identifier of datetime."),
+              makePar("to",
+                      true,
+                      false,
+                      null,
+                      "REQUIRED. Timezone identifier for the result."),
+              disambiguationPar());
+
+    addAction(capabilities, "utc",
+              "/utc{?datetime,tzid,disambiguation}",
+              "Extension: converts a local date-time to UTC. ",
+              makePar("datetime",
+                      true,
+                      false,
+                      null,
+                      "REQUIRED. Local date-time yyyyMMddTHHmmss."),
+              makePar("tzid",
+                      true,
+                      false,
+                      null,
+                      "REQUIRED. Timezone identifier of datetime."),
+              disambiguationPar());
   }
 
   private static void addAction(final CapabilitiesType capabilities,
@@ -142,6 +188,22 @@ public class CapabilitiesHandler extends MethodBase {
     capabilities.getActions().add(cot);
   }
 
+  private static CapabilitiesAcceptParameterType disambiguationPar() {
+    final CapabilitiesAcceptParameterType capt =
+            makePar("disambiguation",
+                    false,
+                    false,
+                    "compatible",
+                    "OPTIONAL. How a local time in a gap or overlap is " +
+                      "resolved. Default is compatible.");
+
+    capt.addValue("earlier");
+    capt.addValue("later");
+    capt.addValue("reject");
+
+    return capt;
+  }
+
   private static CapabilitiesAcceptParameterType makePar(final String name,
                                                          final boolean required,
                                                          final boolean multi,
@@ -172,37 +234,41 @@ public class CapabilitiesHandler extends MethodBase {
     }
 
     try {
-      resp.setContentType("application/json; charset=UTF-8");
+      writeBody(req, resp, cachedBody("capabilities", this::build));
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
 
-      final CapabilitiesInfoType ci = new CapabilitiesInfoType();
+  private EncodedBody build() throws Throwable {
+    final CapabilitiesInfoType ci = new CapabilitiesInfoType();
 
-      final TzConfig cfg = TzServerUtil.getTzConfig();
+    final TzConfig cfg = TzServerUtil.getTzConfig();
 
-      if (!cfg.getPrimaryServer()) {
-        ci.setPrimarySource(TzServerUtil.getTzConfig().getPrimaryUrl());
-      } else {
-        ci.setSource(cfg.getSource());
-      }
+    if (!cfg.getPrimaryServer()) {
+      ci.setPrimarySource(TzServerUtil.getTzConfig().getPrimaryUrl());
+    } else {
+      ci.setSource(cfg.getSource());
+    }
 
-      ci.getFormats().add("text/calendar");
-      ci.getFormats().add("application/calendar+xml");
-      ci.getFormats().add("application/calendar+json");
+    ci.getFormats().add("text/calendar");
+    ci.getFormats().add("application/calendar+xml");
+    ci.getFormats().add("application/calendar+json");
 
-      final CapabilitiesTruncatedType ct = new CapabilitiesTruncatedType();
+    final CapabilitiesTruncatedType ct = new CapabilitiesTruncatedType();
 
-      ct.setAny(false);
-      ct.setUntruncated(true);
+    ct.setAny(true);
+    ct.setUntruncated(true);
 
-      ci.setTruncated(ct);
+    ci.setTruncated(ct);
 
-      //ci.getContacts().add(util.get)
+    //ci.getContacts().add(util.get)
+    synchronized (capabilities) {
       capabilities.setInfo(ci);
 
-      writeJson(resp, capabilities);
-    } catch (final ServletException se) {
-      throw se;
-    } catch (final Throwable t) {
-      throw new ServletException(t);
+      return jsonBody(capabilities, null);
     }
   }
 }
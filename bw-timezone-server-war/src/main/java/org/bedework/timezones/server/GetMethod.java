@@ -18,8 +18,14 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.EncodedBody;
 import org.bedework.timezones.common.ExpandedMapEntry;
+import org.bedework.timezones.common.LatencyHistogram;
 import org.bedework.timezones.common.Stat;
+import org.bedework.timezones.common.TzConfig;
+import org.bedework.timezones.common.TzConverter;
+import org.bedework.timezones.common.TzConverter.Disambiguation;
+import org.bedework.timezones.common.TzMetrics;
 import org.bedework.timezones.common.TzServerUtil;
 
 import java.io.Writer;
@@ -78,6 +84,24 @@ public class GetMethod extends MethodBase {
   private static final String zonesEl = "zones";
   private static final String observancesEl = "observances";
 
+  /* Extensions */
+  private static final String convertEl = "convert";
+  private static final String utcEl = "utc";
+
+  /* Prometheus text format */
+  private static final String metricsEl = "metrics";
+
+  private static final LatencyHistogram capabilitiesTimer =
+          actionTimer("capabilities");
+  private static final LatencyHistogram listTimer = actionTimer("list");
+  private static final LatencyHistogram getTimer = actionTimer("get");
+  private static final LatencyHistogram expandTimer = actionTimer("expand");
+  private static final LatencyHistogram findTimer = actionTimer("find");
+  private static final LatencyHistogram namesTimer = actionTimer("names");
+  private static final LatencyHistogram convertTimer =
+          actionTimer("convert");
+  private static final LatencyHistogram utcTimer = actionTimer("utc");
+
   // TODO - fix stylesheets to parse json from list
   private static final String namesReqPar = "names";
 
@@ -86,6 +110,8 @@ public class GetMethod extends MethodBase {
                        final HttpServletResponse resp) throws ServletException {
     final ResourceUri ruri = getResourceUri(req);
     final long start = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    LatencyHistogram timer = null;
 
     if (debug()) {
       debug("GetMethod: doMethod  path=" + ruri.uri);
@@ -93,11 +119,8 @@ public class GetMethod extends MethodBase {
 
     try {
       if (req.getParameter("names") != null) {
-        if (ifNoneMatchTest(req, resp)) {
-          return;
-        }
-
-        doNames(resp);
+        timer = namesTimer;
+        doNames(req, resp);
         return;
       }
 
@@ -107,10 +130,16 @@ public class GetMethod extends MethodBase {
 
       final String el0 = ruri.getPathElement(0);
       if (el0.equals(capabilitiesEl)) {
+        timer = capabilitiesTimer;
         capabilities.doMethod(req, resp);
         return;
       }
 
+      if (el0.equals(metricsEl)) {
+        doMetrics(req, resp);
+        return;
+      }
+
       final int dataPrefixElements = dataPrefixElements(ruri);
 
       final String el = ruri.getPathElement(dataPrefixElements);
@@ -120,14 +149,32 @@ public class GetMethod extends MethodBase {
       }
 
       if (el.equals(zonesEl)) {
+        timer = zonesTimer(req, ruri, dataPrefixElements);
         doZones(req,resp, ruri, dataPrefixElements);
         return;
       }
 
       if (el.equals(observancesEl)) {
+        timer = expandTimer;
         doExpand(req, resp, ruri, dataPrefixElements);
+        return;
+      }
+
+      if (el.equals(convertEl)) {
+        timer = convertTimer;
+        doConvert(req, resp);
+        return;
+      }
+
+      if (el.equals(utcEl)) {
+        timer = utcTimer;
+        doToUtc(req, resp);
       }
     } finally {
+      if (timer != null) {
+        timer.recordSince(startNanos);
+      }
+
       if (debug()) {
         debug("GET exit. Took " + TzServerUtil.printableTime(
                 System.currentTimeMillis() - start));
@@ -194,7 +241,7 @@ public class GetMethod extends MethodBase {
     }
 
     if (!tzid.endsWith("/observances")) {
-      tzids.doTzid(resp, tzid);
+      tzids.doTzid(req, resp, tzid);
       return;
     }
 
@@ -203,6 +250,66 @@ public class GetMethod extends MethodBase {
     doExpand(req, resp, tzid.substring(0, len));
   }
 
+  /* Same decisions as doZones */
+  private LatencyHistogram zonesTimer(final HttpServletRequest req,
+                                      final ResourceUri ruri,
+                                      final int dataPrefixSize) {
+    if (req.getParameter("pattern") != null) {
+      return findTimer;
+    }
+
+    final String tzid = ruri.getElements(dataPrefixSize + 1);
+
+    if (tzid == null) {
+      return listTimer;
+    }
+
+    if (!tzid.endsWith("/observances")) {
+      return getTimer;
+    }
+
+    return expandTimer;
+  }
+
+  private void doMetrics(final HttpServletRequest req,
+                         final HttpServletResponse resp) throws ServletException {
+    try {
+      final TzConfig cfg = TzServerUtil.getTzConfig();
+
+      if ((cfg == null) || (cfg.getMetricsAddresses() == null)) {
+        // Disabled
+        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+
+      if (!metricsAllowed(cfg.getMetricsAddresses(), req.getRemoteAddr())) {
+        resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        return;
+      }
+
+      resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+
+      TzMetrics.writePrometheus(resp.getWriter());
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  private static boolean metricsAllowed(final String addresses,
+                                        final String addr) {
+    if (addr == null) {
+      return false;
+    }
+
+    for (final String a: addresses.split(",")) {
+      if (a.trim().equals(addr)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
   private void doFind(final HttpServletRequest req,
                       final HttpServletResponse resp,
                       final String pattern) throws ServletException {
@@ -212,7 +319,8 @@ public class GetMethod extends MethodBase {
         return;
       }
 
-      listResponse(resp, util.findTimezones(pattern));
+      listResponse(req, resp,
+                   util.findTimezones(pattern, req.getParameter("lang")));
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -276,9 +384,19 @@ public class GetMethod extends MethodBase {
         return;
       }
 
-      resp.setHeader("ETag", tzs.getEtag());
+      final String etag = codingEtag(req, tzs.getEtag());
+
+      if (notModified(req, resp, etag, tzs.getLastModified())) {
+        return;
+      }
+
+      resp.setHeader("ETag", etag);
 
-      writeJson(resp, tzs.getTzs());
+      if (tzs.getLastModified() > 0) {
+        resp.setDateHeader("Last-Modified", tzs.getLastModified());
+      }
+
+      writeJson(req, resp, tzs.getTzs());
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -312,9 +430,19 @@ public class GetMethod extends MethodBase {
         return;
       }
 
-      resp.setHeader("ETag", tzs.getEtag());
+      final String etag = codingEtag(req, tzs.getEtag());
+
+      if (notModified(req, resp, etag, tzs.getLastModified())) {
+        return;
+      }
+
+      resp.setHeader("ETag", etag);
+
+      if (tzs.getLastModified() > 0) {
+        resp.setDateHeader("Last-Modified", tzs.getLastModified());
+      }
 
-      writeJson(resp, tzs.getTzs());
+      writeJson(req, resp, tzs.getTzs());
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -322,17 +450,26 @@ public class GetMethod extends MethodBase {
     }
   }
 
-  private void doNames(final HttpServletResponse resp) throws ServletException {
+  private void doNames(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
     try {
-      resp.setContentType("text/plain; charset=UTF-8");
-      resp.setHeader("ETag", util.getEtag());
+      writeBody(req, resp, cachedBody("names", () -> {
+        final StringBuilder sb = new StringBuilder();
 
-      Writer wtr = resp.getWriter();
+        for (String s: util.getNames()) {
+          sb.append(s);
+          sb.append("\n");
+        }
 
-      for (String s: util.getNames()) {
-        wtr.write(s);
-        wtr.write("\n");
-      }
+        final String names = sb.toString();
+
+        /* Only changes if the names do */
+        return new EncodedBody(names,
+                               "text/plain; charset=UTF-8",
+                               "\"" + TzServerUtil.digest(names) + "\"");
+      }));
+    } catch (ServletException se) {
+      throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
@@ -377,14 +514,19 @@ public class GetMethod extends MethodBase {
     }
   }
 
-  private void doAliases(final HttpServletResponse resp) throws ServletException {
+  private void doAliases(final HttpServletRequest req,
+                         final HttpServletResponse resp) throws ServletException {
     try {
-      resp.setHeader("ETag", util.getEtag());
-      resp.setContentType("text/plain; charset=UTF-8");
-
-      Writer wtr = resp.getWriter();
-
-      wtr.write(util.getAliasesStr());
+      writeBody(req, resp, cachedBody("aliases", () -> {
+        final String aliases = util.getAliasesStr();
+
+        /* Only changes if the aliases do */
+        return new EncodedBody(aliases,
+                               "text/plain; charset=UTF-8",
+                               "\"" + TzServerUtil.digest(aliases) + "\"");
+      }));
+    } catch (ServletException se) {
+      throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
@@ -502,67 +644,119 @@ public class GetMethod extends MethodBase {
     wtr.write("</tr>\r\n");
   }
 
-  private void doConvert(final HttpServletResponse resp,
-                         final String dateTime,
-                         final String fromTzid,
-                         final String toTzid) throws ServletException {
+  /* /convert?datetime=...&from=...&to=...{&disambiguation=...}
+   */
+  private void doConvert(final HttpServletRequest req,
+                         final HttpServletResponse resp) throws ServletException {
     try {
-      Writer wtr = resp.getWriter();
+      final String dateTime = req.getParameter("datetime");
+      final String fromTzid = req.getParameter("from");
+      final String toTzid = req.getParameter("to");
 
-      String cnvDdateTime = util.convertDateTime(dateTime,
-                                                 fromTzid,
-                                                 toTzid);
-
-      if (cnvDdateTime != null) {
-        wtr.write(cnvDdateTime);
-      } else {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      if (!checkConversion(req, resp, dateTime, fromTzid) ||
+              !checkTzid(resp, toTzid)) {
+        return;
       }
-    } catch (ServletException se) {
+
+      conversionResponse(resp,
+                         util.convertDateTime(dateTime,
+                                              fromTzid,
+                                              toTzid,
+                                              disambiguation(req)));
+    } catch (final ServletException se) {
       throw se;
-    } catch (Throwable t) {
+    } catch (final Throwable t) {
       throw new ServletException(t);
     }
   }
 
-  private void doToUtc(final HttpServletResponse resp,
-                       final String dateTime,
-                       final String fromTzid) throws ServletException {
+  /* /utc?datetime=...&tzid=...{&disambiguation=...}
+   */
+  private void doToUtc(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
     try {
-      Writer wtr = resp.getWriter();
+      final String dateTime = req.getParameter("datetime");
+      final String fromTzid = req.getParameter("tzid");
 
-      String cnvDdateTime = util.getUtc(dateTime, fromTzid);
-
-      if (cnvDdateTime != null) {
-        wtr.write(cnvDdateTime);
-      } else {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      if (!checkConversion(req, resp, dateTime, fromTzid)) {
+        return;
       }
-    } catch (ServletException se) {
+
+      conversionResponse(resp,
+                         util.getUtc(dateTime,
+                                     fromTzid,
+                                     disambiguation(req)));
+    } catch (final ServletException se) {
       throw se;
-    } catch (Throwable t) {
+    } catch (final Throwable t) {
       throw new ServletException(t);
     }
   }
 
-  /* Return true if data unchanged - status is set */
-  private boolean ifNoneMatchTest(final HttpServletRequest req,
-                                  final HttpServletResponse resp) throws ServletException {
-    try {
-      String inEtag = req.getHeader("If-None-Match");
-
-      if (inEtag == null) {
-        return false;
-      }
+  /* Validate the common parameters - false if an error was sent.
+   * The source timezone is not needed for a UTC datetime.
+   */
+  private boolean checkConversion(final HttpServletRequest req,
+                                  final HttpServletResponse resp,
+                                  final String dateTime,
+                                  final String fromTzid) throws Throwable {
+    if (TzConverter.parse(dateTime) == TzConverter.invalid) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidDatetime);
+      return false;
+    }
 
-      if (!inEtag.equals(util.getEtag())) {
-        return false;
-      }
+    if (disambiguation(req) == null) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidDisambiguation);
+      return false;
+    }
 
-      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    if (TzConverter.isUtc(dateTime)) {
       return true;
-    } catch (Throwable t) {
-      throw new ServletException(t);
     }
+
+    return checkTzid(resp, fromTzid);
+  }
+
+  private boolean checkTzid(final HttpServletResponse resp,
+                            final String tzid) throws Throwable {
+    if (tzid == null) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidTzid);
+      return false;
+    }
+
+    if (!util.exists(tzid)) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_NOT_FOUND,
+                    missingTzid);
+      return false;
+    }
+
+    return true;
+  }
+
+  private Disambiguation disambiguation(final HttpServletRequest req) {
+    return Disambiguation.fromParam(req.getParameter("disambiguation"));
+  }
+
+  private void conversionResponse(final HttpServletResponse resp,
+                                  final String val) throws Throwable {
+    if (val == null) {
+      // Parameters were valid so the time was rejected
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidDatetime);
+      return;
+    }
+
+    resp.setContentType("text/plain; charset=UTF-8");
+
+    final Writer wtr = resp.getWriter();
+    wtr.write(val);
   }
 }
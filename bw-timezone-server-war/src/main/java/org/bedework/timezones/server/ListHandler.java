@@ -18,7 +18,13 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.GenerationMonitor;
+import org.bedework.timezones.common.LastModIndex;
+import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.util.logging.BwLogger;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -29,6 +35,10 @@ import javax.servlet.http.HttpServletResponse;
  *   @author Mike Douglass
  */
 public class ListHandler extends MethodBase {
+  /** Longest we will hold a list request waiting for a change - seconds
+   */
+  public static final int maxWait = 300;
+
   /**
    * @throws javax.servlet.ServletException
    */
@@ -45,6 +55,7 @@ public class ListHandler extends MethodBase {
 
     try {
       final String changedsince = req.getParameter("changedsince");
+      final String waitPar = req.getParameter("wait");
 
       // TODO - this is non-standard?
       final String[] tzids = req.getParameterValues("tzid");
@@ -57,20 +68,142 @@ public class ListHandler extends MethodBase {
           return;
         }
 
-        listResponse(resp, util.getTimezones(tzids));
+        listResponse(req, resp, util.getTimezones(tzids));
         return;
       }
 
-      listResponse(resp, util.getTimezones(changedsince));
+      /* A wait only makes sense with changedsince */
+      final int wait;
+
+      if (waitPar == null) {
+        wait = 0;
+      } else {
+        wait = parseWait(waitPar);
 
-      if (changedsince != null) {
-        new BwLogger().setLoggedName("org.bedework.timezones.refresh.logger")
-                      .info("Refresh call from " + req.getRemoteHost());
+        if ((changedsince == null) || (wait < 0)) {
+          errorResponse(resp,
+                        HttpServletResponse.SC_BAD_REQUEST,
+                        invalidWait);
+          return;
+        }
+      }
+
+      if (changedsince == null) {
+        // The full list only changes with the data
+        writeBody(req, resp, cachedBody("list", () -> {
+          final List<TimezoneType> tzs = util.getTimezones((String)null);
+          long lastModified = -1;
+
+          for (final TimezoneType tz: tzs) {
+            if ((tz.getLastModified() != null) &&
+                    (tz.getLastModified().getTime() > lastModified)) {
+              lastModified = tz.getLastModified().getTime();
+            }
+          }
+
+          return jsonBody(makeList(tzs), util.getEtag(), lastModified);
+        }));
+        return;
       }
+
+      if (wait > 0) {
+        waitForChanges(changedsince, wait);
+      }
+
+      changedResponse(req, resp, changedsince,
+                      util.getGeneration(),
+                      util.getTimezones(changedsince));
+
+      new BwLogger().setLoggedName("org.bedework.timezones.refresh.logger")
+                    .info("Refresh call from " + req.getRemoteHost());
     } catch (ServletException se) {
       throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
   }
+
+  /* Every changedsince which selects the same zones gets the same
+   * body. That set is identified by the earliest last modified in it,
+   * so the body is cached per generation on that. Values not in the
+   * form we hand out, or a result which raced with an update, get a
+   * response built for the request.
+   */
+  private void changedResponse(final HttpServletRequest req,
+                               final HttpServletResponse resp,
+                               final String changedsince,
+                               final long gen,
+                               final List<TimezoneType> tzs) throws Throwable {
+    if ((LastModIndex.toSeconds(changedsince) == null) ||
+            (util.getGeneration() != gen)) {
+      listResponse(req, resp, tzs);
+      return;
+    }
+
+    long first = Long.MAX_VALUE;
+    long lastModified = -1;
+
+    for (final TimezoneType tz: tzs) {
+      if (tz.getLastModified() == null) {
+        continue;
+      }
+
+      final long lm = tz.getLastModified().getTime();
+
+      first = Math.min(first, Math.floorDiv(lm, 1000));
+      lastModified = Math.max(lastModified, lm);
+    }
+
+    final String bucket;
+
+    if (first == Long.MAX_VALUE) {
+      bucket = "none";
+    } else {
+      bucket = String.valueOf(first);
+    }
+
+    final long lm = lastModified;
+
+    writeBody(req, resp, cachedBody("list:" + bucket, () -> {
+      final String etag = "\"" +
+              TzServerUtil.digest(util.getEtag(), "list", bucket) + "\"";
+
+      return jsonBody(makeList(tzs), etag, lm);
+    }));
+  }
+
+  /* Long poll - if nothing has changed hold the request until the data
+   * changes or we time out. This ties up a request thread so the wait
+   * and the number of waiters (maxListWaiters) are both bounded.
+   */
+  private void waitForChanges(final String changedsince,
+                              final int wait) throws Throwable {
+    final long end = System.currentTimeMillis() +
+            Math.min(wait, maxWait) * 1000L;
+    final int maxWaiters =
+            GenerationMonitor.getMaxWaiters(TzServerUtil.getTzConfig());
+
+    while (true) {
+      final long seen = GenerationMonitor.current();
+
+      if (!util.getTimezones(changedsince).isEmpty()) {
+        return;
+      }
+
+      final long remaining = end - System.currentTimeMillis();
+
+      if ((remaining <= 0) ||
+              !GenerationMonitor.await(seen, remaining, maxWaiters)) {
+        return;
+      }
+    }
+  }
+
+  private static int parseWait(final String val) {
+    try {
+      return Integer.parseInt(val);
+    } catch (final NumberFormatException nfe) {
+      return -1;
+    }
+  }
 }
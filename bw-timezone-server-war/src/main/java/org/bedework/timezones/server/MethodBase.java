@@ -18,6 +18,9 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.EncodedBody;
+import org.bedework.timezones.common.LatencyHistogram;
+import org.bedework.timezones.common.TzMetrics;
 import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.util.logging.BwLogger;
 import org.bedework.util.logging.Logged;
@@ -29,12 +32,17 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
+import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -72,15 +80,58 @@ public abstract class MethodBase implements Logged {
                             "The \"changedsince\" query parameter has an " +
                             "incorrect value, or appears more than once.");
 
+  protected static final ErrorResponseType invalidWait =
+          new ErrorResponseType("invalid-wait",
+                                "The \"wait\" query parameter is present " +
+                                        "without \"changedsince\", or has " +
+                                        "an incorrect value.");
+
   protected static final ErrorResponseType invalidListTzid =
           new ErrorResponseType("invalid-tzid",
                                 "The \"tzid\" query parameter is present along with the " +
                                         "\"changedsince\", or has an incorrect value.");
 
+  protected static final ErrorResponseType invalidDatetime =
+          new ErrorResponseType("invalid-datetime",
+                                "The \"datetime\" query parameter is not " +
+                                        "present, has an incorrect value, or " +
+                                        "falls in a gap or overlap and " +
+                                        "\"disambiguation\" is \"reject\".");
+
+  protected static final ErrorResponseType invalidDisambiguation =
+          new ErrorResponseType("invalid-disambiguation",
+                                "The \"disambiguation\" query parameter is " +
+                                        "not one of compatible, earlier, later " +
+                                        "or reject.");
+
   protected ObjectMapper mapper = new ObjectMapper(); // create once, reuse
 
   protected TzServerUtil util;
 
+  /** Bodies smaller than this are not worth compressing */
+  protected static final int minCompressLength = 256;
+
+  protected static final String jsonContentType =
+          "application/json; charset=UTF-8";
+
+  /* Bodies which only change when the data changes. Emptied when we see
+   * a new data generation.
+   */
+  private static final Map<String, EncodedBody> cachedBodies =
+          new ConcurrentHashMap<>();
+
+  private static volatile long cachedGeneration = -1;
+
+  /** Builds a body for the body cache
+   */
+  protected interface BodyBuilder {
+    /**
+     * @return the body
+     * @throws Throwable on error
+     */
+    EncodedBody build() throws Throwable;
+  }
+
   /**
    * @throws ServletException
    */
@@ -274,23 +325,349 @@ public abstract class MethodBase implements Logged {
    *                   Output methods
    *  =================================================================== */
 
-  protected void listResponse(final HttpServletResponse resp,
+  protected void listResponse(final HttpServletRequest req,
+                              final HttpServletResponse resp,
                               final List<TimezoneType> tzs) throws ServletException {
     try {
-      resp.setContentType("application/json; charset=UTF-8");
+      /* Same request against the same data gives the same result */
+      final String etag = codingEtag(req, "\"" +
+              TzServerUtil.digest(util.getEtag(),
+                                  req.getRequestURI(),
+                                  req.getQueryString()) + "\"");
+
+      if (notModified(req, resp, etag, -1)) {
+        return;
+      }
 
-      final TimezoneListType tzl = new TimezoneListType();
+      resp.setContentType(jsonContentType);
+      resp.setHeader("ETag", etag);
 
-      tzl.setSynctoken(util.getDtstamp());
+      writeJson(req, resp, makeList(tzs));
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  protected TimezoneListType makeList(final List<TimezoneType> tzs) throws Throwable {
+    final TimezoneListType tzl = new TimezoneListType();
 
-      if (tzl.getTimezones() == null) {
-        tzl.setTimezones(new ArrayList<TimezoneType>());
+    tzl.setSynctoken(util.getDtstamp());
+
+    if (tzl.getTimezones() == null) {
+      tzl.setTimezones(new ArrayList<TimezoneType>());
+    }
+    tzl.getTimezones().addAll(tzs);
+
+    return tzl;
+  }
+
+  /** Return the cached body for the key, building it if this is the
+   * first request since the data changed.
+   *
+   * @param key identifies the body
+   * @param builder called to build it
+   * @return the body
+   * @throws Throwable on error
+   */
+  protected EncodedBody cachedBody(final String key,
+                                   final BodyBuilder builder) throws Throwable {
+    final long gen = util.getGeneration();
+
+    if (gen != cachedGeneration) {
+      synchronized (cachedBodies) {
+        if (gen != cachedGeneration) {
+          cachedBodies.clear();
+          cachedGeneration = gen;
+        }
       }
-      tzl.getTimezones().addAll(tzs);
+    }
 
-      writeJson(resp, tzl);
-    } catch (final ServletException se) {
-      throw se;
+    EncodedBody body = cachedBodies.get(key);
+
+    if (body != null) {
+      return body;
+    }
+
+    body = builder.build();
+
+    if (util.getGeneration() == gen) {
+      cachedBodies.put(key, body);
+    }
+
+    return body;
+  }
+
+  /**
+   * @param val to render
+   * @param etag quoted etag or null
+   * @return json body
+   * @throws Throwable on error
+   */
+  protected EncodedBody jsonBody(final Object val,
+                                 final String etag) throws Throwable {
+    return jsonBody(val, etag, -1);
+  }
+
+  /**
+   * @param val to render as json
+   * @param etag quoted etag or null
+   * @param lastModified millis or -1 for unknown
+   * @return the encoded body
+   * @throws Throwable on error
+   */
+  protected EncodedBody jsonBody(final Object val,
+                                 final String etag,
+                                 final long lastModified) throws Throwable {
+    return new EncodedBody(mapper.writeValueAsBytes(val),
+                           jsonContentType, etag, lastModified);
+  }
+
+  /**
+   * @param action name of the action
+   * @return timer for requests for that action
+   */
+  protected static LatencyHistogram actionTimer(final String action) {
+    return TzMetrics.timer("request_seconds",
+                           "Time taken to handle requests by action",
+                           "action=\"" + action + "\"");
+  }
+
+  /** Evaluate If-None-Match and If-Modified-Since against the
+   * validators for the response. If-None-Match takes precedence when
+   * present. If the client copy is current the status is set to 304
+   * along with the validators.
+   *
+   * @param req the request
+   * @param resp the response
+   * @param etag quoted etag or null
+   * @param lastModified millis or -1 for unknown
+   * @return true if not modified - response is complete
+   */
+  protected static boolean notModified(final HttpServletRequest req,
+                                       final HttpServletResponse resp,
+                                       final String etag,
+                                       final long lastModified) {
+    final String inm = req.getHeader("If-None-Match");
+    final boolean unchanged;
+
+    if (inm != null) {
+      unchanged = (etag != null) && etagMatches(inm, etag);
+    } else if (lastModified > 0) {
+      long ims;
+
+      try {
+        ims = req.getDateHeader("If-Modified-Since");
+      } catch (final IllegalArgumentException iae) {
+        // Unparseable - ignore it
+        ims = -1;
+      }
+
+      // Header dates have a resolution of seconds
+      unchanged = (ims >= 0) && ((lastModified / 1000) <= (ims / 1000));
+    } else {
+      unchanged = false;
+    }
+
+    if (!unchanged) {
+      return false;
+    }
+
+    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    if (etag != null) {
+      resp.setHeader("ETag", etag);
+    }
+
+    if (lastModified > 0) {
+      resp.setDateHeader("Last-Modified", lastModified);
+    }
+
+    return true;
+  }
+
+  /* Weak comparison against each tag in the header */
+  private static boolean etagMatches(final String header,
+                                     final String etag) {
+    final String val = stripWeak(etag);
+
+    for (final String tag: header.split(",")) {
+      final String t = tag.trim();
+
+      if (t.equals("*") || stripWeak(t).equals(val)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static String stripWeak(final String tag) {
+    if (tag.startsWith("W/")) {
+      return tag.substring(2);
+    }
+
+    return tag;
+  }
+
+  /** Choose a content coding from the Accept-Encoding header.
+   *
+   * @param req the request
+   * @return gzip, deflate or null for identity
+   */
+  protected static String negotiateEncoding(final HttpServletRequest req) {
+    final String ae = req.getHeader("Accept-Encoding");
+
+    if (ae == null) {
+      return null;
+    }
+
+    double gzipQ = -1;
+    double deflateQ = -1;
+    double anyQ = -1;
+
+    for (final String coding: ae.split(",")) {
+      final String[] parts = coding.split(";");
+      final String name = parts[0].trim().toLowerCase();
+      double q = 1;
+
+      for (int i = 1; i < parts.length; i++) {
+        final String par = parts[i].trim();
+
+        if (par.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(par.substring(2));
+          } catch (final NumberFormatException nfe) {
+            q = 0;
+          }
+        }
+      }
+
+      switch (name) {
+        case "gzip":
+        case "x-gzip":
+          gzipQ = q;
+          break;
+        case "deflate":
+          deflateQ = q;
+          break;
+        case "*":
+          anyQ = q;
+          break;
+      }
+    }
+
+    if (gzipQ < 0) {
+      gzipQ = anyQ;
+    }
+
+    if (deflateQ < 0) {
+      deflateQ = anyQ;
+    }
+
+    if ((gzipQ > 0) && (gzipQ >= deflateQ)) {
+      return EncodedBody.gzip;
+    }
+
+    if (deflateQ > 0) {
+      return EncodedBody.deflate;
+    }
+
+    return null;
+  }
+
+  /** Write a pre-built body, compressed if the client allows it.
+   *
+   * @param req the request
+   * @param resp the response
+   * @param body to write
+   * @throws ServletException on error
+   */
+  protected void writeBody(final HttpServletRequest req,
+                           final HttpServletResponse resp,
+                           final EncodedBody body) throws ServletException {
+    try {
+      String encoding = null;
+
+      if (body.getContentLength() >= minCompressLength) {
+        resp.setHeader("Vary", "Accept-Encoding");
+        encoding = negotiateEncoding(req);
+      }
+
+      final String etag = body.getEtag(encoding);
+
+      if (notModified(req, resp, etag, body.getLastModified())) {
+        return;
+      }
+
+      resp.setContentType(body.getContentType());
+
+      if (etag != null) {
+        resp.setHeader("ETag", etag);
+      }
+
+      if (body.getLastModified() > 0) {
+        resp.setDateHeader("Last-Modified", body.getLastModified());
+      }
+
+      if (encoding != null) {
+        resp.setHeader("Content-Encoding", encoding);
+      }
+
+      resp.setContentLength(body.getContentLength(encoding));
+
+      body.writeTo(resp.getOutputStream(), encoding);
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /** The tag for a dynamic body in the coding
+   * {@link #getOutputStream(HttpServletRequest, HttpServletResponse)}
+   * will choose.
+   *
+   * @param req the request
+   * @param etag quoted etag of the identity representation
+   * @return quoted etag for the response
+   */
+  protected static String codingEtag(final HttpServletRequest req,
+                                     final String etag) {
+    return EncodedBody.codingEtag(etag, negotiateEncoding(req));
+  }
+
+  /** Get a stream for a dynamic body, compressing it if the client
+   * allows. The stream must be closed to complete the response.
+   *
+   * @param req the request
+   * @param resp the response
+   * @return stream
+   * @throws Throwable on error
+   */
+  protected OutputStream getOutputStream(final HttpServletRequest req,
+                                         final HttpServletResponse resp) throws Throwable {
+    resp.setHeader("Vary", "Accept-Encoding");
+
+    final String encoding = negotiateEncoding(req);
+
+    if (encoding == null) {
+      return resp.getOutputStream();
+    }
+
+    resp.setHeader("Content-Encoding", encoding);
+
+    if (EncodedBody.gzip.equals(encoding)) {
+      return new GZIPOutputStream(resp.getOutputStream());
+    }
+
+    return new DeflaterOutputStream(resp.getOutputStream());
+  }
+
+  protected void writeJson(final HttpServletRequest req,
+                           final HttpServletResponse resp,
+                           final Object val) throws ServletException {
+    try (OutputStream os = getOutputStream(req, resp)) {
+      mapper.writeValue(os, val);
     } catch (final Throwable t) {
       throw new ServletException(t);
     }
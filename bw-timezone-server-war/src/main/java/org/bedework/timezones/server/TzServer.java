@@ -18,6 +18,7 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.timezones.convert.TzCnvSvc;
 import org.bedework.timezones.service.TzConf;
 import org.bedework.util.jmx.ConfBase;
@@ -175,6 +176,13 @@ public class TzServer extends HttpServlet
 
     @Override
     public void stop() {
+      try {
+        // Stops the data threads and saves what's popular for next time
+        TzServerUtil.getInstance().stop();
+      } catch (final Throwable t){
+        t.printStackTrace();
+      }
+
       try {
         getManagementContext().stop();
       } catch (final Throwable t){
@@ -18,10 +18,9 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.EncodedBody;
 import org.bedework.timezones.common.TzServerUtil;
 
-import java.io.Writer;
-
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -45,10 +44,11 @@ public class TzidHandler extends MethodBase {
       debug("TzidHandler: doMethod");
     }
 
-    doTzid(resp, req.getParameter("tzid"));
+    doTzid(req, resp, req.getParameter("tzid"));
   }
 
-  void doTzid(final HttpServletResponse resp,
+  void doTzid(final HttpServletRequest req,
+              final HttpServletResponse resp,
               final String tzid) throws ServletException {
     if (tzid == null) {
       errorResponse(resp,
@@ -57,40 +57,48 @@ public class TzidHandler extends MethodBase {
       return;
     }
 
-    try {
-      resp.setContentType("text/calendar; charset=UTF-8");
+    final String startPar = req.getParameter("start");
+    final String endPar = req.getParameter("end");
 
-      final Writer wtr = resp.getWriter();
+    final String start = TzServerUtil.truncationPoint(startPar);
+    if ((startPar != null) && (start == null)) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidStart);
+      return;
+    }
 
-      String tz = util.getTz(tzid);
+    final String end = TzServerUtil.truncationPoint(endPar);
+    if ((endPar != null) &&
+            ((end == null) ||
+                     ((start != null) && (end.compareTo(start) <= 0)))) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidEnd);
+      return;
+    }
 
-      if (tz == null) {
-        tz = util.getAliasedTz(tzid);
-      }
+    try {
+      final EncodedBody body;
 
-      if (tz == null) {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      if ((start == null) && (end == null)) {
+        /* Body, length and etag were built when the data was loaded -
+           or for an alias on first use, sharing the target's bytes
+         */
+        body = util.getTzBody(tzid);
       } else {
-        resp.setHeader("ETag", "\"" + util.getDtstamp() +
-                       "\"");
-        writeCalHdr(wtr);
-
-        wtr.write(tz);
+        // Built on first use for the window - common windows prebuilt
+        body = util.getTruncatedTzBody(tzid, start, end);
+      }
 
-        writeCalTlr(wtr);
+      if (body == null) {
+        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
       }
-    } catch (final ServletException se) {
-      throw se;
+
+      writeBody(req, resp, body);
     } catch (final Throwable t) {
       throw new ServletException(t);
     }
   }
-
-  private void writeCalHdr(final Writer wtr) throws Throwable  {
-    wtr.write(TzServerUtil.getCalHdr());
-  }
-
-  private void writeCalTlr(final Writer wtr) throws Throwable  {
-    wtr.write(TzServerUtil.getCalTlr());
-  }
 }